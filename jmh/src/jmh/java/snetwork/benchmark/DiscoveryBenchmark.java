@@ -0,0 +1,104 @@
+package snetwork.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import snetwork.FrameHeader;
+import snetwork.sender.AbstractP2PSender;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@code searchPeer} over 127.0.0.1. Two links cannot share a port on the same host, so the sender
+ * answers its own probe: the benchmark measures the probe, its reception and the acceptance of the peer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiscoveryBenchmark {
+
+    private static final int PORT = 40201;
+
+    private DiscoverySender sender;
+
+    @Setup(Level.Trial)
+    public void setUp() throws BindException {
+        sender = new DiscoverySender();
+        sender.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+    }
+
+    @Benchmark
+    public boolean searchPeer() {
+        return sender.search();
+    }
+
+    /**
+     * Sender accepting its own probe as an answer, without keeping the peer so that the search can be repeated.
+     */
+    private static final class DiscoverySender extends AbstractP2PSender {
+
+        private static final byte[] CONNECT = "CONNECT".getBytes();
+
+        private static final byte[] END = "END".getBytes();
+
+        private final List<InetAddress> addresses = Collections.singletonList(InetAddress.getLoopbackAddress());
+
+        DiscoverySender() {
+            super(PORT, 1000);
+        }
+
+        void open() throws BindException {
+            init();
+        }
+
+        boolean search() {
+            return searchPeer(addresses);
+        }
+
+        @Override
+        protected int getSearchedFrameType() {
+            return FrameHeader.CONNECT;
+        }
+
+        @Override
+        protected boolean acceptPeer(byte[] receivedMessage, InetAddress source) {
+            return isAcceptableConnection(receivedMessage);
+        }
+
+        @Override
+        protected boolean isAcceptableConnection(byte[] receivedMessage) {
+            return Arrays.equals(receivedMessage, CONNECT);
+        }
+
+        @Override
+        protected byte[] getConnectionMessage() {
+            return CONNECT;
+        }
+
+        @Override
+        protected byte[] getEndConnectionMessage() {
+            return END;
+        }
+
+        @Override
+        protected void onListening(byte[] receivedMessage) {
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package snetwork.benchmark;
+
+import snetwork.EventLoopGroup;
+import snetwork.FrameHeader;
+import snetwork.receiver.AbstractP2PReceiver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receiver connected to itself over 127.0.0.1: every message it sends comes back to its own
+ * {@link #onListening(ByteBuffer)}, so a benchmark measures the whole send and receive path of a single link.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+final class LoopbackReceiver extends AbstractP2PReceiver {
+
+    private static final byte[] CONNECT = "CONNECT".getBytes();
+
+    private static final byte[] ACCEPT = "ACCEPT".getBytes();
+
+    private static final byte[] END = "END".getBytes();
+
+    /**
+     * Number of messages received.
+     */
+    private volatile long received;
+
+    /**
+     * <i><b>LoopbackReceiver</b></i>
+     *
+     * <pre> LoopbackReceiver(int port) </pre>
+     *
+     * Constructor of {@link LoopbackReceiver}.
+     * @param port the port used.
+     */
+    LoopbackReceiver(int port) {
+        super(port, 0);
+    }
+
+    /**
+     * <i><b>connect</b></i>
+     *
+     * <pre> void connect({@link EventLoopGroup} eventLoopGroup) </pre>
+     *
+     * Start the receiver and connect it to 127.0.0.1.
+     * @param eventLoopGroup the group of event loops, null to use a background thread.
+     * @throws IOException if the connection cannot be made.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    void connect(EventLoopGroup eventLoopGroup) throws IOException, InterruptedException {
+        setEventLoopGroup(eventLoopGroup);
+
+        CountDownLatch connected = new CountDownLatch(1);
+        startProtocol(success -> connected.countDown());
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        byte[] frame = FrameHeader.frame(FrameHeader.CONNECT, CONNECT).array();
+        try (DatagramSocket client = new DatagramSocket()) {
+            while (!connected.await(10, TimeUnit.MILLISECONDS))
+                client.send(new DatagramPacket(frame, frame.length, loopback, getUsedPort()));
+        }
+
+    }
+
+    /**
+     * <i><b>roundTrip</b></i>
+     *
+     * <pre> boolean roundTrip(byte[] message, long timeoutNanos) </pre>
+     *
+     * Send a message and wait for it to be received.
+     * @param message the message to send.
+     * @param timeoutNanos the maximum time to wait in nanoseconds.
+     * @return true if the message has been received, false if it has been lost.
+     */
+    boolean roundTrip(byte[] message, long timeoutNanos) {
+        long expected = received + 1;
+        send(message);
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (received < expected) {
+            if (System.nanoTime() - deadline > 0)
+                return false;
+            LockSupport.parkNanos(1);
+        }
+        return true;
+    }
+
+    /**
+     * <i><b>getReceived</b></i>
+     *
+     * <pre> long getReceived() </pre>
+     *
+     * @return the number of messages received.
+     */
+    long getReceived() {
+        return received;
+    }
+
+    @Override
+    protected void onListening(ByteBuffer receivedMessage) {
+        //noinspection NonAtomicOperationOnVolatileField: a single listening thread
+        received++;
+    }
+
+    @Override
+    protected void onListening(byte[] receivedMessage) {
+        /* Not called: the messages are counted without copy */
+    }
+
+    @Override
+    protected boolean isAcceptableConnection(byte[] receivedMessage) {
+        return java.util.Arrays.equals(receivedMessage, CONNECT);
+    }
+
+    @Override
+    protected byte[] getEndConnectionMessage() {
+        return END;
+    }
+
+    @Override
+    protected byte[] getAcceptConnectionMessage() {
+        return ACCEPT;
+    }
+
+}
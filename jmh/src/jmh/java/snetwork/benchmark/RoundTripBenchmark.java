@@ -0,0 +1,69 @@
+package snetwork.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import snetwork.EventLoopGroup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a message from {@code send} to {@code onListening} over 127.0.0.1, one message at a time.
+ * The throughput mode gives the messages per second, the sample mode gives the p50/p99 latencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+
+    private static final int PORT = 40200;
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({"16", "512"})
+    public int messageSize;
+
+    @Param({"false", "true"})
+    public boolean eventLoop;
+
+    private EventLoopGroup eventLoopGroup;
+
+    private LoopbackReceiver link;
+
+    private byte[] message;
+
+    private long lost;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        eventLoopGroup = eventLoop ? new EventLoopGroup(1) : null;
+        link = new LoopbackReceiver(PORT);
+        link.connect(eventLoopGroup);
+        message = new byte[messageSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        link.close();
+        if (eventLoopGroup != null)
+            eventLoopGroup.shutdown();
+        if (lost > 0)
+            System.out.println("Lost messages: " + lost);
+    }
+
+    @Benchmark
+    public boolean sendToOnListening() {
+        boolean received = link.roundTrip(message, TIMEOUT_NANOS);
+        if (!received)
+            lost++;
+        return received;
+    }
+
+}
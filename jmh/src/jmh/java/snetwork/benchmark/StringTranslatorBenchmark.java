@@ -0,0 +1,117 @@
+package snetwork.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import snetwork.BinaryObjectTranslator;
+import snetwork.receiver.AbstractStringP2PReceiver;
+import snetwork.sender.AbstractStringP2PSender;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the String variants of {@link BinaryObjectTranslator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StringTranslatorBenchmark {
+
+    @Param({"16", "512"})
+    public int messageLength;
+
+    @Param({"sender", "receiver"})
+    public String side;
+
+    private BinaryObjectTranslator<String> translator;
+
+    private String message;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        translator = side.equals("sender") ? new StringSender() : new StringReceiver();
+
+        char[] characters = new char[messageLength];
+        Arrays.fill(characters, 'a');
+        message = new String(characters);
+        bytes = translator.translateToBytes(message);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return translator.translateToBytes(message);
+    }
+
+    @Benchmark
+    public String decode() {
+        return translator.translateFromBytes(bytes);
+    }
+
+    /**
+     * String sender only used for its translation, never started.
+     */
+    private static final class StringSender extends AbstractStringP2PSender {
+
+        StringSender() {
+            super(0, 0);
+        }
+
+        @Override
+        protected boolean isAcceptableConnection(String receivedMessage) {
+            return false;
+        }
+
+        @Override
+        protected String getConnectionTranslatedMessage() {
+            return "";
+        }
+
+        @Override
+        protected String getEndConnectionTranslatedMessage() {
+            return "";
+        }
+
+        @Override
+        protected void onListening(String receivedMessage) {
+        }
+    }
+
+    /**
+     * String receiver only used for its translation, never started.
+     */
+    private static final class StringReceiver extends AbstractStringP2PReceiver {
+
+        StringReceiver() {
+            super(0, 0);
+        }
+
+        @Override
+        protected boolean isAcceptableConnection(String receivedMessage) {
+            return false;
+        }
+
+        @Override
+        protected String getEndConnectionTranslatedMessage() {
+            return "";
+        }
+
+        @Override
+        protected String getAcceptConnectionTranslatedMessage() {
+            return "";
+        }
+
+        @Override
+        protected void onListening(String receivedMessage) {
+        }
+    }
+
+}
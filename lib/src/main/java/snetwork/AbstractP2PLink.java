@@ -2,7 +2,27 @@ package snetwork;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Abstract class for a Peer-to-Peer communication protocol.
@@ -10,6 +30,42 @@ import java.util.Arrays;
 @SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
 public abstract class AbstractP2PLink {
 
+    /**
+     * Maximum number of queued messages sent by an event loop before it handles its other tasks.
+     */
+    private static final int EVENT_LOOP_SEND_BUDGET = 64;
+
+    /**
+     * Time in milliseconds given to a background thread to stop after its wake-up datagram, before its socket
+     * is closed.
+     */
+    private static final long WAKE_UP_DELAY = 500;
+
+    /**
+     * Default suspicion level (phi) above which a silent peer is suspected dead.
+     */
+    public static final double DEFAULT_SUSPICION_THRESHOLD = 8.0;
+
+    /**
+     * Message of the heartbeat frames.
+     */
+    private static final byte[] HEARTBEAT_MESSAGE = new byte[0];
+
+    /**
+     * Writer threads draining the send queues of the links without event loop.
+     */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "snetwork-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Failure of the last datagram sent or dropped by the current thread while it drains a send queue, null outside
+     * a drain.
+     */
+    private static final ThreadLocal<IOException[]> SEND_FAILURE = new ThreadLocal<>();
+
     /**
      * Listened port.
      */
@@ -23,7 +79,17 @@ public abstract class AbstractP2PLink {
     /**
      * Address of the connected peer.
      */
-    private InetAddress connectedAddress;
+    private volatile InetAddress connectedAddress;
+
+    /**
+     * Multicast group joined by the socket, null if the link only uses unicast and broadcast.
+     */
+    private InetAddress multicastGroup;
+
+    /**
+     * Network interface of the multicast group, null to choose it when the socket is opened.
+     */
+    private NetworkInterface multicastInterface;
 
     /**
      * Thread where all background stuff is done.
@@ -35,6 +101,149 @@ public abstract class AbstractP2PLink {
      */
     private final int timeout;
 
+    /**
+     * Pool of the buffers used to receive datagrams.
+     */
+    private BufferPool bufferPool = BufferPool.getDefault();
+
+    /**
+     * Stages between the application and the socket.
+     */
+    private final LinkPipeline pipeline = new LinkPipeline(this::deliverTimed, this::transmit);
+
+    /**
+     * Counters of the link.
+     */
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    /**
+     * Group of event loops driving this link, null if the link uses its own background thread.
+     */
+    private EventLoopGroup eventLoopGroup;
+
+    /**
+     * Event loop this link is registered with, null if the link uses its own background thread.
+     */
+    private EventLoop eventLoop;
+
+    /**
+     * Channel of the socket when the link is driven by an event loop.
+     */
+    private DatagramChannel channel;
+
+    /**
+     * Selection key of the channel, only accessed by the event loop thread.
+     */
+    private SelectionKey selectionKey;
+
+    /**
+     * Buffer used by the event loop to receive datagrams.
+     */
+    private ByteBuffer receiveBuffer;
+
+    /**
+     * Read-only view of the event loop receive buffer given to {@link #onListening(ByteBuffer)}.
+     */
+    private ByteBuffer receiveView;
+
+    /**
+     * Callback of the pending event loop search, null if no search is running.
+     */
+    private SuccessCallback searchCallback;
+
+    /**
+     * True once the event loop delivers the received datagrams to {@link #onListening(ByteBuffer)}.
+     */
+    private boolean listening;
+
+    /**
+     * Time of the last datagram received by the event loop, used to apply the socket timeout.
+     */
+    private long lastReceiveTime;
+
+    /**
+     * Queue of the messages sent asynchronously, created on the first asynchronous send.
+     */
+    private volatile SendQueue sendQueue;
+
+    /**
+     * True while a task drains the send queue.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Thread draining the send queue, null if none.
+     */
+    private volatile Thread drainingThread;
+
+    /**
+     * Maximum time in milliseconds between two frames sent to a peer, 0 if the heartbeats are disabled.
+     */
+    private volatile long heartbeatInterval;
+
+    /**
+     * Suspicion level (phi) above which a silent peer is suspected dead.
+     */
+    private volatile double suspicionThreshold = DEFAULT_SUSPICION_THRESHOLD;
+
+    /**
+     * Peers watched by the failure detection.
+     */
+    private final ConcurrentMap<InetSocketAddress, PeerHealth> monitoredPeers = new ConcurrentHashMap<>();
+
+    /**
+     * True while the heartbeat task is scheduled.
+     */
+    private final AtomicBoolean heartbeatScheduled = new AtomicBoolean();
+
+    /**
+     * Files sent and received with the peers.
+     */
+    private final FileTransfer fileTransfer = new FileTransfer(this);
+
+    /**
+     * Directory of the received files, null to refuse the offered files.
+     */
+    private volatile Path receiveDirectory;
+
+    /**
+     * Transport of the payload frames, the socket of the link by default.
+     */
+    private volatile Transport transport = new DatagramTransport(this);
+
+    /**
+     * Frames of the transport waiting for the background thread, in thread mode.
+     */
+    private final Queue<PendingFrame> pendingFrames = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Peers suspected by the timer thread, waiting for the background thread to call
+     * {@link #onPeerSuspected(InetSocketAddress)}, in thread mode.
+     */
+    private final Queue<InetSocketAddress> suspectedPeers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * True once the background thread has been woken up for the pending frames or suspected peers, until it
+     * takes them.
+     */
+    private final AtomicBoolean framesSignaled = new AtomicBoolean();
+
+    /**
+     * Maximum number of messages given at once to {@link #onListeningBatch(MessageBatch)}, 0 if the messages are
+     * given one by one.
+     */
+    private volatile int maxBatchSize;
+
+    /**
+     * Messages of the datagrams being read, only used by the thread reading the socket.
+     */
+    private final MessageBatch messageBatch = new MessageBatch();
+
+    /**
+     * Thread filling the batch while it reads the socket, null otherwise.
+     */
+    private volatile Thread batchingThread;
+
     /*******************************************/
     /*              Constructor                */
     /*******************************************/
@@ -58,300 +267,2316 @@ public abstract class AbstractP2PLink {
      *
      * <pre> protected void initSocket() </pre>
      *
-     * The method used to initialize the socket.
+     * The method used to initialize the socket. The socket is bound with {@code SO_REUSEADDR} and stays open
+     * across the sessions until {@link #close()}.
      */
     private void initSocket() throws BindException {
-        // Loop in case the socket is closing and so not already open.
-        long time = System.currentTimeMillis();
-        while(true) {
-            try {
-                this.socket = new DatagramSocket(this.usedPort);
-                if (this.timeout > 0)
-                    socket.setSoTimeout(this.timeout);
-                break;
-            } catch (BindException e) {
-                /* Retry during 3s in case the socket is closing and so not already open. */
-                if(System.currentTimeMillis() - time >= 3000) {
-                    System.err.println("Socket already in use (port: " + usedPort + ").");
-                    throw e;
+        try {
+            if (this.eventLoopGroup == null)
+                this.socket = multicastGroup == null ? openSocket() : openMulticastSocket();
+            else
+                initChannel();
+        } catch (BindException e) {
+            System.err.println("Socket already in use (port: " + usedPort + ").");
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * <i><b>openSocket</b></i>
+     *
+     * <pre> private {@link DatagramSocket} openSocket() </pre>
+     *
+     * @return a socket bound to the port with {@code SO_REUSEADDR}, so that it can be bound again while
+     * a previous socket of the port is closing.
+     * @throws IOException if the socket cannot be opened.
+     */
+    private DatagramSocket openSocket() throws IOException {
+        DatagramSocket newSocket = new DatagramSocket(null);
+        try {
+            newSocket.setReuseAddress(true);
+            newSocket.setBroadcast(true);
+            newSocket.bind(new InetSocketAddress(this.usedPort));
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        return newSocket;
+    }
+
+    /**
+     * <i><b>initChannel</b></i>
+     *
+     * <pre> private void initChannel() </pre>
+     *
+     * Open a non-blocking channel for the event loop mode. The socket becomes the adaptor of the channel.
+     */
+    private void initChannel() throws IOException {
+        DatagramChannel newChannel;
+        if (multicastGroup == null)
+            newChannel = DatagramChannel.open();
+        else
+            newChannel = DatagramChannel.open(multicastGroup instanceof Inet6Address
+                    ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+
+        try {
+            newChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (multicastGroup != null) {
+                NetworkInterface networkInterface = getMulticastInterface();
+                newChannel.bind(new InetSocketAddress(this.usedPort));
+                newChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                newChannel.join(multicastGroup, networkInterface);
+            } else {
+                newChannel.bind(new InetSocketAddress(this.usedPort));
+            }
+            newChannel.configureBlocking(false);
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        }
+
+        this.channel = newChannel;
+        this.socket = newChannel.socket();
+    }
+
+    /**
+     * <i><b>openMulticastSocket</b></i>
+     *
+     * <pre> private {@link MulticastSocket} openMulticastSocket() </pre>
+     *
+     * Open a socket member of the multicast group. Several sockets of the same host can listen to the group
+     * on the same port.
+     * @return the socket.
+     * @throws IOException if the socket cannot be opened or cannot join the group.
+     */
+    private MulticastSocket openMulticastSocket() throws IOException {
+        MulticastSocket multicastSocket = new MulticastSocket(this.usedPort);
+        try {
+            NetworkInterface networkInterface = getMulticastInterface();
+            multicastSocket.setNetworkInterface(networkInterface);
+            multicastSocket.joinGroup(new InetSocketAddress(multicastGroup, 0), networkInterface);
+        } catch (IOException e) {
+            multicastSocket.close();
+            throw e;
+        }
+        return multicastSocket;
+    }
+
+    /**
+     * <i><b>getMulticastInterface</b></i>
+     *
+     * <pre> private {@link NetworkInterface} getMulticastInterface() </pre>
+     *
+     * @return the interface given with the multicast group, or else the first interface up supporting multicast
+     * with an address of the family of the group, the loopback interface last.
+     * @throws SocketException if no interface can join the group.
+     */
+    private NetworkInterface getMulticastInterface() throws SocketException {
+        if (multicastInterface != null)
+            return multicastInterface;
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (!networkInterface.isUp() || !hasAddressOfFamily(networkInterface, multicastGroup))
+                continue;
+
+            if (networkInterface.isLoopback())
+                loopback = networkInterface;
+            else if (networkInterface.supportsMulticast())
+                return networkInterface;
+        }
+
+        if (loopback == null)
+            throw new SocketException("No network interface can join the multicast group " + multicastGroup + ".");
+        return loopback;
+    }
+
+    /**
+     * <i><b>hasAddressOfFamily</b></i>
+     *
+     * <pre> private static boolean hasAddressOfFamily({@link NetworkInterface} networkInterface, {@link InetAddress} group) </pre>
+     *
+     * @param networkInterface a network interface.
+     * @param group a multicast group.
+     * @return true if the interface has an address of the same family (IPv4 or IPv6) as the group.
+     */
+    private static boolean hasAddressOfFamily(NetworkInterface networkInterface, InetAddress group) {
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            if (addresses.nextElement().getClass() == group.getClass())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * <i><b>init</b></i>
+     *
+     * <pre> protected void init() </pre>
+     *
+     * The method used to start a session: the socket is opened if it is not open yet, and the background thread
+     * is created. In event loop mode, the socket is registered with an event loop instead.
+     */
+    protected final void init() throws BindException {
+        if (this.socket == null || this.socket.isClosed()) {
+            initSocket();
+            bindTransport();
+        }
+
+        /* The previous session may have changed the timeout */
+        try {
+            if (this.socket != null)
+                this.socket.setSoTimeout(Math.max(0, this.timeout));
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+
+        if (eventLoopGroup == null) {
+            backgroundThread = createBackgroundThread();
+            return;
+        }
+
+        if (eventLoop == null)
+            eventLoop = eventLoopGroup.next();
+
+        final DatagramChannel registeredChannel = channel;
+        eventLoop.execute(() -> register(registeredChannel));
+    }
+
+    /**
+     * <i><b>createBackgroundThread</b></i>
+     *
+     * <pre> protected {@link ListenerThread} createBackgroundThread() </pre>
+     *
+     * Create the background thread.
+     * @return the thread created.
+     */
+    protected ListenerThread createBackgroundThread() {
+        return new ListenerThread();
+    }
+
+    /*******************************************/
+    /*             Getters/Setters             */
+    /*******************************************/
+
+    /**
+     * <i><b>setEventLoopGroup</b></i>
+     *
+     * <pre> public void setEventLoopGroup({@link EventLoopGroup} eventLoopGroup) </pre>
+     *
+     * Drive this link with a group of event loops instead of its own background thread.
+     * Must be set before {@link #startProtocol(SuccessCallback)}.
+     * @param eventLoopGroup the group of event loops, null to use a background thread.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setEventLoopGroup(EventLoopGroup eventLoopGroup) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its event loop group.");
+        this.eventLoopGroup = eventLoopGroup;
+        this.eventLoop = null;
+    }
+
+    /**
+     * <i><b>setTransport</b></i>
+     *
+     * <pre> public void setTransport({@link Transport} transport) </pre>
+     *
+     * Send and receive the payload frames (data and files) with another transport, such as a {@link TcpTransport}
+     * for large continuous payloads. The discovery and the control frames still use the datagram socket.
+     * Both peers must use the same transport.
+     * @param transport the transport, null for the datagram socket (default).
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setTransport(Transport transport) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its transport.");
+        this.transport = transport == null ? new DatagramTransport(this) : transport;
+    }
+
+    /**
+     * <i><b>getTransport</b></i>
+     *
+     * <pre> public {@link Transport} getTransport() </pre>
+     *
+     * @return the transport of the payload frames.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * <i><b>setMulticastGroup</b></i>
+     *
+     * <pre> public void setMulticastGroup({@link InetAddress} multicastGroup) </pre>
+     *
+     * Join a multicast group on the first network interface supporting it (see
+     * {@link #setMulticastGroup(InetAddress, NetworkInterface)}).
+     * @param multicastGroup the multicast group, null to leave it.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setMulticastGroup(InetAddress multicastGroup) {
+        setMulticastGroup(multicastGroup, null);
+    }
+
+    /**
+     * <i><b>setMulticastGroup</b></i>
+     *
+     * <pre> public void setMulticastGroup({@link InetAddress} multicastGroup, {@link NetworkInterface} networkInterface) </pre>
+     *
+     * Join a multicast group with the socket of the link. Must be set before
+     * {@link #startProtocol(SuccessCallback)}. The senders probe the group instead of the broadcast addresses,
+     * and the messages published with {@link #publish(byte[])} are sent once to all the members of the group.
+     * @param multicastGroup the multicast group, null to leave it.
+     * @param networkInterface the interface used to join the group, null to choose the first one supporting it.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setMulticastGroup(InetAddress multicastGroup, NetworkInterface networkInterface) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its multicast group.");
+        if(multicastGroup != null && !multicastGroup.isMulticastAddress())
+            throw new IllegalArgumentException(multicastGroup + " is not a multicast address.");
+        this.multicastGroup = multicastGroup;
+        this.multicastInterface = multicastGroup == null ? null : networkInterface;
+    }
+
+    /**
+     * <i><b>getMulticastGroup</b></i>
+     *
+     * <pre> public {@link InetAddress} getMulticastGroup() </pre>
+     *
+     * @return the multicast group joined by the link, null if none.
+     */
+    public InetAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * <i><b>setBufferPool</b></i>
+     *
+     * <pre> public void setBufferPool({@link BufferPool} bufferPool) </pre>
+     *
+     * Set the pool of the buffers used to receive datagrams. Must be set before
+     * {@link #startProtocol(SuccessCallback)}. The maximum size of the datagrams sent by the pipeline
+     * becomes the size of the buffers.
+     * @param bufferPool the pool to use.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its buffer pool.");
+        if(bufferPool == null)
+            throw new IllegalArgumentException("The buffer pool cannot be null.");
+        this.bufferPool = bufferPool;
+        this.pipeline.setMaxDatagramSize(bufferPool.getBufferSize());
+    }
+
+    /**
+     * <i><b>setSendQueue</b></i>
+     *
+     * <pre> public void setSendQueue({@link SendQueue} sendQueue) </pre>
+     *
+     * Set the queue of the messages sent asynchronously. Must be set before
+     * {@link #startProtocol(SuccessCallback)}. By default, a queue of {@link SendQueue#DEFAULT_CAPACITY} messages
+     * blocking the senders when it is full is used.
+     * @param sendQueue the queue to use.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setSendQueue(SendQueue sendQueue) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its send queue.");
+        if(sendQueue == null)
+            throw new IllegalArgumentException("The send queue cannot be null.");
+        this.sendQueue = sendQueue;
+    }
+
+    /**
+     * <i><b>getSendQueue</b></i>
+     *
+     * <pre> public {@link SendQueue} getSendQueue() </pre>
+     *
+     * @return the queue of the messages sent asynchronously.
+     */
+    public SendQueue getSendQueue() {
+        SendQueue queue = sendQueue;
+        if (queue == null) {
+            synchronized (draining) {
+                queue = sendQueue;
+                if (queue == null) {
+                    queue = new SendQueue(SendQueue.DEFAULT_CAPACITY, SendQueue.BackpressurePolicy.BLOCK);
+                    sendQueue = queue;
                 }
-            } catch (SocketException e) {
-                e.printStackTrace();
-                break;
             }
         }
+        return queue;
+    }
+
+    /**
+     * <i><b>setHeartbeat</b></i>
+     *
+     * <pre> public void setHeartbeat(long heartbeatInterval, double suspicionThreshold) </pre>
+     *
+     * Enable the failure detection of the connected peers. An empty heartbeat frame is sent to a peer when no
+     * other frame has been sent to it during half the interval, so the heartbeats cost nothing while data flows.
+     * Every frame received from a peer feeds a {@link FailureDetector}, and {@link #onPeerSuspected(InetSocketAddress)}
+     * is called when its suspicion level reaches the threshold. Both peers must enable the heartbeats.
+     * @param heartbeatInterval the maximum time in milliseconds between two frames sent to a peer, 0 to disable.
+     * @param suspicionThreshold the suspicion level (phi) of a dead peer, {@link #DEFAULT_SUSPICION_THRESHOLD}
+     *                           by default.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setHeartbeat(long heartbeatInterval, double suspicionThreshold) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its heartbeat.");
+        if(heartbeatInterval < 0)
+            throw new IllegalArgumentException("The heartbeat interval cannot be negative.");
+        if(suspicionThreshold <= 0)
+            throw new IllegalArgumentException("The suspicion threshold must be positive.");
+        this.heartbeatInterval = heartbeatInterval;
+        this.suspicionThreshold = suspicionThreshold;
+    }
+
+    /**
+     * <i><b>getHeartbeatInterval</b></i>
+     *
+     * <pre> public long getHeartbeatInterval() </pre>
+     *
+     * @return the maximum time in milliseconds between two frames sent to a peer, 0 if the heartbeats are disabled.
+     */
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * <i><b>getSuspicion</b></i>
+     *
+     * <pre> public double getSuspicion({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address of a peer.
+     * @return the current suspicion level (phi) of the peer, 0 if it is not watched.
+     */
+    public double getSuspicion(InetSocketAddress peer) {
+        PeerHealth health = monitoredPeers.get(peer);
+        return health == null ? 0 : health.detector.phi(monotonicMillis());
+    }
+
+    /**
+     * <i><b>setBatchDelivery</b></i>
+     *
+     * <pre> public void setBatchDelivery(int maxBatchSize) </pre>
+     *
+     * Give the received messages in batches to {@link #onListeningBatch(MessageBatch)} instead of one by one, so
+     * that the cost of the handler (a write in a database, a lock) is paid once per batch.
+     * <p>
+     * In event loop mode, a batch holds the messages of all the datagrams readable at once. With a background
+     * thread, whose socket cannot tell whether more datagrams are waiting, a batch holds the messages of one
+     * datagram, which are several with a {@link snetwork.stage.CoalescingStage}. The messages given by a stage
+     * on another thread, after a delay, come in batches of one.
+     * @param maxBatchSize the maximum number of messages of a batch, 0 to give the messages one by one.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setBatchDelivery(int maxBatchSize) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its batch delivery.");
+        if(maxBatchSize < 0)
+            throw new IllegalArgumentException("The maximum size of a batch cannot be negative.");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * <i><b>getBatchDelivery</b></i>
+     *
+     * <pre> public int getBatchDelivery() </pre>
+     *
+     * @return the maximum number of messages of a batch, 0 if the messages are given one by one.
+     */
+    public int getBatchDelivery() {
+        return maxBatchSize;
+    }
+
+    /**
+     * <i><b>getMetrics</b></i>
+     *
+     * <pre> public {@link LinkMetrics} getMetrics() </pre>
+     *
+     * @return the counters of the link.
+     */
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * <i><b>getPipeline</b></i>
+     *
+     * <pre> public {@link LinkPipeline} getPipeline() </pre>
+     *
+     * @return the stages between the application and the socket.
+     */
+    public LinkPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * <i><b>acquireArrayBuffer</b></i>
+     *
+     * <pre> protected {@link ByteBuffer} acquireArrayBuffer() </pre>
+     *
+     * @return a receive buffer backed by an array, to give back with {@link #releaseBuffer(ByteBuffer)}.
+     */
+    protected final ByteBuffer acquireArrayBuffer() {
+        return bufferPool.acquireHeap();
+    }
+
+    /**
+     * <i><b>releaseBuffer</b></i>
+     *
+     * <pre> protected void releaseBuffer({@link ByteBuffer} buffer) </pre>
+     *
+     * Give back a receive buffer to the pool.
+     * @param buffer the buffer to give back.
+     */
+    protected final void releaseBuffer(ByteBuffer buffer) {
+        bufferPool.release(buffer);
+    }
+
+    /**
+     * <i><b>isEventLoopMode</b></i>
+     *
+     * <pre> protected boolean isEventLoopMode() </pre>
+     *
+     * @return true if the link is driven by an event loop group, false if it uses a background thread.
+     */
+    protected boolean isEventLoopMode() {
+        return eventLoopGroup != null;
+    }
+
+    /**
+     * <i><b>getBackgroundThread</b></i>
+     *
+     * <pre> protected {@link ListenerThread} getBackgroundThread() </pre>
+     *
+     * @return the background thread.
+     */
+    protected ListenerThread getBackgroundThread() {
+        return backgroundThread;
+    }
+
+    /**
+     * <i><b>getSocket</b></i>
+     *
+     * <pre> protected {@link DatagramSocket} getSocket() </pre>
+     *
+     * @return the used udp socket.
+     */
+    protected DatagramSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * <i><b>getUsedPort</b></i>
+     *
+     * <pre> protected int getUsedPort() </pre>
+     *
+     * @return the used port.
+     */
+    protected int getUsedPort() {
+        return usedPort;
+    }
+
+    /**
+     * <i><b>getConnectedAddress</b></i>
+     *
+     * <pre> public {@link InetAddress} getConnectedAddress() </pre>
+     *
+     * @return the address of the connected peer, null if no connection is up.
+     */
+    public InetAddress getConnectedAddress() {
+        return connectedAddress;
+    }
+
+    /**
+     * <i><b>setConnectedAddress</b></i>
+     *
+     * <pre> protected void setConnectedAddress({@link InetAddress} connectedAddress) </pre>
+     *
+     * Set the connected address if no connexion is up.
+     * @throws IllegalStateException if there is already a connection up.
+     */
+    public void setConnectedAddress(InetAddress connectedAddress) {
+        if(this.connectedAddress != null)
+            throw new IllegalStateException("A connection is already up. Close it to assign a new connected address");
+        this.connectedAddress = connectedAddress;
+    }
+
+    /*******************************************/
+    /*               Connection                */
+    /*******************************************/
+
+    /**
+     * <i><b>startProtocol</b></i>
+     *
+     * <pre> public void startProtocol() </pre>
+     *
+     * Method to start the protocol.
+     * @param connectionCallback the function which will be called after the connection has been established.
+     *                           If the connection success the argument is true, false otherwise.
+     */
+    public abstract void startProtocol(SuccessCallback connectionCallback) throws BindException;
+
+    /**
+     * <i><b>isConnected</b></i>
+     *
+     * <pre> public void isConnected() </pre>
+     *
+     * @return true if a connection with a peer has been established, false otherwise.
+     */
+    public boolean isConnected() {
+        return connectedAddress != null;
+    }
+
+    /**
+     * <i><b>isReadyToListen</b></i>
+     *
+     * <pre> protected boolean isReadyToListen() </pre>
+     *
+     * @return true if the received datagrams can be listened, by default when a peer is connected.
+     */
+    protected boolean isReadyToListen() {
+        return isConnected();
+    }
+
+    /**
+     * <i><b>isStarted</b></i>
+     *
+     * <pre> protected boolean isStarted() </pre>
+     *
+     * @return true if the socket of the link is open (from the first start to {@link #close()}), false otherwise.
+     */
+    protected final boolean isStarted() {
+        return socket != null && !socket.isClosed();
+    }
+
+    /**
+     * <i><b>searchPeer</b></i>
+     *
+     * <pre> protected boolean searchPeer() </pre>
+     *
+     * Search and set a peer to be the sender.
+     * @return true if a peer is found, otherwise false.
+     */
+    @SuppressWarnings("BooleanMethodIsAlwaysInverted")
+    protected abstract boolean searchPeer();
+
+    /**
+     * <i><b>acceptPeer</b></i>
+     *
+     * <pre> protected boolean acceptPeer(byte[] receivedMessage, {@link InetAddress} source) </pre>
+     *
+     * Set the source as the connected peer if the received message is acceptable.
+     * @param receivedMessage the message received while searching a peer.
+     * @param source the address of the message sender.
+     * @return true if the source is now the connected peer, false otherwise.
+     */
+    protected boolean acceptPeer(byte[] receivedMessage, InetAddress source) {
+        if (!isAcceptableConnection(receivedMessage))
+            return false;
+
+        setConnectedAddress(source);
+        return true;
+    }
+
+    /**
+     * <i><b>acceptFrame</b></i>
+     *
+     * <pre> protected boolean acceptFrame({@link ByteBuffer} receivedFrame, {@link InetAddress} source) </pre>
+     *
+     * Give the message of a datagram received while searching a peer to {@link #acceptPeer(byte[], InetAddress)}
+     * if its type is {@link #getSearchedFrameType()}.
+     * @param receivedFrame the received datagram, from its position to its limit.
+     * @param source the address of the datagram sender.
+     * @return true if the source is now the connected peer, false otherwise.
+     */
+    protected final boolean acceptFrame(ByteBuffer receivedFrame, InetAddress source) {
+        if (FrameHeader.getType(receivedFrame) != getSearchedFrameType()) {
+            metrics.recordRejected();
+            return false;
+        }
+
+        ByteBuffer message = FrameHeader.skip(receivedFrame.duplicate());
+        byte[] receivedMessage = new byte[message.remaining()];
+        message.get(receivedMessage);
+        return acceptPeer(receivedMessage, source);
+    }
+
+    /*******************************************/
+    /*                Listening                */
+    /*******************************************/
+
+    /**
+     * Thread used to listen datagrams and clean-up when the the communication is done.
+     */
+    protected class ListenerThread extends Thread {
+
+        @Override
+        public final void run() {
+            if(!beforeAll())
+                return;
+
+            listen();
+            finish();
+
+            afterAll();
+        }
+
+        /**
+         * <i><b>beforeAll</b></i>
+         *
+         * <pre> private boolean beforeAll() </pre>
+         *
+         * Method call before the listen one.
+         * @return false if an error as occurred so we can't listen, otherwise true.
+         */
+        protected boolean beforeAll() {
+            return true;
+        }
+
+        @SuppressWarnings("EmptyMethod")
+        protected void afterAll() {
+            /* do nothing */
+        }
+
+    }
+
+
+    /**
+     * <i><b>listen</b></i>
+     *
+     * <pre> private void listen() </pre>
+     *
+     * Receive and read data from the peer.
+     */
+    private void listen() {
+        if(!isReadyToListen())
+            throw new IllegalStateException("No peer connected.");
+
+        ByteBuffer buffer = acquireArrayBuffer();
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.capacity());
+
+        InetAddress peer = connectedAddress;
+        if (peer != null)
+            monitorPeer(new InetSocketAddress(peer, usedPort));
+
+        InetSocketAddress source = null;
+        try {
+            while (!backgroundThread.isInterrupted()) {
+
+                packet.setLength(buffer.capacity());
+                socket.receive(packet);
+                if (backgroundThread.isInterrupted())
+                    break;
+                source = sourceOf(packet, source);
+
+                boolean open = true;
+                beginBatch();
+                try {
+                    if (!isWakeUp(packet)) {
+                        metrics.recordReceived(packet.getLength(), buffer.capacity());
+                        recordArrival(source);
+
+                        view.clear();
+                        view.limit(packet.getLength());
+                        open = handleDatagram(view, source);
+                    }
+                    if (open)
+                        open = handlePendingFrames();
+                } finally {
+                    endBatch();
+                }
+
+                /* END */
+                if (!open)
+                    stopListening();
+
+            }
+
+        } catch (IOException e) {
+            if (!socket.isClosed())
+                metrics.recordReceiveFailure();
+            System.out.println(e.getMessage());
+
+        } finally {
+            releaseBuffer(buffer);
+            while (pendingFrames.poll() != null)
+                metrics.recordRejected();
+            suspectedPeers.clear();
+        }
+    }
+
+    /**
+     * <i><b>sourceOf</b></i>
+     *
+     * <pre> private static {@link InetSocketAddress} sourceOf({@link DatagramPacket} packet, {@link InetSocketAddress} last) </pre>
+     *
+     * {@link DatagramPacket#getSocketAddress()} allocates an address for each datagram, though they nearly all come
+     * from the connected peer.
+     * @param packet the received datagram.
+     * @param last the source of the previous datagram, null if none.
+     * @return the source of the datagram, the previous one if it is the same.
+     */
+    private static InetSocketAddress sourceOf(DatagramPacket packet, InetSocketAddress last) {
+        if (last != null && last.getPort() == packet.getPort() && last.getAddress().equals(packet.getAddress()))
+            return last;
+        return new InetSocketAddress(packet.getAddress(), packet.getPort());
+    }
+
+    /**
+     * <i><b>isWakeUp</b></i>
+     *
+     * <pre> private boolean isWakeUp({@link DatagramPacket} packet) </pre>
+     *
+     * @param packet the received datagram.
+     * @return true if the datagram is the empty datagram sent by {@link #wakeUp()}.
+     */
+    private boolean isWakeUp(DatagramPacket packet) {
+        return packet.getLength() == 0 && packet.getPort() == socket.getLocalPort()
+                && packet.getAddress().isLoopbackAddress();
+    }
+
+    /**
+     * <i><b>handlePendingFrames</b></i>
+     *
+     * <pre> private boolean handlePendingFrames() </pre>
+     *
+     * Handle the frames of the transport given to the background thread by
+     * {@link #receiveFrame(ByteBuffer, InetSocketAddress)}, then the peers suspected by the timer thread.
+     * @return false if a frame ends the listening, true otherwise.
+     */
+    private boolean handlePendingFrames() {
+        framesSignaled.set(false);
+
+        PendingFrame pending;
+        while ((pending = pendingFrames.poll()) != null) {
+            if (!handleFrame(pending.frame, pending.source))
+                return false;
+        }
+
+        InetSocketAddress suspected;
+        while ((suspected = suspectedPeers.poll()) != null)
+            onPeerSuspected(suspected);
+        return true;
+    }
+
+    /**
+     * <i><b>handleDatagram</b></i>
+     *
+     * <pre> protected boolean handleDatagram({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a datagram received during the connection to {@link #onListening(ByteBuffer)}.
+     * The datagrams which do not come from the connected peer, and the frames other than data are ignored.
+     * @param receivedMessage the received message, read-only.
+     * @param source the address of the message sender.
+     * @return false if the message ends the listening, true otherwise.
+     */
+    protected boolean handleDatagram(ByteBuffer receivedMessage, InetSocketAddress source) {
+        if (!source.getAddress().equals(connectedAddress)) {
+            metrics.recordRejected();
+            return true;
+        }
+
+        int type = FrameHeader.getType(receivedMessage);
+        if (type == FrameHeader.END)
+            return false;
+
+        if (type == FrameHeader.FILE) {
+            receiveFile(receivedMessage, source);
+            return true;
+        }
+
+        /* Late connection frames, or frames of another version */
+        if (type != FrameHeader.DATA) {
+            if (type < 0)
+                metrics.recordRejected();
+            return true;
+        }
+
+        receive(FrameHeader.skip(receivedMessage), source);
+        return true;
+    }
+
+    /**
+     * <i><b>receive</b></i>
+     *
+     * <pre> protected void receive({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a received data message to the pipeline, which gives it to {@link #deliver(ByteBuffer, InetSocketAddress)}.
+     * @param receivedMessage the received message.
+     * @param source the address of the message sender.
+     */
+    protected final void receive(ByteBuffer receivedMessage, InetSocketAddress source) {
+        pipeline.receive(receivedMessage, source);
+    }
+
+    /**
+     * <i><b>deliver</b></i>
+     *
+     * <pre> protected void deliver({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a message coming out of the pipeline to the application, by default to {@link #onListening(ByteBuffer)}.
+     * @param receivedMessage the received message.
+     * @param source the address of the message sender.
+     */
+    protected void deliver(ByteBuffer receivedMessage, InetSocketAddress source) {
+        onListening(receivedMessage);
+    }
+
+    /**
+     * <i><b>deliverTimed</b></i>
+     *
+     * <pre> private void deliverTimed({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a message coming out of the pipeline to {@link #deliver(ByteBuffer, InetSocketAddress)} and count the
+     * time spent by the application to handle it.
+     * @param receivedMessage the received message.
+     * @param source the address of the message sender.
+     */
+    private void deliverTimed(ByteBuffer receivedMessage, InetSocketAddress source) {
+        int max = maxBatchSize;
+        if (max > 0) {
+            if (batchingThread == Thread.currentThread()) {
+                messageBatch.add(receivedMessage, source);
+                if (messageBatch.size() >= max)
+                    flushBatch(messageBatch);
+                return;
+            }
+
+            /* Given by a stage outside of a read */
+            MessageBatch single = new MessageBatch();
+            single.add(receivedMessage, source);
+            flushBatch(single);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            deliver(receivedMessage, source);
+        } finally {
+            metrics.recordHandlerTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * <i><b>beginBatch</b></i>
+     *
+     * <pre> private void beginBatch() </pre>
+     *
+     * Start to collect the messages coming out of the pipeline on this thread, if the batch delivery is enabled.
+     */
+    private void beginBatch() {
+        if (maxBatchSize > 0)
+            batchingThread = Thread.currentThread();
+    }
+
+    /**
+     * <i><b>endBatch</b></i>
+     *
+     * <pre> private void endBatch() </pre>
+     *
+     * Give the collected messages to {@link #onListeningBatch(MessageBatch)} at the end of a read.
+     */
+    private void endBatch() {
+        if (batchingThread != Thread.currentThread())
+            return;
+
+        batchingThread = null;
+        flushBatch(messageBatch);
+    }
+
+    /**
+     * <i><b>flushBatch</b></i>
+     *
+     * <pre> private void flushBatch({@link MessageBatch} batch) </pre>
+     *
+     * Give a batch to {@link #onListeningBatch(MessageBatch)}, count the time spent by the application to handle
+     * it, and empty it.
+     * @param batch the batch.
+     */
+    private void flushBatch(MessageBatch batch) {
+        if (batch.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        try {
+            onListeningBatch(batch);
+        } finally {
+            metrics.recordHandlerTime(System.nanoTime() - start);
+            batch.clear();
+        }
+    }
+
+    /**
+     * <i><b>countReceived</b></i>
+     *
+     * <pre> protected void countReceived(int length, int bufferSize) </pre>
+     *
+     * Count a datagram received outside of the listening, during the search of a peer.
+     * @param length the length of the datagram.
+     * @param bufferSize the size of the receive buffer.
+     */
+    protected final void countReceived(int length, int bufferSize) {
+        metrics.recordReceived(length, bufferSize);
+    }
+
+    /**
+     * <i><b>countRejected</b></i>
+     *
+     * <pre> protected void countRejected() </pre>
+     *
+     * Count a received datagram ignored because of its source.
+     */
+    protected final void countRejected() {
+        metrics.recordRejected();
+    }
+
+    /**
+     * <i><b>stopListening</b></i>
+     *
+     * <pre> private void stopListening() </pre>
+     *
+     * Stop listening by interrupting the background thread. The socket stays open.
+     */
+    private void stopListening() {
+        if (eventLoopGroup != null) {
+            endSession();
+            return;
+        }
+
+        ListenerThread thread = backgroundThread;
+        if (thread != null && thread.isAlive() && !thread.isInterrupted()) {
+            thread.interrupt();
+            if (Thread.currentThread() != thread)
+                wakeUp();
+        }
+    }
+
+    /**
+     * <i><b>wakeUp</b></i>
+     *
+     * <pre> private void wakeUp() </pre>
+     *
+     * Send an empty datagram to the socket, so that the background thread blocked on it checks whether it is
+     * interrupted.
+     */
+    private void wakeUp() {
+        try {
+            socket.send(new DatagramPacket(new byte[0], 0,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort())));
+        } catch (IOException e) {
+            /* The thread is stopped by closing the socket */
+        }
+    }
+
+    /**
+     * <i><b>startListening</b></i>
+     *
+     * <pre> protected void startListening() </pre>
+     *
+     * Start to give the received datagrams to {@link #onListening(ByteBuffer)}, by starting the background thread
+     * or by enabling the reads of the event loop.
+     */
+    protected final void startListening() {
+        if (eventLoopGroup == null) {
+            backgroundThread.start();
+            return;
+        }
+
+        eventLoop.execute(() -> {
+            if (selectionKey == null || !selectionKey.isValid())
+                return;
+
+            listening = true;
+            lastReceiveTime = System.currentTimeMillis();
+            selectionKey.interestOps(SelectionKey.OP_READ);
+
+            InetAddress peer = connectedAddress;
+            if (peer != null)
+                monitorPeer(new InetSocketAddress(peer, usedPort));
+        });
+    }
+
+    /*******************************************/
+    /*               Event loop                */
+    /*******************************************/
+
+    /**
+     * <i><b>register</b></i>
+     *
+     * <pre> private void register({@link DatagramChannel} registeredChannel) </pre>
+     *
+     * Register the channel with the event loop, or reset the session if the channel is already registered.
+     * Called on the event loop thread.
+     * @param registeredChannel the channel opened by {@link #init()}.
+     */
+    private void register(DatagramChannel registeredChannel) {
+        if (registeredChannel != channel || !registeredChannel.isOpen())
+            return;
+
+        /* Channel kept from a previous session */
+        if (selectionKey != null && selectionKey.isValid()) {
+            listening = false;
+            lastReceiveTime = System.currentTimeMillis();
+            return;
+        }
+
+        try {
+            if (receiveBuffer == null) {
+                receiveBuffer = bufferPool.acquire();
+                receiveView = receiveBuffer.asReadOnlyBuffer();
+            }
+            selectionKey = eventLoop.register(registeredChannel, this::onReadable);
+            listening = false;
+            lastReceiveTime = System.currentTimeMillis();
+            scheduleTimeoutCheck(registeredChannel);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * <i><b>searchPeerAsync</b></i>
+     *
+     * <pre> protected void searchPeerAsync({@link SuccessCallback} callback) </pre>
+     *
+     * Search a peer from the event loop: the datagrams received are given to
+     * {@link #acceptPeer(byte[], InetAddress)} until a peer is accepted or the socket timeout expires.
+     * @param callback the function called on the event loop thread with the result of the search.
+     */
+    protected final void searchPeerAsync(SuccessCallback callback) {
+        eventLoop.execute(() -> {
+            if (selectionKey == null || !selectionKey.isValid()) {
+                callback.onResult(false);
+                return;
+            }
+
+            searchCallback = callback;
+            lastReceiveTime = System.currentTimeMillis();
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        });
+    }
+
+    /**
+     * <i><b>awaitPeer</b></i>
+     *
+     * <pre> protected boolean awaitPeer() </pre>
+     *
+     * Search a peer from the event loop and wait for the result of the search.
+     * @return true if a peer is found, otherwise false.
+     */
+    protected final boolean awaitPeer() {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] found = new boolean[1];
+
+        searchPeerAsync(success -> {
+            found[0] = success;
+            done.countDown();
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return found[0];
+    }
+
+    /**
+     * <i><b>cancelSearch</b></i>
+     *
+     * <pre> protected void cancelSearch() </pre>
+     *
+     * End the pending event loop search, its callback is called with false.
+     */
+    protected final void cancelSearch() {
+        eventLoop.execute(() -> {
+            if (searchCallback == null)
+                return;
+
+            if (selectionKey != null && selectionKey.isValid())
+                selectionKey.interestOps(0);
+            endSearch(false);
+        });
+    }
+
+    /**
+     * <i><b>onReadable</b></i>
+     *
+     * <pre> private void onReadable() </pre>
+     *
+     * Read all the datagrams available on the channel. Called on the event loop thread.
+     */
+    private void onReadable() {
+        beginBatch();
+        try {
+            while (channel != null && (searchCallback != null || listening)) {
+                receiveBuffer.clear();
+                SocketAddress source = channel.receive(receiveBuffer);
+                if (source == null)
+                    return;
+
+                lastReceiveTime = System.currentTimeMillis();
+                metrics.recordReceived(receiveBuffer.position(), receiveBuffer.capacity());
+                receiveView.clear();
+                receiveView.limit(receiveBuffer.position());
+                InetSocketAddress address = (InetSocketAddress) source;
+
+                if (searchCallback != null) {
+                    if (acceptFrame(receiveView, address.getAddress()))
+                        endSearch(true);
+
+                } else {
+                    recordArrival(address);
+                    if (!handleDatagram(receiveView, address)) {
+                        flushBatch(messageBatch);
+                        stopListening();
+                    }
+                }
+            }
+
+            /* Neither searching nor listening: wait for startListening */
+            if (selectionKey != null && selectionKey.isValid())
+                selectionKey.interestOps(0);
+
+        } catch (IOException e) {
+            metrics.recordReceiveFailure();
+            System.out.println(e.getMessage());
+            stopListening();
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * <i><b>endSearch</b></i>
+     *
+     * <pre> private void endSearch(boolean success) </pre>
+     *
+     * Give the result of the pending event loop search to its callback.
+     * @param success true if a peer has been accepted, false otherwise.
+     */
+    private void endSearch(boolean success) {
+        SuccessCallback callback = searchCallback;
+        searchCallback = null;
+        if (callback != null)
+            callback.onResult(success);
+    }
+
+    /**
+     * <i><b>scheduleTimeoutCheck</b></i>
+     *
+     * <pre> private void scheduleTimeoutCheck({@link DatagramChannel} checkedChannel) </pre>
+     *
+     * Apply the socket timeout in event loop mode: the search fails or the listening stops when no datagram
+     * has been received during the timeout.
+     * @param checkedChannel the channel of the current connection.
+     */
+    private void scheduleTimeoutCheck(DatagramChannel checkedChannel) {
+        int currentTimeout;
+        try {
+            currentTimeout = socket.getSoTimeout();
+        } catch (SocketException e) {
+            return;
+        }
+
+        /* The timeout may be enabled later, so check again regularly */
+        long delay = 1000;
+        if (currentTimeout > 0 && (searchCallback != null || listening))
+            delay = Math.max(1, lastReceiveTime + currentTimeout - System.currentTimeMillis());
+
+        eventLoop.schedule(() -> {
+            if (checkedChannel != channel || !checkedChannel.isOpen())
+                return;
+
+            int checkedTimeout;
+            try {
+                checkedTimeout = socket.getSoTimeout();
+            } catch (SocketException e) {
+                return;
+            }
+
+            boolean waiting = searchCallback != null || listening;
+            if (waiting && checkedTimeout > 0 && System.currentTimeMillis() - lastReceiveTime >= checkedTimeout) {
+                if (searchCallback != null) {
+                    selectionKey.interestOps(0);
+                    endSearch(false);
+                } else {
+                    System.out.println("Receive timed out");
+                    stopListening();
+                }
+            }
+
+            scheduleTimeoutCheck(checkedChannel);
+        }, delay);
+    }
+
+    /**
+     * <i><b>endSession</b></i>
+     *
+     * <pre> private void endSession() </pre>
+     *
+     * Stop the event loop mode connection: end the connection with the peer and stop the reads of the channel,
+     * which stays open for the next session. Called on the event loop thread.
+     */
+    private void endSession() {
+        if (channel == null)
+            return;
+
+        listening = false;
+        if (selectionKey != null && selectionKey.isValid())
+            selectionKey.interestOps(0);
+
+        finish();
+        endSearch(false);
+    }
+
+    /**
+     * <i><b>closeChannel</b></i>
+     *
+     * <pre> private void closeChannel() </pre>
+     *
+     * End the event loop mode connection and close the channel. Called on the event loop thread.
+     */
+    private void closeChannel() {
+        if (channel == null)
+            return;
+
+        endSession();
+        if (selectionKey != null) {
+            selectionKey.cancel();
+            selectionKey = null;
+        }
+
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+
+        bufferPool.release(receiveBuffer);
+        receiveBuffer = null;
+        receiveView = null;
+    }
+
+    /*******************************************/
+    /*                   Send                  */
+    /*******************************************/
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send(byte[] message) </pre>
+     *
+     * Send a message to the peer if the connection is up.
+     * @param message the message to send.
+     */
+    protected void send(byte[] message) {
+        if(!isConnected())
+            return;
+
+        send(message, connectedAddress);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send(byte[] message, {@link InetAddress} address) </pre>
+     *
+     * Send a message to the given address.
+     * @param message the message to send.
+     * @param address the destination.
+     */
+    protected void send(byte[] message, InetAddress address) {
+        send(message, new InetSocketAddress(address, usedPort));
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send(byte[] message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a message to the given address and port.
+     * @param message the message to send.
+     * @param address the destination and its port.
+     */
+    protected void send(byte[] message, InetSocketAddress address) {
+        send(ByteBuffer.wrap(message), address);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send({@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a message to the given address and port. The buffer can be reused once the method returns.
+     * @param message the message to send, from its position to its limit.
+     * @param address the destination and its port.
+     */
+    protected void send(ByteBuffer message, InetSocketAddress address) {
+        pipeline.send(message, address);
+    }
+
+    /**
+     * <i><b>sendControl</b></i>
+     *
+     * <pre> protected void sendControl(int type, byte[] message, {@link InetAddress} address) </pre>
+     *
+     * Send a protocol message (connection, ack, end of connection) to the given address,
+     * without going through the pipeline.
+     * @param type the {@link FrameHeader} type of the message.
+     * @param message the message to send.
+     * @param address the destination.
+     */
+    protected final void sendControl(int type, byte[] message, InetAddress address) {
+        sendControl(type, message, new InetSocketAddress(address, usedPort));
+    }
+
+    /**
+     * <i><b>sendControl</b></i>
+     *
+     * <pre> protected void sendControl(int type, byte[] message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a protocol message (connection, ack, end of connection) to the given address and port,
+     * without going through the pipeline.
+     * @param type the {@link FrameHeader} type of the message.
+     * @param message the message to send.
+     * @param address the destination and its port.
+     */
+    protected final void sendControl(int type, byte[] message, InetSocketAddress address) {
+        sendFrame(type, ByteBuffer.wrap(message), address);
+    }
+
+    /**
+     * <i><b>transmit</b></i>
+     *
+     * <pre> private void transmit({@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a message coming out of the pipeline.
+     * @param message the message to send.
+     * @param address the destination and its port.
+     */
+    private void transmit(ByteBuffer message, InetSocketAddress address) {
+        sendFrame(FrameHeader.DATA, message, address);
+    }
+
+    /**
+     * <i><b>sendFrame</b></i>
+     *
+     * <pre> private void sendFrame(int type, {@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a message after a {@link FrameHeader}.
+     * @param type the type of the frame.
+     * @param message the message to send, from its position to its limit.
+     * @param address the destination and its port.
+     */
+    private void sendFrame(int type, ByteBuffer message, InetSocketAddress address) {
+        sendFrame(type, 0, null, message, address);
+    }
+
+    /**
+     * <i><b>sendFileFrame</b></i>
+     *
+     * <pre> void sendFileFrame(int kind, {@link ByteBuffer} head, {@link ByteBuffer} body, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a {@link FrameHeader#FILE} frame of a {@link FileTransfer}.
+     * @param kind the flags of the frame.
+     * @param head the header of the file frame.
+     * @param body the content of the file frame, copied straight from a mapped file.
+     * @param address the destination and its port.
+     */
+    void sendFileFrame(int kind, ByteBuffer head, ByteBuffer body, InetSocketAddress address) {
+        sendFrame(FrameHeader.FILE, kind, head, body, address);
+    }
+
+    /**
+     * <i><b>sendFrame</b></i>
+     *
+     * <pre> private void sendFrame(int type, int flags, {@link ByteBuffer} head, {@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a message after a {@link FrameHeader} and an optional head, both copied into a single datagram. A payload
+     * larger than the buffers of the pool is not copied: the header and the head are given to the transport with
+     * the message, to be written together.
+     * @param type the type of the frame.
+     * @param flags the flags of the frame.
+     * @param head the bytes written before the message, null if there are none.
+     * @param message the message to send, from its position to its limit.
+     * @param address the destination and its port.
+     */
+    private void sendFrame(int type, int flags, ByteBuffer head, ByteBuffer message, InetSocketAddress address) {
+        BufferPool pool = bufferPool;
+        int headSize = FrameHeader.SIZE + (head == null ? 0 : head.remaining());
+        int size = headSize + message.remaining();
+        boolean pooled = size <= pool.getBufferSize();
+        boolean payload = type == FrameHeader.DATA || type == FrameHeader.FILE;
+
+        if (!pooled && payload) {
+            ByteBuffer frameHead = ByteBuffer.allocate(headSize);
+            FrameHeader.write(frameHead, type, flags);
+            if (head != null)
+                frameHead.put(head.duplicate());
+            frameHead.flip();
+            sendPayload(frameHead, message.duplicate(), address);
+            return;
+        }
+
+        /* A channel sends a direct buffer without copying it, the socket needs an array */
+        ByteBuffer frame;
+        if (!pooled)
+            frame = ByteBuffer.allocate(size);
+        else
+            frame = channel != null ? pool.acquire() : pool.acquireHeap();
+
+        try {
+            FrameHeader.write(frame, type, flags);
+            if (head != null)
+                frame.put(head.duplicate());
+            frame.put(message.duplicate());
+            frame.flip();
+            if (payload)
+                sendPayload(frame, address);
+            else
+                sendDatagram(frame, address);
+        } catch (IOException e) {
+            recordSendFailure(e);
+        } finally {
+            if (pooled)
+                pool.release(frame);
+        }
+    }
+
+    /**
+     * <i><b>recordSendFailure</b></i>
+     *
+     * <pre> private void recordSendFailure({@link IOException} e) </pre>
+     *
+     * Count a frame which could not be sent, and fail the queued message being sent if there is one.
+     * @param e the failure.
+     */
+    private void recordSendFailure(IOException e) {
+        metrics.recordSendFailure();
+        IOException[] failure = SEND_FAILURE.get();
+        if (failure != null)
+            failure[0] = e;
+        else
+            e.printStackTrace();
+    }
+
+    /*******************************************/
+    /*               Async send                */
+    /*******************************************/
+
+    /**
+     * <i><b>sendAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; sendAsync(byte[] message) </pre>
+     *
+     * Queue a message for the peer.
+     * @param message the message to send.
+     * @return the future completed when the message is sent, or failed if no peer is connected.
+     */
+    protected CompletableFuture<Void> sendAsync(byte[] message) {
+        InetAddress address = connectedAddress;
+        if(address == null) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("No peer is connected."));
+            return future;
+        }
+
+        return sendAsync(message, address);
+    }
+
+    /**
+     * <i><b>sendAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; sendAsync(byte[] message, {@link InetAddress} address) </pre>
+     *
+     * Queue a message for the given address.
+     * @param message the message to send.
+     * @param address the destination.
+     * @return the future completed when the message is sent.
+     */
+    protected CompletableFuture<Void> sendAsync(byte[] message, InetAddress address) {
+        return sendAsync(message, new InetSocketAddress(address, usedPort));
+    }
+
+    /**
+     * <i><b>sendAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; sendAsync(byte[] message, {@link InetSocketAddress} address) </pre>
+     *
+     * Queue a message for the given address and port. The message is sent by a writer thread, or by the
+     * event loop of the link in event loop mode. When the queue is full, its
+     * {@link SendQueue.BackpressurePolicy} is applied. The array must not be modified until the future is completed.
+     * @param message the message to send.
+     * @param address the destination and its port.
+     * @return the future completed when the message is given to the socket, or failed with the error of the socket
+     * or of the backpressure policy, or if the socket dropped it because its send buffer was full.
+     */
+    protected CompletableFuture<Void> sendAsync(byte[] message, InetSocketAddress address) {
+        SendQueue queue = getSendQueue();
+        SendQueue.PendingMessage pending = new SendQueue.PendingMessage(ByteBuffer.wrap(message), address);
+
+        if (queue.getPolicy() == SendQueue.BackpressurePolicy.BLOCK && isDrainingThread()) {
+            // Waiting here would wait for ourselves: make room by sending the oldest messages.
+            while (!queue.tryOffer(pending)) {
+                SendQueue.PendingMessage oldest = queue.poll();
+                if (oldest != null)
+                    sendPending(oldest);
+            }
+        } else {
+            queue.offer(pending);
+        }
+
+        scheduleDrain(queue);
+        return pending.future;
+    }
+
+    /**
+     * <i><b>isDrainingThread</b></i>
+     *
+     * <pre> private boolean isDrainingThread() </pre>
+     *
+     * @return true if the current thread drains the send queue of this link.
+     */
+    private boolean isDrainingThread() {
+        EventLoop loop = eventLoop;
+        return Thread.currentThread() == drainingThread || (loop != null && loop.inEventLoop());
+    }
+
+    /**
+     * <i><b>scheduleDrain</b></i>
+     *
+     * <pre> private void scheduleDrain({@link SendQueue} queue) </pre>
+     *
+     * Start a task draining the send queue if none is running.
+     * @param queue the send queue.
+     */
+    private void scheduleDrain(SendQueue queue) {
+        if (queue.isEmpty() || !draining.compareAndSet(false, true))
+            return;
+
+        EventLoop loop = eventLoop;
+        Executor executor = loop != null ? loop::execute : WRITERS;
+        executor.execute(() -> drain(queue, loop != null ? EVENT_LOOP_SEND_BUDGET : Integer.MAX_VALUE));
+    }
+
+    /**
+     * <i><b>drain</b></i>
+     *
+     * <pre> private void drain({@link SendQueue} queue, int budget) </pre>
+     *
+     * Send the queued messages, then start a new task if messages remain.
+     * @param queue the send queue.
+     * @param budget the maximum number of messages sent by this task.
+     */
+    private void drain(SendQueue queue, int budget) {
+        drainingThread = Thread.currentThread();
+        try {
+            SendQueue.PendingMessage pending;
+            while (budget-- > 0 && (pending = queue.poll()) != null)
+                sendPending(pending);
+        } finally {
+            drainingThread = null;
+            draining.set(false);
+        }
+
+        scheduleDrain(queue);
+    }
+
+    /**
+     * <i><b>sendPending</b></i>
+     *
+     * <pre> private void sendPending({@link SendQueue.PendingMessage} pending) </pre>
+     *
+     * Send a queued message through the pipeline and complete its future.
+     * @param pending the queued message.
+     */
+    private void sendPending(SendQueue.PendingMessage pending) {
+        IOException[] previousFailure = SEND_FAILURE.get();
+        IOException[] failure = new IOException[1];
+        SEND_FAILURE.set(failure);
+        try {
+            pipeline.send(pending.message, pending.destination);
+        } catch (RuntimeException e) {
+            pending.future.completeExceptionally(e);
+            return;
+        } finally {
+            if (previousFailure != null)
+                SEND_FAILURE.set(previousFailure);
+            else
+                SEND_FAILURE.remove();
+        }
+
+        if (failure[0] != null)
+            pending.future.completeExceptionally(failure[0]);
+        else
+            pending.future.complete(null);
+    }
+
+    /**
+     * <i><b>sendPayload</b></i>
+     *
+     * <pre> private void sendPayload({@link ByteBuffer} frame, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a data or file frame with the transport.
+     * @param frame the frame, from its position to its limit.
+     * @param address the destination and its port.
+     * @throws IOException if the frame cannot be sent.
+     */
+    private void sendPayload(ByteBuffer frame, InetSocketAddress address) throws IOException {
+        int length = frame.remaining();
+        if (transport.send(frame, address))
+            recordSent(length, address);
+        else
+            recordDropped();
+    }
+
+    /**
+     * <i><b>sendPayload</b></i>
+     *
+     * <pre> private void sendPayload({@link ByteBuffer} head, {@link ByteBuffer} body, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a data or file frame made of two parts with the transport, and count it. The send failures are
+     * reported like those of the other frames.
+     * @param head the header of the frame and the bytes before the message.
+     * @param body the message.
+     * @param address the destination and its port.
+     */
+    private void sendPayload(ByteBuffer head, ByteBuffer body, InetSocketAddress address) {
+        int length = head.remaining() + body.remaining();
+        try {
+            if (transport.send(head, body, address))
+                recordSent(length, address);
+            else
+                recordDropped();
+        } catch (IOException e) {
+            recordSendFailure(e);
+        }
+    }
+
+    /**
+     * <i><b>sendDatagram</b></i>
+     *
+     * <pre> private void sendDatagram({@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Send a datagram with the socket or with the channel in event loop mode, and count it.
+     * @param message the message to send, from its position to its limit.
+     * @param address the destination and its port.
+     * @throws IOException if the datagram cannot be sent.
+     */
+    private void sendDatagram(ByteBuffer message, InetSocketAddress address) throws IOException {
+        int length = message.remaining();
+        if (writeDatagram(message, address))
+            recordSent(length, address);
+        else
+            recordDropped();
+    }
+
+    /**
+     * <i><b>recordDropped</b></i>
+     *
+     * <pre> private void recordDropped() </pre>
+     *
+     * Count a frame dropped because the send buffer is full, and fail the queued message being sent if there is one,
+     * so that its future does not report it as sent.
+     */
+    private void recordDropped() {
+        metrics.recordSendFailure();
+        IOException[] failure = SEND_FAILURE.get();
+        if (failure != null)
+            failure[0] = new IOException("The send buffer is full: the datagram is dropped.");
+    }
+
+    /**
+     * <i><b>writeDatagram</b></i>
+     *
+     * <pre> boolean writeDatagram({@link ByteBuffer} message, {@link InetSocketAddress} address) </pre>
+     *
+     * Write a datagram with the socket or with the channel in event loop mode.
+     * @param message the message to send, from its position to its limit.
+     * @param address the destination and its port.
+     * @return true if the datagram is sent, false if the send buffer of the channel is full.
+     * @throws IOException if the datagram cannot be sent.
+     */
+    boolean writeDatagram(ByteBuffer message, InetSocketAddress address) throws IOException {
+        int length = message.remaining();
+        DatagramChannel currentChannel = channel;
+        if (currentChannel != null) {
+            /* A non-blocking channel drops the datagram when the send buffer is full */
+            return currentChannel.send(message, address) != 0 || length == 0;
+
+        } else if (message.hasArray()) {
+            socket.send(new DatagramPacket(message.array(), message.arrayOffset() + message.position(),
+                    length, address));
+
+        } else {
+            byte[] copy = new byte[length];
+            message.get(copy);
+            socket.send(new DatagramPacket(copy, copy.length, address));
+        }
+        return true;
+    }
+
+    /**
+     * <i><b>recordSent</b></i>
+     *
+     * <pre> private void recordSent(int length, {@link InetSocketAddress} address) </pre>
+     *
+     * Count a sent frame and remember when the peer was last sent something.
+     * @param length the length of the frame.
+     * @param address the destination and its port.
+     */
+    private void recordSent(int length, InetSocketAddress address) {
+        metrics.recordSent(length);
+        if (!monitoredPeers.isEmpty()) {
+            PeerHealth health = monitoredPeers.get(address);
+            if (health != null)
+                health.lastSent = monotonicMillis();
+        }
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send({@link String} message) </pre>
+     *
+     * Send a message to the peer if the connection is up.
+     * @param message the message to send.
+     */
+    protected void send(String message) {
+        if(!isConnected())
+            return;
+
+        send(message, connectedAddress);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected void send({@link String} message, {@link InetAddress} address) </pre>
+     *
+     * Send a message encoded in UTF-8 to the given address.
+     * @param message the message to send.
+     */
+    protected void send(String message, InetAddress address) {
+        send(StringCodec.UTF_8, message, new InetSocketAddress(address, usedPort));
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected &lt;T&gt; void send({@link MessageCodec}&lt;T&gt; codec, T message) </pre>
+     *
+     * Encode a message and send it to the peer if the connection is up.
+     * @param codec the codec of the message.
+     * @param message the message to send.
+     */
+    protected final <T> void send(MessageCodec<T> codec, T message) {
+        InetAddress address = connectedAddress;
+        if(address == null)
+            return;
+
+        send(codec, message, new InetSocketAddress(address, usedPort));
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected &lt;T&gt; void send({@link MessageCodec}&lt;T&gt; codec, T message, {@link InetSocketAddress} address) </pre>
+     *
+     * Encode a message straight into a pooled buffer and send it to the given address and port.
+     * The messages larger than the buffers are encoded into a new array.
+     * @param codec the codec of the message.
+     * @param message the message to send.
+     * @param address the destination and its port.
+     */
+    protected final <T> void send(MessageCodec<T> codec, T message, InetSocketAddress address) {
+        ByteBuffer buffer = acquireArrayBuffer();
+        try {
+            ByteBuffer encoded;
+            try {
+                codec.encode(message, buffer);
+                buffer.flip();
+                encoded = buffer;
+            } catch (BufferOverflowException e) {
+                encoded = ByteBuffer.wrap(codec.encodeToBytes(message));
+            }
+
+            send(encoded, address);
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /*******************************************/
+    /*                Transport                */
+    /*******************************************/
+
+    /**
+     * <i><b>bindTransport</b></i>
+     *
+     * <pre> private void bindTransport() </pre>
+     *
+     * Bind the transport on the port of the link once its socket is opened.
+     */
+    private void bindTransport() {
+        if (socket == null && channel == null)
+            return;
+
+        try {
+            transport.bind(new InetSocketAddress(usedPort), new Transport.Listener() {
+                @Override
+                public void onReceived(ByteBuffer frame, InetSocketAddress source) {
+                    receiveFrame(frame, source);
+                }
+
+                @Override
+                public boolean isKnownPeer(InetSocketAddress peer) {
+                    return AbstractP2PLink.this.isKnownPeer(peer);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * <i><b>isKnownPeer</b></i>
+     *
+     * <pre> protected boolean isKnownPeer({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address and the port of the link of a peer.
+     * @return true if the link is connected to the peer, so that the transport can use a connection coming from it.
+     */
+    protected boolean isKnownPeer(InetSocketAddress peer) {
+        return peer.getAddress().equals(connectedAddress);
+    }
+
+    /**
+     * <i><b>receiveFrame</b></i>
+     *
+     * <pre> private void receiveFrame({@link ByteBuffer} frame, {@link InetSocketAddress} source) </pre>
+     *
+     * Handle a frame of the transport like a received datagram, on the thread reading the socket: the event loop
+     * in event loop mode, the background thread otherwise, so the stages and the handlers are never entered by the
+     * thread of the transport. The frames arriving while the link does not listen are ignored.
+     * @param frame the received frame.
+     * @param source the address of the link of the peer.
+     */
+    private void receiveFrame(ByteBuffer frame, InetSocketAddress source) {
+        EventLoop loop = eventLoop;
+        if (loop == null) {
+            ListenerThread thread = backgroundThread;
+            if (thread == null || !thread.isAlive() || thread.isInterrupted()) {
+                metrics.recordRejected();
+                return;
+            }
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame.duplicate()).flip();
+
+        if (loop == null) {
+            pendingFrames.add(new PendingFrame(copy.asReadOnlyBuffer(), source));
+            if (framesSignaled.compareAndSet(false, true))
+                wakeUp();
+            return;
+        }
+
+        loop.execute(() -> {
+            if (!listening) {
+                metrics.recordRejected();
+                return;
+            }
+
+            boolean open;
+            beginBatch();
+            try {
+                open = handleFrame(copy.asReadOnlyBuffer(), source);
+            } finally {
+                endBatch();
+            }
+            if (!open)
+                stopListening();
+        });
+    }
+
+    /**
+     * <i><b>handleFrame</b></i>
+     *
+     * <pre> private void handleFrame({@link ByteBuffer} frame, {@link InetSocketAddress} source) </pre>
+     *
+     * Count a frame of the transport and give it to {@link #handleDatagram(ByteBuffer, InetSocketAddress)}.
+     * @param frame the received frame.
+     * @param source the address of the link of the peer.
+     * @return false if the frame ends the listening, true otherwise.
+     */
+    private boolean handleFrame(ByteBuffer frame, InetSocketAddress source) {
+        metrics.recordReceived(frame.remaining(), Integer.MAX_VALUE);
+        recordArrival(source);
+        return handleDatagram(frame, source);
+    }
+
+    /**
+     * Frame of the transport waiting for the background thread.
+     */
+    private static final class PendingFrame {
+
+        private final ByteBuffer frame;
+
+        private final InetSocketAddress source;
+
+        private PendingFrame(ByteBuffer frame, InetSocketAddress source) {
+            this.frame = frame;
+            this.source = source;
+        }
+    }
+
+    /*******************************************/
+    /*                  Files                  */
+    /*******************************************/
+
+    /**
+     * <i><b>sendFile</b></i>
+     *
+     * <pre> protected boolean sendFile({@link Path} file) </pre>
+     *
+     * Send a file to the peer and wait until it has all of it.
+     * @param file the file to send.
+     * @return true if the peer has received the whole file, false if no peer is connected, if the peer refused
+     * the file or if it stopped answering.
+     * @throws IOException if the file cannot be read.
+     * @see #sendFile(Path, InetSocketAddress)
+     */
+    protected final boolean sendFile(Path file) throws IOException {
+        InetAddress address = connectedAddress;
+        if(address == null)
+            return false;
+
+        return sendFile(file, new InetSocketAddress(address, usedPort));
     }
 
     /**
-     * <i><b>init</b></i>
+     * <i><b>sendFile</b></i>
      *
-     * <pre> protected void init() </pre>
+     * <pre> protected boolean sendFile({@link Path} file, {@link InetSocketAddress} address) </pre>
      *
-     * The method used to initialize the socket and the background thread.
+     * Send a file to the given address and port, and wait until the peer has all of it. The file is memory-mapped
+     * and each datagram is filled straight from the mapped region, so the file is never loaded in the heap.
+     * The peer answers with the chunks it already has, so a transfer interrupted earlier only sends the missing
+     * chunks. The file frames do not go through the pipeline.
+     * @param file the file to send, up to 2 GB.
+     * @param address the destination and its port.
+     * @return true if the peer has received the whole file, false if the peer refused the file or stopped answering.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalStateException if called by the thread or the event loop receiving the answers of the peer.
      */
-    protected final void init() throws BindException {
-        if (this.socket == null || this.socket.isClosed()) {
-            initSocket();
-        }
+    protected final boolean sendFile(Path file, InetSocketAddress address) throws IOException {
+        EventLoop loop = eventLoop;
+        if (Thread.currentThread() == backgroundThread || (loop != null && loop.inEventLoop()))
+            throw new IllegalStateException("A file cannot be sent by the listening thread.");
 
-        backgroundThread = createBackgroundThread();
+        return fileTransfer.send(file, address);
     }
 
     /**
-     * <i><b>createBackgroundThread</b></i>
+     * <i><b>setReceiveDirectory</b></i>
      *
-     * <pre> protected {@link ListenerThread} createBackgroundThread() </pre>
+     * <pre> public void setReceiveDirectory({@link Path} receiveDirectory) </pre>
      *
-     * Create the background thread.
-     * @return the thread created.
+     * Set the directory where the offered files are written by {@link #onFileOffered(String, long, InetSocketAddress)}.
+     * @param receiveDirectory the directory, null to refuse the offered files (default).
      */
-    protected ListenerThread createBackgroundThread() {
-        return new ListenerThread();
+    public void setReceiveDirectory(Path receiveDirectory) {
+        this.receiveDirectory = receiveDirectory;
     }
 
-    /*******************************************/
-    /*             Getters/Setters             */
-    /*******************************************/
-
     /**
-     * <i><b>getBackgroundThread</b></i>
+     * <i><b>getReceiveDirectory</b></i>
      *
-     * <pre> protected {@link ListenerThread} getBackgroundThread() </pre>
+     * <pre> public {@link Path} getReceiveDirectory() </pre>
      *
-     * @return the background thread.
+     * @return the directory of the received files, null if the offered files are refused.
      */
-    protected ListenerThread getBackgroundThread() {
-        return backgroundThread;
+    public Path getReceiveDirectory() {
+        return receiveDirectory;
     }
 
     /**
-     * <i><b>getSocket</b></i>
+     * <i><b>receiveFile</b></i>
      *
-     * <pre> protected {@link DatagramSocket} getSocket() </pre>
+     * <pre> protected void receiveFile({@link ByteBuffer} receivedFrame, {@link InetSocketAddress} source) </pre>
      *
-     * @return the used udp socket.
+     * Give a {@link FrameHeader#FILE} frame to the file transfers.
+     * @param receivedFrame the received datagram, from its position to its limit.
+     * @param source the address of the peer.
      */
-    protected DatagramSocket getSocket() {
-        return socket;
+    protected final void receiveFile(ByteBuffer receivedFrame, InetSocketAddress source) {
+        int kind = FrameHeader.getFlags(receivedFrame);
+        fileTransfer.receive(kind, FrameHeader.skip(receivedFrame.duplicate()), source);
     }
 
     /**
-     * <i><b>getUsedPort</b></i>
+     * <i><b>onFileOffered</b></i>
      *
-     * <pre> protected int getUsedPort() </pre>
+     * <pre> protected {@link Path} onFileOffered({@link String} name, long size, {@link InetSocketAddress} source) </pre>
      *
-     * @return the used port.
+     * Called when a peer offers a file. By default, the file is written in the receive directory under its name.
+     * If the target has a partial transfer of the same size next to it, the transfer resumes.
+     * @param name the name of the file on the peer.
+     * @param size the size of the file.
+     * @param source the address of the peer.
+     * @return the file to write, null to refuse the file.
      */
-    protected int getUsedPort() {
-        return usedPort;
+    protected Path onFileOffered(String name, long size, InetSocketAddress source) {
+        Path directory = receiveDirectory;
+        if (directory == null)
+            return null;
+
+        /* Only the last element, so that a name cannot point outside of the directory */
+        Path fileName;
+        try {
+            fileName = directory.getFileSystem().getPath(name).getFileName();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (fileName == null || fileName.toString().equals("..") || fileName.toString().equals("."))
+            return null;
+        return directory.resolve(fileName.toString());
     }
 
     /**
-     * <i><b>setConnectedAddress</b></i>
+     * <i><b>onFileReceived</b></i>
      *
-     * <pre> protected void setConnectedAddress({@link InetAddress} connectedAddress) </pre>
+     * <pre> protected void onFileReceived({@link Path} file, {@link InetSocketAddress} source) </pre>
      *
-     * Set the connected address if no connexion is up.
-     * @throws IllegalStateException if there is already a connection up.
+     * Called when a file is completely received and flushed.
+     * @param file the received file.
+     * @param source the address of the peer.
      */
-    public void setConnectedAddress(InetAddress connectedAddress) {
-        if(this.connectedAddress != null)
-            throw new IllegalStateException("A connection is already up. Close it to assign a new connected address");
-        this.connectedAddress = connectedAddress;
+    @SuppressWarnings("EmptyMethod")
+    protected void onFileReceived(Path file, InetSocketAddress source) {
+        /* do nothing */
     }
 
     /*******************************************/
-    /*               Connection                */
+    /*                 Publish                 */
     /*******************************************/
 
     /**
-     * <i><b>startProtocol</b></i>
+     * <i><b>publish</b></i>
      *
-     * <pre> public void startProtocol() </pre>
+     * <pre> protected void publish(byte[] message) </pre>
      *
-     * Method to start the protocol.
-     * @param connectionCallback the function which will be called after the connection has been established.
-     *                           If the connection success the argument is true, false otherwise.
+     * Send a message once to all the members of the multicast group. Each member delivers it if the publisher is
+     * its connected peer. The group cannot acknowledge the messages, so the links publishing must not use a
+     * {@link snetwork.stage.ReliableStage}.
+     * @param message the message to send.
+     * @throws IllegalStateException if the link has no multicast group.
      */
-    public abstract void startProtocol(SuccessCallback connectionCallback) throws BindException;
+    protected final void publish(byte[] message) {
+        publish(ByteBuffer.wrap(message));
+    }
 
     /**
-     * <i><b>isConnected</b></i>
+     * <i><b>publish</b></i>
      *
-     * <pre> public void isConnected() </pre>
+     * <pre> protected void publish({@link ByteBuffer} message) </pre>
      *
-     * @return true if a connection with a peer has been established, false otherwise.
+     * Send a message once to all the members of the multicast group (see {@link #publish(byte[])}).
+     * The buffer can be reused once the method returns.
+     * @param message the message to send, from its position to its limit.
+     * @throws IllegalStateException if the link has no multicast group.
      */
-    public boolean isConnected() {
-        return connectedAddress != null;
+    protected final void publish(ByteBuffer message) {
+        send(message, getPublishAddress());
     }
 
     /**
-     * <i><b>searchPeer</b></i>
+     * <i><b>publish</b></i>
      *
-     * <pre> protected boolean searchPeer() </pre>
+     * <pre> protected &lt;T&gt; void publish({@link MessageCodec}&lt;T&gt; codec, T message) </pre>
      *
-     * Search and set a peer to be the sender.
-     * @return true if a peer is found, otherwise false.
+     * Encode a message once and send it to all the members of the multicast group (see {@link #publish(byte[])}).
+     * @param codec the codec of the message.
+     * @param message the message to send.
+     * @param <T> the type of the message.
+     * @throws IllegalStateException if the link has no multicast group.
      */
-    @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    protected abstract boolean searchPeer();
-
-    /*******************************************/
-    /*                Listening                */
-    /*******************************************/
+    protected final <T> void publish(MessageCodec<T> codec, T message) {
+        send(codec, message, getPublishAddress());
+    }
 
     /**
-     * Thread used to listen datagrams and clean-up when the the communication is done.
+     * <i><b>publishAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; publishAsync(byte[] message) </pre>
+     *
+     * Queue a message for all the members of the multicast group (see {@link #publish(byte[])}).
+     * @param message the message to send.
+     * @return the future completed when the message is sent.
+     * @throws IllegalStateException if the link has no multicast group.
      */
-    protected class ListenerThread extends Thread {
-
-        @Override
-        public final void run() {
-            if(!beforeAll())
-                return;
-
-            listen();
-            finish();
-
-            afterAll();
-        }
-
-        /**
-         * <i><b>beforeAll</b></i>
-         *
-         * <pre> private boolean beforeAll() </pre>
-         *
-         * Method call before the listen one.
-         * @return false if an error as occurred so we can't listen, otherwise true.
-         */
-        protected boolean beforeAll() {
-            return true;
-        }
-
-        @SuppressWarnings("EmptyMethod")
-        protected void afterAll() {
-            /* do nothing */
-        }
-
+    protected final CompletableFuture<Void> publishAsync(byte[] message) {
+        return sendAsync(message, getPublishAddress());
     }
 
-
     /**
-     * <i><b>listen</b></i>
+     * <i><b>getPublishAddress</b></i>
      *
-     * <pre> private void listen() </pre>
+     * <pre> private {@link InetSocketAddress} getPublishAddress() </pre>
      *
-     * Receive and read data from the peer.
+     * @return the address of the multicast group and the port of the link.
+     * @throws IllegalStateException if the link has no multicast group.
      */
-    private void listen() {
-        if(connectedAddress == null)
-            throw new IllegalStateException("No peer connected.");
-
-        byte[] buffer;
-        DatagramPacket packet;
-
-        while (!backgroundThread.isInterrupted()) {
-
-            try {
-
-                buffer = new byte[1000];
-                packet = new DatagramPacket(buffer, buffer.length);
-
-                socket.receive(packet);
-                if (!packet.getAddress().equals(connectedAddress))
-                    continue;
-
-                buffer = Arrays.copyOf(buffer, packet.getLength());
+    private InetSocketAddress getPublishAddress() {
+        InetAddress group = multicastGroup;
+        if (group == null)
+            throw new IllegalStateException("The link has no multicast group to publish to.");
+        return new InetSocketAddress(group, usedPort);
+    }
 
-                /* END */
-                if (isEndConnection(buffer)) {
-                    stopListening();
+    /*******************************************/
+    /*                Heartbeat                */
+    /*******************************************/
 
-                } else {
-                    onListening(buffer);
-                }
+    /**
+     * <i><b>monitorPeer</b></i>
+     *
+     * <pre> protected void monitorPeer({@link InetSocketAddress} peer) </pre>
+     *
+     * Start the failure detection of a connected peer if the heartbeats are enabled. The detection stops when
+     * the connection with the peer ends.
+     * @param peer the address of the peer.
+     */
+    protected final void monitorPeer(InetSocketAddress peer) {
+        long interval = heartbeatInterval;
+        if (interval <= 0)
+            return;
 
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
-                return;
-            }
+        long now = monotonicMillis();
+        monitoredPeers.put(peer, new PeerHealth(new FailureDetector(interval, interval, now), now));
 
-        }
+        if (heartbeatScheduled.compareAndSet(false, true))
+            LinkPipeline.schedule(this::checkPeers, Math.max(1, interval / 2), TimeUnit.MILLISECONDS);
     }
 
     /**
-     * <i><b>stopListening</b></i>
+     * <i><b>recordArrival</b></i>
      *
-     * <pre> private void stopListening() </pre>
+     * <pre> private void recordArrival({@link InetSocketAddress} source) </pre>
      *
-     * Stop listening by interrupting the background thread.
+     * Give the arrival of a frame to the failure detector of its sender, if it is watched.
+     * @param source the address of the sender.
      */
-    private void stopListening() {
-        if (backgroundThread.isAlive() && !backgroundThread.isInterrupted()) {
-            backgroundThread.interrupt();
-            socket.close();
-        }
-    }
+    private void recordArrival(InetSocketAddress source) {
+        if (monitoredPeers.isEmpty())
+            return;
 
-    /*******************************************/
-    /*                   Send                  */
-    /*******************************************/
+        PeerHealth health = monitoredPeers.get(source);
+        if (health != null)
+            health.detector.heartbeat(monotonicMillis());
+    }
 
     /**
-     * <i><b>send</b></i>
+     * <i><b>checkPeers</b></i>
      *
-     * <pre> protected void send(byte[] message) </pre>
+     * <pre> private void checkPeers() </pre>
      *
-     * Send a message to the peer if the connection is up.
-     * @param message the message to send.
+     * Send a heartbeat to the peers which have not been sent anything lately, and report the peers whose
+     * suspicion level reaches the threshold. Run on the timer thread every half heartbeat interval while
+     * peers are watched.
      */
-    protected void send(byte[] message) {
-        if(!isConnected())
-            return;
+    private void checkPeers() {
+        long interval = heartbeatInterval;
+        long now = monotonicMillis();
+
+        for (Map.Entry<InetSocketAddress, PeerHealth> entry : monitoredPeers.entrySet()) {
+            InetSocketAddress peer = entry.getKey();
+            PeerHealth health = entry.getValue();
+
+            if (health.detector.phi(now) >= suspicionThreshold) {
+                if (monitoredPeers.remove(peer, health))
+                    suspect(peer);
+                continue;
+            }
 
-        send(message, connectedAddress);
+            if (now - health.lastSent >= interval / 2 && socket != null && !socket.isClosed())
+                sendControl(FrameHeader.HEARTBEAT, HEARTBEAT_MESSAGE, peer);
+        }
+
+        heartbeatScheduled.set(false);
+        if (!monitoredPeers.isEmpty() && interval > 0 && heartbeatScheduled.compareAndSet(false, true))
+            LinkPipeline.schedule(this::checkPeers, Math.max(1, interval / 2), TimeUnit.MILLISECONDS);
     }
 
     /**
-     * <i><b>send</b></i>
+     * <i><b>monotonicMillis</b></i>
      *
-     * <pre> protected void send(byte[] message, {@link InetAddress} address) </pre>
+     * <pre> private static long monotonicMillis() </pre>
      *
-     * Send a message to the given address.
-     * @param message the message to send.
-     * @param address the destination.
+     * @return the time in milliseconds of {@link System#nanoTime()}, so the failure detectors do not see the
+     * wall clock jumping as a silence or as a burst of arrivals.
      */
-    protected void send(byte[] message, InetAddress address) {
-        try {
-            socket.send(new DatagramPacket(message, message.length, address, usedPort));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private static long monotonicMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     /**
-     * <i><b>send</b></i>
+     * <i><b>suspect</b></i>
      *
-     * <pre> protected void send({@link String} message) </pre>
+     * <pre> private void suspect({@link InetSocketAddress} peer) </pre>
      *
-     * Send a message to the peer if the connection is up.
-     * @param message the message to send.
+     * Call {@link #onPeerSuspected(InetSocketAddress)} on the thread reading the socket: the event loop in event
+     * loop mode, the background thread otherwise, so the timer thread shared by the links is never held by it.
+     * @param peer the address of the suspected peer.
      */
-    protected void send(String message) {
-        send(message.getBytes());
+    private void suspect(InetSocketAddress peer) {
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.execute(() -> onPeerSuspected(peer));
+            return;
+        }
+
+        /* The connection is already over without a background thread */
+        ListenerThread thread = backgroundThread;
+        if (thread == null || !thread.isAlive() || thread.isInterrupted())
+            return;
+
+        suspectedPeers.add(peer);
+        if (framesSignaled.compareAndSet(false, true))
+            wakeUp();
     }
 
     /**
-     * <i><b>send</b></i>
+     * <i><b>onPeerSuspected</b></i>
      *
-     * <pre> protected void send({@link String} message, {@link InetAddress} address) </pre>
+     * <pre> protected void onPeerSuspected({@link InetSocketAddress} peer) </pre>
      *
-     * Send a message to the given address.
-     * @param message the message to send.
+     * Called when a connected peer has been silent for too long (see {@link #setHeartbeat(long, double)}), on the
+     * background thread or on the event loop in event loop mode. By default, the connection ends as if the peer had
+     * sent its end message.
+     * @param peer the address of the suspected peer.
      */
-    protected void send(String message, InetAddress address) {
-        send(message.getBytes(), address);
+    protected void onPeerSuspected(InetSocketAddress peer) {
+        if (peer.getAddress().equals(connectedAddress))
+            stopListening();
     }
 
     /*******************************************/
@@ -363,19 +2588,59 @@ public abstract class AbstractP2PLink {
      *
      * <pre> public void stopPeerConnection() </pre>
      *
-     * Stop the connection with the peer.
+     * Stop the connection with the peer. The socket stays open, so that the next
+     * {@link #startProtocol(SuccessCallback)} only resets the session: call {@link #close()} to release the port.
      */
     public void stopPeerConnection() {
-        if (backgroundThread != null && !backgroundThread.isInterrupted()) {
-            backgroundThread.interrupt();
-            socket.close();
+        if (eventLoop != null) {
+            eventLoop.executeAndWait(this::endSession);
+            return;
+        }
+
+        ListenerThread thread = backgroundThread;
+        if (thread == null)
+            return;
+
+        if (thread.isAlive()) {
+            thread.interrupt();
+
+            /* Stopped from onListening: the thread ends after it */
+            if (Thread.currentThread() == thread)
+                return;
+
+            wakeUp();
             try {
-                backgroundThread.join();
-                backgroundThread = null;
+                thread.join(WAKE_UP_DELAY);
+
+                /* The wake-up datagram did not reach the socket */
+                if (thread.isAlive()) {
+                    socket.close();
+                    thread.join();
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
+        backgroundThread = null;
+    }
+
+    /**
+     * <i><b>close</b></i>
+     *
+     * <pre> public void close() </pre>
+     *
+     * Stop the connection with the peer and close the socket, which releases the port.
+     * The link can be started again.
+     */
+    public void close() {
+        stopPeerConnection();
+
+        if (eventLoop != null)
+            eventLoop.executeAndWait(this::closeChannel);
+        else if (socket != null)
+            socket.close();
+
+        transport.close();
     }
 
     /**
@@ -404,22 +2669,45 @@ public abstract class AbstractP2PLink {
         if(connectedAddress == null)
             return;
 
-        if(socket.isClosed()) {
-            try {
-                initSocket();
-            } catch (BindException e) {
-                /* Should not happen */
-            }
-        }
+        closeConnections(Collections.singletonList(new InetSocketAddress(connectedAddress, usedPort)));
+    }
 
-        byte[] buffer = getEndConnectionMessage();
-        try {
-            socket.send(new DatagramPacket(buffer, buffer.length, connectedAddress, usedPort));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * <i><b>peerClosed</b></i>
+     *
+     * <pre> protected void peerClosed({@link InetSocketAddress} peer) </pre>
+     *
+     * Release the state kept by the pipeline for a peer whose connection has ended.
+     * @param peer the address of the peer.
+     */
+    protected final void peerClosed(InetSocketAddress peer) {
+        monitoredPeers.remove(peer);
+        fileTransfer.peerClosed(peer);
+        transport.close(peer);
+        pipeline.peerClosed(peer);
+    }
 
-        socket.close();
+    /**
+     * <i><b>closeConnections</b></i>
+     *
+     * <pre> protected void closeConnections({@link Collection}&lt;{@link InetSocketAddress}&gt; addresses) </pre>
+     *
+     * End the communication with several peers by sending them an end message. The socket stays open.
+     * @param addresses the addresses of the peers.
+     */
+    protected final void closeConnections(Collection<InetSocketAddress> addresses) {
+        ByteBuffer buffer = FrameHeader.frame(FrameHeader.END, getEndConnectionMessage());
+        for (InetSocketAddress address : addresses) {
+            /* The socket is only closed by close(), or if a background thread did not stop */
+            if (!socket.isClosed()) {
+                try {
+                    sendDatagram(buffer.duplicate(), address);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            peerClosed(address);
+        }
     }
 
     /*******************************************/
@@ -436,29 +2724,96 @@ public abstract class AbstractP2PLink {
      */
     protected abstract boolean isAcceptableConnection(byte[] receivedMessage);
 
-    private boolean isEndConnection(byte[] receivedMessage) {
-        byte[] endConnectionMessage = getEndConnectionMessage();
-        return Arrays.equals(receivedMessage, endConnectionMessage);
+    /**
+     * <i><b>isEndConnection</b></i>
+     *
+     * <pre> protected boolean isEndConnection({@link ByteBuffer} receivedFrame) </pre>
+     *
+     * @param receivedFrame the received datagram, from its position to its limit.
+     * @return true if the datagram is an end connection frame, false otherwise.
+     */
+    protected final boolean isEndConnection(ByteBuffer receivedFrame) {
+        return FrameHeader.getType(receivedFrame) == FrameHeader.END;
     }
 
+    /**
+     * <i><b>getSearchedFrameType</b></i>
+     *
+     * <pre> protected int getSearchedFrameType() </pre>
+     *
+     * @return the {@link FrameHeader} type of the messages given to {@link #acceptPeer(byte[], InetAddress)}
+     * while searching a peer.
+     */
+    protected abstract int getSearchedFrameType();
+
     /**
      * <i><b>getEndConnectionMessage</b></i>
      *
      * <pre> protected byte[] getEndConnectionMessage() </pre>
      *
-     * @return the message which will be send to end a connection.
+     * @return the message which will be send to end a connection, after an {@link FrameHeader#END} header.
      */
     protected abstract byte[] getEndConnectionMessage();
 
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening({@link ByteBuffer} receivedMessage) </pre>
+     *
+     * The action to when a message is received, without copy of the received datagram.
+     * The message is a read-only view of a reused receive buffer: it is only valid during the call and
+     * must be copied to be kept.
+     * By default, copy the message and call {@link #onListening(byte[])}.
+     * @param receivedMessage the received message, from its position to its limit.
+     */
+    protected void onListening(ByteBuffer receivedMessage) {
+        byte[] message = new byte[receivedMessage.remaining()];
+        receivedMessage.get(message);
+        onListening(message);
+    }
+
+    /**
+     * <i><b>onListeningBatch</b></i>
+     *
+     * <pre> protected void onListeningBatch({@link MessageBatch} batch) </pre>
+     *
+     * The action to when messages are received, if the batch delivery is enabled with
+     * {@link #setBatchDelivery(int)}. The batch is reused: it is only valid during the call.
+     * By default, give each message to {@link #deliver(ByteBuffer, InetSocketAddress)}.
+     * @param batch the received messages, with their shared receive time.
+     */
+    protected void onListeningBatch(MessageBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            deliver(batch.get(i), batch.getSource(i));
+    }
+
     /**
      * <i><b>onListening</b></i>
      *
      * <pre> protected boolean onListening(byte[] receivedMassage) </pre>
      *
-     * The action to when a message is received.
+     * The action to when a message is received, called by {@link #onListening(ByteBuffer)} unless it is
+     * overridden.
      * @param receivedMessage the received message.
      */
     protected abstract void onListening(byte[] receivedMessage);
 
-}
+    /**
+     * Failure detection of a watched peer.
+     */
+    private static final class PeerHealth {
 
+        final FailureDetector detector;
+
+        /**
+         * Time of the last frame sent to the peer, in milliseconds.
+         */
+        volatile long lastSent;
+
+        PeerHealth(FailureDetector detector, long lastSent) {
+            this.detector = detector;
+            this.lastSent = lastSent;
+        }
+    }
+
+}
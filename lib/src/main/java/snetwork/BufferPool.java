@@ -0,0 +1,201 @@
+package snetwork;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte buffers reused by the receive paths of the links, so that no buffer is
+ * allocated for each received datagram.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class BufferPool {
+
+    /**
+     * Size of the buffers of the default pool.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    /**
+     * Pool used by the links if no other pool is given.
+     */
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, false, 64);
+
+    /**
+     * Capacity of the buffers.
+     */
+    private final int bufferSize;
+
+    /**
+     * True if the buffers are allocated outside of the heap.
+     */
+    private final boolean direct;
+
+    /**
+     * Maximum number of buffers kept by the pool.
+     */
+    private final int maxPooledBuffers;
+
+    /**
+     * Buffers available.
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers available.
+     */
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    /**
+     * Buffers backed by an array available, when the pool is direct.
+     */
+    private final Queue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers backed by an array available.
+     */
+    private final AtomicInteger pooledHeapBuffers = new AtomicInteger();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>BufferPool</b></i>
+     *
+     * <pre> public BufferPool(int bufferSize, boolean direct, int maxPooledBuffers) </pre>
+     *
+     * Constructor of {@link BufferPool}.
+     * @param bufferSize the capacity of the buffers, that is the maximum size of a received datagram.
+     * @param direct true to allocate the buffers outside of the heap. Direct buffers are only used in
+     *               event loop mode, the background thread mode needs heap buffers.
+     * @param maxPooledBuffers the maximum number of buffers kept by the pool.
+     * @throws IllegalArgumentException if bufferSize &lt;= 0 or maxPooledBuffers &lt; 0.
+     */
+    public BufferPool(int bufferSize, boolean direct, int maxPooledBuffers) {
+        if (bufferSize <= 0 || maxPooledBuffers < 0)
+            throw new IllegalArgumentException("Invalid pool size.");
+
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * <i><b>getDefault</b></i>
+     *
+     * <pre> public static {@link BufferPool} getDefault() </pre>
+     *
+     * @return the pool used by the links if no other pool is given.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /*******************************************/
+    /*                 Getters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getBufferSize</b></i>
+     *
+     * <pre> public int getBufferSize() </pre>
+     *
+     * @return the capacity of the buffers.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * <i><b>isDirect</b></i>
+     *
+     * <pre> public boolean isDirect() </pre>
+     *
+     * @return true if the buffers are allocated outside of the heap, false otherwise.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /*******************************************/
+    /*                 Buffers                 */
+    /*******************************************/
+
+    /**
+     * <i><b>acquire</b></i>
+     *
+     * <pre> public {@link ByteBuffer} acquire() </pre>
+     *
+     * @return a cleared buffer of the pool, or a new one if the pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+
+        pooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * <i><b>acquireHeap</b></i>
+     *
+     * <pre> public {@link ByteBuffer} acquireHeap() </pre>
+     *
+     * @return a cleared buffer backed by an array. A direct pool keeps them apart from its direct buffers.
+     */
+    public ByteBuffer acquireHeap() {
+        if (!direct)
+            return acquire();
+
+        ByteBuffer buffer = heapBuffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(bufferSize);
+
+        pooledHeapBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * <i><b>release</b></i>
+     *
+     * <pre> public void release({@link ByteBuffer} buffer) </pre>
+     *
+     * Give back a buffer to the pool. The buffer must not be used after.
+     * Buffers which do not come from this pool are ignored.
+     * @param buffer the buffer to give back.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isReadOnly())
+            return;
+
+        if (buffer.isDirect() == direct)
+            offer(buffers, pooledBuffers, buffer);
+        else if (direct)
+            offer(heapBuffers, pooledHeapBuffers, buffer);
+    }
+
+    /**
+     * <i><b>offer</b></i>
+     *
+     * <pre> private void offer({@link Queue}&lt;{@link ByteBuffer}&gt; queue, {@link AtomicInteger} count, {@link ByteBuffer} buffer) </pre>
+     *
+     * Keep a buffer if the queue holds less than the maximum number of buffers.
+     * @param queue the available buffers of the kind of the buffer.
+     * @param count the number of buffers of the queue.
+     * @param buffer the buffer to give back.
+     */
+    private void offer(Queue<ByteBuffer> queue, AtomicInteger count, ByteBuffer buffer) {
+        if (count.incrementAndGet() > maxPooledBuffers) {
+            count.decrementAndGet();
+            return;
+        }
+
+        queue.add(buffer);
+    }
+
+}
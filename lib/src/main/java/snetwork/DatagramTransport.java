@@ -0,0 +1,45 @@
+package snetwork;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Default {@link Transport}: the payload frames are datagrams of the socket of the link, received by the link
+ * with its control frames.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+final class DatagramTransport implements Transport {
+
+    private final AbstractP2PLink link;
+
+    DatagramTransport(AbstractP2PLink link) {
+        this.link = link;
+    }
+
+    @Override
+    public void bind(InetSocketAddress local, Listener listener) {
+        /* The socket is bound and read by the link */
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return link.getPipeline().getMaxDatagramSize();
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame, InetSocketAddress destination) throws IOException {
+        return link.writeDatagram(frame, destination);
+    }
+
+    @Override
+    public void close(InetSocketAddress peer) {
+        /* Nothing is kept for a peer */
+    }
+
+    @Override
+    public void close() {
+        /* The socket is closed by the link */
+    }
+
+}
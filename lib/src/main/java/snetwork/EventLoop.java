@@ -0,0 +1,307 @@
+package snetwork;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Single thread driving a {@link Selector} and the links registered with it.
+ * Every registered link is read, searched and closed on this thread.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+final class EventLoop implements Runnable {
+
+    /**
+     * Selector of the registered channels.
+     */
+    private final Selector selector;
+
+    /**
+     * Thread running the loop.
+     */
+    private final Thread thread;
+
+    /**
+     * Tasks submitted from any thread, run on the loop thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Delayed tasks, only accessed by the loop thread.
+     */
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+
+    /**
+     * False once the loop has been asked to stop.
+     */
+    private volatile boolean running = true;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>EventLoop</b></i>
+     *
+     * <pre> EventLoop({@link String} name) </pre>
+     *
+     * Constructor of {@link EventLoop}. The loop thread is started immediately.
+     * @param name the name of the loop thread.
+     * @throws IOException if the selector cannot be opened.
+     */
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /*******************************************/
+    /*                  Tasks                  */
+    /*******************************************/
+
+    /**
+     * <i><b>inEventLoop</b></i>
+     *
+     * <pre> boolean inEventLoop() </pre>
+     *
+     * @return true if the caller runs on the loop thread, false otherwise.
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * <i><b>execute</b></i>
+     *
+     * <pre> void execute({@link Runnable} task) </pre>
+     *
+     * Run the task on the loop thread.
+     * @param task the task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * <i><b>executeAndWait</b></i>
+     *
+     * <pre> void executeAndWait({@link Runnable} task) </pre>
+     *
+     * Run the task on the loop thread and wait for its end.
+     * The task is run directly if the caller is already on the loop thread.
+     * @param task the task to run.
+     */
+    void executeAndWait(Runnable task) {
+        if (inEventLoop() || !running) {
+            task.run();
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        execute(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * <i><b>schedule</b></i>
+     *
+     * <pre> void schedule({@link Runnable} task, long delay) </pre>
+     *
+     * Run the task on the loop thread after the given delay.
+     * @param task the task to run.
+     * @param delay the delay in milliseconds.
+     */
+    void schedule(Runnable task, long delay) {
+        long deadline = System.currentTimeMillis() + Math.max(0, delay);
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, task)));
+    }
+
+    /**
+     * <i><b>register</b></i>
+     *
+     * <pre> {@link SelectionKey} register({@link SelectableChannel} channel, {@link Runnable} onReadable) </pre>
+     *
+     * Register a non-blocking channel with no interest. Must be called on the loop thread.
+     * @param channel the channel to register.
+     * @param onReadable the action called on the loop thread when the channel is readable.
+     * @return the selection key of the channel.
+     * @throws ClosedChannelException if the channel is closed.
+     */
+    SelectionKey register(SelectableChannel channel, Runnable onReadable) throws ClosedChannelException {
+        return channel.register(selector, 0, onReadable);
+    }
+
+    /*******************************************/
+    /*                   Loop                  */
+    /*******************************************/
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long wait = nextScheduledDelay();
+                if (!tasks.isEmpty())
+                    selector.selectNow();
+                else if (wait < 0)
+                    selector.select();
+                else if (wait == 0)
+                    selector.selectNow();
+                else
+                    selector.select(wait);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                break;
+            }
+
+            processSelectedKeys();
+            runTasks();
+            runScheduledTasks();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * <i><b>processSelectedKeys</b></i>
+     *
+     * <pre> private void processSelectedKeys() </pre>
+     *
+     * Call the readable action of every selected key.
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (key.isValid() && key.isReadable())
+                runSafely((Runnable) key.attachment());
+        }
+    }
+
+    /**
+     * <i><b>runTasks</b></i>
+     *
+     * <pre> private void runTasks() </pre>
+     *
+     * Run all the tasks submitted until now.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            runSafely(task);
+    }
+
+    /**
+     * <i><b>runScheduledTasks</b></i>
+     *
+     * <pre> private void runScheduledTasks() </pre>
+     *
+     * Run the delayed tasks whose deadline is reached.
+     */
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline <= now)
+            runSafely(scheduledTasks.poll().task);
+    }
+
+    /**
+     * <i><b>nextScheduledDelay</b></i>
+     *
+     * <pre> private long nextScheduledDelay() </pre>
+     *
+     * @return the delay before the next delayed task, -1 if there is none.
+     */
+    private long nextScheduledDelay() {
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null)
+            return -1;
+        return Math.max(0, next.deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * <i><b>runSafely</b></i>
+     *
+     * <pre> private void runSafely({@link Runnable} task) </pre>
+     *
+     * Run a task without letting an exception kill the loop.
+     * @param task the task to run.
+     */
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*******************************************/
+    /*                   End                   */
+    /*******************************************/
+
+    /**
+     * <i><b>shutdown</b></i>
+     *
+     * <pre> void shutdown() </pre>
+     *
+     * Stop the loop and wait for the end of its thread.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        if (inEventLoop())
+            return;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Task run on the loop thread once its deadline is reached.
+     */
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+
+        private final long deadline;
+
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package snetwork;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed group of event loop threads shared by any number of {@link AbstractP2PLink}.
+ * Each link is assigned to one loop of the group when it starts, so a single thread can
+ * listen, search peers and end connections for many links.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class EventLoopGroup {
+
+    /**
+     * Loops of the group.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * Index of the next loop to assign.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>EventLoopGroup</b></i>
+     *
+     * <pre> public EventLoopGroup() </pre>
+     *
+     * Constructor of {@link EventLoopGroup} with one loop per available processor.
+     */
+    public EventLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * <i><b>EventLoopGroup</b></i>
+     *
+     * <pre> public EventLoopGroup(int threads) </pre>
+     *
+     * Constructor of {@link EventLoopGroup}.
+     * @param threads the number of loop threads.
+     * @throws IllegalArgumentException if threads &lt;= 0.
+     * @throws UncheckedIOException if a selector cannot be opened.
+     */
+    public EventLoopGroup(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("An event loop group needs at least one thread.");
+
+        loops = new EventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++)
+                loops[i] = new EventLoop("snetwork-loop-" + i);
+        } catch (IOException e) {
+            shutdown();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*******************************************/
+    /*                  Loops                  */
+    /*******************************************/
+
+    /**
+     * <i><b>next</b></i>
+     *
+     * <pre> {@link EventLoop} next() </pre>
+     *
+     * @return the loop to assign to a new link, in round robin.
+     */
+    EventLoop next() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * <i><b>getThreadCount</b></i>
+     *
+     * <pre> public int getThreadCount() </pre>
+     *
+     * @return the number of loop threads.
+     */
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * <i><b>shutdown</b></i>
+     *
+     * <pre> public void shutdown() </pre>
+     *
+     * Stop all the loops of the group. The links must be stopped before.
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            if (loop != null)
+                loop.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package snetwork;
+
+/**
+ * Phi accrual failure detector: instead of a fixed timeout, it tells how unlikely the silence of a peer is, given
+ * the times between the frames received from it so far.
+ * <p>
+ * The suspicion level phi is -log10 of the probability that a frame arrives later than now, estimated with a
+ * normal distribution of the recent inter-arrival times. A phi of 8 means that a live peer stays silent that long
+ * once in 10^8 times.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class FailureDetector {
+
+    /**
+     * Default number of inter-arrival times kept.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    /**
+     * Most recent inter-arrival times in milliseconds, as a ring.
+     */
+    private final long[] intervals;
+
+    /**
+     * Smallest standard deviation used, so that very regular arrivals do not make phi jump on a small delay.
+     */
+    private final double minStdDeviation;
+
+    /**
+     * Silence in milliseconds accepted on top of the mean inter-arrival time.
+     */
+    private final long acceptablePause;
+
+    private int count;
+
+    private int next;
+
+    private double sum;
+
+    private double squaresSum;
+
+    /**
+     * Time of the last arrival in milliseconds.
+     */
+    private long lastArrival;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>FailureDetector</b></i>
+     *
+     * <pre> public FailureDetector(long expectedInterval, long acceptablePause, long now) </pre>
+     *
+     * Constructor of {@link FailureDetector} keeping {@link #DEFAULT_WINDOW_SIZE} inter-arrival times.
+     * @param expectedInterval the expected time between two frames in milliseconds, used until frames arrive.
+     * @param acceptablePause the silence in milliseconds accepted on top of the mean inter-arrival time.
+     * @param now the current time in milliseconds, counted as the first arrival.
+     */
+    public FailureDetector(long expectedInterval, long acceptablePause, long now) {
+        this(expectedInterval, acceptablePause, now, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * <i><b>FailureDetector</b></i>
+     *
+     * <pre> public FailureDetector(long expectedInterval, long acceptablePause, long now, int windowSize) </pre>
+     *
+     * Constructor of {@link FailureDetector}.
+     * @param expectedInterval the expected time between two frames in milliseconds, used until frames arrive.
+     * @param acceptablePause the silence in milliseconds accepted on top of the mean inter-arrival time.
+     * @param now the current time in milliseconds, counted as the first arrival.
+     * @param windowSize the number of inter-arrival times kept.
+     */
+    public FailureDetector(long expectedInterval, long acceptablePause, long now, int windowSize) {
+        if (expectedInterval <= 0)
+            throw new IllegalArgumentException("The expected interval must be positive.");
+        if (acceptablePause < 0)
+            throw new IllegalArgumentException("The acceptable pause cannot be negative.");
+        if (windowSize < 2)
+            throw new IllegalArgumentException("The window must keep at least 2 intervals.");
+
+        this.intervals = new long[windowSize];
+        this.minStdDeviation = Math.max(1, expectedInterval / 4.0);
+        this.acceptablePause = acceptablePause;
+        this.lastArrival = now;
+
+        /* Start with a spread around the expected interval */
+        long deviation = expectedInterval / 4;
+        add(expectedInterval - deviation);
+        add(expectedInterval + deviation);
+    }
+
+    /*******************************************/
+    /*                Detection                */
+    /*******************************************/
+
+    /**
+     * <i><b>heartbeat</b></i>
+     *
+     * <pre> public synchronized void heartbeat(long now) </pre>
+     *
+     * Record the arrival of a frame from the peer.
+     * @param now the current time in milliseconds.
+     */
+    public synchronized void heartbeat(long now) {
+        long interval = now - lastArrival;
+        lastArrival = now;
+        if (interval > 0)
+            add(interval);
+    }
+
+    /**
+     * <i><b>phi</b></i>
+     *
+     * <pre> public synchronized double phi(long now) </pre>
+     *
+     * @param now the current time in milliseconds.
+     * @return the suspicion level of the peer, 0 right after an arrival, growing with the silence.
+     */
+    public synchronized double phi(long now) {
+        double mean = sum / count + acceptablePause;
+        double variance = squaresSum / count - (sum / count) * (sum / count);
+        double deviation = Math.max(minStdDeviation, Math.sqrt(Math.max(0, variance)));
+
+        /* Logistic approximation of the cumulative normal distribution */
+        double y = (now - lastArrival - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - lastArrival > mean)
+            return -Math.log10(e / (1 + e));
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+
+    /**
+     * <i><b>getLastArrival</b></i>
+     *
+     * <pre> public synchronized long getLastArrival() </pre>
+     *
+     * @return the time of the last arrival in milliseconds.
+     */
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * <i><b>add</b></i>
+     *
+     * <pre> private void add(long interval) </pre>
+     *
+     * Add an inter-arrival time to the window, replacing the oldest one if the window is full.
+     * @param interval the time in milliseconds.
+     */
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            squaresSum -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        squaresSum += (double) interval * interval;
+    }
+
+}
@@ -0,0 +1,715 @@
+package snetwork;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File transfers of a link, with {@link FrameHeader#FILE} frames. The sender memory-maps the file and copies each
+ * chunk from the mapped region straight into its frame. The receiver writes the chunks at their offsets into
+ * a target mapped at its final size.
+ * <p>
+ * The sender offers the file, the receiver answers with the bitmap of the chunks it has, and the sender sends the
+ * missing ones, round after round. The bitmap is saved next to the target every few seconds and when the peer is
+ * closed, away from the thread receiving the chunks, so a transfer interrupted by a lost connection or a restart
+ * resumes where it stopped when the same file is offered again for the same target.
+ * <pre>
+ * OFFER  | id (4) | size (8) | chunk size (4) | name (UTF-8) |
+ * CHUNK  | id (4) | index (4) | data |
+ * STATUS | id (4) | state (1) | first missing chunk (4) | bitmap of the next chunks |
+ * </pre>
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+final class FileTransfer {
+
+    /**
+     * Flags of an offer, also asking the status of the transfer.
+     */
+    static final int OFFER = 0;
+
+    /**
+     * Flags of a chunk of the file.
+     */
+    static final int CHUNK = 1;
+
+    /**
+     * Flags of the answer of the receiver to an offer.
+     */
+    static final int STATUS = 2;
+
+    /**
+     * Suffix of the file keeping the bitmap of a partial transfer next to its target.
+     */
+    static final String PART_SUFFIX = ".part";
+
+    /**
+     * Time in milliseconds waited for the answer to an offer.
+     */
+    static final long STATUS_TIMEOUT = 500;
+
+    /**
+     * Number of rounds without answer or without progress after which a transfer fails.
+     */
+    static final int MAX_IDLE_ROUNDS = 10;
+
+    /**
+     * Maximum number of chunks sent in a round, so that a round does not overflow the receive buffer of the peer.
+     */
+    static final int CHUNKS_PER_ROUND = 128;
+
+    /**
+     * Maximum size of a chunk frame, reached with the transports whose frames are larger than a datagram.
+     */
+    static final int MAX_CHUNK_FRAME_SIZE = 64 << 10;
+
+    /**
+     * Time in milliseconds between two saves of the bitmap of a partial file.
+     */
+    static final long SAVE_INTERVAL = 5000;
+
+    /**
+     * Number of finished transfers remembered, to answer the offers repeated after the last status was lost.
+     */
+    private static final int MAX_FINISHED = 64;
+
+    private static final int REFUSED = 0;
+
+    private static final int PROGRESS = 1;
+
+    private static final int COMPLETE = 2;
+
+    private static final int OFFER_HEADER_SIZE = 4 + 8 + 4;
+
+    private static final int CHUNK_HEADER_SIZE = 4 + 4;
+
+    private static final int STATUS_HEADER_SIZE = 4 + 1 + 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Threads flushing the partial files and saving their bitmaps, so the timer thread never waits for the disk.
+     */
+    private static final ExecutorService SAVERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "snetwork-file-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AbstractP2PLink link;
+
+    /**
+     * Id of the next sent file, starting at random so that a restarted sender does not reuse the ids of a receiver.
+     */
+    private final AtomicInteger nextId = new AtomicInteger(new Random().nextInt());
+
+    /**
+     * Files being sent, by id.
+     */
+    private final ConcurrentMap<Integer, Outgoing> outgoing = new ConcurrentHashMap<>();
+
+    /**
+     * Files being received, by sender and id.
+     */
+    private final ConcurrentMap<Key, Incoming> incoming = new ConcurrentHashMap<>();
+
+    /**
+     * Files received lately, so that a repeated offer is answered as complete.
+     */
+    private final Map<Key, Boolean> finished = Collections.synchronizedMap(new LinkedHashMap<Key, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > MAX_FINISHED;
+        }
+    });
+
+    FileTransfer(AbstractP2PLink link) {
+        this.link = link;
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> boolean send({@link Path} file, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a file and wait until the peer has all of it.
+     * @param file the file to send, up to 2 GB.
+     * @param destination the address and the port of the peer.
+     * @return true if the peer has received the whole file, false if it refused the file or stopped answering.
+     * @throws IOException if the file cannot be read.
+     */
+    boolean send(Path file, InetSocketAddress destination) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("The file is larger than 2 GB.");
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        long size = map.capacity();
+        int frameSize = Math.min(link.getTransport().getMaxFrameSize(), MAX_CHUNK_FRAME_SIZE);
+        int chunkSize = frameSize - FrameHeader.SIZE - CHUNK_HEADER_SIZE;
+        int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+
+        int id = nextId.getAndIncrement();
+        byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(OFFER_HEADER_SIZE + name.length);
+        offer.putInt(id).putLong(size).putInt(chunkSize).put(name).flip();
+
+        Outgoing transfer = new Outgoing(destination);
+        outgoing.put(id, transfer);
+        try {
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            int silentRounds = 0;
+            int stalledRounds = 0;
+            long progress = -1;
+
+            while (!transfer.closed && silentRounds < MAX_IDLE_ROUNDS && stalledRounds < MAX_IDLE_ROUNDS) {
+                transfer.statuses.clear();
+                link.sendFileFrame(OFFER, offer.duplicate(), EMPTY, destination);
+
+                ByteBuffer status = transfer.statuses.poll(STATUS_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (status == null) {
+                    silentRounds++;
+                    continue;
+                }
+                silentRounds = 0;
+
+                int state = status.get();
+                if (state == REFUSED)
+                    return false;
+                if (state == COMPLETE)
+                    return true;
+
+                int from = status.getInt();
+                BitSet received = BitSet.valueOf(status);
+                long receivedChunks = (long) from + received.cardinality();
+                if (receivedChunks > progress) {
+                    progress = receivedChunks;
+                    stalledRounds = 0;
+                } else {
+                    stalledRounds++;
+                }
+
+                /* The chunks after the bitmap are missing */
+                int sent = 0;
+                for (int index = from; index < chunkCount && sent < CHUNKS_PER_ROUND; index++) {
+                    if (received.get(index - from))
+                        continue;
+
+                    int offset = index * chunkSize;
+                    ByteBuffer chunk = map.duplicate();
+                    chunk.position(offset).limit((int) Math.min(size, (long) offset + chunkSize));
+
+                    chunkHeader.clear();
+                    chunkHeader.putInt(id).putInt(index).flip();
+                    link.sendFileFrame(CHUNK, chunkHeader, chunk, destination);
+                    sent++;
+                }
+            }
+            return false;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            outgoing.remove(id);
+        }
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>receive</b></i>
+     *
+     * <pre> void receive(int kind, {@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Handle a {@link FrameHeader#FILE} frame.
+     * @param kind the flags of the frame.
+     * @param message the message of the frame, after its header.
+     * @param source the address of the peer.
+     */
+    void receive(int kind, ByteBuffer message, InetSocketAddress source) {
+        if (message.remaining() < 4)
+            return;
+
+        int id = message.getInt();
+        switch (kind) {
+            case OFFER:
+                if (message.remaining() >= OFFER_HEADER_SIZE - 4)
+                    receiveOffer(id, message, source);
+                break;
+
+            case CHUNK:
+                if (message.remaining() >= CHUNK_HEADER_SIZE - 4)
+                    receiveChunk(id, message, source);
+                break;
+
+            case STATUS:
+                Outgoing transfer = outgoing.get(id);
+                if (transfer != null && transfer.destination.equals(source)) {
+                    ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                    copy.put(message).flip();
+                    transfer.statuses.offer(copy);
+                }
+                break;
+        }
+    }
+
+    /**
+     * <i><b>receiveOffer</b></i>
+     *
+     * <pre> private void receiveOffer(int id, {@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Open the target of a new transfer, then answer with the status of the transfer.
+     * @param id the id of the transfer.
+     * @param message the offer, after the id.
+     * @param source the address of the peer.
+     */
+    private void receiveOffer(int id, ByteBuffer message, InetSocketAddress source) {
+        Key key = new Key(source, id);
+        Incoming transfer = incoming.get(key);
+
+        /* The sender has not received the last status */
+        if (transfer == null && finished.containsKey(key)) {
+            sendStatus(id, COMPLETE, null, source);
+            return;
+        }
+
+        if (transfer == null) {
+            long size = message.getLong();
+            int chunkSize = message.getInt();
+            String name = StandardCharsets.UTF_8.decode(message).toString();
+
+            Path target = size < 0 || size > Integer.MAX_VALUE || chunkSize <= 0 ? null
+                    : link.onFileOffered(name, size, source);
+            if (target == null) {
+                sendStatus(id, REFUSED, null, source);
+                return;
+            }
+
+            try {
+                transfer = Incoming.open(target, size, chunkSize);
+            } catch (IOException e) {
+                e.printStackTrace();
+                sendStatus(id, REFUSED, null, source);
+                return;
+            }
+            incoming.put(key, transfer);
+            scheduleSave(key, transfer);
+        }
+
+        if (transfer.isComplete())
+            finish(key, transfer);
+        sendStatus(id, transfer.isComplete() ? COMPLETE : PROGRESS, transfer, source);
+    }
+
+    /**
+     * <i><b>scheduleSave</b></i>
+     *
+     * <pre> private void scheduleSave({@link Key} key, {@link Incoming} transfer) </pre>
+     *
+     * Save the bitmap of a partial file every {@link #SAVE_INTERVAL} milliseconds, until it is finished or its
+     * peer is closed.
+     * @param key the sender and the id of the transfer.
+     * @param transfer the transfer.
+     */
+    private void scheduleSave(Key key, Incoming transfer) {
+        transfer.saveTask = LinkPipeline.schedule(() -> SAVERS.execute(() -> {
+            if (incoming.get(key) != transfer)
+                return;
+            transfer.save();
+            scheduleSave(key, transfer);
+        }), SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <i><b>receiveChunk</b></i>
+     *
+     * <pre> private void receiveChunk(int id, {@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Write a chunk at its offset in the target.
+     * @param id the id of the transfer.
+     * @param message the chunk, after the id.
+     * @param source the address of the peer.
+     */
+    private void receiveChunk(int id, ByteBuffer message, InetSocketAddress source) {
+        Key key = new Key(source, id);
+        Incoming transfer = incoming.get(key);
+        if (transfer == null)
+            return;
+
+        int index = message.getInt();
+        if (transfer.write(index, message) && transfer.isComplete())
+            finish(key, transfer);
+    }
+
+    /**
+     * <i><b>finish</b></i>
+     *
+     * <pre> private void finish({@link Key} key, {@link Incoming} transfer) </pre>
+     *
+     * Flush a complete target, delete its bitmap, forget the transfer and give the target to the application, once.
+     * @param key the sender and the id of the transfer.
+     * @param transfer the complete transfer.
+     */
+    private void finish(Key key, Incoming transfer) {
+        if (!transfer.finish())
+            return;
+
+        finished.put(key, Boolean.TRUE);
+        incoming.remove(key, transfer);
+        if (transfer.saveTask != null)
+            transfer.saveTask.cancel(false);
+
+        try {
+            Files.deleteIfExists(transfer.part);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        link.onFileReceived(transfer.target, key.source);
+    }
+
+    /**
+     * <i><b>sendStatus</b></i>
+     *
+     * <pre> private void sendStatus(int id, int state, {@link Incoming} transfer, {@link InetSocketAddress} destination) </pre>
+     *
+     * Answer an offer with the first missing chunk and the bitmap of the chunks after it, as much of it as fits
+     * in a datagram.
+     * @param id the id of the transfer.
+     * @param state the state of the transfer.
+     * @param transfer the transfer, null if it is refused.
+     * @param destination the address of the peer.
+     */
+    private void sendStatus(int id, int state, Incoming transfer, InetSocketAddress destination) {
+        int from = 0;
+        byte[] bitmap = new byte[0];
+        if (transfer != null && state == PROGRESS) {
+            int maxBytes = link.getPipeline().getMaxDatagramSize() - FrameHeader.SIZE - STATUS_HEADER_SIZE;
+            synchronized (transfer) {
+                from = transfer.received.nextClearBit(0);
+                int bits = Math.min(transfer.chunkCount - from, maxBytes * 8);
+                bitmap = transfer.received.get(from, from + bits).toByteArray();
+            }
+        }
+
+        ByteBuffer status = ByteBuffer.allocate(STATUS_HEADER_SIZE);
+        status.putInt(id).put((byte) state).putInt(from).flip();
+        link.sendFileFrame(STATUS, status, ByteBuffer.wrap(bitmap), destination);
+    }
+
+    /*******************************************/
+    /*               Connection                */
+    /*******************************************/
+
+    /**
+     * <i><b>peerClosed</b></i>
+     *
+     * <pre> void peerClosed({@link InetSocketAddress} peer) </pre>
+     *
+     * Stop the transfers with a peer. The bitmaps of the partial files are saved to resume them later.
+     * @param peer the address of the peer.
+     */
+    void peerClosed(InetSocketAddress peer) {
+        for (Iterator<Map.Entry<Key, Incoming>> it = incoming.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Incoming> entry = it.next();
+            if (entry.getKey().source.equals(peer)) {
+                Incoming transfer = entry.getValue();
+                if (transfer.saveTask != null)
+                    transfer.saveTask.cancel(false);
+                if (!transfer.isComplete())
+                    transfer.save();
+                it.remove();
+            }
+        }
+
+        synchronized (finished) {
+            finished.keySet().removeIf(key -> key.source.equals(peer));
+        }
+
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.destination.equals(peer))
+                transfer.closed = true;
+        }
+    }
+
+    /*******************************************/
+    /*                Transfers                */
+    /*******************************************/
+
+    /**
+     * File being sent.
+     */
+    private static final class Outgoing {
+
+        final InetSocketAddress destination;
+
+        /**
+         * Answers of the receiver, from the state to the end of the bitmap.
+         */
+        final BlockingQueue<ByteBuffer> statuses = new LinkedBlockingQueue<>();
+
+        volatile boolean closed;
+
+        Outgoing(InetSocketAddress destination) {
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * File being received, mapped at its final size.
+     */
+    private static final class Incoming {
+
+        final Path target;
+
+        /**
+         * File keeping the size, the chunk size and the bitmap of the transfer while it is partial.
+         */
+        final Path part;
+
+        final long size;
+
+        final int chunkSize;
+
+        final int chunkCount;
+
+        final BitSet received;
+
+        /**
+         * Periodic save of the bitmap, null until it is scheduled.
+         */
+        volatile ScheduledFuture<?> saveTask;
+
+        private MappedByteBuffer map;
+
+        /**
+         * True if chunks were received since the last save.
+         */
+        private boolean dirty;
+
+        private Incoming(Path target, long size, int chunkSize, BitSet received, MappedByteBuffer map) {
+            this.target = target;
+            this.part = partOf(target);
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.received = received;
+            this.map = map;
+        }
+
+        /**
+         * <i><b>open</b></i>
+         *
+         * <pre> static {@link Incoming} open({@link Path} target, long size, int chunkSize) </pre>
+         *
+         * Map the target at its final size, keeping its content if a bitmap of the same transfer is next to it.
+         * @param target the file to write.
+         * @param size the size of the file.
+         * @param chunkSize the size of the chunks.
+         * @return the transfer.
+         * @throws IOException if the target cannot be opened.
+         */
+        static Incoming open(Path target, long size, int chunkSize) throws IOException {
+            BitSet received = readPart(partOf(target), size, chunkSize);
+
+            MappedByteBuffer map;
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                /* A bitmap is only valid with the target it was saved with */
+                if (received == null || channel.size() != size) {
+                    received = new BitSet();
+                    channel.truncate(0);
+                }
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            return new Incoming(target, size, chunkSize, received, map);
+        }
+
+        /**
+         * <i><b>readPart</b></i>
+         *
+         * <pre> private static {@link BitSet} readPart({@link Path} part, long size, int chunkSize) </pre>
+         *
+         * @param part the file of the bitmap.
+         * @param size the size of the offered file.
+         * @param chunkSize the size of the offered chunks.
+         * @return the saved bitmap, null if there is none or if it belongs to another transfer.
+         */
+        private static BitSet readPart(Path part, long size, int chunkSize) {
+            if (!Files.isRegularFile(part))
+                return null;
+
+            try {
+                ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(part));
+                if (saved.remaining() < 8 + 4 || saved.getLong() != size || saved.getInt() != chunkSize)
+                    return null;
+                return BitSet.valueOf(saved);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * <i><b>partOf</b></i>
+         *
+         * <pre> private static {@link Path} partOf({@link Path} target) </pre>
+         *
+         * @param target the file to write.
+         * @return the file of its bitmap.
+         */
+        private static Path partOf(Path target) {
+            Path name = Paths.get(target.getFileName() + PART_SUFFIX);
+            Path parent = target.getParent();
+            return parent == null ? name : parent.resolve(name);
+        }
+
+        /**
+         * <i><b>write</b></i>
+         *
+         * <pre> synchronized boolean write(int index, {@link ByteBuffer} data) </pre>
+         *
+         * Write a chunk at its offset.
+         * @param index the index of the chunk.
+         * @param data the content of the chunk.
+         * @return true if the chunk is new and valid, false otherwise.
+         */
+        synchronized boolean write(int index, ByteBuffer data) {
+            if (map == null || index < 0 || index >= chunkCount || received.get(index))
+                return false;
+
+            long offset = (long) index * chunkSize;
+            if (data.remaining() != Math.min(chunkSize, size - offset))
+                return false;
+
+            ByteBuffer region = map.duplicate();
+            region.position((int) offset);
+            region.put(data);
+            received.set(index);
+            dirty = true;
+            return true;
+        }
+
+        /**
+         * <i><b>isComplete</b></i>
+         *
+         * <pre> synchronized boolean isComplete() </pre>
+         *
+         * @return true if all the chunks are received.
+         */
+        synchronized boolean isComplete() {
+            return received.nextClearBit(0) >= chunkCount;
+        }
+
+        /**
+         * <i><b>save</b></i>
+         *
+         * <pre> void save() </pre>
+         *
+         * Flush the received chunks, then save the bitmap, so that the bitmap never counts a chunk not on disk.
+         * The chunks keep being written during the flush: only the chunks of the bitmap taken before it are saved.
+         */
+        void save() {
+            MappedByteBuffer flushed;
+            byte[] bitmap;
+            synchronized (this) {
+                if (map == null || !dirty)
+                    return;
+                flushed = map;
+                bitmap = received.toByteArray();
+                dirty = false;
+            }
+
+            flushed.force();
+            ByteBuffer saved = ByteBuffer.allocate(8 + 4 + bitmap.length);
+            saved.putLong(size).putInt(chunkSize).put(bitmap);
+
+            synchronized (this) {
+                /* A finished transfer has no bitmap anymore */
+                if (map == null)
+                    return;
+                try {
+                    Files.write(part, saved.array());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * <i><b>finish</b></i>
+         *
+         * <pre> synchronized boolean finish() </pre>
+         *
+         * Flush the target and release its mapping.
+         * @return true the first time, false if the transfer is already finished.
+         */
+        synchronized boolean finish() {
+            if (map == null)
+                return false;
+
+            map.force();
+            map = null;
+            return true;
+        }
+    }
+
+    /**
+     * Sender and id of a received file.
+     */
+    private static final class Key {
+
+        final InetSocketAddress source;
+
+        final int id;
+
+        Key(InetSocketAddress source, int id) {
+            this.source = source;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return id == key.id && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, id);
+        }
+    }
+
+}
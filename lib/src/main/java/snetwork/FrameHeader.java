@@ -0,0 +1,143 @@
+package snetwork;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header of the datagrams sent by the links: 2 bytes before the message.
+ * <pre>
+ * | version (4 bits) | type (4 bits) | flags (8 bits) |
+ * </pre>
+ * The first byte alone tells the kind of a datagram, so that the links classify the control frames without
+ * comparing their content with the connection and end messages.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class FrameHeader {
+
+    /**
+     * Version of the header. The datagrams of another version are ignored.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes.
+     */
+    public static final int SIZE = 2;
+
+    /**
+     * Message of the application, given to the pipeline.
+     */
+    public static final int DATA = 0;
+
+    /**
+     * Connection message of a sender searching a peer.
+     */
+    public static final int CONNECT = 1;
+
+    /**
+     * Answer of a receiver accepting a connection.
+     */
+    public static final int ACCEPT = 2;
+
+    /**
+     * End of the connection.
+     */
+    public static final int END = 3;
+
+    /**
+     * Empty frame telling the peer that the link is alive, sent when no other frame has been sent for a while.
+     */
+    public static final int HEARTBEAT = 4;
+
+    /**
+     * Frame of a file transfer, outside the pipeline. Its flags tell the kind of the frame: offer, chunk or status.
+     */
+    public static final int FILE = 5;
+
+    /**
+     * Highest frame type.
+     */
+    public static final int MAX_TYPE = 0x0F;
+
+    private FrameHeader() {
+    }
+
+    /**
+     * <i><b>getType</b></i>
+     *
+     * <pre> public static int getType({@link ByteBuffer} frame) </pre>
+     *
+     * @param frame the received datagram, from its position to its limit. The buffer is not modified.
+     * @return the type of the frame, -1 if the datagram is too short or of another version.
+     */
+    public static int getType(ByteBuffer frame) {
+        if (frame.remaining() < SIZE)
+            return -1;
+
+        int first = frame.get(frame.position()) & 0xFF;
+        if (first >>> 4 != VERSION)
+            return -1;
+        return first & MAX_TYPE;
+    }
+
+    /**
+     * <i><b>getFlags</b></i>
+     *
+     * <pre> public static int getFlags({@link ByteBuffer} frame) </pre>
+     *
+     * @param frame the received datagram, from its position to its limit, of a valid type.
+     * @return the flags of the frame.
+     */
+    public static int getFlags(ByteBuffer frame) {
+        return frame.get(frame.position() + 1) & 0xFF;
+    }
+
+    /**
+     * <i><b>skip</b></i>
+     *
+     * <pre> public static {@link ByteBuffer} skip({@link ByteBuffer} frame) </pre>
+     *
+     * Move the position of a frame after its header.
+     * @param frame the received datagram.
+     * @return the frame, positioned on its message.
+     */
+    public static ByteBuffer skip(ByteBuffer frame) {
+        frame.position(frame.position() + SIZE);
+        return frame;
+    }
+
+    /**
+     * <i><b>write</b></i>
+     *
+     * <pre> public static void write({@link ByteBuffer} frame, int type, int flags) </pre>
+     *
+     * Write a header at the position of a buffer.
+     * @param frame the buffer.
+     * @param type the type of the frame.
+     * @param flags the flags of the frame.
+     */
+    public static void write(ByteBuffer frame, int type, int flags) {
+        if (type < 0 || type > MAX_TYPE)
+            throw new IllegalArgumentException("Unknown frame type: " + type);
+
+        frame.put((byte) (VERSION << 4 | type));
+        frame.put((byte) flags);
+    }
+
+    /**
+     * <i><b>frame</b></i>
+     *
+     * <pre> public static {@link ByteBuffer} frame(int type, byte[] message) </pre>
+     *
+     * @param type the type of the frame.
+     * @param message the message.
+     * @return a new buffer with a header followed by the message, ready to be sent.
+     */
+    public static ByteBuffer frame(int type, byte[] message) {
+        ByteBuffer frame = ByteBuffer.allocate(SIZE + message.length);
+        write(frame, type, 0);
+        frame.put(message);
+        frame.flip();
+        return frame;
+    }
+
+}
@@ -0,0 +1,409 @@
+package snetwork;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of an {@link AbstractP2PLink}: datagrams and bytes received and sent, rejected and truncated datagrams,
+ * send failures and time spent in {@code onListening}.
+ * <p>
+ * The counters are striped ({@link LongAdder}) so that the threads of the link do not contend on them.
+ * They can be read with {@link #getSnapshot()}, or with JMX through {@link LinkMetricsJmx}.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class LinkMetrics implements LinkMetricsMXBean {
+
+    /**
+     * Number of buckets of the handler time histogram. The bucket i counts the times in [2^(i-1), 2^i[ nanoseconds.
+     */
+    public static final int HANDLER_TIME_BUCKETS = 40;
+
+    private final LongAdder packetsIn = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder packetsOut = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder rejectedPackets = new LongAdder();
+
+    private final LongAdder truncatedPackets = new LongAdder();
+
+    private final LongAdder receiveFailures = new LongAdder();
+
+    private final LongAdder sendFailures = new LongAdder();
+
+    private final LongAdder[] handlerTimes = new LongAdder[HANDLER_TIME_BUCKETS];
+
+    private final LongAccumulator maxHandlerTime = new LongAccumulator(Math::max, 0);
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>LinkMetrics</b></i>
+     *
+     * <pre> LinkMetrics() </pre>
+     *
+     * Constructor of {@link LinkMetrics}.
+     */
+    LinkMetrics() {
+        for (int i = 0; i < handlerTimes.length; i++)
+            handlerTimes[i] = new LongAdder();
+    }
+
+    /*******************************************/
+    /*                Recording                */
+    /*******************************************/
+
+    /**
+     * <i><b>recordReceived</b></i>
+     *
+     * <pre> void recordReceived(int length, int bufferSize) </pre>
+     *
+     * Count a received datagram. A datagram filling the whole buffer is counted as truncated, since the socket
+     * silently drops the bytes which do not fit.
+     * @param length the length of the datagram.
+     * @param bufferSize the size of the receive buffer.
+     */
+    void recordReceived(int length, int bufferSize) {
+        packetsIn.increment();
+        bytesIn.add(length);
+        if (length >= bufferSize)
+            truncatedPackets.increment();
+    }
+
+    /**
+     * <i><b>recordSent</b></i>
+     *
+     * <pre> void recordSent(int length) </pre>
+     *
+     * Count a sent datagram.
+     * @param length the length of the datagram.
+     */
+    void recordSent(int length) {
+        packetsOut.increment();
+        bytesOut.add(length);
+    }
+
+    /**
+     * <i><b>recordRejected</b></i>
+     *
+     * <pre> void recordRejected() </pre>
+     *
+     * Count a datagram ignored because of its source.
+     */
+    void recordRejected() {
+        rejectedPackets.increment();
+    }
+
+    /**
+     * <i><b>recordReceiveFailure</b></i>
+     *
+     * <pre> void recordReceiveFailure() </pre>
+     *
+     * Count an error of the socket while receiving.
+     */
+    void recordReceiveFailure() {
+        receiveFailures.increment();
+    }
+
+    /**
+     * <i><b>recordSendFailure</b></i>
+     *
+     * <pre> void recordSendFailure() </pre>
+     *
+     * Count a datagram which could not be sent.
+     */
+    void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * <i><b>recordHandlerTime</b></i>
+     *
+     * <pre> void recordHandlerTime(long nanos) </pre>
+     *
+     * Count the time spent to handle a received message.
+     * @param nanos the time in nanoseconds.
+     */
+    void recordHandlerTime(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        handlerTimes[bucketOf(nanos)].increment();
+        maxHandlerTime.accumulate(nanos);
+    }
+
+    /**
+     * <i><b>bucketOf</b></i>
+     *
+     * <pre> private static int bucketOf(long nanos) </pre>
+     *
+     * @param nanos a time in nanoseconds.
+     * @return the bucket of the histogram counting the time.
+     */
+    private static int bucketOf(long nanos) {
+        return Math.min(HANDLER_TIME_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /*******************************************/
+    /*                 Getters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getSnapshot</b></i>
+     *
+     * <pre> public {@link Snapshot} getSnapshot() </pre>
+     *
+     * @return the current values of the counters. The counters are read one after the other while the link
+     * may update them.
+     */
+    public Snapshot getSnapshot() {
+        long[] histogram = new long[HANDLER_TIME_BUCKETS];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = handlerTimes[i].sum();
+
+        return new Snapshot(packetsIn.sum(), bytesIn.sum(), packetsOut.sum(), bytesOut.sum(),
+                rejectedPackets.sum(), truncatedPackets.sum(), receiveFailures.sum(), sendFailures.sum(),
+                histogram, maxHandlerTime.get());
+    }
+
+    /**
+     * <i><b>reset</b></i>
+     *
+     * <pre> public void reset() </pre>
+     *
+     * Set all the counters to zero.
+     */
+    @Override
+    public void reset() {
+        packetsIn.reset();
+        bytesIn.reset();
+        packetsOut.reset();
+        bytesOut.reset();
+        rejectedPackets.reset();
+        truncatedPackets.reset();
+        receiveFailures.reset();
+        sendFailures.reset();
+        for (LongAdder bucket : handlerTimes)
+            bucket.reset();
+        maxHandlerTime.reset();
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getRejectedPackets() {
+        return rejectedPackets.sum();
+    }
+
+    @Override
+    public long getTruncatedPackets() {
+        return truncatedPackets.sum();
+    }
+
+    @Override
+    public long getReceiveFailures() {
+        return receiveFailures.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getHandlerTimeP50Nanos() {
+        return getSnapshot().getHandlerTimePercentile(0.5);
+    }
+
+    @Override
+    public long getHandlerTimeP99Nanos() {
+        return getSnapshot().getHandlerTimePercentile(0.99);
+    }
+
+    @Override
+    public long getHandlerTimeMaxNanos() {
+        return maxHandlerTime.get();
+    }
+
+    /**
+     * Values of the counters of a link at a given time.
+     */
+    public static final class Snapshot {
+
+        private final long packetsIn;
+
+        private final long bytesIn;
+
+        private final long packetsOut;
+
+        private final long bytesOut;
+
+        private final long rejectedPackets;
+
+        private final long truncatedPackets;
+
+        private final long receiveFailures;
+
+        private final long sendFailures;
+
+        private final long[] handlerTimes;
+
+        private final long maxHandlerTime;
+
+        private Snapshot(long packetsIn, long bytesIn, long packetsOut, long bytesOut, long rejectedPackets,
+                         long truncatedPackets, long receiveFailures, long sendFailures, long[] handlerTimes,
+                         long maxHandlerTime) {
+            this.packetsIn = packetsIn;
+            this.bytesIn = bytesIn;
+            this.packetsOut = packetsOut;
+            this.bytesOut = bytesOut;
+            this.rejectedPackets = rejectedPackets;
+            this.truncatedPackets = truncatedPackets;
+            this.receiveFailures = receiveFailures;
+            this.sendFailures = sendFailures;
+            this.handlerTimes = handlerTimes;
+            this.maxHandlerTime = maxHandlerTime;
+        }
+
+        /**
+         * @return the number of datagrams received.
+         */
+        public long getPacketsIn() {
+            return packetsIn;
+        }
+
+        /**
+         * @return the number of bytes received.
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * @return the number of datagrams sent.
+         */
+        public long getPacketsOut() {
+            return packetsOut;
+        }
+
+        /**
+         * @return the number of bytes sent.
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * @return the number of datagrams ignored because they did not come from the connected peer.
+         */
+        public long getRejectedPackets() {
+            return rejectedPackets;
+        }
+
+        /**
+         * @return the number of datagrams which filled the whole receive buffer and may have been truncated.
+         */
+        public long getTruncatedPackets() {
+            return truncatedPackets;
+        }
+
+        /**
+         * @return the number of errors of the socket while receiving.
+         */
+        public long getReceiveFailures() {
+            return receiveFailures;
+        }
+
+        /**
+         * @return the number of datagrams which could not be sent.
+         */
+        public long getSendFailures() {
+            return sendFailures;
+        }
+
+        /**
+         * @return the histogram of the handler times: the bucket i counts the times in [2^(i-1), 2^i[ nanoseconds.
+         */
+        public long[] getHandlerTimeHistogram() {
+            return handlerTimes.clone();
+        }
+
+        /**
+         * @return the number of messages handled.
+         */
+        public long getHandledMessages() {
+            long count = 0;
+            for (long bucketCount : handlerTimes)
+                count += bucketCount;
+            return count;
+        }
+
+        /**
+         * @return the longest handler time in nanoseconds.
+         */
+        public long getHandlerTimeMax() {
+            return maxHandlerTime;
+        }
+
+        /**
+         * <i><b>getHandlerTimePercentile</b></i>
+         *
+         * <pre> public long getHandlerTimePercentile(double percentile) </pre>
+         *
+         * @param percentile the percentile, between 0 and 1.
+         * @return the upper bound in nanoseconds of the bucket containing the percentile, 0 if no message
+         * has been handled.
+         */
+        public long getHandlerTimePercentile(double percentile) {
+            if (percentile < 0 || percentile > 1)
+                throw new IllegalArgumentException("The percentile must be between 0 and 1.");
+
+            long count = getHandledMessages();
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile * count));
+            long cumulated = 0;
+            for (int i = 0; i < handlerTimes.length; i++) {
+                cumulated += handlerTimes[i];
+                if (cumulated >= rank)
+                    return Math.min(maxHandlerTime, (1L << i) - 1);
+            }
+            return maxHandlerTime;
+        }
+
+        @Override
+        public String toString() {
+            return "packetsIn=" + packetsIn + ", bytesIn=" + bytesIn
+                    + ", packetsOut=" + packetsOut + ", bytesOut=" + bytesOut
+                    + ", rejected=" + rejectedPackets + ", truncated=" + truncatedPackets
+                    + ", receiveFailures=" + receiveFailures + ", sendFailures=" + sendFailures
+                    + ", handlerP50=" + getHandlerTimePercentile(0.5) + "ns"
+                    + ", handlerP99=" + getHandlerTimePercentile(0.99) + "ns"
+                    + ", handlerMax=" + maxHandlerTime + "ns";
+        }
+    }
+
+}
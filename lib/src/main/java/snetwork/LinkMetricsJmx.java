@@ -0,0 +1,72 @@
+package snetwork;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of the {@link LinkMetrics} of the links in the platform MBean server, under
+ * {@code snetwork:type=Link,name=<name>}.
+ * <p>
+ * JMX is not available on Android: this class is kept apart from {@link LinkMetrics} so that the links do not
+ * depend on it.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class LinkMetricsJmx {
+
+    /**
+     * Domain of the registered MBeans.
+     */
+    public static final String DOMAIN = "snetwork";
+
+    private LinkMetricsJmx() {
+    }
+
+    /**
+     * <i><b>register</b></i>
+     *
+     * <pre> public static {@link ObjectName} register({@link AbstractP2PLink} link, {@link String} name) </pre>
+     *
+     * Register the metrics of a link in the platform MBean server.
+     * @param link the link.
+     * @param name the name of the link in JMX, unique among the registered links.
+     * @return the name of the registered MBean.
+     * @throws JMException if the MBean cannot be registered, for instance if the name is already used.
+     */
+    public static ObjectName register(AbstractP2PLink link, String name) throws JMException {
+        ObjectName objectName = getObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(link.getMetrics(), objectName);
+        return objectName;
+    }
+
+    /**
+     * <i><b>unregister</b></i>
+     *
+     * <pre> public static void unregister({@link String} name) </pre>
+     *
+     * Remove the metrics of a link from the platform MBean server.
+     * @param name the name given at the registration.
+     * @throws JMException if the MBean cannot be unregistered.
+     */
+    public static void unregister(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName(name);
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+    }
+
+    /**
+     * <i><b>getObjectName</b></i>
+     *
+     * <pre> public static {@link ObjectName} getObjectName({@link String} name) </pre>
+     *
+     * @param name the name of a link in JMX.
+     * @return the name of its MBean.
+     * @throws JMException if the name is not valid.
+     */
+    public static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Link,name=" + ObjectName.quote(name));
+    }
+
+}
@@ -0,0 +1,69 @@
+package snetwork;
+
+/**
+ * JMX view of the {@link LinkMetrics} of a link, registered with {@link LinkMetricsJmx}.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public interface LinkMetricsMXBean {
+
+    /**
+     * @return the number of datagrams received.
+     */
+    long getPacketsIn();
+
+    /**
+     * @return the number of bytes received.
+     */
+    long getBytesIn();
+
+    /**
+     * @return the number of datagrams sent.
+     */
+    long getPacketsOut();
+
+    /**
+     * @return the number of bytes sent.
+     */
+    long getBytesOut();
+
+    /**
+     * @return the number of datagrams ignored because they did not come from the connected peer.
+     */
+    long getRejectedPackets();
+
+    /**
+     * @return the number of datagrams which filled the whole receive buffer and may have been truncated.
+     */
+    long getTruncatedPackets();
+
+    /**
+     * @return the number of errors of the socket while receiving.
+     */
+    long getReceiveFailures();
+
+    /**
+     * @return the number of datagrams which could not be sent.
+     */
+    long getSendFailures();
+
+    /**
+     * @return the median time spent in onListening, in nanoseconds.
+     */
+    long getHandlerTimeP50Nanos();
+
+    /**
+     * @return the 99th percentile of the time spent in onListening, in nanoseconds.
+     */
+    long getHandlerTimeP99Nanos();
+
+    /**
+     * @return the longest time spent in onListening, in nanoseconds.
+     */
+    long getHandlerTimeMaxNanos();
+
+    /**
+     * Set all the counters to zero.
+     */
+    void reset();
+
+}
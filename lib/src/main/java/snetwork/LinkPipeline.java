@@ -0,0 +1,360 @@
+package snetwork;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Ordered list of {@link LinkStage} between an {@link AbstractP2PLink} and its socket.
+ * An empty pipeline gives the messages as they are to the application and to the socket.
+ * <p>
+ * The stages must be added before the start of the link.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class LinkPipeline {
+
+    /**
+     * Timer thread shared by the stages of all the pipelines.
+     */
+    private static final ScheduledExecutorService TIMER = createTimer();
+
+    /**
+     * Action giving a message to the application.
+     */
+    private final BiConsumer<ByteBuffer, InetSocketAddress> deliverer;
+
+    /**
+     * Action sending a message to the network.
+     */
+    private final BiConsumer<ByteBuffer, InetSocketAddress> transmitter;
+
+    /**
+     * Stages, the first being the closest to the network.
+     */
+    private volatile LinkStage[] stages = new LinkStage[0];
+
+    /**
+     * Maximum size of a datagram.
+     */
+    private volatile int maxDatagramSize = BufferPool.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Clock and timer of the stages.
+     */
+    private volatile LinkTimer timer = LinkTimer.SYSTEM;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>LinkPipeline</b></i>
+     *
+     * <pre> public LinkPipeline({@link BiConsumer} deliverer, {@link BiConsumer} transmitter) </pre>
+     *
+     * Constructor of {@link LinkPipeline}. The links create their own pipeline; a standalone pipeline runs the
+     * stages without a socket, for instance in a simulation.
+     * @param deliverer the action giving a message to the application.
+     * @param transmitter the action sending a message to the network.
+     */
+    public LinkPipeline(BiConsumer<ByteBuffer, InetSocketAddress> deliverer,
+                        BiConsumer<ByteBuffer, InetSocketAddress> transmitter) {
+        this.deliverer = deliverer;
+        this.transmitter = transmitter;
+    }
+
+    /**
+     * <i><b>createTimer</b></i>
+     *
+     * <pre> private static {@link ScheduledExecutorService} createTimer() </pre>
+     *
+     * @return the timer thread shared by the stages.
+     */
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "snetwork-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /*******************************************/
+    /*                 Stages                  */
+    /*******************************************/
+
+    /**
+     * <i><b>addStage</b></i>
+     *
+     * <pre> public void addStage({@link LinkStage} stage) </pre>
+     *
+     * Add a stage at the position given by its order.
+     * @param stage the stage to add.
+     * @throws IllegalStateException if the stage is already in a pipeline.
+     */
+    public synchronized void addStage(LinkStage stage) {
+        if (stage.getPipeline() != null)
+            throw new IllegalStateException("The stage is already in a pipeline.");
+
+        List<LinkStage> newStages = new ArrayList<>(Arrays.asList(stages));
+        int index = 0;
+        while (index < newStages.size() && newStages.get(index).getOrder() <= stage.getOrder())
+            index++;
+        newStages.add(index, stage);
+
+        setStages(newStages);
+    }
+
+    /**
+     * <i><b>removeStage</b></i>
+     *
+     * <pre> public boolean removeStage({@link LinkStage} stage) </pre>
+     *
+     * Remove a stage.
+     * @param stage the stage to remove.
+     * @return true if the stage was in this pipeline, false otherwise.
+     */
+    public synchronized boolean removeStage(LinkStage stage) {
+        List<LinkStage> newStages = new ArrayList<>(Arrays.asList(stages));
+        if (!newStages.remove(stage))
+            return false;
+
+        stage.attach(null, 0);
+        setStages(newStages);
+        return true;
+    }
+
+    /**
+     * <i><b>setStages</b></i>
+     *
+     * <pre> private void setStages({@link List}&lt;{@link LinkStage}&gt; newStages) </pre>
+     *
+     * Replace the stages and update their positions.
+     * @param newStages the new stages, the first being the closest to the network.
+     */
+    private void setStages(List<LinkStage> newStages) {
+        for (int i = 0; i < newStages.size(); i++)
+            newStages.get(i).attach(this, i);
+        stages = newStages.toArray(new LinkStage[0]);
+    }
+
+    /**
+     * <i><b>getStages</b></i>
+     *
+     * <pre> public {@link List}&lt;{@link LinkStage}&gt; getStages() </pre>
+     *
+     * @return the stages, the first being the closest to the network.
+     */
+    public List<LinkStage> getStages() {
+        return Collections.unmodifiableList(Arrays.asList(stages));
+    }
+
+    /**
+     * <i><b>getStage</b></i>
+     *
+     * <pre> public &lt;S extends {@link LinkStage}&gt; S getStage({@link Class}&lt;S&gt; type) </pre>
+     *
+     * @param type the class of the stage.
+     * @return the first stage of the given class, null if there is none.
+     */
+    public <S extends LinkStage> S getStage(Class<S> type) {
+        for (LinkStage stage : stages) {
+            if (type.isInstance(stage))
+                return type.cast(stage);
+        }
+        return null;
+    }
+
+    /*******************************************/
+    /*                  Sizes                  */
+    /*******************************************/
+
+    /**
+     * <i><b>getMaxDatagramSize</b></i>
+     *
+     * <pre> public int getMaxDatagramSize() </pre>
+     *
+     * @return the maximum size of a datagram.
+     */
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    /**
+     * <i><b>setMaxDatagramSize</b></i>
+     *
+     * <pre> public void setMaxDatagramSize(int maxDatagramSize) </pre>
+     *
+     * Set the maximum size of a datagram, {@link FrameHeader} included. It must not exceed the receive buffer
+     * size of the peer.
+     * @param maxDatagramSize the maximum size of a datagram.
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize <= FrameHeader.SIZE)
+            throw new IllegalArgumentException("The maximum datagram size must be larger than the frame header.");
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * <i><b>getMaxMessageSize</b></i>
+     *
+     * <pre> public int getMaxMessageSize() </pre>
+     *
+     * @return the maximum size of a message sent by the application which fits in a single datagram.
+     */
+    public int getMaxMessageSize() {
+        return getMaxOutboundSize(stages.length);
+    }
+
+    /**
+     * <i><b>getMaxOutboundSize</b></i>
+     *
+     * <pre> int getMaxOutboundSize(int position) </pre>
+     *
+     * @param position the position of a stage.
+     * @return the maximum size of a message sent by the stage which fits in a single datagram.
+     */
+    int getMaxOutboundSize(int position) {
+        LinkStage[] currentStages = stages;
+        int size = maxDatagramSize - FrameHeader.SIZE;
+        for (int i = 0; i < position && i < currentStages.length; i++)
+            size -= currentStages[i].getOverhead();
+        return size;
+    }
+
+    /*******************************************/
+    /*                Messages                 */
+    /*******************************************/
+
+    /**
+     * <i><b>receive</b></i>
+     *
+     * <pre> public void receive({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a message received from the network to the first stage.
+     * @param message the received message.
+     * @param source the address of the peer.
+     */
+    public void receive(ByteBuffer message, InetSocketAddress source) {
+        inbound(0, message, source);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> public void send({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Give a message sent by the application to the last stage.
+     * @param message the sent message.
+     * @param destination the address of the peer.
+     */
+    public void send(ByteBuffer message, InetSocketAddress destination) {
+        outbound(stages.length - 1, message, destination);
+    }
+
+    /**
+     * <i><b>peerClosed</b></i>
+     *
+     * <pre> void peerClosed({@link InetSocketAddress} peer) </pre>
+     *
+     * Tell all the stages that the connection with a peer ends.
+     * @param peer the address of the peer.
+     */
+    void peerClosed(InetSocketAddress peer) {
+        for (LinkStage stage : stages)
+            stage.onPeerClosed(peer);
+    }
+
+    /**
+     * <i><b>inbound</b></i>
+     *
+     * <pre> void inbound(int position, {@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a received message to the stage at the given position, or to the application after the last stage.
+     * @param position the position of the stage.
+     * @param message the message.
+     * @param source the address of the peer.
+     */
+    void inbound(int position, ByteBuffer message, InetSocketAddress source) {
+        LinkStage[] currentStages = stages;
+        if (position < currentStages.length)
+            currentStages[position].onInbound(message, source);
+        else
+            deliverer.accept(message, source);
+    }
+
+    /**
+     * <i><b>outbound</b></i>
+     *
+     * <pre> void outbound(int position, {@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Give a sent message to the stage at the given position, or to the network before the first stage.
+     * @param position the position of the stage.
+     * @param message the message.
+     * @param destination the address of the peer.
+     */
+    void outbound(int position, ByteBuffer message, InetSocketAddress destination) {
+        if (position >= 0)
+            stages[position].onOutbound(message, destination);
+        else
+            transmitter.accept(message, destination);
+    }
+
+    /*******************************************/
+    /*                 Timers                  */
+    /*******************************************/
+
+    /**
+     * <i><b>getTimer</b></i>
+     *
+     * <pre> public {@link LinkTimer} getTimer() </pre>
+     *
+     * @return the clock and the timer of the stages.
+     */
+    public LinkTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * <i><b>setTimer</b></i>
+     *
+     * <pre> public void setTimer({@link LinkTimer} timer) </pre>
+     *
+     * Set the clock and the timer of the stages, before the first message.
+     * @param timer the timer, null for {@link LinkTimer#SYSTEM}.
+     */
+    public void setTimer(LinkTimer timer) {
+        this.timer = timer == null ? LinkTimer.SYSTEM : timer;
+    }
+
+    /**
+     * <i><b>schedule</b></i>
+     *
+     * <pre> static {@link ScheduledFuture}&lt;?&gt; schedule({@link Runnable} task, long delay, {@link TimeUnit} unit) </pre>
+     *
+     * Run a task on the shared timer thread.
+     * @param task the task to run.
+     * @param delay the delay before the run.
+     * @param unit the unit of the delay.
+     * @return the future of the task.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, delay, unit);
+    }
+
+}
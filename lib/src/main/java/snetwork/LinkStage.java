@@ -0,0 +1,219 @@
+package snetwork;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stage of a {@link LinkPipeline}, transforming the messages between the application and the network.
+ * <p>
+ * The stages are ordered by {@link #getOrder()}: the lowest order is the closest to the network.
+ * A received message goes up through the stages to {@link AbstractP2PLink#onListening(ByteBuffer)},
+ * a sent message goes down through the stages to the socket.
+ * <p>
+ * The buffers given to {@link #onInbound(ByteBuffer, InetSocketAddress)} and
+ * {@link #onOutbound(ByteBuffer, InetSocketAddress)} are only valid during the call: a stage may move
+ * their position and limit, and must copy them to keep them.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public abstract class LinkStage {
+
+    /**
+     * Pipeline of the stage, null if the stage is not in a pipeline.
+     */
+    private volatile LinkPipeline pipeline;
+
+    /**
+     * Position of the stage in its pipeline, 0 being the closest to the network.
+     */
+    private volatile int position;
+
+    /*******************************************/
+    /*                Pipeline                 */
+    /*******************************************/
+
+    /**
+     * <i><b>attach</b></i>
+     *
+     * <pre> void attach({@link LinkPipeline} pipeline, int position) </pre>
+     *
+     * Set the pipeline and the position of the stage.
+     * @param pipeline the pipeline, null when the stage is removed.
+     * @param position the position of the stage in the pipeline.
+     */
+    final void attach(LinkPipeline pipeline, int position) {
+        this.pipeline = pipeline;
+        this.position = position;
+    }
+
+    /**
+     * <i><b>getPipeline</b></i>
+     *
+     * <pre> protected {@link LinkPipeline} getPipeline() </pre>
+     *
+     * @return the pipeline of the stage, null if the stage is not in a pipeline.
+     */
+    protected final LinkPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * <i><b>getOrder</b></i>
+     *
+     * <pre> protected int getOrder() </pre>
+     *
+     * @return the order of the stage in a pipeline, the lowest order being the closest to the network.
+     */
+    protected abstract int getOrder();
+
+    /**
+     * <i><b>getOverhead</b></i>
+     *
+     * <pre> protected int getOverhead() </pre>
+     *
+     * @return the number of bytes added by this stage to a message sent in a single datagram.
+     */
+    protected int getOverhead() {
+        return 0;
+    }
+
+    /**
+     * <i><b>getMaxOutboundSize</b></i>
+     *
+     * <pre> protected int getMaxOutboundSize() </pre>
+     *
+     * @return the maximum size of a message given to {@link #fireOutbound(ByteBuffer, InetSocketAddress)}
+     * which fits in a single datagram.
+     */
+    protected final int getMaxOutboundSize() {
+        return pipeline.getMaxOutboundSize(position);
+    }
+
+    /*******************************************/
+    /*                Messages                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Called when a message comes from the network. By default, give it to the next stage.
+     * @param message the received message, from its position to its limit.
+     * @param source the address of the peer.
+     */
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        fireInbound(message, source);
+    }
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Called when a message is sent by the application. By default, give it to the previous stage.
+     * @param message the sent message, from its position to its limit.
+     * @param destination the address of the peer.
+     */
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        fireOutbound(message, destination);
+    }
+
+    /**
+     * <i><b>onPeerClosed</b></i>
+     *
+     * <pre> protected void onPeerClosed({@link InetSocketAddress} peer) </pre>
+     *
+     * Called when the connection with a peer ends, to release the state kept for it.
+     * @param peer the address of the peer.
+     */
+    @SuppressWarnings("EmptyMethod")
+    protected void onPeerClosed(InetSocketAddress peer) {
+        /* do nothing */
+    }
+
+    /**
+     * <i><b>fireInbound</b></i>
+     *
+     * <pre> protected void fireInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a message to the next stage towards the application.
+     * @param message the message.
+     * @param source the address of the peer.
+     */
+    protected final void fireInbound(ByteBuffer message, InetSocketAddress source) {
+        LinkPipeline currentPipeline = pipeline;
+        if (currentPipeline != null)
+            currentPipeline.inbound(position + 1, message, source);
+    }
+
+    /**
+     * <i><b>fireOutbound</b></i>
+     *
+     * <pre> protected void fireOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Give a message to the next stage towards the network.
+     * @param message the message.
+     * @param destination the address of the peer.
+     */
+    protected final void fireOutbound(ByteBuffer message, InetSocketAddress destination) {
+        LinkPipeline currentPipeline = pipeline;
+        if (currentPipeline != null)
+            currentPipeline.outbound(position - 1, message, destination);
+    }
+
+    /*******************************************/
+    /*                 Timers                  */
+    /*******************************************/
+
+    /**
+     * <i><b>schedule</b></i>
+     *
+     * <pre> protected {@link ScheduledFuture}&lt;?&gt; schedule({@link Runnable} task, long delay, {@link TimeUnit} unit) </pre>
+     *
+     * Run a task with the timer of the pipeline, by default on the timer thread shared by the pipelines.
+     * @param task the task to run.
+     * @param delay the delay before the run.
+     * @param unit the unit of the delay.
+     * @return the future of the task, to cancel it.
+     */
+    protected final ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return getTimer().schedule(task, delay, unit);
+    }
+
+    /**
+     * <i><b>nanoTime</b></i>
+     *
+     * <pre> protected long nanoTime() </pre>
+     *
+     * @return the current time of the timer of the pipeline in nanoseconds, to measure durations.
+     */
+    protected final long nanoTime() {
+        return getTimer().nanoTime();
+    }
+
+    /**
+     * <i><b>currentTimeMillis</b></i>
+     *
+     * <pre> protected long currentTimeMillis() </pre>
+     *
+     * @return the current time of the timer of the pipeline in milliseconds, to measure durations.
+     */
+    protected final long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(nanoTime());
+    }
+
+    /**
+     * <i><b>getTimer</b></i>
+     *
+     * <pre> private {@link LinkTimer} getTimer() </pre>
+     *
+     * @return the timer of the pipeline, the system one if the stage is not in a pipeline.
+     */
+    private LinkTimer getTimer() {
+        LinkPipeline currentPipeline = pipeline;
+        return currentPipeline == null ? LinkTimer.SYSTEM : currentPipeline.getTimer();
+    }
+
+}
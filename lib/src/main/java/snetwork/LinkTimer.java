@@ -0,0 +1,50 @@
+package snetwork;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock and timer of the stages of a {@link LinkPipeline}. The pipelines use {@link #SYSTEM} by default; a
+ * simulation gives them a virtual clock, so that the timeouts of the stages follow the simulated time.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public interface LinkTimer {
+
+    /**
+     * System clock, with the timer thread shared by the pipelines.
+     */
+    LinkTimer SYSTEM = new LinkTimer() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+            return LinkPipeline.schedule(task, delay, unit);
+        }
+    };
+
+    /**
+     * <i><b>nanoTime</b></i>
+     *
+     * <pre> long nanoTime() </pre>
+     *
+     * @return the current time in nanoseconds, only meaningful to measure durations.
+     */
+    long nanoTime();
+
+    /**
+     * <i><b>schedule</b></i>
+     *
+     * <pre> {@link ScheduledFuture}&lt;?&gt; schedule({@link Runnable} task, long delay, {@link TimeUnit} unit) </pre>
+     *
+     * Run a task after a delay.
+     * @param task the task to run.
+     * @param delay the delay before the run.
+     * @param unit the unit of the delay.
+     * @return the future of the task, to cancel it.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit);
+
+}
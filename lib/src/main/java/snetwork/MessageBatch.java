@@ -0,0 +1,212 @@
+package snetwork;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Messages received together and given at once to {@link AbstractP2PLink#onListeningBatch(MessageBatch)}, with
+ * the time of their reception. The messages are copied in one reused array, so a batch costs no allocation once
+ * it has grown to its working size.
+ * <p>
+ * A batch is reused by the link: it is only valid during the call and its messages must be copied to be kept.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class MessageBatch implements Iterable<ByteBuffer> {
+
+    /**
+     * Initial size of the array of the messages.
+     */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * Initial number of messages.
+     */
+    private static final int INITIAL_COUNT = 16;
+
+    /**
+     * Messages, one after the other.
+     */
+    private byte[] data = new byte[0];
+
+    /**
+     * Offset of each message in the array.
+     */
+    private int[] offsets = new int[INITIAL_COUNT];
+
+    /**
+     * Length of each message.
+     */
+    private int[] lengths = new int[INITIAL_COUNT];
+
+    /**
+     * Sender of each message.
+     */
+    private InetSocketAddress[] sources = new InetSocketAddress[INITIAL_COUNT];
+
+    /**
+     * Number of messages.
+     */
+    private int size;
+
+    /**
+     * Number of bytes used in the array.
+     */
+    private int used;
+
+    /**
+     * Time of the reception of the first message, in milliseconds since the epoch.
+     */
+    private long receiveTime;
+
+    /*******************************************/
+    /*                 Batch                   */
+    /*******************************************/
+
+    /**
+     * <i><b>add</b></i>
+     *
+     * <pre> void add({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Copy a message at the end of the batch. The first message sets the receive time of the batch.
+     * @param message the message, from its position to its limit, which is not moved.
+     * @param source the address of the message sender.
+     */
+    void add(ByteBuffer message, InetSocketAddress source) {
+        if (size == 0)
+            receiveTime = System.currentTimeMillis();
+
+        int length = message.remaining();
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            sources = Arrays.copyOf(sources, size * 2);
+        }
+        if (used + length > data.length)
+            data = Arrays.copyOf(data, Math.max(INITIAL_CAPACITY, Math.max(used + length, data.length * 2)));
+
+        message.duplicate().get(data, used, length);
+        offsets[size] = used;
+        lengths[size] = length;
+        sources[size] = source;
+        used += length;
+        size++;
+    }
+
+    /**
+     * <i><b>clear</b></i>
+     *
+     * <pre> void clear() </pre>
+     *
+     * Empty the batch, keeping its arrays.
+     */
+    void clear() {
+        Arrays.fill(sources, 0, size, null);
+        size = 0;
+        used = 0;
+    }
+
+    /*******************************************/
+    /*                Getters                  */
+    /*******************************************/
+
+    /**
+     * <i><b>size</b></i>
+     *
+     * <pre> public int size() </pre>
+     *
+     * @return the number of messages of the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * <i><b>isEmpty</b></i>
+     *
+     * <pre> public boolean isEmpty() </pre>
+     *
+     * @return true if the batch has no message.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * <i><b>get</b></i>
+     *
+     * <pre> public {@link ByteBuffer} get(int index) </pre>
+     *
+     * @param index the index of the message, in the order of reception.
+     * @return a read-only view of the message, only valid during the call.
+     */
+    public ByteBuffer get(int index) {
+        checkIndex(index);
+        return ByteBuffer.wrap(data, offsets[index], lengths[index]).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * <i><b>getBytes</b></i>
+     *
+     * <pre> public byte[] getBytes(int index) </pre>
+     *
+     * @param index the index of the message, in the order of reception.
+     * @return a copy of the message.
+     */
+    public byte[] getBytes(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]);
+    }
+
+    /**
+     * <i><b>getSource</b></i>
+     *
+     * <pre> public {@link InetSocketAddress} getSource(int index) </pre>
+     *
+     * @param index the index of the message, in the order of reception.
+     * @return the address of the sender of the message.
+     */
+    public InetSocketAddress getSource(int index) {
+        checkIndex(index);
+        return sources[index];
+    }
+
+    /**
+     * <i><b>getReceiveTime</b></i>
+     *
+     * <pre> public long getReceiveTime() </pre>
+     *
+     * @return the time of the reception of the batch, shared by its messages, in milliseconds since the epoch.
+     */
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new Iterator<ByteBuffer>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,82 @@
+package snetwork;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Codec of the messages of a link, writing into and reading from buffers given by the link, so that a message
+ * is encoded straight into the outgoing datagram and decoded straight from the received one.
+ * <p>
+ * Unlike {@link BinaryObjectTranslator}, no intermediate byte array is allocated. The codecs must be
+ * thread-safe: a link may encode and decode on several threads.
+ * @param <T> the type of the messages.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public interface MessageCodec<T> {
+
+    /**
+     * Maximum size of a message encoded by {@link #encodeToBytes(Object)}.
+     */
+    int MAX_ENCODED_SIZE = 64 << 20;
+
+    /**
+     * <i><b>encode</b></i>
+     *
+     * <pre> void encode(T message, {@link ByteBuffer} buffer) </pre>
+     *
+     * Write a message at the position of a buffer, and move the position after it.
+     * @param message the message to encode.
+     * @param buffer the buffer to write into.
+     * @throws BufferOverflowException if the message does not fit in the remaining space of the buffer.
+     */
+    void encode(T message, ByteBuffer buffer);
+
+    /**
+     * <i><b>decode</b></i>
+     *
+     * <pre> T decode({@link ByteBuffer} buffer) </pre>
+     *
+     * Read a message from the position to the limit of a buffer. The buffer is only valid during the call.
+     * @param buffer the buffer to read.
+     * @return the decoded message.
+     */
+    T decode(ByteBuffer buffer);
+
+    /**
+     * <i><b>encodeToBytes</b></i>
+     *
+     * <pre> default byte[] encodeToBytes(T message) </pre>
+     *
+     * @param message the message to encode.
+     * @return a new array holding the encoded message.
+     * @throws IllegalArgumentException if the message is larger than {@link #MAX_ENCODED_SIZE}.
+     */
+    default byte[] encodeToBytes(T message) {
+        int size = 256;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            try {
+                encode(message, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                if (size >= MAX_ENCODED_SIZE)
+                    throw new IllegalArgumentException("The encoded message is larger than " + MAX_ENCODED_SIZE + " bytes.");
+                size *= 2;
+            }
+        }
+    }
+
+    /**
+     * <i><b>decode</b></i>
+     *
+     * <pre> default T decode(byte[] message) </pre>
+     *
+     * @param message the encoded message.
+     * @return the decoded message.
+     */
+    default T decode(byte[] message) {
+        return decode(ByteBuffer.wrap(message));
+    }
+
+}
@@ -0,0 +1,251 @@
+package snetwork;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Table routing the received messages by a type tag, their first byte, to one translator and one handler per
+ * type. The table is an array indexed by the tag, and a message is only translated once its route is found: the
+ * messages of an unknown or filtered type are dropped without being decoded.
+ * <p>
+ * The routes can be changed while the messages are received.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class MessageRouter {
+
+    /**
+     * Number of type tags.
+     */
+    public static final int TYPE_COUNT = 0x100;
+
+    /**
+     * Routes indexed by type tag, replaced on each change.
+     */
+    private volatile Route<?>[] routes = new Route<?>[TYPE_COUNT];
+
+    /**
+     * Number of routes.
+     */
+    private volatile int routeCount;
+
+    /**
+     * Number of messages of a type without route.
+     */
+    private final AtomicLong unroutedMessages = new AtomicLong();
+
+    /**
+     * Number of messages of a filtered type.
+     */
+    private final AtomicLong filteredMessages = new AtomicLong();
+
+    /*******************************************/
+    /*                 Routes                  */
+    /*******************************************/
+
+    /**
+     * <i><b>route</b></i>
+     *
+     * <pre> public synchronized &lt;M&gt; {@link Route}&lt;M&gt; route(int type, {@link BinaryObjectTranslator}&lt;M&gt; translator, {@link Consumer}&lt;M&gt; handler) </pre>
+     *
+     * Register the translator and the handler of a type, replacing its previous route.
+     * @param type the type tag, between 0 and 255.
+     * @param translator the translator of the messages of the type, without their tag.
+     * @param handler the handler of the translated messages, called on the receiving thread.
+     * @param <M> the type of the messages.
+     * @return the route, to send messages of the type.
+     */
+    public synchronized <M> Route<M> route(int type, BinaryObjectTranslator<M> translator, Consumer<M> handler) {
+        checkType(type);
+        if (translator == null || handler == null)
+            throw new IllegalArgumentException("The translator and the handler cannot be null.");
+
+        Route<M> route = new Route<>(type, translator, handler);
+        Route<?>[] newRoutes = routes.clone();
+        if (newRoutes[type] == null)
+            routeCount++;
+        newRoutes[type] = route;
+        routes = newRoutes;
+        return route;
+    }
+
+    /**
+     * <i><b>unroute</b></i>
+     *
+     * <pre> public synchronized boolean unroute(int type) </pre>
+     *
+     * Remove the route of a type. Its messages are then dropped without being decoded.
+     * @param type the type tag.
+     * @return true if the type had a route.
+     */
+    public synchronized boolean unroute(int type) {
+        checkType(type);
+        if (routes[type] == null)
+            return false;
+
+        Route<?>[] newRoutes = routes.clone();
+        newRoutes[type] = null;
+        routes = newRoutes;
+        routeCount--;
+        return true;
+    }
+
+    /**
+     * <i><b>getRoute</b></i>
+     *
+     * <pre> public {@link Route}&lt;?&gt; getRoute(int type) </pre>
+     *
+     * @param type the type tag.
+     * @return the route of the type, null if it has none.
+     */
+    public Route<?> getRoute(int type) {
+        checkType(type);
+        return routes[type];
+    }
+
+    /**
+     * <i><b>isEmpty</b></i>
+     *
+     * <pre> public boolean isEmpty() </pre>
+     *
+     * @return true if no type has a route.
+     */
+    public boolean isEmpty() {
+        return routeCount == 0;
+    }
+
+    private static void checkType(int type) {
+        if (type < 0 || type >= TYPE_COUNT)
+            throw new IllegalArgumentException("The type must be between 0 and " + (TYPE_COUNT - 1) + ".");
+    }
+
+    /*******************************************/
+    /*                Dispatch                 */
+    /*******************************************/
+
+    /**
+     * <i><b>dispatch</b></i>
+     *
+     * <pre> public void dispatch({@link ByteBuffer} message) </pre>
+     *
+     * Give a message to the handler of its type, after its translation. The messages without route or of a
+     * filtered type are counted and dropped before any copy.
+     * @param message the message, its type tag first, from its position to its limit, which is not moved.
+     */
+    public void dispatch(ByteBuffer message) {
+        if (!message.hasRemaining()) {
+            unroutedMessages.incrementAndGet();
+            return;
+        }
+
+        Route<?> route = routes[message.get(message.position()) & 0xFF];
+        if (route == null) {
+            unroutedMessages.incrementAndGet();
+            return;
+        }
+        if (route.filtered) {
+            filteredMessages.incrementAndGet();
+            return;
+        }
+
+        byte[] payload = new byte[message.remaining() - 1];
+        ByteBuffer view = message.duplicate();
+        view.position(view.position() + 1);
+        view.get(payload);
+        route.handle(payload);
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getUnroutedMessages</b></i>
+     *
+     * <pre> public long getUnroutedMessages() </pre>
+     *
+     * @return the number of messages dropped because their type has no route.
+     */
+    public long getUnroutedMessages() {
+        return unroutedMessages.get();
+    }
+
+    /**
+     * <i><b>getFilteredMessages</b></i>
+     *
+     * <pre> public long getFilteredMessages() </pre>
+     *
+     * @return the number of messages dropped because their type is filtered.
+     */
+    public long getFilteredMessages() {
+        return filteredMessages.get();
+    }
+
+    /*******************************************/
+    /*                 Route                   */
+    /*******************************************/
+
+    /**
+     * Translator and handler of a type of message.
+     * @param <M> the type of the messages.
+     */
+    public static final class Route<M> {
+
+        private final int type;
+
+        private final BinaryObjectTranslator<M> translator;
+
+        private final Consumer<M> handler;
+
+        /**
+         * True if the messages of the type are dropped.
+         */
+        private volatile boolean filtered;
+
+        private Route(int type, BinaryObjectTranslator<M> translator, Consumer<M> handler) {
+            this.type = type;
+            this.translator = translator;
+            this.handler = handler;
+        }
+
+        private void handle(byte[] payload) {
+            handler.accept(translator.translateFromBytes(payload));
+        }
+
+        /**
+         * <i><b>encode</b></i>
+         *
+         * <pre> public byte[] encode(M message) </pre>
+         *
+         * @param message the message to send.
+         * @return the message translated by the translator of the route, after its type tag.
+         */
+        public byte[] encode(M message) {
+            byte[] payload = translator.translateToBytes(message);
+            byte[] tagged = new byte[payload.length + 1];
+            tagged[0] = (byte) type;
+            System.arraycopy(payload, 0, tagged, 1, payload.length);
+            return tagged;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public boolean isFiltered() {
+            return filtered;
+        }
+
+        /**
+         * <i><b>setFiltered</b></i>
+         *
+         * <pre> public void setFiltered(boolean filtered) </pre>
+         *
+         * @param filtered true to drop the messages of the type without decoding them, false to handle them again.
+         */
+        public void setFiltered(boolean filtered) {
+            this.filtered = filtered;
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+package snetwork;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of the messages sent asynchronously by a link. The queue is drained by a writer thread, or by
+ * the event loop of the link in event loop mode, and applies a backpressure policy when it is full.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class SendQueue {
+
+    /**
+     * Default maximum number of messages in the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Behavior of the queue when it is full.
+     */
+    public enum BackpressurePolicy {
+        /**
+         * The sender waits for room in the queue.
+         */
+        BLOCK,
+        /**
+         * The oldest message of the queue is dropped and its future fails.
+         */
+        DROP_OLDEST,
+        /**
+         * The new message is rejected and its future fails.
+         */
+        FAIL_FAST
+    }
+
+    /**
+     * Messages waiting to be sent.
+     */
+    private final BlockingQueue<PendingMessage> messages;
+
+    /**
+     * Maximum number of messages in the queue.
+     */
+    private final int capacity;
+
+    /**
+     * Behavior of the queue when it is full.
+     */
+    private final BackpressurePolicy policy;
+
+    /**
+     * Number of messages dropped by {@link BackpressurePolicy#DROP_OLDEST}.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    /**
+     * Number of messages rejected by {@link BackpressurePolicy#FAIL_FAST}.
+     */
+    private final AtomicLong rejectedMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>SendQueue</b></i>
+     *
+     * <pre> public SendQueue(int capacity, {@link BackpressurePolicy} policy) </pre>
+     *
+     * Constructor of {@link SendQueue}.
+     * @param capacity the maximum number of messages in the queue.
+     * @param policy the behavior of the queue when it is full.
+     */
+    public SendQueue(int capacity, BackpressurePolicy policy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity of the queue must be positive.");
+        if (policy == null)
+            throw new IllegalArgumentException("The backpressure policy cannot be null.");
+
+        this.messages = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /*******************************************/
+    /*                 Getters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getCapacity</b></i>
+     *
+     * <pre> public int getCapacity() </pre>
+     *
+     * @return the maximum number of messages in the queue.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * <i><b>getPolicy</b></i>
+     *
+     * <pre> public {@link BackpressurePolicy} getPolicy() </pre>
+     *
+     * @return the behavior of the queue when it is full.
+     */
+    public BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * <i><b>size</b></i>
+     *
+     * <pre> public int size() </pre>
+     *
+     * @return the number of messages waiting to be sent.
+     */
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * <i><b>getDroppedMessages</b></i>
+     *
+     * <pre> public long getDroppedMessages() </pre>
+     *
+     * @return the number of messages dropped because the queue was full.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * <i><b>getRejectedMessages</b></i>
+     *
+     * <pre> public long getRejectedMessages() </pre>
+     *
+     * @return the number of messages rejected because the queue was full.
+     */
+    public long getRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    /*******************************************/
+    /*                 Queue                   */
+    /*******************************************/
+
+    /**
+     * <i><b>offer</b></i>
+     *
+     * <pre> void offer({@link PendingMessage} message) </pre>
+     *
+     * Add a message to the queue, applying the backpressure policy if the queue is full.
+     * @param message the message to add.
+     */
+    void offer(PendingMessage message) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    messages.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    message.future.completeExceptionally(e);
+                }
+                break;
+
+            case DROP_OLDEST:
+                while (!messages.offer(message)) {
+                    PendingMessage oldest = messages.poll();
+                    if (oldest != null) {
+                        droppedMessages.incrementAndGet();
+                        oldest.future.completeExceptionally(new RejectedExecutionException("Message dropped: the send queue is full."));
+                    }
+                }
+                break;
+
+            case FAIL_FAST:
+                if (!messages.offer(message)) {
+                    rejectedMessages.incrementAndGet();
+                    message.future.completeExceptionally(new RejectedExecutionException("The send queue is full."));
+                }
+                break;
+        }
+    }
+
+    /**
+     * <i><b>tryOffer</b></i>
+     *
+     * <pre> boolean tryOffer({@link PendingMessage} message) </pre>
+     *
+     * Add a message to the queue if it is not full.
+     * @param message the message to add.
+     * @return true if the message has been added, false otherwise.
+     */
+    boolean tryOffer(PendingMessage message) {
+        return messages.offer(message);
+    }
+
+    /**
+     * <i><b>poll</b></i>
+     *
+     * <pre> {@link PendingMessage} poll() </pre>
+     *
+     * @return the oldest message of the queue, null if the queue is empty.
+     */
+    PendingMessage poll() {
+        return messages.poll();
+    }
+
+    /**
+     * <i><b>isEmpty</b></i>
+     *
+     * <pre> boolean isEmpty() </pre>
+     *
+     * @return true if no message waits to be sent, false otherwise.
+     */
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Message waiting to be sent and its result.
+     */
+    static final class PendingMessage {
+
+        final ByteBuffer message;
+
+        final InetSocketAddress destination;
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingMessage(ByteBuffer message, InetSocketAddress destination) {
+            this.message = message;
+            this.destination = destination;
+        }
+    }
+
+}
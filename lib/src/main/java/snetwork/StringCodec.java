@@ -0,0 +1,118 @@
+package snetwork;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link MessageCodec} of the strings. Each thread reuses its own {@link CharsetEncoder} and
+ * {@link CharsetDecoder}, and the malformed characters are replaced.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class StringCodec implements MessageCodec<String> {
+
+    /**
+     * Codec of the UTF-8 strings.
+     */
+    public static final StringCodec UTF_8 = new StringCodec(StandardCharsets.UTF_8);
+
+    /**
+     * Initial size of the buffer of decoded characters of each thread.
+     */
+    private static final int INITIAL_CHARS = 256;
+
+    private final Charset charset;
+
+    private final ThreadLocal<CharsetEncoder> encoders;
+
+    private final ThreadLocal<CharsetDecoder> decoders;
+
+    /**
+     * Buffer of decoded characters of each thread, grown when needed.
+     */
+    private final ThreadLocal<CharBuffer[]> decodedChars = ThreadLocal.withInitial(() -> new CharBuffer[]{
+            CharBuffer.allocate(INITIAL_CHARS)});
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>StringCodec</b></i>
+     *
+     * <pre> public StringCodec({@link Charset} charset) </pre>
+     *
+     * Constructor of {@link StringCodec}.
+     * @param charset the charset of the strings.
+     */
+    public StringCodec(Charset charset) {
+        this.charset = charset;
+        this.encoders = ThreadLocal.withInitial(() -> charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        this.decoders = ThreadLocal.withInitial(() -> charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * <i><b>getCharset</b></i>
+     *
+     * <pre> public {@link Charset} getCharset() </pre>
+     *
+     * @return the charset of the strings.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /*******************************************/
+    /*                  Codec                  */
+    /*******************************************/
+
+    @Override
+    public void encode(String message, ByteBuffer buffer) {
+        CharsetEncoder encoder = encoders.get().reset();
+        CharBuffer input = CharBuffer.wrap(message);
+
+        CoderResult result = encoder.encode(input, buffer, true);
+        if (!result.isOverflow())
+            result = encoder.flush(buffer);
+        if (result.isOverflow())
+            throw new BufferOverflowException();
+    }
+
+    @Override
+    public String decode(ByteBuffer buffer) {
+        CharsetDecoder decoder = decoders.get().reset();
+        CharBuffer[] holder = decodedChars.get();
+
+        int maxChars = (int) Math.ceil(buffer.remaining() * (double) decoder.maxCharsPerByte());
+        if (holder[0].capacity() < maxChars)
+            holder[0] = CharBuffer.allocate(Math.max(maxChars, holder[0].capacity() * 2));
+
+        CharBuffer output = holder[0];
+        output.clear();
+        decoder.decode(buffer, output, true);
+        decoder.flush(output);
+        output.flip();
+        return output.toString();
+    }
+
+    @Override
+    public byte[] encodeToBytes(String message) {
+        int maxBytes = (int) Math.ceil(message.length() * (double) encoders.get().maxBytesPerChar());
+        ByteBuffer buffer = ByteBuffer.allocate(maxBytes);
+        encode(message, buffer);
+        return buffer.position() == buffer.capacity() ? buffer.array()
+                : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+}
@@ -0,0 +1,705 @@
+package snetwork;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link Transport} sending the payload frames over TCP, with a 4 bytes length before each frame. A large
+ * message is written in a few large writes paced by the congestion control of the kernel, instead of
+ * thousands of datagrams.
+ * <p>
+ * The transport listens on the TCP port of the same number as the link. A connection is opened to a peer on the
+ * first frame sent to it and is used in both directions. Its first frame is the port of the link which opened it,
+ * so that the frames are given with the same source address as the datagrams of this link. A connection claiming
+ * to come from a peer the link has no session with is closed. When both peers open a connection at the same time,
+ * the link of the lower address keeps the connection it opened, and the other link closes its own.
+ * <p>
+ * The frames are read by a selector thread and given to the link, which hands them to its event loop in event loop
+ * mode. The writes block the sending thread while the socket buffer is full, waiting on a selector of their own
+ * for the buffer to have room. A connection is opened by the first thread sending to its peer, without holding
+ * the transport: the other threads sending to the same peer wait for it, the others go on.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class TcpTransport implements Transport {
+
+    /**
+     * Default maximum size of a frame.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 << 20;
+
+    /**
+     * Time in milliseconds given to the connection to a peer.
+     */
+    public static final int CONNECT_TIMEOUT = 3000;
+
+    /**
+     * Size of the length before each frame.
+     */
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * Initial size of the read buffer of a connection, grown for the larger frames.
+     */
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Time in milliseconds waited at most for room in the socket buffer before trying to write again.
+     */
+    private static final long WRITE_WAIT = 100;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Maximum size of a frame, sent or received.
+     */
+    private final int maxFrameSize;
+
+    /**
+     * Connections by address of the link of their peer.
+     */
+    private final ConcurrentMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Connections being opened, by address of the link of their peer.
+     */
+    private final ConcurrentMap<InetSocketAddress, CompletableFuture<Connection>> connecting =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Connections waiting to be registered by the selector thread.
+     */
+    private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+
+    private volatile Selector selector;
+
+    private volatile ServerSocketChannel server;
+
+    private volatile Listener listener;
+
+    /**
+     * Port of the link, sent as the first frame of the connections opened by this transport.
+     */
+    private volatile int localPort;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>TcpTransport</b></i>
+     *
+     * <pre> public TcpTransport() </pre>
+     *
+     * Constructor of {@link TcpTransport} with frames up to {@link #DEFAULT_MAX_FRAME_SIZE} bytes.
+     */
+    public TcpTransport() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * <i><b>TcpTransport</b></i>
+     *
+     * <pre> public TcpTransport(int maxFrameSize) </pre>
+     *
+     * Constructor of {@link TcpTransport}.
+     * @param maxFrameSize the maximum size of a frame. A connection receiving a larger frame is closed.
+     */
+    public TcpTransport(int maxFrameSize) {
+        if (maxFrameSize <= FrameHeader.SIZE)
+            throw new IllegalArgumentException("The maximum frame size must be larger than the frame header.");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /*******************************************/
+    /*                Transport                */
+    /*******************************************/
+
+    @Override
+    public synchronized void bind(InetSocketAddress local, Listener listener) throws IOException {
+        if (server != null)
+            throw new IllegalStateException("The transport is already bound.");
+
+        ServerSocketChannel newServer = ServerSocketChannel.open();
+        Selector newSelector = null;
+        try {
+            newServer.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            newServer.bind(local);
+            newServer.configureBlocking(false);
+            newSelector = Selector.open();
+            newServer.register(newSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            newServer.close();
+            if (newSelector != null)
+                newSelector.close();
+            throw e;
+        }
+
+        this.listener = listener;
+        this.localPort = local.getPort();
+        this.server = newServer;
+        this.selector = newSelector;
+
+        final Selector runSelector = newSelector;
+        Thread thread = new Thread(() -> run(runSelector), "snetwork-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame, InetSocketAddress destination) throws IOException {
+        return send(frame, EMPTY, destination);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> public boolean send({@link ByteBuffer} head, {@link ByteBuffer} body, {@link InetSocketAddress} destination) </pre>
+     *
+     * Write the length, the head and the body of a frame with a single gathering write, without copying them.
+     * @param head the start of the frame, header included, from its position to its limit.
+     * @param body the rest of the frame, from its position to its limit.
+     * @param destination the address and the port of the link of the peer.
+     * @return true, the frames are never dropped.
+     * @throws IOException if the frame cannot be sent.
+     */
+    @Override
+    public boolean send(ByteBuffer head, ByteBuffer body, InetSocketAddress destination) throws IOException {
+        if (head.remaining() + body.remaining() > maxFrameSize)
+            throw new IOException("The frame is larger than " + maxFrameSize + " bytes.");
+
+        Connection connection = connections.get(destination);
+        if (connection == null || !connection.channel.isOpen())
+            connection = connect(destination);
+
+        try {
+            connection.write(head, body);
+        } catch (ClosedChannelException e) {
+            /* Replaced by the connection opened by the peer, before anything was written */
+            Connection current = connections.get(destination);
+            if (current == null || current == connection) {
+                close(connection);
+                throw e;
+            }
+            write(current, head, body);
+        } catch (IOException e) {
+            close(connection);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * <i><b>write</b></i>
+     *
+     * <pre> private void write({@link Connection} connection, {@link ByteBuffer} head, {@link ByteBuffer} body) </pre>
+     *
+     * Write a frame, closing the connection if it is broken.
+     * @param connection the connection.
+     * @param head the start of the frame.
+     * @param body the rest of the frame.
+     * @throws IOException if the connection is broken.
+     */
+    private void write(Connection connection, ByteBuffer head, ByteBuffer body) throws IOException {
+        try {
+            connection.write(head, body);
+        } catch (IOException e) {
+            close(connection);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close(InetSocketAddress peer) {
+        Connection connection = connections.remove(peer);
+        if (connection != null)
+            closeQuietly(connection);
+    }
+
+    @Override
+    public synchronized void close() {
+        Selector currentSelector = selector;
+        selector = null;
+        if (currentSelector != null)
+            currentSelector.wakeup();
+
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        server = null;
+
+        for (Connection connection : connections.values())
+            closeQuietly(connection);
+        connections.clear();
+    }
+
+    /*******************************************/
+    /*               Connections               */
+    /*******************************************/
+
+    /**
+     * <i><b>connect</b></i>
+     *
+     * <pre> private {@link Connection} connect({@link InetSocketAddress} destination) </pre>
+     *
+     * Get the connection to a peer, opening it if there is none. Only the first thread opens it, the other threads
+     * sending to the same peer wait for it.
+     * @param destination the address and the port of the link of the peer.
+     * @return the connection.
+     * @throws IOException if the connection fails.
+     */
+    private Connection connect(InetSocketAddress destination) throws IOException {
+        CompletableFuture<Connection> opening = new CompletableFuture<>();
+        CompletableFuture<Connection> pending = connecting.putIfAbsent(destination, opening);
+        if (pending != null)
+            return await(pending);
+
+        try {
+            Connection connection = connections.get(destination);
+            if (connection == null || !connection.channel.isOpen())
+                connection = open(destination);
+            opening.complete(connection);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            opening.completeExceptionally(e);
+            throw e;
+        } finally {
+            connecting.remove(destination, opening);
+        }
+    }
+
+    /**
+     * <i><b>await</b></i>
+     *
+     * <pre> private static {@link Connection} await({@link CompletableFuture}&lt;{@link Connection}&gt; pending) </pre>
+     *
+     * Wait for a connection opened by another thread.
+     * @param pending the connection being opened.
+     * @return the connection.
+     * @throws IOException if the connection fails, or if the thread is interrupted.
+     */
+    private static Connection await(CompletableFuture<Connection> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting.");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * <i><b>open</b></i>
+     *
+     * <pre> private {@link Connection} open({@link InetSocketAddress} destination) </pre>
+     *
+     * Open a connection to a peer and tell it the port of this link.
+     * @param destination the address and the port of the link of the peer.
+     * @return the connection kept for the peer, the accepted one if the peer opened one at the same time and wins.
+     * @throws IOException if the connection fails.
+     */
+    private Connection open(InetSocketAddress destination) throws IOException {
+        if (selector == null)
+            throw new ClosedChannelException();
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(destination, CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        Connection connection = new Connection(channel, destination, true);
+        ByteBuffer hello = ByteBuffer.allocate(LENGTH_SIZE);
+        hello.putInt(localPort).flip();
+        try {
+            connection.write(hello, EMPTY);
+        } catch (IOException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        return keep(connection);
+    }
+
+    /**
+     * <i><b>keep</b></i>
+     *
+     * <pre> private synchronized {@link Connection} keep({@link Connection} connection) </pre>
+     *
+     * Use a connection opened by this link for its peer, unless a connection accepted from the peer in the
+     * meantime is kept, with the same choice as {@link #adopt(Connection)}.
+     * @param connection the connection opened by this link.
+     * @return the connection kept for the peer.
+     * @throws IOException if the transport is closed.
+     */
+    private synchronized Connection keep(Connection connection) throws IOException {
+        Selector currentSelector = selector;
+        if (currentSelector == null) {
+            closeQuietly(connection);
+            throw new ClosedChannelException();
+        }
+
+        Connection current = connections.get(connection.peer);
+        if (current != null && current.channel.isOpen() && !current.outbound && !keepsOutbound(current)) {
+            closeQuietly(connection);
+            return current;
+        }
+
+        connections.put(connection.peer, connection);
+        registrations.add(connection);
+        currentSelector.wakeup();
+        return connection;
+    }
+
+    /**
+     * <i><b>adopt</b></i>
+     *
+     * <pre> private synchronized void adopt({@link Connection} connection) </pre>
+     *
+     * Use an accepted connection for its peer, unless a connection opened by this link at the same time is kept.
+     * Both links make the same choice: the link of the lower address keeps the connection it opened. The
+     * connection given up by this link is closed; the one given up by the peer is still read until the peer
+     * closes it, so that the frames already sent on it are not lost.
+     * @param connection the accepted connection, whose peer is known.
+     */
+    private synchronized void adopt(Connection connection) throws IOException {
+        Connection current = connections.get(connection.peer);
+        if (current != null && current != connection && current.channel.isOpen()) {
+            if (current.outbound && keepsOutbound(connection))
+                return;
+
+            /* Wait for the frame being written, so the frames are never cut */
+            synchronized (current) {
+                closeQuietly(current);
+            }
+        }
+        connections.put(connection.peer, connection);
+    }
+
+    /**
+     * <i><b>keepsOutbound</b></i>
+     *
+     * <pre> private boolean keepsOutbound({@link Connection} accepted) </pre>
+     *
+     * @param accepted a connection opened by the peer.
+     * @return true if the address of this link, as known by the peer, is lower than the address of the peer.
+     */
+    private boolean keepsOutbound(Connection accepted) throws IOException {
+        InetSocketAddress local = (InetSocketAddress) accepted.channel.getLocalAddress();
+        int order = compare(local.getAddress(), accepted.peer.getAddress());
+        return order < 0 || (order == 0 && localPort < accepted.peer.getPort());
+    }
+
+    private static int compare(InetAddress first, InetAddress second) {
+        byte[] a = first.getAddress();
+        byte[] b = second.getAddress();
+        if (a.length != b.length)
+            return a.length - b.length;
+
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+        }
+        return 0;
+    }
+
+    /**
+     * <i><b>close</b></i>
+     *
+     * <pre> private void close({@link Connection} connection) </pre>
+     *
+     * Close a broken connection.
+     * @param connection the connection.
+     */
+    private void close(Connection connection) {
+        if (connection.peer != null)
+            connections.remove(connection.peer, connection);
+        closeQuietly(connection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        /* A thread waiting for room in the socket buffer finds the connection closed */
+        Selector waiting = connection.writeSelector;
+        if (waiting != null)
+            waiting.wakeup();
+    }
+
+    /*******************************************/
+    /*                Selector                 */
+    /*******************************************/
+
+    /**
+     * <i><b>run</b></i>
+     *
+     * <pre> private void run({@link Selector} runSelector) </pre>
+     *
+     * Accept the connections and read their frames until the transport is closed.
+     * @param runSelector the selector of this binding.
+     */
+    private void run(Selector runSelector) {
+        try {
+            while (selector == runSelector) {
+                runSelector.select();
+
+                Connection registered;
+                while ((registered = registrations.poll()) != null) {
+                    try {
+                        registered.channel.register(runSelector, SelectionKey.OP_READ, registered);
+                    } catch (ClosedChannelException e) {
+                        close(registered);
+                    }
+                }
+
+                for (SelectionKey key : runSelector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept(runSelector);
+                    else if (key.isReadable())
+                        read((Connection) key.attachment());
+                }
+                runSelector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            /* The accepted connections whose peer is still unknown are only known by the selector */
+            for (SelectionKey key : runSelector.keys()) {
+                if (key.attachment() instanceof Connection)
+                    closeQuietly((Connection) key.attachment());
+            }
+            try {
+                runSelector.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <i><b>accept</b></i>
+     *
+     * <pre> private void accept({@link Selector} runSelector) </pre>
+     *
+     * Accept the pending connections. Their peer is known once their first frame is read.
+     * @param runSelector the selector of this binding.
+     */
+    private void accept(Selector runSelector) throws IOException {
+        ServerSocketChannel currentServer = server;
+        SocketChannel channel;
+        while (currentServer != null && (channel = currentServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(runSelector, SelectionKey.OP_READ, new Connection(channel, null, false));
+        }
+    }
+
+    /**
+     * <i><b>read</b></i>
+     *
+     * <pre> private void read({@link Connection} connection) </pre>
+     *
+     * Read the available bytes of a connection and give its complete frames to the listener.
+     * @param connection the connection.
+     */
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.readBuffer) < 0) {
+                close(connection);
+                return;
+            }
+
+            ByteBuffer buffer = connection.readBuffer;
+            buffer.flip();
+            while (buffer.remaining() >= LENGTH_SIZE) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > maxFrameSize) {
+                    System.out.println("Invalid frame length: " + length + ".");
+                    close(connection);
+                    return;
+                }
+                if (buffer.remaining() < LENGTH_SIZE + length)
+                    break;
+
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(buffer.position() + LENGTH_SIZE).limit(buffer.position() + LENGTH_SIZE + length);
+                buffer.position(frame.limit());
+                handle(connection, frame.asReadOnlyBuffer());
+            }
+            buffer.compact();
+
+            /* Room for the next frame */
+            if (buffer.position() >= LENGTH_SIZE) {
+                int needed = LENGTH_SIZE + buffer.getInt(0);
+                if (needed > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, Math.min(2 * buffer.capacity(),
+                            LENGTH_SIZE + maxFrameSize)));
+                    buffer.flip();
+                    larger.put(buffer);
+                    connection.readBuffer = larger;
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * <i><b>handle</b></i>
+     *
+     * <pre> private void handle({@link Connection} connection, {@link ByteBuffer} frame) </pre>
+     *
+     * Give a frame to the listener, or learn the peer from the first frame of an accepted connection. An accepted
+     * connection is closed if the link has no session with its peer.
+     * @param connection the connection.
+     * @param frame the frame.
+     */
+    private void handle(Connection connection, ByteBuffer frame) throws IOException {
+        if (connection.peer == null) {
+            if (frame.remaining() != LENGTH_SIZE) {
+                close(connection);
+                return;
+            }
+
+            InetSocketAddress remote = (InetSocketAddress) connection.channel.getRemoteAddress();
+            InetSocketAddress peer = new InetSocketAddress(remote.getAddress(), frame.getInt());
+            Listener currentListener = listener;
+            if (currentListener == null || !currentListener.isKnownPeer(peer)) {
+                close(connection);
+                return;
+            }
+
+            connection.peer = peer;
+            adopt(connection);
+            return;
+        }
+
+        Listener currentListener = listener;
+        if (currentListener == null)
+            return;
+
+        try {
+            currentListener.onReceived(frame, connection.peer);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * TCP connection with the link of a peer.
+     */
+    private static final class Connection {
+
+        final SocketChannel channel;
+
+        /**
+         * Address of the link of the peer, null until the first frame of an accepted connection.
+         */
+        volatile InetSocketAddress peer;
+
+        /**
+         * True if the connection was opened by this link.
+         */
+        final boolean outbound;
+
+        /**
+         * Bytes read and not handled yet, only used by the selector thread.
+         */
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        /**
+         * Length before the frame being written.
+         */
+        private final ByteBuffer length = ByteBuffer.allocate(LENGTH_SIZE);
+
+        private final ByteBuffer[] buffers = new ByteBuffer[3];
+
+        /**
+         * Selector of the thread waiting for room in the socket buffer, null if none is waiting.
+         */
+        volatile Selector writeSelector;
+
+        Connection(SocketChannel channel, InetSocketAddress peer, boolean outbound) {
+            this.channel = channel;
+            this.peer = peer;
+            this.outbound = outbound;
+        }
+
+        /**
+         * <i><b>write</b></i>
+         *
+         * <pre> synchronized void write({@link ByteBuffer} head, {@link ByteBuffer} body) </pre>
+         *
+         * Write the length and the two parts of the frame with a single gathering write when the socket buffer
+         * has room. When it is full, the thread sleeps on a selector of its own until the buffer has room again.
+         * @param head the start of the frame.
+         * @param body the rest of the frame.
+         * @throws IOException if the connection is broken.
+         */
+        synchronized void write(ByteBuffer head, ByteBuffer body) throws IOException {
+            length.clear();
+            length.putInt(head.remaining() + body.remaining()).flip();
+            buffers[0] = length;
+            buffers[1] = head.duplicate();
+            buffers[2] = body.duplicate();
+
+            Selector waiting = null;
+            try {
+                while (buffers[2].hasRemaining() || buffers[1].hasRemaining() || length.hasRemaining()) {
+                    if (channel.write(buffers) > 0)
+                        continue;
+
+                    if (waiting == null) {
+                        waiting = Selector.open();
+                        writeSelector = waiting;
+                        channel.register(waiting, SelectionKey.OP_WRITE);
+                    }
+                    waiting.select(WRITE_WAIT);
+                    waiting.selectedKeys().clear();
+                }
+            } finally {
+                buffers[1] = null;
+                buffers[2] = null;
+                if (waiting != null) {
+                    writeSelector = null;
+                    waiting.close();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package snetwork;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport of the payload frames of a link: the {@link FrameHeader#DATA} and {@link FrameHeader#FILE} frames.
+ * The discovery and the control frames (connection, ack, end, heartbeats) always use the datagram socket of the
+ * link, so a session is established the same way whatever the transport.
+ * <p>
+ * The peers are identified by the address and the port of their link, as seen by the datagram socket.
+ * Both peers must use the same transport.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public interface Transport {
+
+    /**
+     * Receiver of the frames of a transport.
+     */
+    interface Listener {
+
+        /**
+         * <i><b>onReceived</b></i>
+         *
+         * <pre> void onReceived({@link ByteBuffer} frame, {@link InetSocketAddress} source) </pre>
+         *
+         * @param frame the received frame, header included, only valid during the call.
+         * @param source the address and the port of the link of the peer.
+         */
+        void onReceived(ByteBuffer frame, InetSocketAddress source);
+
+        /**
+         * <i><b>isKnownPeer</b></i>
+         *
+         * <pre> default boolean isKnownPeer({@link InetSocketAddress} peer) </pre>
+         *
+         * @param peer the address and the port of the link of a peer.
+         * @return true if the link has a session with the peer, so that a connection coming from it can be used.
+         * True by default.
+         */
+        default boolean isKnownPeer(InetSocketAddress peer) {
+            return true;
+        }
+    }
+
+    /**
+     * <i><b>bind</b></i>
+     *
+     * <pre> void bind({@link InetSocketAddress} local, {@link Listener} listener) </pre>
+     *
+     * Start receiving frames. Called when the socket of the link is opened; the transport may be bound again
+     * after {@link #close()}.
+     * @param local the local address and port of the link.
+     * @param listener the receiver of the frames.
+     * @throws IOException if the transport cannot be bound.
+     */
+    void bind(InetSocketAddress local, Listener listener) throws IOException;
+
+    /**
+     * <i><b>getMaxFrameSize</b></i>
+     *
+     * <pre> int getMaxFrameSize() </pre>
+     *
+     * @return the maximum size of a frame, header included.
+     */
+    int getMaxFrameSize();
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> boolean send({@link ByteBuffer} frame, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a frame.
+     * @param frame the frame, header included, from its position to its limit. It can be reused once the method
+     *              returns.
+     * @param destination the address and the port of the link of the peer.
+     * @return true if the frame is sent, false if it is dropped.
+     * @throws IOException if the frame cannot be sent.
+     */
+    boolean send(ByteBuffer frame, InetSocketAddress destination) throws IOException;
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> default boolean send({@link ByteBuffer} head, {@link ByteBuffer} body, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a frame made of two parts, such as a header and a slice of a mapped file. By default the parts are
+     * copied into a single frame; a transport writing a stream overrides it with a gathering write.
+     * @param head the start of the frame, header included, from its position to its limit.
+     * @param body the rest of the frame, from its position to its limit.
+     * @param destination the address and the port of the link of the peer.
+     * @return true if the frame is sent, false if it is dropped.
+     * @throws IOException if the frame cannot be sent.
+     */
+    default boolean send(ByteBuffer head, ByteBuffer body, InetSocketAddress destination) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(head.remaining() + body.remaining());
+        frame.put(head.duplicate()).put(body.duplicate()).flip();
+        return send(frame, destination);
+    }
+
+    /**
+     * <i><b>close</b></i>
+     *
+     * <pre> void close({@link InetSocketAddress} peer) </pre>
+     *
+     * Release the resources used for a peer whose connection has ended.
+     * @param peer the address and the port of the link of the peer.
+     */
+    void close(InetSocketAddress peer);
+
+    /**
+     * <i><b>close</b></i>
+     *
+     * <pre> void close() </pre>
+     *
+     * Stop receiving frames and release all the resources. Called when the link is closed.
+     */
+    void close();
+
+}
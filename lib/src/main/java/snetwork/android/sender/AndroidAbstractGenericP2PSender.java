@@ -2,10 +2,22 @@ package snetwork.android.sender;
 
 import android.app.Application;
 import snetwork.BinaryObjectTranslator;
+import snetwork.MessageBatch;
+import snetwork.MessageRouter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 public abstract class AndroidAbstractGenericP2PSender<T> extends AndroidAbstractP2PSender
         implements BinaryObjectTranslator<T> {
 
+    /**
+     * Routes of the tagged messages, empty if every message is translated with {@link #translateFromBytes(byte[])}.
+     */
+    private final MessageRouter router = new MessageRouter();
+
     /**
      * <i><b>AndroidAbstractGenericP2PSender</b></i>
      *
@@ -79,4 +91,113 @@ public abstract class AndroidAbstractGenericP2PSender<T> extends AndroidAbstract
     protected final void onListening(byte[] receivedMessage) {
         onListening( translateFromBytes(receivedMessage) );
     }
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening({@link ByteBuffer} receivedMessage) </pre>
+     *
+     * Give the message to the handler of its type if routes are registered, without translating the messages of
+     * the other types. Otherwise, translate it with {@link #translateFromBuffer(ByteBuffer)} and call
+     * {@link #onListening(Object)}.
+     * @param receivedMessage the received message, from its position to its limit.
+     */
+    @Override
+    protected final void onListening(ByteBuffer receivedMessage) {
+        if (router.isEmpty())
+            onListening( translateFromBuffer(receivedMessage) );
+        else
+            router.dispatch(receivedMessage);
+    }
+
+    /**
+     * <i><b>translateFromBuffer</b></i>
+     *
+     * <pre> protected T translateFromBuffer({@link ByteBuffer} message) </pre>
+     *
+     * Translate a received message when no route is registered. By default, copy the message and translate it
+     * with {@link #translateFromBytes(byte[])}. Override it to decode the message straight from the buffer.
+     * @param message the received message, from its position to its limit.
+     * @return the translated message.
+     */
+    protected T translateFromBuffer(ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return translateFromBytes(bytes);
+    }
+
+    /**
+     * <i><b>route</b></i>
+     *
+     * <pre> protected &lt;M&gt; {@link MessageRouter.Route}&lt;M&gt; route(int type, {@link BinaryObjectTranslator}&lt;M&gt; translator, {@link Consumer}&lt;M&gt; handler) </pre>
+     *
+     * Give the received messages tagged with a type to their own translator and handler. Once a route is
+     * registered, every message is expected to start with its type tag, and the messages of the types without
+     * route are dropped without being translated. The peer sends the tagged messages with
+     * {@link MessageRouter.Route#encode(Object)}.
+     * @param type the type tag, between 0 and 255.
+     * @param translator the translator of the messages of the type, without their tag.
+     * @param handler the handler of the translated messages.
+     * @param <M> the type of the messages.
+     * @return the route, to send or filter the messages of the type.
+     */
+    protected final <M> MessageRouter.Route<M> route(int type, BinaryObjectTranslator<M> translator, Consumer<M> handler) {
+        return router.route(type, translator, handler);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> protected &lt;M&gt; void send({@link MessageRouter.Route}&lt;M&gt; route, M message) </pre>
+     *
+     * Send a message tagged with the type of a route, translated by its translator.
+     * @param route the route of the type.
+     * @param message the message.
+     * @param <M> the type of the message.
+     */
+    protected final <M> void send(MessageRouter.Route<M> route, M message) {
+        send(route.encode(message));
+    }
+
+    /**
+     * <i><b>getRouter</b></i>
+     *
+     * <pre> public {@link MessageRouter} getRouter() </pre>
+     *
+     * @return the routes of the tagged messages, with the counters of the dropped messages.
+     */
+    public MessageRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * <i><b>onListeningBatch</b></i>
+     *
+     * <pre> protected void onListeningBatch({@link List}&lt;T&gt; receivedMessages, long receiveTime) </pre>
+     *
+     * The action to when messages are received, if the batch delivery is enabled with
+     * {@link #setBatchDelivery(int)}. By default, give each message to {@link #onListening(Object)}.
+     * @param receivedMessages the received messages, in the order of reception. The list can be kept.
+     * @param receiveTime the time of the reception of the batch, shared by its messages, in milliseconds since
+     *                    the epoch.
+     */
+    protected void onListeningBatch(List<T> receivedMessages, long receiveTime) {
+        for (T receivedMessage : receivedMessages)
+            onListening(receivedMessage);
+    }
+
+    @Override
+    protected final void onListeningBatch(MessageBatch batch) {
+        if (!router.isEmpty()) {
+            for (int i = 0; i < batch.size(); i++)
+                router.dispatch(batch.get(i));
+            return;
+        }
+
+        List<T> receivedMessages = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++)
+            receivedMessages.add( translateFromBuffer(batch.get(i)) );
+        onListeningBatch(receivedMessages, batch.getReceiveTime());
+    }
+
 }
@@ -5,9 +5,11 @@ import android.content.Context;
 import android.net.wifi.WifiManager;
 import snetwork.sender.AbstractP2PSender;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Class that can be used to make an Android device as a sender. It will
@@ -15,11 +17,26 @@ import java.util.ArrayList;
  */
 public abstract class AndroidAbstractP2PSender extends AbstractP2PSender {
 
+    /**
+     * Maximum number of devices of the hotspot probed at once.
+     */
+    public static final int HOTSPOT_MAX_CONCURRENT_PROBES = 8;
+
     /**
      * The owner app.
      */
     private final Application owner;
 
+    /**
+     * File of the ARP table listing the devices connected to the hotspot.
+     */
+    private File arpSource = ArpTable.DEFAULT_SOURCE;
+
+    /**
+     * Names of the hotspot interfaces in the ARP table.
+     */
+    private Pattern hotspotDevices = ArpTable.DEFAULT_HOTSPOT_DEVICES;
+
     /**
      * <i><b>AbstractP2PSender</b></i>
      *
@@ -36,6 +53,39 @@ public abstract class AndroidAbstractP2PSender extends AbstractP2PSender {
         this.owner = owner;
     }
 
+    /**
+     * <i><b>setArpSource</b></i>
+     *
+     * <pre> public void setArpSource({@link File} arpSource) </pre>
+     *
+     * Set the file of the ARP table read in hotspot mode, {@link ArpTable#DEFAULT_SOURCE} by default.
+     * @param arpSource the file of the table.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setArpSource(File arpSource) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its ARP source.");
+        if(arpSource == null)
+            throw new IllegalArgumentException("The ARP source cannot be null.");
+        this.arpSource = arpSource;
+    }
+
+    /**
+     * <i><b>setHotspotDevices</b></i>
+     *
+     * <pre> public void setHotspotDevices({@link Pattern} hotspotDevices) </pre>
+     *
+     * Set the names of the hotspot interfaces whose entries of the ARP table are probed,
+     * {@link ArpTable#DEFAULT_HOTSPOT_DEVICES} by default.
+     * @param hotspotDevices the names of the interfaces, null for all the interfaces.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setHotspotDevices(Pattern hotspotDevices) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its hotspot devices.");
+        this.hotspotDevices = hotspotDevices;
+    }
+
     @Override
     protected boolean searchPeer() {
         WifiManager wifi = (WifiManager) owner
@@ -52,26 +102,32 @@ public abstract class AndroidAbstractP2PSender extends AbstractP2PSender {
             return super.searchPeer();
 
         // else /proc/net/arp -> list on connected devices
+        return searchHotspotPeer();
+    }
 
-        ArrayList<InetAddress> addresses = new ArrayList<>();
+    /**
+     * <i><b>searchHotspotPeer</b></i>
+     *
+     * <pre> protected boolean searchHotspotPeer() </pre>
+     *
+     * Search and set a peer among the devices connected to the hotspot of the phone: the complete entries
+     * of the hotspot interfaces in the ARP table are probed, {@link #HOTSPOT_MAX_CONCURRENT_PROBES} at a time.
+     * @return true if a peer is found, otherwise false.
+     */
+    protected boolean searchHotspotPeer() {
+        List<InetAddress> addresses;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    new FileInputStream(new File("/proc/net/arp"))));
-
-            String line;
-            // skip line 1
-            reader.readLine();
-
-            while ((line = reader.readLine()) != null)
-                addresses.add(InetAddress.getByName(line.split(" ")[0]));
-
+            addresses = ArpTable.read(arpSource).getPeers(hotspotDevices);
         } catch (IOException e) {
             // FileNotFoundException => Not supported by this phone.
             e.printStackTrace();
             return false;
         }
 
-        return searchPeer(addresses);
+        if (addresses.isEmpty())
+            return false;
+
+        return searchPeer(addresses, HOTSPOT_MAX_CONCURRENT_PROBES);
     }
 
 }
@@ -0,0 +1,230 @@
+package snetwork.android.sender;
+
+import snetwork.sender.PeerCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Entries of the ARP table of the kernel, as written in {@code /proc/net/arp}:
+ * <pre>
+ * IP address       HW type     Flags       HW address            Mask     Device
+ * 192.168.43.112   0x1         0x2         a4:50:46:1b:9c:07     *        wlan0
+ * </pre>
+ * The columns are padded with a variable number of spaces. In hotspot mode, the complete entries of the hotspot
+ * interface are the devices connected to the phone.
+ * <p>
+ * This class has no Android dependency, so a table can be parsed from any file.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class ArpTable {
+
+    /**
+     * ARP table of the kernel.
+     */
+    public static final File DEFAULT_SOURCE = new File("/proc/net/arp");
+
+    /**
+     * Usual names of the hotspot interface of the phones.
+     */
+    public static final Pattern DEFAULT_HOTSPOT_DEVICES = Pattern.compile("(wlan|swlan|softap|ap)\\d+");
+
+    /**
+     * Flag of the complete entries ({@code ATF_COM}): the hardware address of the peer is known.
+     */
+    public static final int FLAG_COMPLETE = 0x2;
+
+    /**
+     * Hardware address of the entries without a peer.
+     */
+    private static final String NO_HARDWARE_ADDRESS = "00:00:00:00:00:00";
+
+    /**
+     * Entries of the table, in the order of the file.
+     */
+    private final List<Entry> entries;
+
+    private ArpTable(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /*******************************************/
+    /*                 Parsing                 */
+    /*******************************************/
+
+    /**
+     * <i><b>read</b></i>
+     *
+     * <pre> public static {@link ArpTable} read({@link File} source) </pre>
+     *
+     * @param source the file of the table, {@link #DEFAULT_SOURCE} on a device.
+     * @return the entries of the file.
+     * @throws IOException if the file cannot be read (the table is not readable on some phones).
+     */
+    public static ArpTable read(File source) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(source), StandardCharsets.US_ASCII)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * <i><b>parse</b></i>
+     *
+     * <pre> public static {@link ArpTable} parse({@link Reader} reader) </pre>
+     *
+     * Parse a table. The header line and the malformed lines are ignored.
+     * @param reader the content of the table. It is not closed.
+     * @return the entries of the table.
+     * @throws IOException if the content cannot be read.
+     */
+    public static ArpTable parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<Entry> entries = new ArrayList<>();
+
+        String line;
+        while ((line = lines.readLine()) != null) {
+            Entry entry = parseLine(line);
+            if (entry != null)
+                entries.add(entry);
+        }
+
+        return new ArpTable(entries);
+    }
+
+    /**
+     * <i><b>parseLine</b></i>
+     *
+     * <pre> private static {@link Entry} parseLine({@link String} line) </pre>
+     *
+     * @param line a line of the table.
+     * @return the entry of the line, null if the line is the header or is malformed.
+     */
+    private static Entry parseLine(String line) {
+        String[] columns = line.trim().split("\\s+");
+        if (columns.length < 6)
+            return null;
+
+        /* A malformed line is never resolved by a DNS request */
+        InetAddress address = PeerCache.parseLiteral(columns[0]);
+        if (address == null)
+            return null;
+
+        int flags;
+        try {
+            flags = Integer.decode(columns[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return new Entry(address, flags, columns[3], columns[columns.length - 1]);
+    }
+
+    /*******************************************/
+    /*                 Getters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getEntries</b></i>
+     *
+     * <pre> public {@link List}&lt;{@link Entry}&gt; getEntries() </pre>
+     *
+     * @return all the entries of the table, complete or not.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * <i><b>getPeers</b></i>
+     *
+     * <pre> public {@link List}&lt;{@link InetAddress}&gt; getPeers({@link Pattern} devices) </pre>
+     *
+     * @param devices the names of the interfaces whose entries are kept, null for all the interfaces.
+     * @return the addresses of the complete entries of the given interfaces, without duplicates.
+     */
+    public List<InetAddress> getPeers(Pattern devices) {
+        List<InetAddress> peers = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (!entry.isComplete())
+                continue;
+            if (devices != null && !devices.matcher(entry.getDevice()).matches())
+                continue;
+            if (!peers.contains(entry.getAddress()))
+                peers.add(entry.getAddress());
+        }
+        return peers;
+    }
+
+    /**
+     * Line of the table.
+     */
+    public static final class Entry {
+
+        private final InetAddress address;
+
+        private final int flags;
+
+        private final String hardwareAddress;
+
+        private final String device;
+
+        private Entry(InetAddress address, int flags, String hardwareAddress, String device) {
+            this.address = address;
+            this.flags = flags;
+            this.hardwareAddress = hardwareAddress;
+            this.device = device;
+        }
+
+        /**
+         * @return the IP address of the peer.
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the flags of the entry, 0 while the peer does not answer.
+         */
+        public int getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return the hardware address of the peer.
+         */
+        public String getHardwareAddress() {
+            return hardwareAddress;
+        }
+
+        /**
+         * @return the name of the interface of the entry.
+         */
+        public String getDevice() {
+            return device;
+        }
+
+        /**
+         * @return true if the hardware address of the peer is known, false for an incomplete entry.
+         */
+        public boolean isComplete() {
+            return (flags & FLAG_COMPLETE) != 0 && !NO_HARDWARE_ADDRESS.equals(hardwareAddress);
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + " " + hardwareAddress + " " + device
+                    + " flags=0x" + Integer.toHexString(flags);
+        }
+    }
+
+}
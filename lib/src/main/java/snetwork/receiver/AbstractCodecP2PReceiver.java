@@ -0,0 +1,149 @@
+package snetwork.receiver;
+
+import snetwork.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Same class as {@link AbstractP2PReceiver} but it works with generic objects encoded by a {@link MessageCodec}:
+ * the received messages are decoded straight from the receive buffer, without intermediate byte array.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public abstract class AbstractCodecP2PReceiver<T> extends AbstractP2PReceiver {
+
+    /**
+     * Codec of the messages.
+     */
+    private final MessageCodec<T> codec;
+
+    /**
+     * <i><b>AbstractCodecP2PReceiver</b></i>
+     *
+     * <pre> protected AbstractCodecP2PReceiver(int port, int timeout, {@link MessageCodec}&lt;T&gt; codec) </pre>
+     *
+     * Constructor of {@link AbstractCodecP2PReceiver}.
+     * @param port    the used port.
+     * @param timeout the socket timeout in milliseconds. timeout &lt;= 0 for no timeout.
+     * @param codec   the codec of the messages.
+     */
+    protected AbstractCodecP2PReceiver(int port, int timeout, MessageCodec<T> codec) {
+        super(port, timeout);
+        if (codec == null)
+            throw new IllegalArgumentException("The codec cannot be null.");
+        this.codec = codec;
+    }
+
+    /**
+     * <i><b>getCodec</b></i>
+     *
+     * <pre> public {@link MessageCodec}&lt;T&gt; getCodec() </pre>
+     *
+     * @return the codec of the messages.
+     */
+    public MessageCodec<T> getCodec() {
+        return codec;
+    }
+
+    /**
+     * <i><b>sendMessage</b></i>
+     *
+     * <pre> protected void sendMessage(T message) </pre>
+     *
+     * Encode a message straight into a datagram buffer and send it to the sender if the connection is up.
+     * @param message the message to send.
+     */
+    protected void sendMessage(T message) {
+        send(codec, message);
+    }
+
+    /**
+     * <i><b>publishMessage</b></i>
+     *
+     * <pre> protected void publishMessage(T message) </pre>
+     *
+     * Encode a message once and send it to all the members of the multicast group (see {@link #publish(byte[])}).
+     * @param message the message to send.
+     * @throws IllegalStateException if the link has no multicast group.
+     */
+    protected void publishMessage(T message) {
+        publish(codec, message);
+    }
+
+    /**
+     * <i><b>sendMessageAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; sendMessageAsync(T message) </pre>
+     *
+     * Encode a message and queue it for the sender.
+     * @param message the message to send.
+     * @return the future completed when the message is sent.
+     */
+    protected CompletableFuture<Void> sendMessageAsync(T message) {
+        return sendAsync(codec.encodeToBytes(message));
+    }
+
+    /**
+     * <i><b>isAcceptableConnection</b></i>
+     *
+     * <pre> protected boolean isAcceptableConnection(T receivedMessage) </pre>
+     *
+     * @param receivedMessage the received message.
+     * @return true if the received message is the waited message to start a connection, false otherwise.
+     */
+    protected abstract boolean isAcceptableConnection(T receivedMessage);
+
+    @Override
+    protected final boolean isAcceptableConnection(byte[] receivedMessage) {
+        return isAcceptableConnection( codec.decode(receivedMessage) );
+    }
+
+    /**
+     * <i><b>getEndConnectionTranslatedMessage</b></i>
+     *
+     * <pre> protected T getEndConnectionTranslatedMessage() </pre>
+     *
+     * @return the message which will be send to end a connection.
+     */
+    protected abstract T getEndConnectionTranslatedMessage();
+
+    @Override
+    protected final byte[] getEndConnectionMessage() {
+        return codec.encodeToBytes(getEndConnectionTranslatedMessage());
+    }
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening(T receivedMassage) </pre>
+     *
+     * The action to when a message is received.
+     * @param receivedMessage the received message.
+     */
+    protected abstract void onListening(T receivedMessage);
+
+    @Override
+    protected final void onListening(ByteBuffer receivedMessage) {
+        onListening( codec.decode(receivedMessage) );
+    }
+
+    @Override
+    protected final void onListening(byte[] receivedMessage) {
+        onListening( codec.decode(receivedMessage) );
+    }
+
+    /**
+     * <i><b>getAcceptConnectionTranslatedMessage</b></i>
+     *
+     * <pre> protected T getAcceptConnectionTranslatedMessage() </pre>
+     *
+     * @return the message which will be send as an ack on a successful connection.
+     */
+    protected abstract T getAcceptConnectionTranslatedMessage();
+
+    @Override
+    protected final byte[] getAcceptConnectionMessage() {
+        return codec.encodeToBytes(getAcceptConnectionTranslatedMessage());
+    }
+
+}
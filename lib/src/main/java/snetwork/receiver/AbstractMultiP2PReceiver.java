@@ -0,0 +1,550 @@
+package snetwork.receiver;
+
+import snetwork.AbstractP2PLink;
+import snetwork.FrameHeader;
+import snetwork.SuccessCallback;
+
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Abstract class for data fluxes from several senders with a Peer-to-Peer communication.
+ * This class is for the data receiver side: a session is opened for each accepted sender and new senders
+ * are accepted while the others keep sending.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public abstract class AbstractMultiP2PReceiver extends AbstractP2PLink {
+
+    /**
+     * Default maximum number of sessions.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+    /**
+     * Open sessions, by address of the sender.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Session> sessions;
+
+    /**
+     * Maximum number of sessions, the senders beyond it are ignored.
+     */
+    private final int maxSessions;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>AbstractMultiP2PReceiver</b></i>
+     *
+     * <pre> protected AbstractMultiP2PReceiver(int port, int timeout) </pre>
+     *
+     * Constructor of {@link AbstractMultiP2PReceiver} accepting at most {@link #DEFAULT_MAX_SESSIONS} sessions.
+     * @param port the used port.
+     * @param timeout the socket timeout in milliseconds: the receiver stops if no datagram is received
+     *                during it. timeout &lt;= 0 for no timeout.
+     */
+    protected AbstractMultiP2PReceiver(int port, int timeout) {
+        this(port, timeout, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * <i><b>AbstractMultiP2PReceiver</b></i>
+     *
+     * <pre> protected AbstractMultiP2PReceiver(int port, int timeout, int maxSessions) </pre>
+     *
+     * Constructor of {@link AbstractMultiP2PReceiver}.
+     * @param port the used port.
+     * @param timeout the socket timeout in milliseconds: the receiver stops if no datagram is received
+     *                during it. timeout &lt;= 0 for no timeout.
+     * @param maxSessions the maximum number of sessions.
+     */
+    protected AbstractMultiP2PReceiver(int port, int timeout, int maxSessions) {
+        super(port, timeout);
+        if (maxSessions <= 0)
+            throw new IllegalArgumentException("A receiver needs at least one session.");
+
+        this.maxSessions = maxSessions;
+        this.sessions = new ConcurrentHashMap<>(Math.min(maxSessions, 64), 0.75f,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /*******************************************/
+    /*             Initialization              */
+    /*******************************************/
+
+    /**
+     * <i><b>startProtocol</b></i>
+     *
+     * <pre> public void startProtocol({@link SuccessCallback} connectionCallback) </pre>
+     *
+     * Start to accept sessions.
+     * @param connectionCallback the function called with true once the receiver waits for senders.
+     */
+    @Override
+    public void startProtocol(SuccessCallback connectionCallback) throws BindException {
+        stopPeerConnection();
+        init();
+
+        connectionCallback.onResult(true);
+        startListening();
+    }
+
+    /**
+     * <i><b>searchPeer</b></i>
+     *
+     * <pre> protected boolean searchPeer() </pre>
+     *
+     * The senders are accepted while listening, so there is nothing to search.
+     * @return true.
+     */
+    @Override
+    protected boolean searchPeer() {
+        return true;
+    }
+
+    @Override
+    protected boolean isReadyToListen() {
+        return true;
+    }
+
+    /**
+     * <i><b>getSearchedFrameType</b></i>
+     *
+     * <pre> protected int getSearchedFrameType() </pre>
+     *
+     * @return {@link FrameHeader#CONNECT}, the connection message of the senders.
+     */
+    @Override
+    protected int getSearchedFrameType() {
+        return FrameHeader.CONNECT;
+    }
+
+    /*******************************************/
+    /*                Sessions                 */
+    /*******************************************/
+
+    /**
+     * <i><b>isConnected</b></i>
+     *
+     * <pre> public boolean isConnected() </pre>
+     *
+     * @return true if at least one session is open, false otherwise.
+     */
+    @Override
+    public boolean isConnected() {
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * <i><b>getSession</b></i>
+     *
+     * <pre> public {@link Session} getSession({@link InetSocketAddress} address) </pre>
+     *
+     * @param address the address of the sender.
+     * @return the open session of the sender, null if there is none.
+     */
+    public Session getSession(InetSocketAddress address) {
+        return sessions.get(address);
+    }
+
+    /**
+     * <i><b>isKnownPeer</b></i>
+     *
+     * <pre> protected boolean isKnownPeer({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address and the port of the link of a sender.
+     * @return true if the sender has an open session.
+     */
+    @Override
+    protected boolean isKnownPeer(InetSocketAddress peer) {
+        return sessions.containsKey(peer);
+    }
+
+    /**
+     * <i><b>getSessions</b></i>
+     *
+     * <pre> public {@link Collection}&lt;{@link Session}&gt; getSessions() </pre>
+     *
+     * @return a live read-only view of the open sessions.
+     */
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * <i><b>getSessionCount</b></i>
+     *
+     * <pre> public int getSessionCount() </pre>
+     *
+     * @return the number of open sessions.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /*******************************************/
+    /*                Listening                */
+    /*******************************************/
+
+    /**
+     * <i><b>handleDatagram</b></i>
+     *
+     * <pre> protected boolean handleDatagram({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the datagram to the session of its sender, or open a session if it is an acceptable
+     * connection message. A connection message of a sender with a session is acknowledged again.
+     * @param receivedMessage the received message, read-only.
+     * @param source the address of the message sender.
+     * @return true, the listening only stops with the receiver.
+     */
+    @Override
+    protected final boolean handleDatagram(ByteBuffer receivedMessage, InetSocketAddress source) {
+        Session session = sessions.get(source);
+
+        int type = FrameHeader.getType(receivedMessage);
+
+        if (session == null) {
+            if (type == FrameHeader.CONNECT)
+                acceptSession(FrameHeader.skip(receivedMessage), source);
+            else
+                countRejected();
+
+        } else if (type == FrameHeader.CONNECT) {
+            /* The ack was lost: the sender is still searching */
+            sendControl(FrameHeader.ACCEPT, getAcceptConnectionMessage(), source);
+
+        } else if (type == FrameHeader.END) {
+            endSession(session, false);
+
+        } else if (type == FrameHeader.DATA) {
+            receive(FrameHeader.skip(receivedMessage), source);
+
+        } else if (type == FrameHeader.FILE) {
+            receiveFile(receivedMessage, source);
+
+        } else if (type < 0) {
+            countRejected();
+        }
+
+        return true;
+    }
+
+    /**
+     * <i><b>acceptSession</b></i>
+     *
+     * <pre> private void acceptSession({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Open a session and send an ack if the message of an unknown sender is acceptable.
+     * @param receivedMessage the received message.
+     * @param source the address of the message sender.
+     */
+    private void acceptSession(ByteBuffer receivedMessage, InetSocketAddress source) {
+        if (sessions.size() >= maxSessions) {
+            countRejected();
+            return;
+        }
+
+        byte[] message = new byte[receivedMessage.remaining()];
+        receivedMessage.get(message);
+        if (!isAcceptableConnection(message)) {
+            countRejected();
+            return;
+        }
+
+        Session session = new Session(source);
+        sessions.put(source, session);
+
+        /* Send an ack */
+        sendControl(FrameHeader.ACCEPT, getAcceptConnectionMessage(), source);
+        monitorPeer(source);
+
+        onSessionStart(session);
+    }
+
+    /**
+     * <i><b>endSession</b></i>
+     *
+     * <pre> private void endSession({@link Session} session, boolean notifyPeer) </pre>
+     *
+     * Close a session.
+     * @param session the session to close.
+     * @param notifyPeer true to send the end connection message to the sender.
+     */
+    private void endSession(Session session, boolean notifyPeer) {
+        if (!sessions.remove(session.address, session))
+            return;
+
+        session.open = false;
+        if (notifyPeer)
+            sendControl(FrameHeader.END, getEndConnectionMessage(), session.address);
+        peerClosed(session.address);
+
+        onSessionEnd(session);
+    }
+
+    /**
+     * <i><b>onPeerSuspected</b></i>
+     *
+     * <pre> protected void onPeerSuspected({@link InetSocketAddress} peer) </pre>
+     *
+     * Close the session of a sender silent for too long, without waiting for its end message.
+     * @param peer the address of the suspected sender.
+     */
+    @Override
+    protected void onPeerSuspected(InetSocketAddress peer) {
+        Session session = sessions.get(peer);
+        if (session != null)
+            endSession(session, true);
+    }
+
+    /**
+     * <i><b>deliver</b></i>
+     *
+     * <pre> protected void deliver({@link ByteBuffer} receivedMessage, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a message coming out of the pipeline to {@link #onListening(Session, ByteBuffer)}.
+     * @param receivedMessage the received message.
+     * @param source the address of the message sender.
+     */
+    @Override
+    protected final void deliver(ByteBuffer receivedMessage, InetSocketAddress source) {
+        Session session = sessions.get(source);
+        if (session != null)
+            onListening(session, receivedMessage);
+    }
+
+    /*******************************************/
+    /*                   End                   */
+    /*******************************************/
+
+    /**
+     * <i><b>finish</b></i>
+     *
+     * <pre> protected void finish() </pre>
+     *
+     * Send the end connection message to all the senders.
+     */
+    @Override
+    protected void finish() {
+        List<Session> closedSessions = new ArrayList<>(sessions.values());
+        List<InetSocketAddress> addresses = new ArrayList<>(closedSessions.size());
+        for (Session session : closedSessions) {
+            if (sessions.remove(session.address, session)) {
+                session.open = false;
+                addresses.add(session.address);
+            }
+        }
+
+        if (!addresses.isEmpty())
+            closeConnections(addresses);
+
+        for (Session session : closedSessions)
+            onSessionEnd(session);
+    }
+
+    /*******************************************/
+    /*                Abstract                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getAcceptConnectionMessage</b></i>
+     *
+     * <pre> protected byte[] getAcceptConnectionMessage() </pre>
+     *
+     * @return the message which will be send as an ack on a successful connection.
+     */
+    protected abstract byte[] getAcceptConnectionMessage();
+
+    /**
+     * <i><b>onSessionStart</b></i>
+     *
+     * <pre> protected void onSessionStart({@link Session} session) </pre>
+     *
+     * The action to do when a sender is accepted.
+     * @param session the new session.
+     */
+    @SuppressWarnings("EmptyMethod")
+    protected void onSessionStart(Session session) {
+        /* do nothing */
+    }
+
+    /**
+     * <i><b>onSessionEnd</b></i>
+     *
+     * <pre> protected void onSessionEnd({@link Session} session) </pre>
+     *
+     * The action to do when a session is closed, by the sender or by the receiver.
+     * @param session the closed session.
+     */
+    @SuppressWarnings("EmptyMethod")
+    protected void onSessionEnd(Session session) {
+        /* do nothing */
+    }
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening({@link Session} session, {@link ByteBuffer} receivedMessage) </pre>
+     *
+     * The action to when a message is received from a sender, without copy of the received datagram.
+     * The message is only valid during the call and must be copied to be kept.
+     * By default, copy the message and call {@link #onListening(Session, byte[])}.
+     * @param session the session of the sender.
+     * @param receivedMessage the received message, from its position to its limit.
+     */
+    protected void onListening(Session session, ByteBuffer receivedMessage) {
+        byte[] message = new byte[receivedMessage.remaining()];
+        receivedMessage.get(message);
+        onListening(session, message);
+    }
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening({@link Session} session, byte[] receivedMessage) </pre>
+     *
+     * The action to when a message is received from a sender, called by
+     * {@link #onListening(Session, ByteBuffer)} unless it is overridden.
+     * @param session the session of the sender.
+     * @param receivedMessage the received message.
+     */
+    protected abstract void onListening(Session session, byte[] receivedMessage);
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening(byte[] receivedMessage) </pre>
+     *
+     * Not called: the messages are given to {@link #onListening(Session, ByteBuffer)} with the session of their
+     * sender.
+     * @param receivedMessage the received message.
+     */
+    @Override
+    protected final void onListening(byte[] receivedMessage) {
+        /* do nothing */
+    }
+
+    /*******************************************/
+    /*                 Session                 */
+    /*******************************************/
+
+    /**
+     * Connection with one sender.
+     */
+    public final class Session {
+
+        /**
+         * Address of the sender.
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * Time of the acceptance of the sender, in milliseconds.
+         */
+        private final long startTime;
+
+        /**
+         * Object attached to the session by the application.
+         */
+        private volatile Object context;
+
+        /**
+         * False once the session is closed.
+         */
+        private volatile boolean open = true;
+
+        private Session(InetSocketAddress address) {
+            this.address = address;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * <i><b>getAddress</b></i>
+         *
+         * <pre> public {@link InetSocketAddress} getAddress() </pre>
+         *
+         * @return the address of the sender.
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * <i><b>getStartTime</b></i>
+         *
+         * <pre> public long getStartTime() </pre>
+         *
+         * @return the time of the acceptance of the sender, in milliseconds.
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * <i><b>getContext</b></i>
+         *
+         * <pre> public {@link Object} getContext() </pre>
+         *
+         * @return the object attached to the session, null if there is none.
+         */
+        public Object getContext() {
+            return context;
+        }
+
+        /**
+         * <i><b>setContext</b></i>
+         *
+         * <pre> public void setContext({@link Object} context) </pre>
+         *
+         * Attach an object to the session, for example the state of the listening of this sender.
+         * @param context the object to attach.
+         */
+        public void setContext(Object context) {
+            this.context = context;
+        }
+
+        /**
+         * <i><b>isOpen</b></i>
+         *
+         * <pre> public boolean isOpen() </pre>
+         *
+         * @return true if the session is open, false otherwise.
+         */
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * <i><b>send</b></i>
+         *
+         * <pre> public void send(byte[] message) </pre>
+         *
+         * Send a message to the sender if the session is open.
+         * @param message the message to send.
+         */
+        public void send(byte[] message) {
+            if (open)
+                AbstractMultiP2PReceiver.this.send(message, address);
+        }
+
+        /**
+         * <i><b>close</b></i>
+         *
+         * <pre> public void close() </pre>
+         *
+         * Close the session and send the end connection message to the sender.
+         */
+        public void close() {
+            endSession(this, true);
+        }
+
+    }
+
+}
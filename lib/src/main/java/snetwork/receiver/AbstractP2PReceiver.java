@@ -1,12 +1,14 @@
 package snetwork.receiver;
 
 import snetwork.AbstractP2PLink;
+import snetwork.FrameHeader;
 import snetwork.SuccessCallback;
 
 import java.io.IOException;
 import java.net.BindException;
 import java.net.DatagramPacket;
-import java.util.Arrays;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
  * Abstract class for an unilateral data flux with a Peer-to-Peer communication.
@@ -47,7 +49,22 @@ public abstract class AbstractP2PReceiver extends AbstractP2PLink {
         init();
 
         this.connectionCallback = connectionCallback;
-        getBackgroundThread().start();
+
+        if (isEventLoopMode()) {
+            searchPeerAsync(success -> {
+                if (!success) {
+                    finish();
+                    connectionCallback.onResult(false);
+                    return;
+                }
+
+                connectionCallback.onResult(true);
+                startListening();
+            });
+            return;
+        }
+
+        startListening();
     }
 
     @Override
@@ -90,43 +107,72 @@ public abstract class AbstractP2PReceiver extends AbstractP2PLink {
      */
     @Override
     protected synchronized boolean searchPeer() {
+        ByteBuffer receiveBuffer = acquireArrayBuffer();
         try {
 
-            byte[] buffer;
-            DatagramPacket packet = null;
+            DatagramPacket packet = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
 
             Thread backgroundThread = getBackgroundThread();
 
             /* Wait for a valid packet */
             while (!backgroundThread.isInterrupted()) {
-                buffer = new byte[1000];
-                packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(receiveBuffer.capacity());
 
                 getSocket().receive(packet);
+                if (backgroundThread.isInterrupted())
+                    return false;
+                countReceived(packet.getLength(), receiveBuffer.capacity());
 
-                buffer = Arrays.copyOf(buffer, packet.getLength());
+                receiveBuffer.clear();
+                receiveBuffer.limit(packet.getLength());
 
-                if (isAcceptableConnection(buffer))
-                    break;
+                if (acceptFrame(receiveBuffer, packet.getAddress()))
+                    return !backgroundThread.isInterrupted();
             }
 
-            if (backgroundThread.isInterrupted()) {
-                return false;
-            }
-
-            /* Set attributes */
-            setConnectedAddress(packet.getAddress());
-
-            /* Send an ack */
-            send(getAcceptConnectionMessage());
-
-            return true;
+            return false;
 
         } catch (IOException e) {
             return false;
+
+        } finally {
+            releaseBuffer(receiveBuffer);
         }
     }
 
+    /**
+     * <i><b>acceptPeer</b></i>
+     *
+     * <pre> protected boolean acceptPeer(byte[] receivedMessage, {@link InetAddress} source) </pre>
+     *
+     * Set the source as the sender and send it an ack if the received message is acceptable.
+     * @param receivedMessage the message received while searching a peer.
+     * @param source the address of the message sender.
+     * @return true if the source is now the connected peer, false otherwise.
+     */
+    @Override
+    protected boolean acceptPeer(byte[] receivedMessage, InetAddress source) {
+        if (!super.acceptPeer(receivedMessage, source))
+            return false;
+
+        /* Send an ack */
+        sendControl(FrameHeader.ACCEPT, getAcceptConnectionMessage(), source);
+
+        return true;
+    }
+
+    /**
+     * <i><b>getSearchedFrameType</b></i>
+     *
+     * <pre> protected int getSearchedFrameType() </pre>
+     *
+     * @return {@link FrameHeader#CONNECT}, the receiver waits for the connection message of a sender.
+     */
+    @Override
+    protected int getSearchedFrameType() {
+        return FrameHeader.CONNECT;
+    }
+
     /**
      * <i><b>getAcceptConnectionMessage</b></i>
      *
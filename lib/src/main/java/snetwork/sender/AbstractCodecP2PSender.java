@@ -0,0 +1,149 @@
+package snetwork.sender;
+
+import snetwork.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Same class as {@link AbstractP2PSender} but it works with generic objects encoded by a {@link MessageCodec}:
+ * the received messages are decoded straight from the receive buffer, without intermediate byte array.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public abstract class AbstractCodecP2PSender<T> extends AbstractP2PSender {
+
+    /**
+     * Codec of the messages.
+     */
+    private final MessageCodec<T> codec;
+
+    /**
+     * <i><b>AbstractCodecP2PSender</b></i>
+     *
+     * <pre> protected AbstractCodecP2PSender(int port, int timeout, {@link MessageCodec}&lt;T&gt; codec) </pre>
+     *
+     * Constructor of {@link AbstractCodecP2PSender}.
+     * @param port    the used port.
+     * @param timeout the socket timeout in milliseconds for the search of peers.
+     * @param codec   the codec of the messages.
+     */
+    protected AbstractCodecP2PSender(int port, int timeout, MessageCodec<T> codec) {
+        super(port, timeout);
+        if (codec == null)
+            throw new IllegalArgumentException("The codec cannot be null.");
+        this.codec = codec;
+    }
+
+    /**
+     * <i><b>getCodec</b></i>
+     *
+     * <pre> public {@link MessageCodec}&lt;T&gt; getCodec() </pre>
+     *
+     * @return the codec of the messages.
+     */
+    public MessageCodec<T> getCodec() {
+        return codec;
+    }
+
+    /**
+     * <i><b>sendMessage</b></i>
+     *
+     * <pre> protected void sendMessage(T message) </pre>
+     *
+     * Encode a message straight into a datagram buffer and send it to the receiver if the connection is up.
+     * @param message the message to send.
+     */
+    protected void sendMessage(T message) {
+        send(codec, message);
+    }
+
+    /**
+     * <i><b>publishMessage</b></i>
+     *
+     * <pre> protected void publishMessage(T message) </pre>
+     *
+     * Encode a message once and send it to all the members of the multicast group (see {@link #publish(byte[])}).
+     * @param message the message to send.
+     * @throws IllegalStateException if the link has no multicast group.
+     */
+    protected void publishMessage(T message) {
+        publish(codec, message);
+    }
+
+    /**
+     * <i><b>sendMessageAsync</b></i>
+     *
+     * <pre> protected {@link CompletableFuture}&lt;{@link Void}&gt; sendMessageAsync(T message) </pre>
+     *
+     * Encode a message and queue it for the receiver.
+     * @param message the message to send.
+     * @return the future completed when the message is sent.
+     */
+    protected CompletableFuture<Void> sendMessageAsync(T message) {
+        return sendAsync(codec.encodeToBytes(message));
+    }
+
+    /**
+     * <i><b>isAcceptableConnection</b></i>
+     *
+     * <pre> protected boolean isAcceptableConnection(T receivedMessage) </pre>
+     *
+     * @param receivedMessage the received message.
+     * @return true if the received message is the waited message to start a connection, false otherwise.
+     */
+    protected abstract boolean isAcceptableConnection(T receivedMessage);
+
+    @Override
+    protected final boolean isAcceptableConnection(byte[] receivedMessage) {
+        return isAcceptableConnection( codec.decode(receivedMessage) );
+    }
+
+    /**
+     * <i><b>getEndConnectionTranslatedMessage</b></i>
+     *
+     * <pre> protected T getEndConnectionTranslatedMessage() </pre>
+     *
+     * @return the message which will be send to end a connection.
+     */
+    protected abstract T getEndConnectionTranslatedMessage();
+
+    @Override
+    protected final byte[] getEndConnectionMessage() {
+        return codec.encodeToBytes(getEndConnectionTranslatedMessage());
+    }
+
+    /**
+     * <i><b>onListening</b></i>
+     *
+     * <pre> protected void onListening(T receivedMassage) </pre>
+     *
+     * The action to when a message is received.
+     * @param receivedMessage the received message.
+     */
+    protected abstract void onListening(T receivedMessage);
+
+    @Override
+    protected final void onListening(ByteBuffer receivedMessage) {
+        onListening( codec.decode(receivedMessage) );
+    }
+
+    @Override
+    protected final void onListening(byte[] receivedMessage) {
+        onListening( codec.decode(receivedMessage) );
+    }
+
+    /**
+     * <i><b>getConnectionTranslatedMessage</b></i>
+     *
+     * <pre> protected T getConnectionTranslatedMessage() </pre>
+     *
+     * @return the message which will be send as a start connection message.
+     */
+    protected abstract T getConnectionTranslatedMessage();
+
+    @Override
+    protected final byte[] getConnectionMessage() {
+        return codec.encodeToBytes(getConnectionTranslatedMessage());
+    }
+
+}
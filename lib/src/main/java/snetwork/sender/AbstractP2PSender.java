@@ -1,17 +1,46 @@
 package snetwork.sender;
 
 import snetwork.AbstractP2PLink;
+import snetwork.FrameHeader;
 import snetwork.SuccessCallback;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractP2PSender extends AbstractP2PLink {
 
+    /**
+     * Default time in milliseconds after the first round of probes.
+     */
+    public static final long DEFAULT_INITIAL_PROBE_INTERVAL = 100;
+
+    /**
+     * Default maximum time in milliseconds between two rounds of probes.
+     */
+    public static final long DEFAULT_MAX_PROBE_INTERVAL = 1000;
+
+    /**
+     * Time in milliseconds after the first round of probes.
+     */
+    private long initialProbeInterval = DEFAULT_INITIAL_PROBE_INTERVAL;
+
+    /**
+     * Maximum time in milliseconds between two rounds of probes.
+     */
+    private long maxProbeInterval = DEFAULT_MAX_PROBE_INTERVAL;
+
+    /**
+     * Cache of the recently accepted peers, null if there is none.
+     */
+    private volatile PeerCache peerCache;
+
     /**
      * <i><b>AbstractP2PSender</b></i>
      *
@@ -26,6 +55,55 @@ public abstract class AbstractP2PSender extends AbstractP2PLink {
         super(port, timeout);
     }
 
+    /*******************************************/
+    /*               Discovery                 */
+    /*******************************************/
+
+    /**
+     * <i><b>setProbeIntervals</b></i>
+     *
+     * <pre> public void setProbeIntervals(long initialProbeInterval, long maxProbeInterval) </pre>
+     *
+     * Set the time between two rounds of probes. The interval doubles after each round.
+     * @param initialProbeInterval the time in milliseconds after the first round.
+     * @param maxProbeInterval the maximum time in milliseconds between two rounds.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setProbeIntervals(long initialProbeInterval, long maxProbeInterval) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its probe intervals.");
+        if(initialProbeInterval <= 0 || maxProbeInterval < initialProbeInterval)
+            throw new IllegalArgumentException("The probe intervals must be positive and increasing.");
+        this.initialProbeInterval = initialProbeInterval;
+        this.maxProbeInterval = maxProbeInterval;
+    }
+
+    /**
+     * <i><b>setPeerCache</b></i>
+     *
+     * <pre> public void setPeerCache({@link PeerCache} peerCache) </pre>
+     *
+     * Set the cache of the recently accepted peers, probed by unicast before the other addresses.
+     * @param peerCache the cache, null to always search from scratch.
+     * @throws IllegalStateException if the link is started.
+     */
+    public void setPeerCache(PeerCache peerCache) {
+        if(isStarted())
+            throw new IllegalStateException("The link is started. Close it to change its peer cache.");
+        this.peerCache = peerCache;
+    }
+
+    /**
+     * <i><b>getPeerCache</b></i>
+     *
+     * <pre> public {@link PeerCache} getPeerCache() </pre>
+     *
+     * @return the cache of the recently accepted peers, null if there is none.
+     */
+    public PeerCache getPeerCache() {
+        return peerCache;
+    }
+
     @Override
     public void startProtocol(SuccessCallback connectionCallback) throws BindException {
         stopPeerConnection();
@@ -44,7 +122,7 @@ public abstract class AbstractP2PSender extends AbstractP2PLink {
         }
 
         connectionCallback.onResult(true);
-        getBackgroundThread().start();
+        startListening();
     }
 
     /**
@@ -65,18 +143,41 @@ public abstract class AbstractP2PSender extends AbstractP2PLink {
      *
      * <pre> protected boolean searchPeer({@link List}&lt;{@link InetAddress}&gt; addresses) </pre>
      *
-     * Search and set a peer to be the sender.
+     * Search and set a peer to be the receiver. The peers of the {@link PeerCache} are probed by unicast first,
+     * then all the addresses are probed at once, again and again with an increasing interval, until the first
+     * acceptable answer or the end of the socket timeout.
      * @param addresses the of of potential peers addresses.
-     *                  If null, use all the addresses that are in the local network.
+     *                  If null, use the multicast group of the link, or else all the broadcast addresses
+     *                  of the local network.
      * @return true if a peer is found, otherwise false.
      */
     protected boolean searchPeer(List<InetAddress> addresses) {
+        return searchPeer(addresses, Integer.MAX_VALUE);
+    }
 
-        // Search; udp socket.
-        DatagramPacket packet;
-        byte[] buf = getConnectionMessage();
+    /**
+     * <i><b>searchPeer</b></i>
+     *
+     * <pre> protected boolean searchPeer({@link List}&lt;{@link InetAddress}&gt; addresses, int maxConcurrentProbes) </pre>
+     *
+     * Search and set a peer to be the receiver like {@link #searchPeer(List)}, but send at most the given number
+     * of probes at once: each round probes the next addresses of the list, and the interval increases after
+     * all the addresses have been probed.
+     * @param addresses the of of potential peers addresses.
+     *                  If null, use the multicast group of the link, or else all the broadcast addresses
+     *                  of the local network.
+     * @param maxConcurrentProbes the maximum number of addresses probed in a round.
+     * @return true if a peer is found, otherwise false.
+     */
+    protected boolean searchPeer(List<InetAddress> addresses, int maxConcurrentProbes) {
+        if(maxConcurrentProbes <= 0)
+            throw new IllegalArgumentException("The number of concurrent probes must be positive.");
+
+        byte[] probe = getConnectionMessage();
 
-        if(addresses == null) {
+        if(addresses == null && getMulticastGroup() != null) {
+            addresses = Collections.singletonList(getMulticastGroup());
+        } else if(addresses == null) {
             try {
                 addresses = listAllBroadcastAddresses();
             } catch (SocketException e) {
@@ -85,32 +186,83 @@ public abstract class AbstractP2PSender extends AbstractP2PLink {
             }
         }
 
+        int searchTimeout;
+        try {
+            searchTimeout = getSocket().getSoTimeout();
+        } catch (SocketException e) {
+            e.printStackTrace();
+            return false;
+        }
+        long deadline = searchTimeout > 0 ? System.currentTimeMillis() + searchTimeout : Long.MAX_VALUE;
+
+        PeerCache cache = peerCache;
+        List<InetAddress> cachedPeers = cache == null ? Collections.<InetAddress>emptyList() : cache.getPeers();
+        List<InetAddress> allAddresses = new ArrayList<>(cachedPeers);
         for (InetAddress address : addresses) {
-            send(buf, address);
-            System.out.println(getClass().getName() + "Broadcast packet sent to: " + address.getHostAddress());
+            if (!allAddresses.contains(address))
+                allAddresses.add(address);
         }
 
-        while (true) {
-            try {
-                buf = new byte[1000];
-                packet = new DatagramPacket(buf, buf.length);
+        AnswerWaiter waiter = isEventLoopMode() ? new LoopAnswerWaiter() : new SocketAnswerWaiter();
+        boolean found;
+        try {
+            found = probe(probe, cachedPeers, allAddresses, maxConcurrentProbes, deadline, waiter);
+        } finally {
+            waiter.close(searchTimeout);
+        }
 
-                getSocket().receive(packet);
+        InetAddress peer = getConnectedAddress();
+        if (found && cache != null && peer != null)
+            cache.remember(peer);
 
-                buf = Arrays.copyOf(buf, packet.getLength());
+        return found;
+    }
 
-                if (isAcceptableConnection(buf)) {
-                    setConnectedAddress(packet.getAddress());
-                    return true;
-                }
+    /**
+     * <i><b>probe</b></i>
+     *
+     * <pre> private boolean probe(byte[] probe, {@link List}&lt;{@link InetAddress}&gt; cachedPeers, {@link List}&lt;{@link InetAddress}&gt; addresses, int maxConcurrentProbes, long deadline, AnswerWaiter waiter) </pre>
+     *
+     * Send the probes by rounds and wait for an answer between the rounds.
+     * @param probe the connection message.
+     * @param cachedPeers the peers probed alone in the first round.
+     * @param addresses the addresses probed in the next rounds.
+     * @param maxConcurrentProbes the maximum number of addresses probed in a round.
+     * @param deadline the time at which the search fails.
+     * @param waiter the way to wait for an answer.
+     * @return true if a peer is found, otherwise false.
+     */
+    private boolean probe(byte[] probe, List<InetAddress> cachedPeers, List<InetAddress> addresses,
+                          int maxConcurrentProbes, long deadline, AnswerWaiter waiter) {
+        long interval = initialProbeInterval;
+        boolean firstRound = !cachedPeers.isEmpty();
+        int next = 0;
 
-            } catch (SocketTimeoutException e) {
-                return false;
+        while (true) {
+            List<InetAddress> probed;
+            if (firstRound) {
+                probed = cachedPeers.subList(0, Math.min(cachedPeers.size(), maxConcurrentProbes));
+            } else {
+                int end = (int) Math.min(addresses.size(), (long) next + maxConcurrentProbes);
+                probed = addresses.subList(next, end);
+                next = end < addresses.size() ? end : 0;
+            }
 
-            }catch (IOException e) {
-                System.out.println(e.getMessage());
+            for (InetAddress address : probed)
+                sendControl(FrameHeader.CONNECT, probe, address);
+
+            long now = System.currentTimeMillis();
+            if (now >= deadline)
                 return false;
-            }
+
+            int answer = waiter.await(Math.min(interval, deadline - now));
+            if (answer != AnswerWaiter.NONE)
+                return answer == AnswerWaiter.FOUND;
+
+            /* The interval increases once all the addresses have been probed */
+            if (!firstRound && next == 0)
+                interval = Math.min(interval * 2, maxProbeInterval);
+            firstRound = false;
         }
     }
 
@@ -155,4 +307,127 @@ public abstract class AbstractP2PSender extends AbstractP2PLink {
      */
     protected abstract byte[] getConnectionMessage();
 
+    /**
+     * <i><b>getSearchedFrameType</b></i>
+     *
+     * <pre> protected int getSearchedFrameType() </pre>
+     *
+     * @return {@link FrameHeader#ACCEPT}, the sender waits for the ack of a receiver.
+     */
+    @Override
+    protected int getSearchedFrameType() {
+        return FrameHeader.ACCEPT;
+    }
+
+    /**
+     * Wait for the answer of a receiver between two rounds of probes.
+     */
+    private interface AnswerWaiter {
+
+        int NONE = 0;
+
+        int FOUND = 1;
+
+        int FAILED = 2;
+
+        /**
+         * @param millis the maximum time to wait.
+         * @return {@link #FOUND} if a peer is accepted, {@link #FAILED} if the search cannot go on,
+         * {@link #NONE} if no peer answered in time.
+         */
+        int await(long millis);
+
+        /**
+         * End the search.
+         * @param searchTimeout the socket timeout to restore.
+         */
+        void close(int searchTimeout);
+    }
+
+    /**
+     * Answers received with the blocking socket.
+     */
+    private final class SocketAnswerWaiter implements AnswerWaiter {
+
+        private final ByteBuffer receiveBuffer = acquireArrayBuffer();
+
+        private final DatagramPacket packet = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+
+        @Override
+        public int await(long millis) {
+            long end = System.currentTimeMillis() + millis;
+            try {
+                while (true) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return NONE;
+
+                    getSocket().setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+                    packet.setLength(receiveBuffer.capacity());
+                    getSocket().receive(packet);
+                    countReceived(packet.getLength(), receiveBuffer.capacity());
+
+                    receiveBuffer.clear();
+                    receiveBuffer.limit(packet.getLength());
+
+                    if (acceptFrame(receiveBuffer, packet.getAddress()))
+                        return FOUND;
+                }
+
+            } catch (SocketTimeoutException e) {
+                return NONE;
+
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                return FAILED;
+            }
+        }
+
+        @Override
+        public void close(int searchTimeout) {
+            releaseBuffer(receiveBuffer);
+            try {
+                if (!getSocket().isClosed())
+                    getSocket().setSoTimeout(searchTimeout);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answers received by the event loop.
+     */
+    private final class LoopAnswerWaiter implements AnswerWaiter {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile boolean found;
+
+        LoopAnswerWaiter() {
+            searchPeerAsync(success -> {
+                found = success;
+                done.countDown();
+            });
+        }
+
+        @Override
+        public int await(long millis) {
+            try {
+                if (!done.await(millis, TimeUnit.MILLISECONDS))
+                    return NONE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return FAILED;
+            }
+            return found ? FOUND : FAILED;
+        }
+
+        @Override
+        public void close(int searchTimeout) {
+            if (done.getCount() > 0)
+                cancelSearch();
+        }
+    }
+
 }
@@ -1,5 +1,9 @@
 package snetwork.sender;
 
+import snetwork.StringCodec;
+
+import java.nio.ByteBuffer;
+
 public abstract class AbstractStringP2PSender extends AbstractGenericP2PSender<String> {
 
     /**
@@ -22,11 +26,11 @@ public abstract class AbstractStringP2PSender extends AbstractGenericP2PSender<S
      * <pre> protected String translateFromBytes(byte[] message) </pre>
      *
      * @param message the message to translate.
-     * @return the String obtained from the message.
+     * @return the String obtained from the UTF-8 message.
      */
     @Override
     public String translateFromBytes(byte[] message) {
-        return new String(message);
+        return StringCodec.UTF_8.decode(message);
     }
 
     /**
@@ -35,11 +39,25 @@ public abstract class AbstractStringP2PSender extends AbstractGenericP2PSender<S
      * <pre> protected byte[] translateToBytes(String message) </pre>
      *
      * @param message the message to translate.
-     * @return the byte array obtained from the message.
+     * @return the UTF-8 byte array obtained from the message.
      */
     @Override
     public byte[] translateToBytes(String message) {
-        return message.getBytes();
+        return StringCodec.UTF_8.encodeToBytes(message);
+    }
+
+    /**
+     * <i><b>translateFromBuffer</b></i>
+     *
+     * <pre> protected String translateFromBuffer({@link ByteBuffer} message) </pre>
+     *
+     * Decode the received message straight from the receive buffer.
+     * @param message the message to translate.
+     * @return the String obtained from the UTF-8 message.
+     */
+    @Override
+    protected String translateFromBuffer(ByteBuffer message) {
+        return StringCodec.UTF_8.decode(message);
     }
 
 }
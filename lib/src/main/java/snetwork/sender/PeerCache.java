@@ -0,0 +1,228 @@
+package snetwork.sender;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Small file of the peers recently accepted by a sender, the most recent first. The sender probes them by
+ * unicast before broadcasting, so that a reconnection to a known peer does not wait for the whole search.
+ * <p>
+ * The file holds one IP address per line.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class PeerCache {
+
+    /**
+     * Default maximum number of peers kept.
+     */
+    public static final int DEFAULT_MAX_PEERS = 8;
+
+    /**
+     * Literal IPv4 address.
+     */
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    /**
+     * Literal IPv6 address, with an optional scope.
+     */
+    private static final Pattern IPV6 = Pattern.compile("[0-9a-fA-F.:]*:[0-9a-fA-F.:]*(%[0-9a-zA-Z_.]+)?");
+
+    /**
+     * File of the cache.
+     */
+    private final File file;
+
+    /**
+     * Maximum number of peers kept.
+     */
+    private final int maxPeers;
+
+    /**
+     * Peers, the most recent first.
+     */
+    private final List<InetAddress> peers = new ArrayList<>();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>PeerCache</b></i>
+     *
+     * <pre> public PeerCache({@link File} file) </pre>
+     *
+     * Constructor of {@link PeerCache} keeping up to {@link #DEFAULT_MAX_PEERS} peers.
+     * @param file the file of the cache, created on the first accepted peer.
+     */
+    public PeerCache(File file) {
+        this(file, DEFAULT_MAX_PEERS);
+    }
+
+    /**
+     * <i><b>PeerCache</b></i>
+     *
+     * <pre> public PeerCache({@link File} file, int maxPeers) </pre>
+     *
+     * Constructor of {@link PeerCache}. The peers already in the file are loaded.
+     * @param file the file of the cache, created on the first accepted peer.
+     * @param maxPeers the maximum number of peers kept.
+     */
+    public PeerCache(File file, int maxPeers) {
+        if (file == null)
+            throw new IllegalArgumentException("The file cannot be null.");
+        if (maxPeers <= 0)
+            throw new IllegalArgumentException("The maximum number of peers must be positive.");
+
+        this.file = file;
+        this.maxPeers = maxPeers;
+        load();
+    }
+
+    /*******************************************/
+    /*                  Peers                  */
+    /*******************************************/
+
+    /**
+     * <i><b>getPeers</b></i>
+     *
+     * <pre> public synchronized {@link List}&lt;{@link InetAddress}&gt; getPeers() </pre>
+     *
+     * @return the peers, the most recent first.
+     */
+    public synchronized List<InetAddress> getPeers() {
+        return Collections.unmodifiableList(new ArrayList<>(peers));
+    }
+
+    /**
+     * <i><b>remember</b></i>
+     *
+     * <pre> public synchronized void remember({@link InetAddress} peer) </pre>
+     *
+     * Put a peer first in the cache and save the file.
+     * @param peer the accepted peer.
+     */
+    public synchronized void remember(InetAddress peer) {
+        if (!peers.isEmpty() && peers.get(0).equals(peer))
+            return;
+
+        peers.remove(peer);
+        peers.add(0, peer);
+        while (peers.size() > maxPeers)
+            peers.remove(peers.size() - 1);
+
+        save();
+    }
+
+    /**
+     * <i><b>clear</b></i>
+     *
+     * <pre> public synchronized void clear() </pre>
+     *
+     * Forget all the peers and delete the file.
+     */
+    public synchronized void clear() {
+        peers.clear();
+        if (file.exists() && !file.delete())
+            System.out.println("Cannot delete the peer cache " + file);
+    }
+
+    /*******************************************/
+    /*                  File                   */
+    /*******************************************/
+
+    /**
+     * <i><b>load</b></i>
+     *
+     * <pre> private void load() </pre>
+     *
+     * Read the peers of the file, ignoring the lines which are not IP addresses.
+     */
+    private void load() {
+        if (!file.exists())
+            return;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = reader.readLine()) != null && peers.size() < maxPeers) {
+                InetAddress peer = parseLiteral(line.trim());
+                if (peer != null && !peers.contains(peer))
+                    peers.add(peer);
+            }
+
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * <i><b>parseLiteral</b></i>
+     *
+     * <pre> public static {@link InetAddress} parseLiteral({@link String} line) </pre>
+     *
+     * Read a literal IP address without ever resolving a name: a hexadecimal word such as {@code cafe} is not an
+     * address.
+     * @param line the text of the address, without spaces.
+     * @return the address, null if the text is not a valid literal address.
+     */
+    public static InetAddress parseLiteral(String line) {
+        try {
+            if (IPV4.matcher(line).matches()) {
+                String[] parts = line.split("\\.");
+                byte[] address = new byte[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    int part = Integer.parseInt(parts[i]);
+                    if (part > 0xFF)
+                        return null;
+                    address[i] = (byte) part;
+                }
+                return InetAddress.getByAddress(address);
+            }
+
+            /* Between brackets, an invalid IPv6 literal fails instead of being resolved as a name */
+            if (IPV6.matcher(line).matches())
+                return InetAddress.getByName("[" + line + "]");
+
+        } catch (UnknownHostException e) {
+            /* Ignored like the other invalid lines */
+        }
+        return null;
+    }
+
+    /**
+     * <i><b>save</b></i>
+     *
+     * <pre> private void save() </pre>
+     *
+     * Write the peers in a temporary file, then replace the file with it.
+     */
+    private void save() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+            for (InetAddress peer : peers)
+                writer.write(peer.getHostAddress() + "\n");
+
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+            System.out.println("Cannot save the peer cache " + file);
+    }
+
+}
@@ -0,0 +1,260 @@
+package snetwork.sim;
+
+/**
+ * Conditions of one direction of a simulated link: latency, jitter, loss, duplication, reordering and bandwidth.
+ * The setters return the conditions, so they can be chained:
+ * <pre>
+ * new LinkConditions().setLatency(40).setJitter(10).setLossRate(0.02)
+ * </pre>
+ * The conditions are read when a message is sent; changing them affects the next messages.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class LinkConditions {
+
+    /**
+     * One-way latency in milliseconds.
+     */
+    private volatile double latency;
+
+    /**
+     * Maximum random delay added to the latency, in milliseconds.
+     */
+    private volatile double jitter;
+
+    /**
+     * Probability that a message is lost.
+     */
+    private volatile double lossRate;
+
+    /**
+     * Probability that a message is delivered twice.
+     */
+    private volatile double duplicationRate;
+
+    /**
+     * Probability that a message is held back, so that the next ones overtake it.
+     */
+    private volatile double reorderRate;
+
+    /**
+     * Delay of the held back messages, in milliseconds.
+     */
+    private volatile double reorderDelay = 10;
+
+    /**
+     * Bandwidth in bytes per second, 0 for no limit.
+     */
+    private volatile long bandwidth;
+
+    /**
+     * Maximum number of bytes waiting for the bandwidth, 0 for no limit. The next messages are dropped.
+     */
+    private volatile int queueLimit;
+
+    /*******************************************/
+    /*                Presets                  */
+    /*******************************************/
+
+    /**
+     * <i><b>perfect</b></i>
+     *
+     * <pre> public static {@link LinkConditions} perfect() </pre>
+     *
+     * @return conditions without latency, loss or bandwidth limit.
+     */
+    public static LinkConditions perfect() {
+        return new LinkConditions();
+    }
+
+    /**
+     * <i><b>badWifi</b></i>
+     *
+     * <pre> public static {@link LinkConditions} badWifi() </pre>
+     *
+     * @return conditions of a congested wireless network: 30 ms of latency, 20 ms of jitter, 3 % of loss,
+     * some reordering and 1 MB/s.
+     */
+    public static LinkConditions badWifi() {
+        return new LinkConditions()
+                .setLatency(30)
+                .setJitter(20)
+                .setLossRate(0.03)
+                .setDuplicationRate(0.001)
+                .setReorderRate(0.01)
+                .setBandwidth(1_000_000)
+                .setQueueLimit(256 * 1024);
+    }
+
+    /*******************************************/
+    /*           Getters & Setters             */
+    /*******************************************/
+
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * <i><b>setLatency</b></i>
+     *
+     * <pre> public {@link LinkConditions} setLatency(double latency) </pre>
+     *
+     * @param latency the one-way latency in milliseconds.
+     * @return the conditions.
+     */
+    public LinkConditions setLatency(double latency) {
+        this.latency = requirePositive(latency, "latency");
+        return this;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * <i><b>setJitter</b></i>
+     *
+     * <pre> public {@link LinkConditions} setJitter(double jitter) </pre>
+     *
+     * @param jitter the maximum random delay added to the latency, in milliseconds. The delay is uniform, so the
+     *               messages sent closer than the jitter may arrive out of order.
+     * @return the conditions.
+     */
+    public LinkConditions setJitter(double jitter) {
+        this.jitter = requirePositive(jitter, "jitter");
+        return this;
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * <i><b>setLossRate</b></i>
+     *
+     * <pre> public {@link LinkConditions} setLossRate(double lossRate) </pre>
+     *
+     * @param lossRate the probability that a message is lost, between 0 and 1.
+     * @return the conditions.
+     */
+    public LinkConditions setLossRate(double lossRate) {
+        this.lossRate = requireProbability(lossRate, "loss rate");
+        return this;
+    }
+
+    public double getDuplicationRate() {
+        return duplicationRate;
+    }
+
+    /**
+     * <i><b>setDuplicationRate</b></i>
+     *
+     * <pre> public {@link LinkConditions} setDuplicationRate(double duplicationRate) </pre>
+     *
+     * @param duplicationRate the probability that a message is delivered twice, between 0 and 1.
+     * @return the conditions.
+     */
+    public LinkConditions setDuplicationRate(double duplicationRate) {
+        this.duplicationRate = requireProbability(duplicationRate, "duplication rate");
+        return this;
+    }
+
+    public double getReorderRate() {
+        return reorderRate;
+    }
+
+    /**
+     * <i><b>setReorderRate</b></i>
+     *
+     * <pre> public {@link LinkConditions} setReorderRate(double reorderRate) </pre>
+     *
+     * @param reorderRate the probability that a message is held back by the reorder delay, between 0 and 1.
+     * @return the conditions.
+     */
+    public LinkConditions setReorderRate(double reorderRate) {
+        this.reorderRate = requireProbability(reorderRate, "reorder rate");
+        return this;
+    }
+
+    public double getReorderDelay() {
+        return reorderDelay;
+    }
+
+    /**
+     * <i><b>setReorderDelay</b></i>
+     *
+     * <pre> public {@link LinkConditions} setReorderDelay(double reorderDelay) </pre>
+     *
+     * @param reorderDelay the delay of the held back messages, in milliseconds. 10 by default.
+     * @return the conditions.
+     */
+    public LinkConditions setReorderDelay(double reorderDelay) {
+        this.reorderDelay = requirePositive(reorderDelay, "reorder delay");
+        return this;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * <i><b>setBandwidth</b></i>
+     *
+     * <pre> public {@link LinkConditions} setBandwidth(long bandwidth) </pre>
+     *
+     * @param bandwidth the bandwidth in bytes per second, 0 for no limit. The messages wait for the previous ones
+     *                  to be serialized.
+     * @return the conditions.
+     */
+    public LinkConditions setBandwidth(long bandwidth) {
+        if (bandwidth < 0)
+            throw new IllegalArgumentException("The bandwidth must be positive.");
+
+        this.bandwidth = bandwidth;
+        return this;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * <i><b>setQueueLimit</b></i>
+     *
+     * <pre> public {@link LinkConditions} setQueueLimit(int queueLimit) </pre>
+     *
+     * @param queueLimit the maximum number of bytes waiting for the bandwidth, 0 for no limit. A message arriving
+     *                   when the queue is full is dropped, like in the buffer of a router.
+     * @return the conditions.
+     */
+    public LinkConditions setQueueLimit(int queueLimit) {
+        if (queueLimit < 0)
+            throw new IllegalArgumentException("The queue limit must be positive.");
+
+        this.queueLimit = queueLimit;
+        return this;
+    }
+
+    /*******************************************/
+    /*               Validation                */
+    /*******************************************/
+
+    private static double requirePositive(double value, String name) {
+        if (!(value >= 0) || Double.isInfinite(value))
+            throw new IllegalArgumentException("The " + name + " must be positive.");
+        return value;
+    }
+
+    private static double requireProbability(double value, String name) {
+        if (!(value >= 0 && value <= 1))
+            throw new IllegalArgumentException("The " + name + " must be between 0 and 1.");
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkConditions{latency=" + latency + "ms, jitter=" + jitter + "ms, loss=" + lossRate
+                + ", duplication=" + duplicationRate + ", reorder=" + reorderRate + ", bandwidth=" + bandwidth
+                + "B/s, queueLimit=" + queueLimit + "B}";
+    }
+
+}
@@ -0,0 +1,366 @@
+package snetwork.sim;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory network of {@link SimulatedNode}, to measure the stages of a pipeline under latency, jitter, loss,
+ * duplication, reordering and limited bandwidth without a socket.
+ * <p>
+ * The time is a {@link VirtualClock} and the randomness comes from a seed, so a run is reproducible: the same
+ * seed, the same conditions and the same calls give the same deliveries at the same times, whatever the machine.
+ * A simulation is driven by one thread:
+ * <pre>
+ * SimulatedNetwork network = new SimulatedNetwork(42);
+ * network.setConditions(LinkConditions.badWifi());
+ * SimulatedNode a = network.addNode(new InetSocketAddress("10.0.0.1", 9000)).addStage(new ReliableStage(true));
+ * SimulatedNode b = network.addNode(new InetSocketAddress("10.0.0.2", 9000)).addStage(new ReliableStage(true));
+ * b.setHandler((message, source) -> ...);
+ * a.send(message, b.getAddress());
+ * network.getClock().runUntilIdle();
+ * </pre>
+ * The stages handing the messages to other threads, like {@link snetwork.stage.DispatchStage}, break the
+ * determinism.
+ * <p>
+ * A {@link SimulatedTransport} carries the payload frames of a {@link snetwork.Transport} user over the network.
+ * The discovery, the control frames and the timers of a link still use its datagram socket and the wall clock:
+ * a link subclass cannot run on the network alone.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class SimulatedNetwork {
+
+    /**
+     * Clock of the network and of the stages of its nodes.
+     */
+    private final VirtualClock clock = new VirtualClock();
+
+    /**
+     * Source of the losses, duplications, jitter and reordering.
+     */
+    private final Random random;
+
+    /**
+     * Nodes by address.
+     */
+    private final Map<InetSocketAddress, SimulatedNode> nodes = new HashMap<>();
+
+    /**
+     * State of each direction used, by source then destination.
+     */
+    private final Map<InetSocketAddress, Map<InetSocketAddress, Direction>> directions = new HashMap<>();
+
+    /**
+     * Conditions of the directions without their own.
+     */
+    private volatile LinkConditions defaultConditions = LinkConditions.perfect();
+
+    /**
+     * Counters of the network.
+     */
+    private long sentMessages;
+    private long sentBytes;
+    private long deliveredMessages;
+    private long deliveredBytes;
+    private long lostMessages;
+    private long queueDrops;
+    private long duplicatedMessages;
+    private long reorderedMessages;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>SimulatedNetwork</b></i>
+     *
+     * <pre> public SimulatedNetwork(long seed) </pre>
+     *
+     * Constructor of {@link SimulatedNetwork}.
+     * @param seed the seed of the randomness of the network.
+     */
+    public SimulatedNetwork(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /*******************************************/
+    /*                 Nodes                   */
+    /*******************************************/
+
+    /**
+     * <i><b>addNode</b></i>
+     *
+     * <pre> public synchronized {@link SimulatedNode} addNode({@link InetSocketAddress} address) </pre>
+     *
+     * Add a node to the network.
+     * @param address the address of the node, used as source and destination of its messages.
+     * @return the node, to add its stages.
+     * @throws IllegalArgumentException if the address is already used.
+     */
+    public synchronized SimulatedNode addNode(InetSocketAddress address) {
+        if (nodes.containsKey(address))
+            throw new IllegalArgumentException("The address " + address + " is already used.");
+
+        SimulatedNode node = new SimulatedNode(this, address);
+        nodes.put(address, node);
+        return node;
+    }
+
+    /**
+     * <i><b>removeNode</b></i>
+     *
+     * <pre> public synchronized void removeNode({@link InetSocketAddress} address) </pre>
+     *
+     * Remove a node from the network. The datagrams still travelling to it are lost, and its address can be used
+     * again.
+     * @param address the address of the node.
+     */
+    public synchronized void removeNode(InetSocketAddress address) {
+        nodes.remove(address);
+    }
+
+    /**
+     * <i><b>getNode</b></i>
+     *
+     * <pre> public synchronized {@link SimulatedNode} getNode({@link InetSocketAddress} address) </pre>
+     *
+     * @param address the address of the node.
+     * @return the node, null if no node has this address.
+     */
+    public synchronized SimulatedNode getNode(InetSocketAddress address) {
+        return nodes.get(address);
+    }
+
+    /*******************************************/
+    /*              Conditions                 */
+    /*******************************************/
+
+    /**
+     * <i><b>setConditions</b></i>
+     *
+     * <pre> public void setConditions({@link LinkConditions} conditions) </pre>
+     *
+     * Set the conditions of the directions without their own.
+     * @param conditions the conditions, null for a perfect network.
+     */
+    public void setConditions(LinkConditions conditions) {
+        this.defaultConditions = conditions == null ? LinkConditions.perfect() : conditions;
+    }
+
+    /**
+     * <i><b>setConditions</b></i>
+     *
+     * <pre> public synchronized void setConditions({@link InetSocketAddress} source, {@link InetSocketAddress} destination, {@link LinkConditions} conditions) </pre>
+     *
+     * Set the conditions of one direction, to simulate an asymmetric link.
+     * @param source the address of the sending node.
+     * @param destination the address of the receiving node.
+     * @param conditions the conditions, null to use the default ones.
+     */
+    public synchronized void setConditions(InetSocketAddress source, InetSocketAddress destination,
+                                           LinkConditions conditions) {
+        direction(source, destination).conditions = conditions;
+    }
+
+    /**
+     * <i><b>getConditions</b></i>
+     *
+     * <pre> public synchronized {@link LinkConditions} getConditions({@link InetSocketAddress} source, {@link InetSocketAddress} destination) </pre>
+     *
+     * @param source the address of the sending node.
+     * @param destination the address of the receiving node.
+     * @return the conditions of the direction.
+     */
+    public synchronized LinkConditions getConditions(InetSocketAddress source, InetSocketAddress destination) {
+        LinkConditions conditions = direction(source, destination).conditions;
+        return conditions == null ? defaultConditions : conditions;
+    }
+
+    /**
+     * <i><b>direction</b></i>
+     *
+     * <pre> private {@link Direction} direction({@link InetSocketAddress} source, {@link InetSocketAddress} destination) </pre>
+     *
+     * @param source the address of the sending node.
+     * @param destination the address of the receiving node.
+     * @return the state of the direction, created if needed.
+     */
+    private Direction direction(InetSocketAddress source, InetSocketAddress destination) {
+        return directions.computeIfAbsent(source, key -> new HashMap<>())
+                .computeIfAbsent(destination, key -> new Direction());
+    }
+
+    /*******************************************/
+    /*              Transmission               */
+    /*******************************************/
+
+    /**
+     * <i><b>transmit</b></i>
+     *
+     * <pre> synchronized void transmit({@link InetSocketAddress} source, {@link ByteBuffer} datagram, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a datagram leaving the pipeline of a node. The datagram waits for the bandwidth of its direction, may be
+     * dropped by the queue limit or lost, then arrives after the latency, the jitter and the reorder delay,
+     * possibly twice.
+     * @param source the address of the sending node.
+     * @param datagram the datagram, copied.
+     * @param destination the address of the receiving node.
+     */
+    synchronized void transmit(InetSocketAddress source, ByteBuffer datagram, InetSocketAddress destination) {
+        byte[] data = new byte[datagram.remaining()];
+        datagram.duplicate().get(data);
+        sentMessages++;
+        sentBytes += data.length;
+
+        Direction direction = direction(source, destination);
+        LinkConditions conditions = direction.conditions == null ? defaultConditions : direction.conditions;
+        long now = clock.nanoTime();
+
+        long departure = now;
+        long bandwidth = conditions.getBandwidth();
+        if (bandwidth > 0) {
+            long start = Math.max(now, direction.freeTime);
+            int queueLimit = conditions.getQueueLimit();
+            if (queueLimit > 0 && (start - now) * bandwidth / 1_000_000_000L + data.length > queueLimit) {
+                queueDrops++;
+                return;
+            }
+
+            departure = start + data.length * 1_000_000_000L / bandwidth;
+            direction.freeTime = departure;
+        }
+
+        if (random.nextDouble() < conditions.getLossRate()) {
+            lostMessages++;
+            return;
+        }
+
+        int copies = 1;
+        if (random.nextDouble() < conditions.getDuplicationRate()) {
+            duplicatedMessages++;
+            copies = 2;
+        }
+
+        for (int i = 0; i < copies; i++) {
+            double delay = conditions.getLatency() + conditions.getJitter() * random.nextDouble();
+            if (random.nextDouble() < conditions.getReorderRate()) {
+                reorderedMessages++;
+                delay += conditions.getReorderDelay();
+            }
+
+            long arrival = departure + (long) (delay * 1_000_000L);
+            clock.schedule(() -> deliver(source, data, destination), arrival - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * <i><b>deliver</b></i>
+     *
+     * <pre> private void deliver({@link InetSocketAddress} source, byte[] data, {@link InetSocketAddress} destination) </pre>
+     *
+     * Give an arriving datagram to the pipeline of its destination, if it exists.
+     * @param source the address of the sending node.
+     * @param data the datagram.
+     * @param destination the address of the receiving node.
+     */
+    private void deliver(InetSocketAddress source, byte[] data, InetSocketAddress destination) {
+        SimulatedNode node;
+        synchronized (this) {
+            node = nodes.get(destination);
+            if (node == null) {
+                lostMessages++;
+                return;
+            }
+
+            deliveredMessages++;
+            deliveredBytes += data.length;
+        }
+
+        node.receive(ByteBuffer.wrap(data), source);
+    }
+
+    /*******************************************/
+    /*                Getters                  */
+    /*******************************************/
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    public synchronized long getDeliveredMessages() {
+        return deliveredMessages;
+    }
+
+    public synchronized long getDeliveredBytes() {
+        return deliveredBytes;
+    }
+
+    /**
+     * <i><b>getLostMessages</b></i>
+     *
+     * <pre> public synchronized long getLostMessages() </pre>
+     *
+     * @return the number of datagrams lost by the loss rate or sent to an address without node.
+     */
+    public synchronized long getLostMessages() {
+        return lostMessages;
+    }
+
+    /**
+     * <i><b>getQueueDrops</b></i>
+     *
+     * <pre> public synchronized long getQueueDrops() </pre>
+     *
+     * @return the number of datagrams dropped because the queue of their direction was full.
+     */
+    public synchronized long getQueueDrops() {
+        return queueDrops;
+    }
+
+    public synchronized long getDuplicatedMessages() {
+        return duplicatedMessages;
+    }
+
+    public synchronized long getReorderedMessages() {
+        return reorderedMessages;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimulatedNetwork{sent=" + sentMessages + ", delivered=" + deliveredMessages + ", lost=" + lostMessages
+                + ", queueDrops=" + queueDrops + ", duplicated=" + duplicatedMessages
+                + ", reordered=" + reorderedMessages + ", time=" + clock.nanoTime() / 1_000_000 + "ms}";
+    }
+
+    /*******************************************/
+    /*               Direction                 */
+    /*******************************************/
+
+    /**
+     * State of one direction between two nodes.
+     */
+    private static final class Direction {
+
+        /**
+         * Own conditions of the direction, null for the default ones.
+         */
+        private LinkConditions conditions;
+
+        /**
+         * Time at which the bandwidth is free, in nanoseconds of the clock.
+         */
+        private long freeTime;
+    }
+
+}
@@ -0,0 +1,128 @@
+package snetwork.sim;
+
+import snetwork.LinkPipeline;
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * Peer of a {@link SimulatedNetwork}: a {@link LinkPipeline} whose stages run on the virtual clock of the network
+ * and whose datagrams go through the simulated links instead of a socket.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class SimulatedNode {
+
+    /**
+     * Address of the node, identifying it in the network.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * Stages of the node.
+     */
+    private final LinkPipeline pipeline;
+
+    /**
+     * Receiver of the messages leaving the pipeline.
+     */
+    private volatile BiConsumer<ByteBuffer, InetSocketAddress> handler = (message, source) -> { };
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>SimulatedNode</b></i>
+     *
+     * <pre> SimulatedNode({@link SimulatedNetwork} network, {@link InetSocketAddress} address) </pre>
+     *
+     * Constructor of {@link SimulatedNode}, called by {@link SimulatedNetwork#addNode(InetSocketAddress)}.
+     * @param network the network of the node.
+     * @param address the address of the node.
+     */
+    SimulatedNode(SimulatedNetwork network, InetSocketAddress address) {
+        this.address = address;
+        this.pipeline = new LinkPipeline(
+                (message, source) -> handler.accept(message, source),
+                (message, destination) -> network.transmit(address, message, destination));
+        this.pipeline.setTimer(network.getClock());
+    }
+
+    /*******************************************/
+    /*               Messages                  */
+    /*******************************************/
+
+    /**
+     * <i><b>addStage</b></i>
+     *
+     * <pre> public {@link SimulatedNode} addStage({@link LinkStage} stage) </pre>
+     *
+     * Add a stage to the pipeline of the node.
+     * @param stage the stage.
+     * @return the node.
+     */
+    public SimulatedNode addStage(LinkStage stage) {
+        pipeline.addStage(stage);
+        return this;
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> public void send({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a message through the stages of the node, at the current time of the clock.
+     * @param message the message, from its position to its limit.
+     * @param destination the address of the destination node.
+     */
+    public void send(ByteBuffer message, InetSocketAddress destination) {
+        pipeline.send(message, destination);
+    }
+
+    /**
+     * <i><b>receive</b></i>
+     *
+     * <pre> void receive({@link ByteBuffer} datagram, {@link InetSocketAddress} source) </pre>
+     *
+     * Give a datagram arriving from the network to the stages of the node.
+     * @param datagram the datagram.
+     * @param source the address of the source node.
+     */
+    void receive(ByteBuffer datagram, InetSocketAddress source) {
+        pipeline.receive(datagram, source);
+    }
+
+    /*******************************************/
+    /*           Getters & Setters             */
+    /*******************************************/
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public LinkPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * <i><b>setHandler</b></i>
+     *
+     * <pre> public void setHandler({@link BiConsumer} handler) </pre>
+     *
+     * Set the receiver of the messages leaving the pipeline, the equivalent of
+     * {@link snetwork.AbstractP2PLink#onListening(ByteBuffer)}.
+     * @param handler the receiver, called on the thread running the clock. The message is only valid during the
+     *                call.
+     */
+    public void setHandler(BiConsumer<ByteBuffer, InetSocketAddress> handler) {
+        this.handler = handler == null ? (message, source) -> { } : handler;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedNode{" + address + "}";
+    }
+
+}
@@ -0,0 +1,131 @@
+package snetwork.sim;
+
+import snetwork.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * {@link Transport} whose frames go through a {@link SimulatedNetwork} instead of a socket. Binding it adds a
+ * {@link SimulatedNode} at the local address, whose stages can be added with {@link #getNode()}; closing it removes
+ * the node.
+ * <p>
+ * The frames only move while the clock of the network is run, and are given to the listener on the thread running
+ * it. A link using this transport still needs its datagram socket for the discovery and the control frames, whose
+ * timing is not simulated.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class SimulatedTransport implements Transport {
+
+    /**
+     * Default maximum size of a frame, the largest payload of a UDP datagram.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 65507;
+
+    private final SimulatedNetwork network;
+
+    /**
+     * Maximum size of a frame sent.
+     */
+    private final int maxFrameSize;
+
+    /**
+     * Node of the transport in the network, null when it is not bound.
+     */
+    private volatile SimulatedNode node;
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>SimulatedTransport</b></i>
+     *
+     * <pre> public SimulatedTransport({@link SimulatedNetwork} network) </pre>
+     *
+     * Constructor of {@link SimulatedTransport} with frames up to {@link #DEFAULT_MAX_FRAME_SIZE} bytes.
+     * @param network the network carrying the frames.
+     */
+    public SimulatedTransport(SimulatedNetwork network) {
+        this(network, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * <i><b>SimulatedTransport</b></i>
+     *
+     * <pre> public SimulatedTransport({@link SimulatedNetwork} network, int maxFrameSize) </pre>
+     *
+     * Constructor of {@link SimulatedTransport}.
+     * @param network the network carrying the frames.
+     * @param maxFrameSize the maximum size of a frame sent.
+     */
+    public SimulatedTransport(SimulatedNetwork network, int maxFrameSize) {
+        if (maxFrameSize <= 0)
+            throw new IllegalArgumentException("The maximum frame size must be positive.");
+        this.network = network;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /*******************************************/
+    /*                Transport                */
+    /*******************************************/
+
+    @Override
+    public synchronized void bind(InetSocketAddress local, Listener listener) {
+        if (node != null)
+            throw new IllegalStateException("The transport is already bound.");
+
+        SimulatedNode newNode = network.addNode(local);
+        newNode.setHandler(listener::onReceived);
+        node = newNode;
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame, InetSocketAddress destination) throws IOException {
+        SimulatedNode currentNode = node;
+        if (currentNode == null)
+            throw new ClosedChannelException();
+        if (frame.remaining() > maxFrameSize)
+            throw new IOException("The frame is larger than " + maxFrameSize + " bytes.");
+
+        currentNode.send(frame, destination);
+        return true;
+    }
+
+    @Override
+    public void close(InetSocketAddress peer) {
+        /* Nothing is kept for a peer */
+    }
+
+    @Override
+    public synchronized void close() {
+        if (node == null)
+            return;
+
+        network.removeNode(node.getAddress());
+        node = null;
+    }
+
+    /*******************************************/
+    /*                Getters                  */
+    /*******************************************/
+
+    /**
+     * <i><b>getNode</b></i>
+     *
+     * <pre> public {@link SimulatedNode} getNode() </pre>
+     *
+     * @return the node of the transport in the network, to add its stages, null when it is not bound.
+     */
+    public SimulatedNode getNode() {
+        return node;
+    }
+
+}
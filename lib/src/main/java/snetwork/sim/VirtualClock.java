@@ -0,0 +1,248 @@
+package snetwork.sim;
+
+import snetwork.LinkTimer;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual {@link LinkTimer}: the time only moves when the clock runs its events, in the order of their time and
+ * then of their scheduling. A simulation is therefore deterministic and runs as fast as the CPU allows.
+ * <p>
+ * The clock is driven by one thread, the one calling {@link #runFor(long, TimeUnit)} or {@link #runUntilIdle()}.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public final class VirtualClock implements LinkTimer {
+
+    /**
+     * Default maximum number of events run by {@link #runUntilIdle()}, to stop a simulation that never ends.
+     */
+    public static final long DEFAULT_MAX_EVENTS = 100_000_000L;
+
+    /**
+     * Events waiting for their time.
+     */
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            Comparator.<Event>comparingLong(event -> event.time).thenComparingLong(event -> event.sequence));
+
+    /**
+     * Current time in nanoseconds.
+     */
+    private long now;
+
+    /**
+     * Number of events scheduled, to keep the order of the events of the same time.
+     */
+    private long scheduled;
+
+    /**
+     * Number of events run.
+     */
+    private long ran;
+
+    /*******************************************/
+    /*                 Timer                   */
+    /*******************************************/
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        Event event = new Event(now + Math.max(0, unit.toNanos(delay)), scheduled++, task);
+        events.add(event);
+        return event;
+    }
+
+    /*******************************************/
+    /*                  Run                    */
+    /*******************************************/
+
+    /**
+     * <i><b>runFor</b></i>
+     *
+     * <pre> public void runFor(long duration, {@link TimeUnit} unit) </pre>
+     *
+     * Run the events until the given time has passed, including the events scheduled meanwhile.
+     * @param duration the simulated duration.
+     * @param unit the unit of the duration.
+     */
+    public void runFor(long duration, TimeUnit unit) {
+        long end;
+        synchronized (this) {
+            end = now + unit.toNanos(duration);
+        }
+
+        while (runNext(end));
+
+        synchronized (this) {
+            now = Math.max(now, end);
+        }
+    }
+
+    /**
+     * <i><b>runUntilIdle</b></i>
+     *
+     * <pre> public void runUntilIdle() </pre>
+     *
+     * Run the events until none is left, at most {@link #DEFAULT_MAX_EVENTS}.
+     */
+    public void runUntilIdle() {
+        runUntilIdle(DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * <i><b>runUntilIdle</b></i>
+     *
+     * <pre> public void runUntilIdle(long maxEvents) </pre>
+     *
+     * Run the events until none is left.
+     * @param maxEvents the maximum number of events to run.
+     * @throws IllegalStateException if events are still waiting after maxEvents events, for instance when a task
+     * schedules itself forever.
+     */
+    public void runUntilIdle(long maxEvents) {
+        for (long count = 0; runNext(Long.MAX_VALUE); count++) {
+            if (count >= maxEvents)
+                throw new IllegalStateException("The simulation is still running after " + maxEvents + " events.");
+        }
+    }
+
+    /**
+     * <i><b>runNext</b></i>
+     *
+     * <pre> private boolean runNext(long end) </pre>
+     *
+     * Run the next event if its time is not after the end.
+     * @param end the time of the end of the run.
+     * @return true if an event has run.
+     */
+    private boolean runNext(long end) {
+        Event event;
+        synchronized (this) {
+            event = events.peek();
+            if (event == null || event.time > end)
+                return false;
+
+            events.poll();
+            now = Math.max(now, event.time);
+            ran++;
+        }
+
+        if (event.start())
+            event.task.run();
+        return true;
+    }
+
+    /*******************************************/
+    /*                Getters                  */
+    /*******************************************/
+
+    /**
+     * <i><b>getPendingEvents</b></i>
+     *
+     * <pre> public int getPendingEvents() </pre>
+     *
+     * @return the number of events waiting for their time, the cancelled ones included.
+     */
+    public synchronized int getPendingEvents() {
+        return events.size();
+    }
+
+    /**
+     * <i><b>getEventsRun</b></i>
+     *
+     * <pre> public long getEventsRun() </pre>
+     *
+     * @return the number of events run since the creation of the clock.
+     */
+    public synchronized long getEventsRun() {
+        return ran;
+    }
+
+    /*******************************************/
+    /*                 Event                   */
+    /*******************************************/
+
+    /**
+     * Task waiting for its time.
+     */
+    private final class Event implements ScheduledFuture<Object> {
+
+        private final long time;
+        private final long sequence;
+        private final Runnable task;
+
+        /**
+         * 0 waiting, 1 started, 2 cancelled.
+         */
+        private int state;
+
+        private Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        private boolean start() {
+            synchronized (VirtualClock.this) {
+                if (state != 0)
+                    return false;
+
+                state = 1;
+                return true;
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (VirtualClock.this) {
+                if (state != 0)
+                    return false;
+
+                state = 2;
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (VirtualClock.this) {
+                return state == 2;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (VirtualClock.this) {
+                return state != 0;
+            }
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+
+}
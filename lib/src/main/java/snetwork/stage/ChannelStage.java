@@ -0,0 +1,670 @@
+package snetwork.stage;
+
+import snetwork.BinaryObjectTranslator;
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Stage multiplexing logical channels over one link. Each message starts with the id of its channel, and each
+ * channel has its own {@link BinaryObjectTranslator}, its own handler and a priority.
+ * <p>
+ * The messages sent by the link itself go through the default channel {@link #DEFAULT_CHANNEL} and are given to
+ * {@link snetwork.AbstractP2PLink#onListening(ByteBuffer)} as before.
+ * <p>
+ * The {@link Scheduler} of the stage, added to the same pipeline, interleaves the datagrams of the channels after
+ * the {@link FragmentationStage}: a small message of a high priority channel goes ahead of the fragments of a
+ * large message queued on a low priority channel. Without it, the datagrams are sent in the order of the calls.
+ * <p>
+ * Both peers must use this stage and open the same channels.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class ChannelStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline, above the {@link DispatchStage} so that the handlers run on its executor.
+     */
+    public static final int ORDER = 950;
+
+    /**
+     * Order of the {@link Scheduler}, between the {@link FragmentationStage} and the {@link ReliableStage}.
+     */
+    public static final int SCHEDULER_ORDER = 350;
+
+    /**
+     * Id of the channel of the messages sent and received by the link itself.
+     */
+    public static final int DEFAULT_CHANNEL = 0;
+
+    /**
+     * Largest id of a channel.
+     */
+    public static final int MAX_CHANNEL = 0xFF;
+
+    /**
+     * Priority of the default channel.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    /**
+     * Default maximum number of datagrams waiting in the scheduler for each channel.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Channel of the message going down the pipeline on the current thread, null for the default channel.
+     */
+    private static final ThreadLocal<Channel<?>> SENDING = new ThreadLocal<>();
+
+    /**
+     * Open channels by id, the default channel included.
+     */
+    private final AtomicReferenceArray<Channel<?>> channels = new AtomicReferenceArray<>(MAX_CHANNEL + 1);
+
+    /**
+     * Channel of the messages of the link.
+     */
+    private final Channel<byte[]> defaultChannel;
+
+    /**
+     * Maximum number of datagrams waiting in the scheduler for each channel.
+     */
+    private final int capacity;
+
+    /**
+     * Scheduler of the datagrams of the channels.
+     */
+    private final Scheduler scheduler = new Scheduler();
+
+    /**
+     * Open channels, from the highest priority to the lowest.
+     */
+    private volatile Channel<?>[] ordered;
+
+    /**
+     * Number of messages dropped because their channel is unknown.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>ChannelStage</b></i>
+     *
+     * <pre> public ChannelStage() </pre>
+     *
+     * Constructor of {@link ChannelStage} keeping up to {@link #DEFAULT_CAPACITY} datagrams for each channel.
+     */
+    public ChannelStage() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * <i><b>ChannelStage</b></i>
+     *
+     * <pre> public ChannelStage(int capacity) </pre>
+     *
+     * Constructor of {@link ChannelStage}.
+     * @param capacity the maximum number of datagrams waiting in the scheduler for each channel. A thread sending
+     *                 on a full channel waits for room.
+     */
+    public ChannelStage(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive.");
+
+        this.capacity = capacity;
+        this.defaultChannel = new Channel<>(DEFAULT_CHANNEL, null, null, DEFAULT_PRIORITY, 1);
+        channels.set(DEFAULT_CHANNEL, defaultChannel);
+        ordered = new Channel<?>[]{defaultChannel};
+    }
+
+    /*******************************************/
+    /*                Channels                 */
+    /*******************************************/
+
+    /**
+     * <i><b>openChannel</b></i>
+     *
+     * <pre> public &lt;T&gt; {@link Channel}&lt;T&gt; openChannel(int id, {@link BinaryObjectTranslator}&lt;T&gt; translator, {@link BiConsumer}&lt;T, {@link InetSocketAddress}&gt; handler, int priority) </pre>
+     *
+     * Open a channel with a weight of 1.
+     * @see #openChannel(int, BinaryObjectTranslator, BiConsumer, int, int)
+     */
+    public <T> Channel<T> openChannel(int id, BinaryObjectTranslator<T> translator,
+                                      BiConsumer<T, InetSocketAddress> handler, int priority) {
+        return openChannel(id, translator, handler, priority, 1);
+    }
+
+    /**
+     * <i><b>openChannel</b></i>
+     *
+     * <pre> public &lt;T&gt; {@link Channel}&lt;T&gt; openChannel(int id, {@link BinaryObjectTranslator}&lt;T&gt; translator, {@link BiConsumer}&lt;T, {@link InetSocketAddress}&gt; handler, int priority, int weight) </pre>
+     *
+     * Open a channel. The datagrams of the highest priority channels are always sent first. The channels of a same
+     * priority take turns, each sending up to its weight in datagrams per turn.
+     * @param id the id of the channel, between 1 and {@link #MAX_CHANNEL}, the same on both peers.
+     * @param translator the translator of the messages of the channel.
+     * @param handler the handler of the messages received on the channel, with the address of their sender.
+     * @param priority the priority of the channel, {@link #DEFAULT_PRIORITY} being the one of the link messages.
+     * @param weight the number of datagrams sent by the channel in its turn among the channels of its priority.
+     * @param <T> the type of the messages.
+     * @return the channel.
+     * @throws IllegalArgumentException if the id is invalid or already used.
+     */
+    public <T> Channel<T> openChannel(int id, BinaryObjectTranslator<T> translator,
+                                      BiConsumer<T, InetSocketAddress> handler, int priority, int weight) {
+        if (id <= DEFAULT_CHANNEL || id > MAX_CHANNEL)
+            throw new IllegalArgumentException("The id of a channel must be between 1 and " + MAX_CHANNEL + ".");
+        if (translator == null || handler == null)
+            throw new IllegalArgumentException("The translator and the handler cannot be null.");
+        if (weight <= 0)
+            throw new IllegalArgumentException("The weight must be positive.");
+
+        Channel<T> channel = new Channel<>(id, translator, handler, priority, weight);
+        synchronized (channels) {
+            if (!channels.compareAndSet(id, null, channel))
+                throw new IllegalArgumentException("The channel " + id + " is already open.");
+            updateOrder();
+        }
+        return channel;
+    }
+
+    /**
+     * <i><b>closeChannel</b></i>
+     *
+     * <pre> public boolean closeChannel({@link Channel}&lt;?&gt; channel) </pre>
+     *
+     * Close a channel. Its waiting datagrams are dropped and the messages received on it are dropped.
+     * @param channel the channel to close.
+     * @return true if the channel was open in this stage, false otherwise.
+     */
+    public boolean closeChannel(Channel<?> channel) {
+        if (channel == null || channel == defaultChannel)
+            return false;
+
+        synchronized (channels) {
+            if (!channels.compareAndSet(channel.id, channel, null))
+                return false;
+            channel.closed = true;
+            updateOrder();
+        }
+
+        /* The scheduler skips the channel from now on */
+        while (channel.queue.poll() != null)
+            channel.queued.decrementAndGet();
+        scheduler.signalRoom();
+        return true;
+    }
+
+    /**
+     * <i><b>getChannel</b></i>
+     *
+     * <pre> public {@link Channel}&lt;?&gt; getChannel(int id) </pre>
+     *
+     * @param id the id of a channel.
+     * @return the open channel of the given id, null if there is none.
+     */
+    public Channel<?> getChannel(int id) {
+        return id <= DEFAULT_CHANNEL || id > MAX_CHANNEL ? null : channels.get(id);
+    }
+
+    /**
+     * <i><b>getScheduler</b></i>
+     *
+     * <pre> public {@link Scheduler} getScheduler() </pre>
+     *
+     * @return the scheduler of the stage, to add to the same pipeline.
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * <i><b>getDroppedMessages</b></i>
+     *
+     * <pre> public long getDroppedMessages() </pre>
+     *
+     * @return the number of messages dropped because their channel is unknown.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * <i><b>updateOrder</b></i>
+     *
+     * <pre> private void updateOrder() </pre>
+     *
+     * Sort the open channels from the highest priority to the lowest, by id for a same priority.
+     */
+    private void updateOrder() {
+        List<Channel<?>> open = new ArrayList<>();
+        for (int i = 0; i <= MAX_CHANNEL; i++) {
+            Channel<?> channel = channels.get(i);
+            if (channel != null)
+                open.add(channel);
+        }
+        open.sort((first, second) -> Integer.compare(second.priority, first.priority));
+        ordered = open.toArray(new Channel<?>[0]);
+    }
+
+    /*******************************************/
+    /*                  Stage                  */
+    /*******************************************/
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return 1;
+    }
+
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        ByteBuffer framed = ByteBuffer.allocate(1 + message.remaining());
+        framed.put((byte) DEFAULT_CHANNEL).put(message).flip();
+        fireOutbound(framed, destination);
+    }
+
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (!message.hasRemaining()) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        int id = message.get() & 0xFF;
+        if (id == DEFAULT_CHANNEL) {
+            defaultChannel.receivedMessages.incrementAndGet();
+            fireInbound(message, source);
+            return;
+        }
+
+        Channel<?> channel = channels.get(id);
+        if (channel == null) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        channel.handle(message, source);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> private void send({@link Channel}&lt;?&gt; channel, byte[] message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send a message of a channel down the pipeline, telling the scheduler its channel.
+     * @param channel the channel of the message.
+     * @param message the message.
+     * @param destination the address of the peer.
+     */
+    private void send(Channel<?> channel, byte[] message, InetSocketAddress destination) {
+        if (getPipeline() == null)
+            throw new IllegalStateException("The stage is not in a pipeline.");
+
+        ByteBuffer framed = ByteBuffer.allocate(1 + message.length);
+        framed.put((byte) channel.id).put(message).flip();
+
+        Channel<?> previous = SENDING.get();
+        SENDING.set(channel);
+        try {
+            fireOutbound(framed, destination);
+        } finally {
+            if (previous != null)
+                SENDING.set(previous);
+            else
+                SENDING.remove();
+        }
+    }
+
+    /**
+     * Logical channel of a {@link ChannelStage}.
+     * @param <T> the type of the messages.
+     */
+    public final class Channel<T> {
+
+        private final int id;
+
+        private final BinaryObjectTranslator<T> translator;
+
+        private final BiConsumer<T, InetSocketAddress> handler;
+
+        private final int priority;
+
+        private final int weight;
+
+        /**
+         * Datagrams waiting in the scheduler.
+         */
+        private final Queue<Datagram> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicLong receivedMessages = new AtomicLong();
+
+        /**
+         * Datagrams the channel may still send in its current turn, only used by the draining thread.
+         */
+        private int credit;
+
+        private volatile boolean closed;
+
+        private Channel(int id, BinaryObjectTranslator<T> translator, BiConsumer<T, InetSocketAddress> handler,
+                        int priority, int weight) {
+            this.id = id;
+            this.translator = translator;
+            this.handler = handler;
+            this.priority = priority;
+            this.weight = weight;
+            this.credit = weight;
+        }
+
+        /**
+         * <i><b>send</b></i>
+         *
+         * <pre> public void send(T message, {@link InetSocketAddress} destination) </pre>
+         *
+         * Translate a message and send it on this channel.
+         * @param message the message to send.
+         * @param destination the address and the port of the peer.
+         * @throws IllegalStateException if the channel is closed or the stage is not in a pipeline.
+         */
+        public void send(T message, InetSocketAddress destination) {
+            if (closed)
+                throw new IllegalStateException("The channel is closed.");
+            ChannelStage.this.send(this, translator.translateToBytes(message), destination);
+        }
+
+        /**
+         * <i><b>handle</b></i>
+         *
+         * <pre> private void handle({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+         *
+         * Translate a received message and give it to the handler.
+         * @param message the message, after the id of the channel.
+         * @param source the address of the peer.
+         */
+        private void handle(ByteBuffer message, InetSocketAddress source) {
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            receivedMessages.incrementAndGet();
+
+            try {
+                handler.accept(translator.translateFromBytes(bytes), source);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * @return the id of the channel.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the priority of the channel.
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the number of datagrams sent by the channel in its turn among the channels of its priority.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the number of datagrams of the channel waiting in the scheduler.
+         */
+        public int getQueueDepth() {
+            return queued.get();
+        }
+
+        /**
+         * @return the number of messages received on the channel.
+         */
+        public long getReceivedMessages() {
+            return receivedMessages.get();
+        }
+
+        /**
+         * @return true if the channel is closed, false otherwise.
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+
+    /**
+     * Stage sending the datagrams of the channels by priority. The datagrams wait in the queue of their channel,
+     * and one thread at a time, the first one finding the scheduler idle, sends them: a datagram queued on a
+     * higher priority channel goes out right after the datagram being sent.
+     */
+    public final class Scheduler extends LinkStage {
+
+        /**
+         * True while a thread sends the waiting datagrams.
+         */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        /**
+         * Position in {@link #ordered} of the channel whose turn it is, only used by the draining thread.
+         */
+        private int cursor;
+
+        /**
+         * Monitor on which the threads sending on a full channel wait for room.
+         */
+        private final Object room = new Object();
+
+        /**
+         * Number of threads waiting for room, so that the draining thread only signals when one waits.
+         */
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private Scheduler() {
+        }
+
+        @Override
+        protected int getOrder() {
+            return SCHEDULER_ORDER;
+        }
+
+        @Override
+        protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+            Channel<?> channel = SENDING.get();
+            if (channel == null || channel.closed || channels.get(channel.id) != channel)
+                channel = defaultChannel;
+
+            byte[] copy = new byte[message.remaining()];
+            message.get(copy);
+
+            /* Wait for room while another thread drains, the waiting datagrams being sent in the meantime */
+            if (channel.queued.get() >= capacity && draining.get())
+                awaitRoom(channel);
+
+            channel.queued.incrementAndGet();
+            channel.queue.add(new Datagram(copy, destination));
+            drain();
+        }
+
+        /**
+         * <i><b>awaitRoom</b></i>
+         *
+         * <pre> private void awaitRoom({@link Channel}&lt;?&gt; channel) </pre>
+         *
+         * Block until the channel has room or no thread drains anymore. An interrupted thread stops waiting and
+         * adds its datagram anyway.
+         * @param channel the full channel.
+         */
+        private void awaitRoom(Channel<?> channel) {
+            waiters.incrementAndGet();
+            try {
+                synchronized (room) {
+                    while (channel.queued.get() >= capacity && draining.get())
+                        room.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        /**
+         * <i><b>signalRoom</b></i>
+         *
+         * <pre> private void signalRoom() </pre>
+         *
+         * Wake the threads waiting for room up, if there are some.
+         */
+        private void signalRoom() {
+            if (waiters.get() == 0)
+                return;
+
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+
+        /**
+         * <i><b>drain</b></i>
+         *
+         * <pre> private void drain() </pre>
+         *
+         * Send the waiting datagrams if no other thread does.
+         */
+        private void drain() {
+            while (draining.compareAndSet(false, true)) {
+                try {
+                    Channel<?> channel;
+                    while ((channel = next()) != null) {
+                        Datagram datagram = channel.queue.poll();
+                        if (datagram == null)
+                            continue;
+                        channel.queued.decrementAndGet();
+                        signalRoom();
+
+                        try {
+                            fireOutbound(ByteBuffer.wrap(datagram.message), datagram.destination);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                } finally {
+                    draining.set(false);
+                    signalRoom();
+                }
+
+                /* A datagram added after the last check and before the release is sent by this thread */
+                if (!hasWaiting())
+                    return;
+            }
+        }
+
+        /**
+         * <i><b>next</b></i>
+         *
+         * <pre> private {@link Channel}&lt;?&gt; next() </pre>
+         *
+         * @return the channel sending the next datagram, null if no datagram waits.
+         */
+        private Channel<?> next() {
+            Channel<?>[] current = ordered;
+            int from = 0;
+            while (from < current.length) {
+                int to = from;
+                boolean waiting = false;
+                while (to < current.length && current[to].priority == current[from].priority) {
+                    waiting |= !current[to].queue.isEmpty();
+                    to++;
+                }
+
+                if (waiting)
+                    return nextOfPriority(current, from, to);
+                from = to;
+            }
+            return null;
+        }
+
+        /**
+         * <i><b>nextOfPriority</b></i>
+         *
+         * <pre> private {@link Channel}&lt;?&gt; nextOfPriority({@link Channel}&lt;?&gt;[] current, int from, int to) </pre>
+         *
+         * Weighted round robin among the channels of a same priority: the channel of the turn sends up to its
+         * weight in datagrams, then the turn goes to the next one.
+         * @param current the open channels, from the highest priority to the lowest.
+         * @param from the position of the first channel of the priority.
+         * @param to the position after the last channel of the priority.
+         * @return the channel sending the next datagram, null if none of them has a waiting datagram anymore.
+         */
+        private Channel<?> nextOfPriority(Channel<?>[] current, int from, int to) {
+            if (cursor < from || cursor >= to)
+                cursor = from;
+
+            for (int i = 0; i <= 2 * (to - from); i++) {
+                Channel<?> channel = current[cursor];
+                if (channel.credit > 0 && !channel.queue.isEmpty()) {
+                    channel.credit--;
+                    return channel;
+                }
+
+                channel.credit = channel.weight;
+                cursor = cursor + 1 < to ? cursor + 1 : from;
+            }
+            return null;
+        }
+
+        /**
+         * <i><b>hasWaiting</b></i>
+         *
+         * <pre> private boolean hasWaiting() </pre>
+         *
+         * @return true if a datagram waits in the queue of an open channel.
+         */
+        private boolean hasWaiting() {
+            for (Channel<?> channel : ordered) {
+                if (!channel.queue.isEmpty())
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Datagram waiting in the scheduler.
+     */
+    private static final class Datagram {
+
+        final byte[] message;
+
+        final InetSocketAddress destination;
+
+        Datagram(byte[] message, InetSocketAddress destination) {
+            this.message = message;
+            this.destination = destination;
+        }
+    }
+
+}
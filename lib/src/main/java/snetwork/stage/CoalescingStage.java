@@ -0,0 +1,361 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage packing the small messages sent to a peer into one datagram, to save the system calls and the headers of
+ * the datagrams of a chatty application. Each message is preceded by its length in the batch, and the receiver
+ * gives them one by one to the next stage.
+ * <p>
+ * A batch is sent when the next message does not fit in it, when the flush delay has passed since its first
+ * message, or when {@link #flush()} is called. The messages too large for a batch are sent alone, after the
+ * batch waiting for their peer, so the order of the messages is kept.
+ * <p>
+ * Both peers must use this stage.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class CoalescingStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 500;
+
+    /**
+     * Default time in microseconds after which a batch is sent.
+     */
+    public static final long DEFAULT_FLUSH_DELAY = 1000;
+
+    /**
+     * Header of a message sent alone.
+     */
+    private static final byte SINGLE = 0;
+
+    /**
+     * Header of a batch of messages.
+     */
+    private static final byte BATCH = 1;
+
+    /**
+     * Size of the length of a message in a batch.
+     */
+    private static final int LENGTH_SIZE = 2;
+
+    /**
+     * Maximum size of a batch, 0 for the size of a datagram.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Time in nanoseconds after which a batch is sent.
+     */
+    private final long flushDelay;
+
+    /**
+     * Batch waiting for each peer.
+     */
+    private final Map<InetSocketAddress, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * Number of batches sent.
+     */
+    private final AtomicLong sentBatches = new AtomicLong();
+
+    /**
+     * Number of messages sent in a batch.
+     */
+    private final AtomicLong coalescedMessages = new AtomicLong();
+
+    /**
+     * Number of datagrams dropped because they are invalid.
+     */
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>CoalescingStage</b></i>
+     *
+     * <pre> public CoalescingStage() </pre>
+     *
+     * Constructor of {@link CoalescingStage} with batches of the size of a datagram, sent after
+     * {@link #DEFAULT_FLUSH_DELAY} microseconds.
+     */
+    public CoalescingStage() {
+        this(0, DEFAULT_FLUSH_DELAY, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * <i><b>CoalescingStage</b></i>
+     *
+     * <pre> public CoalescingStage(int maxBatchSize, long flushDelay, {@link TimeUnit} unit) </pre>
+     *
+     * Constructor of {@link CoalescingStage}.
+     * @param maxBatchSize the maximum size of a batch, 0 for the size of a datagram. A smaller size, like the MTU of
+     *                     the network, avoids the fragmentation of the datagrams by IP.
+     * @param flushDelay the time after which a batch is sent, counted from its first message.
+     * @param unit the unit of the flush delay.
+     */
+    public CoalescingStage(int maxBatchSize, long flushDelay, TimeUnit unit) {
+        if (maxBatchSize < 0 || maxBatchSize > 0xFFFF)
+            throw new IllegalArgumentException("The maximum size of a batch must be between 0 and 65535.");
+        if (flushDelay <= 0)
+            throw new IllegalArgumentException("The flush delay must be positive.");
+
+        this.maxBatchSize = maxBatchSize;
+        this.flushDelay = unit.toNanos(flushDelay);
+    }
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return 1;
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getSentBatches</b></i>
+     *
+     * <pre> public long getSentBatches() </pre>
+     *
+     * @return the number of batches sent.
+     */
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    /**
+     * <i><b>getCoalescedMessages</b></i>
+     *
+     * <pre> public long getCoalescedMessages() </pre>
+     *
+     * @return the number of messages sent in a batch. Divided by the number of batches, it gives the number of
+     * messages per datagram.
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages.get();
+    }
+
+    /**
+     * <i><b>getDroppedDatagrams</b></i>
+     *
+     * <pre> public long getDroppedDatagrams() </pre>
+     *
+     * @return the number of datagrams dropped because they are invalid.
+     */
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.get();
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Add the message to the batch of the peer, sending the batch first if the message does not fit in it.
+     * @param message the sent message.
+     * @param destination the address of the peer.
+     */
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        int capacity = maxBatchSize == 0 ? getMaxOutboundSize() : Math.min(maxBatchSize, getMaxOutboundSize());
+        int length = message.remaining();
+        Batch batch = batches.computeIfAbsent(destination, peer -> new Batch());
+
+        synchronized (batch) {
+            if (1 + LENGTH_SIZE + length > capacity) {
+                send(batch, destination);
+                ByteBuffer datagram = ByteBuffer.allocate(1 + length);
+                datagram.put(SINGLE).put(message).flip();
+                fireOutbound(datagram, destination);
+                return;
+            }
+
+            if (batch.data != null && batch.data.capacity() != capacity)
+                send(batch, destination);
+            if (batch.data != null && batch.data.remaining() < LENGTH_SIZE + length)
+                send(batch, destination);
+
+            if (batch.data == null) {
+                ByteBuffer data = ByteBuffer.allocate(capacity);
+                data.put(BATCH);
+                batch.data = data;
+                batch.flushTask = schedule(() -> {
+                    synchronized (batch) {
+                        if (batch.data == data)
+                            send(batch, destination);
+                    }
+                }, flushDelay, TimeUnit.NANOSECONDS);
+            }
+
+            batch.data.putShort((short) length).put(message);
+            batch.count++;
+        }
+    }
+
+    /**
+     * <i><b>flush</b></i>
+     *
+     * <pre> public void flush() </pre>
+     *
+     * Send the batches waiting for all the peers at once.
+     */
+    public void flush() {
+        for (InetSocketAddress destination : batches.keySet())
+            flush(destination);
+    }
+
+    /**
+     * <i><b>flush</b></i>
+     *
+     * <pre> public void flush({@link InetSocketAddress} destination) </pre>
+     *
+     * Send the batch waiting for a peer at once.
+     * @param destination the address of the peer.
+     */
+    public void flush(InetSocketAddress destination) {
+        Batch batch = batches.get(destination);
+        if (batch == null)
+            return;
+
+        synchronized (batch) {
+            send(batch, destination);
+        }
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> private void send({@link Batch} batch, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the batch if it has messages. Called with the lock of the batch, so the batches of a peer are sent in
+     * order.
+     * @param batch the batch.
+     * @param destination the address of the peer.
+     */
+    private void send(Batch batch, InetSocketAddress destination) {
+        if (batch.data == null)
+            return;
+
+        if (batch.flushTask != null) {
+            batch.flushTask.cancel(false);
+            batch.flushTask = null;
+        }
+
+        ByteBuffer datagram = batch.data;
+        int count = batch.count;
+        batch.data = null;
+        batch.count = 0;
+
+        datagram.flip();
+        fireOutbound(datagram, destination);
+        sentBatches.incrementAndGet();
+        coalescedMessages.addAndGet(count);
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the messages of a batch one by one to the next stage.
+     * @param message the received datagram.
+     * @param source the address of the peer.
+     */
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (!message.hasRemaining()) {
+            droppedDatagrams.incrementAndGet();
+            return;
+        }
+
+        byte kind = message.get();
+        if (kind == SINGLE) {
+            fireInbound(message, source);
+            return;
+        }
+
+        if (kind != BATCH) {
+            droppedDatagrams.incrementAndGet();
+            return;
+        }
+
+        int end = message.limit();
+        while (message.position() < end) {
+            if (end - message.position() < LENGTH_SIZE) {
+                droppedDatagrams.incrementAndGet();
+                return;
+            }
+
+            int length = message.getShort() & 0xFFFF;
+            if (length > end - message.position()) {
+                droppedDatagrams.incrementAndGet();
+                return;
+            }
+
+            int next = message.position() + length;
+            ByteBuffer single = message.duplicate();
+            single.limit(next);
+            message.position(next);
+            fireInbound(single, source);
+        }
+    }
+
+    @Override
+    protected void onPeerClosed(InetSocketAddress peer) {
+        Batch batch = batches.remove(peer);
+        if (batch != null) {
+            synchronized (batch) {
+                if (batch.flushTask != null)
+                    batch.flushTask.cancel(false);
+                batch.data = null;
+                batch.count = 0;
+            }
+        }
+    }
+
+    /*******************************************/
+    /*                 Classes                 */
+    /*******************************************/
+
+    /**
+     * Messages waiting to be sent to a peer.
+     */
+    private static final class Batch {
+
+        /**
+         * Header and messages of the batch, null if the batch is empty.
+         */
+        private ByteBuffer data;
+
+        private int count;
+
+        private ScheduledFuture<?> flushTask;
+    }
+
+}
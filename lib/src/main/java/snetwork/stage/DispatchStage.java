@@ -0,0 +1,408 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stage handing the received messages to an {@link Executor}, so that a slow
+ * {@link snetwork.AbstractP2PLink#onListening(ByteBuffer)} does not stop the socket from being drained.
+ * <p>
+ * The messages of each peer wait in a bounded lock-free ring and are given to the application in their order
+ * of arrival, by one task at a time. The messages of different peers are handled in parallel.
+ * A message arriving while the ring of its peer is full is dropped.
+ * <p>
+ * When a peer is closed, its ring is kept until the task in progress has given the waiting messages: a peer
+ * reconnecting meanwhile goes on with the same ring, so its messages are never handled by two tasks at once.
+ * <p>
+ * Only the receiving peer needs this stage.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class DispatchStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 900;
+
+    /**
+     * Default maximum number of messages waiting for each peer.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Maximum number of messages handled by a task before it lets the other peers run.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Executor handling the messages.
+     */
+    private final Executor executor;
+
+    /**
+     * Maximum number of messages waiting for each peer, a power of two.
+     */
+    private final int capacity;
+
+    /**
+     * Waiting messages of each peer.
+     */
+    private final ConcurrentMap<InetSocketAddress, PeerQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Number of messages dropped because the ring of their peer was full or the executor rejected them.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    /**
+     * Number of messages given to the application.
+     */
+    private final AtomicLong dispatchedMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>DispatchStage</b></i>
+     *
+     * <pre> public DispatchStage({@link Executor} executor) </pre>
+     *
+     * Constructor of {@link DispatchStage} keeping up to {@link #DEFAULT_CAPACITY} messages for each peer.
+     * @param executor the executor handling the messages.
+     */
+    public DispatchStage(Executor executor) {
+        this(executor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * <i><b>DispatchStage</b></i>
+     *
+     * <pre> public DispatchStage({@link Executor} executor, int capacity) </pre>
+     *
+     * Constructor of {@link DispatchStage}.
+     * @param executor the executor handling the messages.
+     * @param capacity the maximum number of messages waiting for each peer, rounded up to a power of two.
+     */
+    public DispatchStage(Executor executor, int capacity) {
+        if (executor == null)
+            throw new IllegalArgumentException("The executor cannot be null.");
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^30.");
+
+        this.executor = executor;
+        this.capacity = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+    }
+
+    /*******************************************/
+    /*                 Getters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getCapacity</b></i>
+     *
+     * <pre> public int getCapacity() </pre>
+     *
+     * @return the maximum number of messages waiting for each peer.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * <i><b>getQueueDepth</b></i>
+     *
+     * <pre> public int getQueueDepth() </pre>
+     *
+     * @return the number of messages waiting for all the peers.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (PeerQueue queue : queues.values())
+            depth += queue.ring.size();
+        return depth;
+    }
+
+    /**
+     * <i><b>getQueueDepth</b></i>
+     *
+     * <pre> public int getQueueDepth({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address of the peer.
+     * @return the number of messages waiting for the given peer.
+     */
+    public int getQueueDepth(InetSocketAddress peer) {
+        PeerQueue queue = queues.get(peer);
+        return queue == null ? 0 : queue.ring.size();
+    }
+
+    /**
+     * <i><b>getDroppedMessages</b></i>
+     *
+     * <pre> public long getDroppedMessages() </pre>
+     *
+     * @return the number of messages dropped because the ring of their peer was full.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * <i><b>getDispatchedMessages</b></i>
+     *
+     * <pre> public long getDispatchedMessages() </pre>
+     *
+     * @return the number of messages given to the application.
+     */
+    public long getDispatchedMessages() {
+        return dispatchedMessages.get();
+    }
+
+    /*******************************************/
+    /*                  Stage                  */
+    /*******************************************/
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        byte[] copy = new byte[message.remaining()];
+        message.get(copy);
+
+        PeerQueue queue;
+        boolean offered;
+        while (true) {
+            queue = queues.get(source);
+            if (queue == null)
+                queue = queues.computeIfAbsent(source, peer -> new PeerQueue(peer, capacity));
+
+            synchronized (queue) {
+                /* Retired meanwhile: it is no longer in the map */
+                if (queue.retired)
+                    continue;
+                queue.closed = false;
+                offered = queue.ring.offer(copy);
+            }
+            break;
+        }
+
+        if (!offered) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        schedule(queue);
+    }
+
+    @Override
+    protected void onPeerClosed(InetSocketAddress peer) {
+        PeerQueue queue = queues.get(peer);
+        if (queue == null)
+            return;
+
+        // The task in progress still delivers the waiting messages, then retires the queue.
+        synchronized (queue) {
+            queue.closed = true;
+        }
+        retireIfClosed(queue);
+    }
+
+    /*******************************************/
+    /*                Dispatch                 */
+    /*******************************************/
+
+    /**
+     * <i><b>schedule</b></i>
+     *
+     * <pre> private void schedule({@link PeerQueue} queue) </pre>
+     *
+     * Give the waiting messages of a peer to the executor if no task handles them.
+     * @param queue the waiting messages of the peer.
+     */
+    private void schedule(PeerQueue queue) {
+        if (!queue.scheduled.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(() -> dispatch(queue));
+        } catch (RejectedExecutionException e) {
+            byte[] message;
+            while ((message = queue.ring.poll()) != null)
+                droppedMessages.incrementAndGet();
+            queue.scheduled.set(false);
+            retireIfClosed(queue);
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * <i><b>dispatch</b></i>
+     *
+     * <pre> private void dispatch({@link PeerQueue} queue) </pre>
+     *
+     * Give the waiting messages of a peer to the application, in their order of arrival.
+     * @param queue the waiting messages of the peer.
+     */
+    private void dispatch(PeerQueue queue) {
+        try {
+            byte[] message;
+            for (int i = 0; i < BATCH_SIZE && (message = queue.ring.poll()) != null; i++) {
+                try {
+                    fireInbound(ByteBuffer.wrap(message).asReadOnlyBuffer(), queue.peer);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                dispatchedMessages.incrementAndGet();
+            }
+        } finally {
+            queue.scheduled.set(false);
+        }
+
+        if (!queue.ring.isEmpty())
+            schedule(queue);
+        else
+            retireIfClosed(queue);
+    }
+
+    /**
+     * <i><b>retireIfClosed</b></i>
+     *
+     * <pre> private void retireIfClosed({@link PeerQueue} queue) </pre>
+     *
+     * Remove the queue of a closed peer once no task handles it and no message waits in it. A message arriving
+     * later creates a new queue.
+     * @param queue the waiting messages of the peer.
+     */
+    private void retireIfClosed(PeerQueue queue) {
+        synchronized (queue) {
+            if (!queue.closed || queue.retired || queue.scheduled.get() || !queue.ring.isEmpty())
+                return;
+            queue.retired = true;
+            queues.remove(queue.peer, queue);
+        }
+    }
+
+    /**
+     * Waiting messages of a peer.
+     */
+    private static final class PeerQueue {
+
+        final InetSocketAddress peer;
+
+        final Ring<byte[]> ring;
+
+        /**
+         * True while a task of the executor handles the messages.
+         */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * True once the peer is closed, until a message of the peer arrives again. Guarded by the queue.
+         */
+        boolean closed;
+
+        /**
+         * True once the queue is removed from the map of the stage. Guarded by the queue.
+         */
+        boolean retired;
+
+        PeerQueue(InetSocketAddress peer, int capacity) {
+            this.peer = peer;
+            this.ring = new Ring<>(capacity);
+        }
+    }
+
+    /**
+     * Bounded lock-free ring with several producers and consumers. Each slot has a sequence number telling
+     * whether it is free for the producer of a given turn or filled for the consumer of this turn.
+     */
+    private static final class Ring<E> {
+
+        private final AtomicReferenceArray<E> slots;
+
+        private final AtomicLongArray sequences;
+
+        private final int mask;
+
+        /**
+         * Position of the next offered element.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Position of the next polled element.
+         */
+        private final AtomicLong head = new AtomicLong();
+
+        Ring(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                sequences.set(i, i);
+        }
+
+        boolean offer(E element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.set(index, element);
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        E poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        E element = slots.get(index);
+                        slots.set(index, null);
+                        sequences.lazySet(index, position + mask + 1);
+                        return element;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    return null;
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head.get());
+        }
+
+        boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+
+}
@@ -0,0 +1,658 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage adding forward error correction: the sent datagrams are grouped in blocks, and each block is followed by
+ * XOR parity datagrams from which the receiver rebuilds the lost datagrams without a retransmission.
+ * <p>
+ * With p parity datagrams, the parity j covers the datagrams whose index in the block modulo p is j, so a block
+ * survives the loss of one datagram of each group. The datagrams are given to the next stage as soon as they
+ * arrive; only the rebuilt ones wait for their parity. A block not full after the flush delay is closed with the
+ * datagrams already sent, so the parity of the last datagrams of a burst is not held back.
+ * <p>
+ * Both peers must use this stage with the same block size. It is the closest stage to the network, under
+ * {@link ReliableStage}, which then only retransmits what the parity could not rebuild.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class FecStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 100;
+
+    /**
+     * Default number of datagrams of a block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 8;
+
+    /**
+     * Default ratio of parity datagrams to data datagrams.
+     */
+    public static final double DEFAULT_REDUNDANCY = 0.25;
+
+    /**
+     * Default time in milliseconds after which a block not full is closed.
+     */
+    public static final long DEFAULT_FLUSH_DELAY = 20;
+
+    /**
+     * Maximum number of datagrams of a block.
+     */
+    public static final int MAX_BLOCK_SIZE = 0xFF;
+
+    /**
+     * Number of blocks kept for each peer waiting for their parity.
+     */
+    private static final int MAX_BLOCKS = 64;
+
+    /**
+     * Time in milliseconds after which a block is no longer waited for.
+     */
+    private static final long BLOCK_TIMEOUT = 1000;
+
+    /**
+     * Header of a data datagram.
+     */
+    private static final byte DATA = 0;
+
+    /**
+     * Header of a parity datagram.
+     */
+    private static final byte PARITY = 1;
+
+    /**
+     * Size of the header of a data datagram: kind, block id and index.
+     */
+    private static final int DATA_HEADER_SIZE = 1 + 4 + 1;
+
+    /**
+     * Size of the header of a parity datagram: kind, block id, parity index, data count and parity count.
+     */
+    private static final int PARITY_HEADER_SIZE = 1 + 4 + 1 + 1 + 1;
+
+    /**
+     * Size of the length of a datagram, covered by the parity.
+     */
+    private static final int LENGTH_SIZE = 2;
+
+    /**
+     * Number of datagrams of a block.
+     */
+    private final int blockSize;
+
+    /**
+     * Number of parity datagrams of a full block.
+     */
+    private final int parityCount;
+
+    /**
+     * Time in milliseconds after which a block not full is closed.
+     */
+    private final long flushDelay;
+
+    /**
+     * Send state by peer.
+     */
+    private final Map<InetSocketAddress, SendState> sendStates = new ConcurrentHashMap<>();
+
+    /**
+     * Receive state by peer.
+     */
+    private final Map<InetSocketAddress, ReceiveState> receiveStates = new ConcurrentHashMap<>();
+
+    /**
+     * Number of parity datagrams sent.
+     */
+    private final AtomicLong sentParities = new AtomicLong();
+
+    /**
+     * Number of datagrams rebuilt from the parity, lost or late.
+     */
+    private final AtomicLong recoveredDatagrams = new AtomicLong();
+
+    /**
+     * Number of lost datagrams the parity could not rebuild.
+     */
+    private final AtomicLong unrecoverableDatagrams = new AtomicLong();
+
+    /**
+     * Number of datagrams dropped because they are invalid or duplicated.
+     */
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>FecStage</b></i>
+     *
+     * <pre> public FecStage() </pre>
+     *
+     * Constructor of {@link FecStage} with blocks of {@link #DEFAULT_BLOCK_SIZE} datagrams and a redundancy of
+     * {@link #DEFAULT_REDUNDANCY}.
+     */
+    public FecStage() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_REDUNDANCY, DEFAULT_FLUSH_DELAY);
+    }
+
+    /**
+     * <i><b>FecStage</b></i>
+     *
+     * <pre> public FecStage(int blockSize, double redundancy, long flushDelay) </pre>
+     *
+     * Constructor of {@link FecStage}.
+     * @param blockSize the number of datagrams of a block, at most {@link #MAX_BLOCK_SIZE}.
+     * @param redundancy the ratio of parity datagrams to data datagrams, between 0 excluded and 1. A block has at
+     *                   least one parity datagram.
+     * @param flushDelay the time in milliseconds after which a block not full is closed.
+     */
+    public FecStage(int blockSize, double redundancy, long flushDelay) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("The block size must be between 1 and " + MAX_BLOCK_SIZE + ".");
+        if (!(redundancy > 0 && redundancy <= 1))
+            throw new IllegalArgumentException("The redundancy must be between 0 excluded and 1.");
+        if (flushDelay <= 0)
+            throw new IllegalArgumentException("The flush delay must be positive.");
+
+        this.blockSize = blockSize;
+        this.parityCount = Math.max(1, Math.min(blockSize, (int) Math.ceil(blockSize * redundancy)));
+        this.flushDelay = flushDelay;
+    }
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return PARITY_HEADER_SIZE + LENGTH_SIZE;
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getParityCount() {
+        return parityCount;
+    }
+
+    /**
+     * <i><b>getSentParities</b></i>
+     *
+     * <pre> public long getSentParities() </pre>
+     *
+     * @return the number of parity datagrams sent.
+     */
+    public long getSentParities() {
+        return sentParities.get();
+    }
+
+    /**
+     * <i><b>getRecoveredDatagrams</b></i>
+     *
+     * <pre> public long getRecoveredDatagrams() </pre>
+     *
+     * @return the number of datagrams rebuilt from the parity, lost or arriving after the parity of their group.
+     */
+    public long getRecoveredDatagrams() {
+        return recoveredDatagrams.get();
+    }
+
+    /**
+     * <i><b>getUnrecoverableDatagrams</b></i>
+     *
+     * <pre> public long getUnrecoverableDatagrams() </pre>
+     *
+     * @return the number of lost datagrams the parity could not rebuild, counted when their block is no longer
+     * waited for.
+     */
+    public long getUnrecoverableDatagrams() {
+        return unrecoverableDatagrams.get();
+    }
+
+    /**
+     * <i><b>getDroppedDatagrams</b></i>
+     *
+     * <pre> public long getDroppedDatagrams() </pre>
+     *
+     * @return the number of datagrams dropped because they are invalid or duplicated, the late datagrams already
+     * rebuilt included.
+     */
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.get();
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the datagram in the current block of the peer, then the parity of the block if it is full.
+     * @param message the sent datagram.
+     * @param destination the address of the peer.
+     */
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        SendState state = sendStates.computeIfAbsent(destination, peer -> new SendState());
+        ByteBuffer datagram = ByteBuffer.allocate(DATA_HEADER_SIZE + message.remaining());
+        List<ByteBuffer> parities;
+
+        synchronized (state) {
+            int index = state.count++;
+            datagram.put(DATA).putInt(state.blockId).put((byte) index);
+            state.encode(message.duplicate(), index % parityCount);
+            datagram.put(message).flip();
+
+            if (state.count == blockSize) {
+                parities = state.close();
+            } else {
+                parities = null;
+                if (index == 0) {
+                    int blockId = state.blockId;
+                    state.flushTask = schedule(() -> flush(state, blockId, destination), flushDelay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        fireOutbound(datagram, destination);
+        if (parities != null)
+            send(parities, destination);
+    }
+
+    /**
+     * <i><b>flush</b></i>
+     *
+     * <pre> private void flush({@link SendState} state, int blockId, {@link InetSocketAddress} destination) </pre>
+     *
+     * Close a block not full after the flush delay.
+     * @param state the send state of the peer.
+     * @param blockId the id of the block.
+     * @param destination the address of the peer.
+     */
+    private void flush(SendState state, int blockId, InetSocketAddress destination) {
+        List<ByteBuffer> parities;
+        synchronized (state) {
+            if (state.blockId != blockId || state.count == 0 || sendStates.get(destination) != state)
+                return;
+
+            parities = state.close();
+        }
+
+        send(parities, destination);
+    }
+
+    /**
+     * <i><b>send</b></i>
+     *
+     * <pre> private void send({@link List}&lt;{@link ByteBuffer}&gt; parities, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the parity datagrams of a block.
+     * @param parities the parity datagrams.
+     * @param destination the address of the peer.
+     */
+    private void send(List<ByteBuffer> parities, InetSocketAddress destination) {
+        for (ByteBuffer parity : parities) {
+            fireOutbound(parity, destination);
+            sentParities.incrementAndGet();
+        }
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the data datagrams to the next stage, and rebuild the lost datagrams of the block from its parity.
+     * @param message the received datagram.
+     * @param source the address of the peer.
+     */
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (message.remaining() < DATA_HEADER_SIZE) {
+            droppedDatagrams.incrementAndGet();
+            return;
+        }
+
+        byte kind = message.get();
+        int blockId = message.getInt();
+        int index = message.get() & 0xFF;
+        ReceiveState state = receiveStates.computeIfAbsent(source, peer -> new ReceiveState());
+        List<byte[]> recovered;
+
+        if (kind == DATA) {
+            byte[] data = new byte[message.remaining()];
+            message.duplicate().get(data);
+
+            synchronized (state) {
+                Block block = state.block(blockId);
+                if (block == null || !block.storeData(index, data)) {
+                    droppedDatagrams.incrementAndGet();
+                    return;
+                }
+                recovered = block.recover();
+            }
+
+            fireInbound(message, source);
+
+        } else if (kind == PARITY && message.remaining() >= PARITY_HEADER_SIZE - DATA_HEADER_SIZE + LENGTH_SIZE) {
+            int count = message.get() & 0xFF;
+            int parities = message.get() & 0xFF;
+            byte[] parity = new byte[message.remaining()];
+            message.get(parity);
+
+            synchronized (state) {
+                Block block = state.block(blockId);
+                if (block == null || !block.storeParity(index, count, parities, parity)) {
+                    droppedDatagrams.incrementAndGet();
+                    return;
+                }
+                recovered = block.recover();
+            }
+
+        } else {
+            droppedDatagrams.incrementAndGet();
+            return;
+        }
+
+        for (byte[] data : recovered) {
+            recoveredDatagrams.incrementAndGet();
+            fireInbound(ByteBuffer.wrap(data), source);
+        }
+    }
+
+    @Override
+    protected void onPeerClosed(InetSocketAddress peer) {
+        SendState sendState = sendStates.remove(peer);
+        if (sendState != null) {
+            synchronized (sendState) {
+                if (sendState.flushTask != null)
+                    sendState.flushTask.cancel(false);
+            }
+        }
+
+        ReceiveState receiveState = receiveStates.remove(peer);
+        if (receiveState != null) {
+            synchronized (receiveState) {
+                for (Block block : receiveState.blocks.values())
+                    unrecoverableDatagrams.addAndGet(block.getMissingCount());
+                receiveState.blocks.clear();
+            }
+        }
+    }
+
+    /*******************************************/
+    /*                 Parity                  */
+    /*******************************************/
+
+    /**
+     * <i><b>xor</b></i>
+     *
+     * <pre> private static byte[] xor(byte[] parity, {@link ByteBuffer} data) </pre>
+     *
+     * Add a datagram, preceded by its length, to a parity.
+     * @param parity the parity, null if empty.
+     * @param data the datagram, from its position to its limit.
+     * @return the parity, grown if the datagram is longer than the previous ones.
+     */
+    private static byte[] xor(byte[] parity, ByteBuffer data) {
+        int length = data.remaining();
+        if (parity == null || parity.length < LENGTH_SIZE + length) {
+            byte[] grown = new byte[LENGTH_SIZE + length];
+            if (parity != null)
+                System.arraycopy(parity, 0, grown, 0, parity.length);
+            parity = grown;
+        }
+
+        parity[0] ^= (byte) (length >>> 8);
+        parity[1] ^= (byte) length;
+        for (int i = 0; i < length; i++)
+            parity[LENGTH_SIZE + i] ^= data.get(data.position() + i);
+        return parity;
+    }
+
+    /*******************************************/
+    /*                 Classes                 */
+    /*******************************************/
+
+    /**
+     * Block being sent to a peer.
+     */
+    private final class SendState {
+
+        private int blockId;
+
+        private int count;
+
+        private final byte[][] parities = new byte[parityCount][];
+
+        private ScheduledFuture<?> flushTask;
+
+        private void encode(ByteBuffer data, int parityIndex) {
+            parities[parityIndex] = xor(parities[parityIndex], data);
+        }
+
+        /**
+         * Build the parity datagrams of the block and start the next one.
+         */
+        private List<ByteBuffer> close() {
+            int groups = Math.min(parityCount, count);
+            List<ByteBuffer> datagrams = new ArrayList<>(groups);
+
+            for (int i = 0; i < groups; i++) {
+                ByteBuffer datagram = ByteBuffer.allocate(PARITY_HEADER_SIZE + parities[i].length);
+                datagram.put(PARITY)
+                        .putInt(blockId)
+                        .put((byte) i)
+                        .put((byte) count)
+                        .put((byte) parityCount)
+                        .put(parities[i])
+                        .flip();
+                datagrams.add(datagram);
+                parities[i] = null;
+            }
+
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            blockId++;
+            count = 0;
+            return datagrams;
+        }
+    }
+
+    /**
+     * Blocks received from a peer, from the oldest to the newest.
+     */
+    private final class ReceiveState {
+
+        private final Map<Integer, Block> blocks = new LinkedHashMap<>();
+
+        /**
+         * Id of the newest block, to ignore the datagrams of the blocks no longer waited for.
+         */
+        private int newestBlockId;
+
+        private boolean started;
+
+        /**
+         * <i><b>block</b></i>
+         *
+         * <pre> private {@link Block} block(int blockId) </pre>
+         *
+         * Find or create a block, and close the blocks too old to be waited for.
+         * @param blockId the id of the block.
+         * @return the block, null if it is no longer waited for.
+         */
+        private Block block(int blockId) {
+            long now = currentTimeMillis();
+            Iterator<Block> oldest = blocks.values().iterator();
+            while (oldest.hasNext()) {
+                Block block = oldest.next();
+                if (blocks.size() <= MAX_BLOCKS && now - block.creationTime < BLOCK_TIMEOUT)
+                    break;
+
+                unrecoverableDatagrams.addAndGet(block.getMissingCount());
+                oldest.remove();
+            }
+
+            Block block = blocks.get(blockId);
+            if (block != null)
+                return block;
+
+            if (started && blockId - newestBlockId <= -MAX_BLOCKS)
+                return null;
+
+            if (!started || blockId - newestBlockId > 0) {
+                newestBlockId = blockId;
+                started = true;
+            }
+
+            block = new Block(now);
+            blocks.put(blockId, block);
+            return block;
+        }
+    }
+
+    /**
+     * Block received from a peer.
+     */
+    private final class Block {
+
+        private final long creationTime;
+
+        private final byte[][] data = new byte[MAX_BLOCK_SIZE][];
+
+        private byte[][] parities;
+
+        /**
+         * Number of data datagrams, -1 until a parity datagram is received.
+         */
+        private int count = -1;
+
+        /**
+         * Indexes of the data datagrams received or rebuilt.
+         */
+        private final BitSet present = new BitSet();
+
+        private int highestIndex = -1;
+
+        private Block(long creationTime) {
+            this.creationTime = creationTime;
+        }
+
+        private boolean storeData(int index, byte[] datagram) {
+            if (present.get(index) || (count >= 0 && index >= count))
+                return false;
+
+            data[index] = datagram;
+            present.set(index);
+            highestIndex = Math.max(highestIndex, index);
+            return true;
+        }
+
+        private boolean storeParity(int index, int count, int parityCount, byte[] parity) {
+            if (parityCount == 0 || index >= parityCount || count == 0 || highestIndex >= count)
+                return false;
+            if (this.count >= 0 && (this.count != count || parities.length != parityCount))
+                return false;
+
+            if (this.count < 0) {
+                this.count = count;
+                this.parities = new byte[parityCount][];
+            }
+            if (parities[index] != null)
+                return false;
+
+            parities[index] = parity;
+            return true;
+        }
+
+        /**
+         * <i><b>recover</b></i>
+         *
+         * <pre> private {@link List}&lt;byte[]&gt; recover() </pre>
+         *
+         * Rebuild the missing datagram of each group with its parity and all its other datagrams.
+         * @return the rebuilt datagrams.
+         */
+        private List<byte[]> recover() {
+            if (count < 0)
+                return new ArrayList<>(0);
+
+            List<byte[]> recovered = new ArrayList<>(0);
+            for (int group = 0; group < parities.length; group++) {
+                if (parities[group] == null)
+                    continue;
+
+                int missing = -1;
+                for (int index = group; index < count; index += parities.length) {
+                    if (present.get(index))
+                        continue;
+                    if (missing >= 0) {
+                        missing = -2;
+                        break;
+                    }
+                    missing = index;
+                }
+                if (missing < 0)
+                    continue;
+
+                byte[] parity = parities[group].clone();
+                for (int index = group; index < count; index += parities.length) {
+                    if (index != missing)
+                        parity = xor(parity, ByteBuffer.wrap(data[index]));
+                }
+
+                int length = ((parity[0] & 0xFF) << 8) | (parity[1] & 0xFF);
+                if (length > parity.length - LENGTH_SIZE)
+                    continue;
+
+                byte[] datagram = new byte[length];
+                System.arraycopy(parity, LENGTH_SIZE, datagram, 0, length);
+                data[missing] = datagram;
+                present.set(missing);
+                recovered.add(datagram);
+            }
+            return recovered;
+        }
+
+        /**
+         * @return the number of data datagrams neither received nor rebuilt, as far as the block is known.
+         */
+        private int getMissingCount() {
+            int known = count >= 0 ? count : highestIndex + 1;
+            return known - present.get(0, Math.max(known, 0)).cardinality();
+        }
+    }
+
+}
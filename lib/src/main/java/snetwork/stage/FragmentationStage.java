@@ -0,0 +1,479 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage splitting the messages larger than a datagram into fragments, and putting the received fragments
+ * back together. The partial messages are kept in a reassembly buffer bounded in memory and in time.
+ * <p>
+ * Both peers must use this stage.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class FragmentationStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 400;
+
+    /**
+     * Default maximum size of a message.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1 << 20;
+
+    /**
+     * Default maximum number of bytes kept for the partial messages.
+     */
+    public static final long DEFAULT_MAX_REASSEMBLY_BYTES = 16L << 20;
+
+    /**
+     * Default time in milliseconds after which a partial message is dropped.
+     */
+    public static final long DEFAULT_REASSEMBLY_TIMEOUT = 5000;
+
+    /**
+     * Header of a message sent in a single datagram.
+     */
+    private static final byte WHOLE = 0;
+
+    /**
+     * Header of a fragment.
+     */
+    private static final byte FRAGMENT = 1;
+
+    /**
+     * Size of the header of a fragment: kind, message id, index, count and message size.
+     */
+    private static final int FRAGMENT_HEADER_SIZE = 1 + 4 + 2 + 2 + 4;
+
+    /**
+     * Maximum size of a message.
+     */
+    private final int maxMessageSize;
+
+    /**
+     * Maximum number of bytes kept for the partial messages.
+     */
+    private final long maxReassemblyBytes;
+
+    /**
+     * Time in milliseconds after which a partial message is dropped.
+     */
+    private final long reassemblyTimeout;
+
+    /**
+     * Id of the next fragmented message.
+     */
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    /**
+     * Partial messages, from the oldest to the newest.
+     */
+    private final Map<MessageKey, PartialMessage> partialMessages = new LinkedHashMap<>();
+
+    /**
+     * Number of bytes kept for the partial messages.
+     */
+    private long reassemblyBytes;
+
+    /**
+     * Task dropping the expired partial messages, null if there is no partial message.
+     */
+    private ScheduledFuture<?> expirationTask;
+
+    /**
+     * Number of messages put back together.
+     */
+    private final AtomicLong reassembledMessages = new AtomicLong();
+
+    /**
+     * Number of messages dropped because they are invalid, expired or beyond the memory limit.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>FragmentationStage</b></i>
+     *
+     * <pre> public FragmentationStage() </pre>
+     *
+     * Constructor of {@link FragmentationStage} with the default limits.
+     */
+    public FragmentationStage() {
+        this(DEFAULT_MAX_MESSAGE_SIZE, DEFAULT_MAX_REASSEMBLY_BYTES, DEFAULT_REASSEMBLY_TIMEOUT);
+    }
+
+    /**
+     * <i><b>FragmentationStage</b></i>
+     *
+     * <pre> public FragmentationStage(int maxMessageSize, long maxReassemblyBytes, long reassemblyTimeout) </pre>
+     *
+     * Constructor of {@link FragmentationStage}.
+     * @param maxMessageSize the maximum size of a message, sent or received.
+     * @param maxReassemblyBytes the maximum number of bytes kept for the partial messages. The oldest partial
+     *                           messages are dropped to make room for the new ones.
+     * @param reassemblyTimeout the time in milliseconds after which a partial message is dropped.
+     */
+    public FragmentationStage(int maxMessageSize, long maxReassemblyBytes, long reassemblyTimeout) {
+        if (maxMessageSize <= 0 || maxReassemblyBytes <= 0 || reassemblyTimeout <= 0)
+            throw new IllegalArgumentException("The limits of the reassembly must be positive.");
+
+        this.maxMessageSize = maxMessageSize;
+        this.maxReassemblyBytes = maxReassemblyBytes;
+        this.reassemblyTimeout = reassemblyTimeout;
+    }
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return 1;
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getReassembledMessages</b></i>
+     *
+     * <pre> public long getReassembledMessages() </pre>
+     *
+     * @return the number of messages put back together.
+     */
+    public long getReassembledMessages() {
+        return reassembledMessages.get();
+    }
+
+    /**
+     * <i><b>getDroppedMessages</b></i>
+     *
+     * <pre> public long getDroppedMessages() </pre>
+     *
+     * @return the number of messages dropped because they are invalid, expired or beyond the memory limit.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * <i><b>getReassemblyBytes</b></i>
+     *
+     * <pre> public synchronized long getReassemblyBytes() </pre>
+     *
+     * @return the number of bytes currently kept for the partial messages.
+     */
+    public synchronized long getReassemblyBytes() {
+        return reassemblyBytes;
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the message in a single datagram if it fits, in fragments otherwise.
+     * @param message the sent message.
+     * @param destination the address of the peer.
+     * @throws IllegalArgumentException if the message is larger than the maximum message size.
+     */
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        int maxDatagramSize = getMaxOutboundSize();
+        int length = message.remaining();
+
+        if (length + 1 <= maxDatagramSize) {
+            ByteBuffer datagram = ByteBuffer.allocate(length + 1);
+            datagram.put(WHOLE).put(message).flip();
+            fireOutbound(datagram, destination);
+            return;
+        }
+
+        if (length > maxMessageSize)
+            throw new IllegalArgumentException("Message too large: " + length + " bytes (max: " + maxMessageSize + ").");
+
+        int fragmentSize = maxDatagramSize - FRAGMENT_HEADER_SIZE;
+        if (fragmentSize <= 0)
+            throw new IllegalStateException("The datagrams are too small to be fragmented.");
+
+        int count = (length + fragmentSize - 1) / fragmentSize;
+        if (count > 0xFFFF)
+            throw new IllegalArgumentException("Message too large: " + count + " fragments.");
+
+        int messageId = nextMessageId.getAndIncrement();
+        ByteBuffer datagram = ByteBuffer.allocate(maxDatagramSize);
+        int end = message.limit();
+
+        for (int index = 0; index < count; index++) {
+            datagram.clear();
+            datagram.put(FRAGMENT)
+                    .putInt(messageId)
+                    .putShort((short) index)
+                    .putShort((short) count)
+                    .putInt(length);
+
+            message.limit(Math.min(message.position() + fragmentSize, end));
+            datagram.put(message);
+            message.limit(end);
+
+            datagram.flip();
+            fireOutbound(datagram, destination);
+        }
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the messages sent in a single datagram to the next stage, and keep the fragments until their
+     * message is complete.
+     * @param message the received datagram.
+     * @param source the address of the peer.
+     */
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (!message.hasRemaining()) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        byte kind = message.get();
+        if (kind == WHOLE) {
+            fireInbound(message, source);
+            return;
+        }
+
+        if (kind != FRAGMENT || message.remaining() < FRAGMENT_HEADER_SIZE - 1) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        int messageId = message.getInt();
+        int index = message.getShort() & 0xFFFF;
+        int count = message.getShort() & 0xFFFF;
+        int length = message.getInt();
+        int fragmentLength = message.remaining();
+        int offset = index == count - 1 ? length - fragmentLength : index * fragmentLength;
+
+        if (index >= count || length <= 0 || length > maxMessageSize || length > maxReassemblyBytes
+                || offset < 0 || offset + fragmentLength > length) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        byte[] completeMessage = store(new MessageKey(source, messageId), message, index, count, length, offset);
+
+        if (completeMessage != null)
+            fireInbound(ByteBuffer.wrap(completeMessage).asReadOnlyBuffer(), source);
+    }
+
+    /**
+     * <i><b>store</b></i>
+     *
+     * <pre> private synchronized byte[] store({@link MessageKey} key, {@link ByteBuffer} fragment, int index, int count, int length, int offset) </pre>
+     *
+     * Copy a fragment in its partial message.
+     * @param key the key of the message.
+     * @param fragment the data of the fragment.
+     * @param index the index of the fragment.
+     * @param count the number of fragments of the message.
+     * @param length the size of the message.
+     * @param offset the position of the fragment in the message.
+     * @return the message if it is complete, null otherwise.
+     */
+    private synchronized byte[] store(MessageKey key, ByteBuffer fragment, int index, int count, int length, int offset) {
+        PartialMessage partialMessage = partialMessages.get(key);
+
+        if (partialMessage == null) {
+            if (!reserve(length)) {
+                droppedMessages.incrementAndGet();
+                return null;
+            }
+
+            partialMessage = new PartialMessage(length, count, currentTimeMillis());
+            partialMessages.put(key, partialMessage);
+            scheduleExpiration();
+
+        } else if (partialMessage.data.length != length || partialMessage.count != count) {
+            droppedMessages.incrementAndGet();
+            return null;
+        }
+
+        if (!partialMessage.receivedFragments.get(index)) {
+            fragment.get(partialMessage.data, offset, fragment.remaining());
+            partialMessage.receivedFragments.set(index);
+            partialMessage.receivedCount++;
+        }
+
+        if (partialMessage.receivedCount < count)
+            return null;
+
+        partialMessages.remove(key);
+        reassemblyBytes -= length;
+        reassembledMessages.incrementAndGet();
+        return partialMessage.data;
+    }
+
+    /**
+     * <i><b>reserve</b></i>
+     *
+     * <pre> private boolean reserve(int length) </pre>
+     *
+     * Make room for a new partial message by dropping the oldest ones if needed.
+     * @param length the size of the new message.
+     * @return true if the room has been reserved, false otherwise.
+     */
+    private boolean reserve(int length) {
+        Iterator<PartialMessage> oldest = partialMessages.values().iterator();
+        while (reassemblyBytes + length > maxReassemblyBytes && oldest.hasNext()) {
+            reassemblyBytes -= oldest.next().data.length;
+            oldest.remove();
+            droppedMessages.incrementAndGet();
+        }
+
+        if (reassemblyBytes + length > maxReassemblyBytes)
+            return false;
+
+        reassemblyBytes += length;
+        return true;
+    }
+
+    /*******************************************/
+    /*               Expiration                */
+    /*******************************************/
+
+    /**
+     * <i><b>scheduleExpiration</b></i>
+     *
+     * <pre> private void scheduleExpiration() </pre>
+     *
+     * Start the task dropping the expired partial messages if it is not running.
+     */
+    private void scheduleExpiration() {
+        if (expirationTask != null)
+            return;
+
+        expirationTask = schedule(this::dropExpiredMessages, Math.max(10, reassemblyTimeout / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <i><b>dropExpiredMessages</b></i>
+     *
+     * <pre> private synchronized void dropExpiredMessages() </pre>
+     *
+     * Drop the partial messages older than the reassembly timeout.
+     */
+    private synchronized void dropExpiredMessages() {
+        expirationTask = null;
+        long now = currentTimeMillis();
+
+        Iterator<PartialMessage> oldest = partialMessages.values().iterator();
+        while (oldest.hasNext()) {
+            PartialMessage partialMessage = oldest.next();
+            if (now - partialMessage.creationTime < reassemblyTimeout)
+                break;
+
+            reassemblyBytes -= partialMessage.data.length;
+            oldest.remove();
+            droppedMessages.incrementAndGet();
+        }
+
+        if (!partialMessages.isEmpty())
+            scheduleExpiration();
+    }
+
+    @Override
+    protected synchronized void onPeerClosed(InetSocketAddress peer) {
+        Iterator<Map.Entry<MessageKey, PartialMessage>> entries = partialMessages.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<MessageKey, PartialMessage> entry = entries.next();
+            if (entry.getKey().source.equals(peer)) {
+                reassemblyBytes -= entry.getValue().data.length;
+                entries.remove();
+            }
+        }
+    }
+
+    /*******************************************/
+    /*                 Classes                 */
+    /*******************************************/
+
+    /**
+     * Key of a partial message: its sender and its id.
+     */
+    private static final class MessageKey {
+
+        private final InetSocketAddress source;
+
+        private final int messageId;
+
+        private MessageKey(InetSocketAddress source, int messageId) {
+            this.source = source;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof MessageKey))
+                return false;
+            MessageKey key = (MessageKey) other;
+            return messageId == key.messageId && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, messageId);
+        }
+    }
+
+    /**
+     * Message whose fragments are not all received.
+     */
+    private static final class PartialMessage {
+
+        private final byte[] data;
+
+        private final int count;
+
+        private final BitSet receivedFragments;
+
+        private final long creationTime;
+
+        private int receivedCount;
+
+        private PartialMessage(int length, int count, long creationTime) {
+            this.data = new byte[length];
+            this.creationTime = creationTime;
+            this.count = count;
+            this.receivedFragments = new BitSet(count);
+        }
+    }
+
+}
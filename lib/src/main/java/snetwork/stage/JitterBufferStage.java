@@ -0,0 +1,629 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Stage giving the messages of each peer in the order they were sent, for the real-time streams (audio, sensors)
+ * which prefer a skipped message to a late one.
+ * <p>
+ * The messages arriving in order are given at once. A message arriving after a gap waits in the buffer for the
+ * missing ones during the target delay, then the gap is skipped: a lost message never blocks the next ones for
+ * longer than the target delay. The target delay follows the jitter measured on the arrivals, between a minimum and
+ * a maximum, and the buffer is bounded in messages. A message arriving after its turn is late: it is dropped or
+ * given apart, according to the {@link LatePolicy}.
+ * <p>
+ * The messages are given to the next stage outside the lock of the peer, one thread at a time for each peer so they
+ * keep their order.
+ * <p>
+ * Unlike {@link ReliableStage}, nothing is retransmitted. Both peers must use this stage.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class JitterBufferStage extends LinkStage {
+
+    /**
+     * Handling of the messages arriving after their turn.
+     */
+    public enum LatePolicy {
+        /**
+         * The late message is dropped.
+         */
+        DROP,
+        /**
+         * The late message is given after the next ones, to the late handler if one is set, to the next stage
+         * otherwise.
+         */
+        DELIVER
+    }
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 300;
+
+    /**
+     * Default minimum target delay in milliseconds.
+     */
+    public static final long DEFAULT_MIN_DELAY = 5;
+
+    /**
+     * Default maximum target delay in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 200;
+
+    /**
+     * Default maximum number of messages waiting for each peer.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Number of times the measured jitter giving the target delay.
+     */
+    private static final int JITTER_FACTOR = 4;
+
+    /**
+     * Size of the header: sequence number and send time in microseconds.
+     */
+    private static final int HEADER_SIZE = 4 + 4;
+
+    /**
+     * Minimum target delay in nanoseconds.
+     */
+    private final long minDelay;
+
+    /**
+     * Maximum target delay in nanoseconds.
+     */
+    private final long maxDelay;
+
+    /**
+     * Maximum number of messages waiting for each peer.
+     */
+    private final int capacity;
+
+    /**
+     * Handling of the late messages.
+     */
+    private final LatePolicy latePolicy;
+
+    /**
+     * Receiver of the late messages with {@link LatePolicy#DELIVER}, null to give them to the next stage.
+     */
+    private volatile BiConsumer<ByteBuffer, InetSocketAddress> lateHandler;
+
+    /**
+     * Sequence number of the next message sent, by peer.
+     */
+    private final Map<InetSocketAddress, SendState> sendStates = new ConcurrentHashMap<>();
+
+    /**
+     * Buffer by peer.
+     */
+    private final Map<InetSocketAddress, ReceiveState> receiveStates = new ConcurrentHashMap<>();
+
+    /**
+     * Number of messages given after waiting for a missing one.
+     */
+    private final AtomicLong reorderedMessages = new AtomicLong();
+
+    /**
+     * Number of missing messages skipped.
+     */
+    private final AtomicLong skippedMessages = new AtomicLong();
+
+    /**
+     * Number of messages arriving after their turn.
+     */
+    private final AtomicLong lateMessages = new AtomicLong();
+
+    /**
+     * Number of messages dropped because they are invalid or duplicated.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>JitterBufferStage</b></i>
+     *
+     * <pre> public JitterBufferStage() </pre>
+     *
+     * Constructor of {@link JitterBufferStage} with the default delays and capacity, dropping the late messages.
+     */
+    public JitterBufferStage() {
+        this(DEFAULT_MIN_DELAY, DEFAULT_MAX_DELAY, DEFAULT_CAPACITY, LatePolicy.DROP);
+    }
+
+    /**
+     * <i><b>JitterBufferStage</b></i>
+     *
+     * <pre> public JitterBufferStage(long minDelay, long maxDelay, int capacity, {@link LatePolicy} latePolicy) </pre>
+     *
+     * Constructor of {@link JitterBufferStage}.
+     * @param minDelay the minimum time in milliseconds a message waits for the missing ones before it.
+     * @param maxDelay the maximum time in milliseconds a message waits for the missing ones before it.
+     * @param capacity the maximum number of messages waiting for each peer. When the buffer is full, the oldest
+     *                 gap is skipped at once.
+     * @param latePolicy the handling of the messages arriving after their turn.
+     */
+    public JitterBufferStage(long minDelay, long maxDelay, int capacity, LatePolicy latePolicy) {
+        if (minDelay < 0 || maxDelay < minDelay)
+            throw new IllegalArgumentException("The delays must be positive, the minimum not above the maximum.");
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive.");
+        if (latePolicy == null)
+            throw new IllegalArgumentException("The late policy cannot be null.");
+
+        this.minDelay = TimeUnit.MILLISECONDS.toNanos(minDelay);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.capacity = capacity;
+        this.latePolicy = latePolicy;
+    }
+
+    /**
+     * <i><b>setLateHandler</b></i>
+     *
+     * <pre> public void setLateHandler({@link BiConsumer}&lt;{@link ByteBuffer}, {@link InetSocketAddress}&gt; lateHandler) </pre>
+     *
+     * With {@link LatePolicy#DELIVER}, give the late messages to this handler instead of the next stage, so the
+     * application can tell them from the ones in order. It is called on the thread giving the messages of the peer.
+     * @param lateHandler the receiver of the late messages and their source, null to give them to the next stage.
+     */
+    public void setLateHandler(BiConsumer<ByteBuffer, InetSocketAddress> lateHandler) {
+        this.lateHandler = lateHandler;
+    }
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return HEADER_SIZE;
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>getReorderedMessages</b></i>
+     *
+     * <pre> public long getReorderedMessages() </pre>
+     *
+     * @return the number of messages given after waiting in the buffer for a missing one.
+     */
+    public long getReorderedMessages() {
+        return reorderedMessages.get();
+    }
+
+    /**
+     * <i><b>getSkippedMessages</b></i>
+     *
+     * <pre> public long getSkippedMessages() </pre>
+     *
+     * @return the number of missing messages skipped after the target delay or because the buffer was full.
+     */
+    public long getSkippedMessages() {
+        return skippedMessages.get();
+    }
+
+    /**
+     * <i><b>getLateMessages</b></i>
+     *
+     * <pre> public long getLateMessages() </pre>
+     *
+     * @return the number of messages arriving after their turn, dropped or given according to the late policy.
+     */
+    public long getLateMessages() {
+        return lateMessages.get();
+    }
+
+    /**
+     * <i><b>getDroppedMessages</b></i>
+     *
+     * <pre> public long getDroppedMessages() </pre>
+     *
+     * @return the number of messages dropped because they are invalid or duplicated.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * <i><b>getJitter</b></i>
+     *
+     * <pre> public double getJitter({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address of the peer.
+     * @return the jitter measured on the arrivals of the peer in milliseconds, 0 if nothing is received.
+     */
+    public double getJitter(InetSocketAddress peer) {
+        ReceiveState state = receiveStates.get(peer);
+        if (state == null)
+            return 0;
+
+        synchronized (state) {
+            return state.jitter / 1_000_000.0;
+        }
+    }
+
+    /**
+     * <i><b>getTargetDelay</b></i>
+     *
+     * <pre> public double getTargetDelay({@link InetSocketAddress} peer) </pre>
+     *
+     * @param peer the address of the peer.
+     * @return the time in milliseconds a message of the peer currently waits for the missing ones before it.
+     */
+    public double getTargetDelay(InetSocketAddress peer) {
+        ReceiveState state = receiveStates.get(peer);
+        if (state == null)
+            return minDelay / 1_000_000.0;
+
+        synchronized (state) {
+            return targetDelay(state) / 1_000_000.0;
+        }
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the message with its sequence number and its send time.
+     * @param message the sent message.
+     * @param destination the address of the peer.
+     */
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        SendState state = sendStates.computeIfAbsent(destination, peer -> new SendState());
+        ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE + message.remaining());
+
+        synchronized (state) {
+            datagram.putInt(state.nextSequence++)
+                    .putInt((int) TimeUnit.NANOSECONDS.toMicros(nanoTime()))
+                    .put(message)
+                    .flip();
+        }
+
+        fireOutbound(datagram, destination);
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the message if it is the next one, keep it in the buffer if some are missing before it.
+     * @param message the received message.
+     * @param source the address of the peer.
+     */
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (message.remaining() < HEADER_SIZE) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        int sequence = message.getInt();
+        int sendTime = message.getInt();
+        long now = nanoTime();
+        ReceiveState state = receiveStates.computeIfAbsent(source, peer -> new ReceiveState());
+        boolean deliver;
+
+        synchronized (state) {
+            measureJitter(state, sendTime, now);
+
+            if (!state.started) {
+                state.started = true;
+                state.nextSequence = sequence;
+            }
+
+            int distance = sequence - (int) state.nextSequence;
+            if (distance < 0) {
+                lateMessages.incrementAndGet();
+                if (latePolicy == LatePolicy.DROP)
+                    return;
+                state.ready.add(new Ready(state.draining ? copy(message) : message, true));
+
+            } else if (distance == 0) {
+                state.nextSequence++;
+                state.ready.add(new Ready(state.draining ? copy(message) : message, false));
+                if (!state.buffer.isEmpty())
+                    release(state, source, now);
+
+            } else {
+                long position = state.nextSequence + distance;
+                if (state.buffer.containsKey(position)) {
+                    droppedMessages.incrementAndGet();
+                    return;
+                }
+
+                byte[] data = new byte[message.remaining()];
+                message.get(data);
+                state.buffer.put(position, new Pending(data, now));
+                release(state, source, now);
+            }
+            deliver = claim(state);
+        }
+
+        if (deliver)
+            deliver(state, source);
+    }
+
+    /**
+     * <i><b>copy</b></i>
+     *
+     * <pre> private {@link ByteBuffer} copy({@link ByteBuffer} message) </pre>
+     *
+     * @param message a received message, whose buffer is reused once {@link #onInbound} returns.
+     * @return a copy of the message, given later by another thread.
+     */
+    private ByteBuffer copy(ByteBuffer message) {
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * <i><b>measureJitter</b></i>
+     *
+     * <pre> private void measureJitter({@link ReceiveState} state, int sendTime, long now) </pre>
+     *
+     * Update the interarrival jitter of the peer with the variation of the transit time, like RTP does.
+     * @param state the buffer of the peer.
+     * @param sendTime the send time of the message in microseconds of the clock of the peer.
+     * @param now the arrival time in nanoseconds.
+     */
+    private void measureJitter(ReceiveState state, int sendTime, long now) {
+        long transit = now - TimeUnit.MICROSECONDS.toNanos(sendTime);
+        if (state.measured) {
+            long variation = Math.abs(transit - state.lastTransit);
+            if (variation < TimeUnit.SECONDS.toNanos(10))
+                state.jitter += (variation - state.jitter) / 16;
+        }
+
+        state.lastTransit = transit;
+        state.measured = true;
+    }
+
+    /**
+     * <i><b>targetDelay</b></i>
+     *
+     * <pre> private long targetDelay({@link ReceiveState} state) </pre>
+     *
+     * @param state the buffer of the peer.
+     * @return the time in nanoseconds a message waits for the missing ones before it.
+     */
+    private long targetDelay(ReceiveState state) {
+        return Math.max(minDelay, Math.min(maxDelay, JITTER_FACTOR * state.jitter));
+    }
+
+    /**
+     * <i><b>release</b></i>
+     *
+     * <pre> private void release({@link ReceiveState} state, {@link InetSocketAddress} source, long now) </pre>
+     *
+     * Give the buffered messages whose turn has come, skipping the gaps that waited the target delay or that do not
+     * fit in the buffer, then wait for the next gap. Called with the lock of the state: the messages are only queued,
+     * {@link #deliver(ReceiveState, InetSocketAddress)} gives them after the lock is released.
+     * @param state the buffer of the peer.
+     * @param source the address of the peer.
+     * @param now the current time in nanoseconds.
+     */
+    private void release(ReceiveState state, InetSocketAddress source, long now) {
+        long delay = targetDelay(state);
+
+        while (!state.buffer.isEmpty()) {
+            Map.Entry<Long, Pending> first = state.buffer.firstEntry();
+            Pending pending = first.getValue();
+            long gap = first.getKey() - state.nextSequence;
+
+            if (gap > 0 && state.buffer.size() <= capacity && now - pending.arrivalTime < delay)
+                break;
+
+            skippedMessages.addAndGet(gap);
+            state.buffer.pollFirstEntry();
+            state.nextSequence = first.getKey() + 1;
+            reorderedMessages.incrementAndGet();
+            state.ready.add(new Ready(ByteBuffer.wrap(pending.data).asReadOnlyBuffer(), false));
+        }
+
+        if (state.releaseTask != null) {
+            state.releaseTask.cancel(false);
+            state.releaseTask = null;
+        }
+
+        if (!state.buffer.isEmpty()) {
+            long wait = Math.max(0, state.buffer.firstEntry().getValue().arrivalTime + delay - now);
+            state.releaseTask = schedule(() -> {
+                synchronized (state) {
+                    if (receiveStates.get(source) != state)
+                        return;
+                    release(state, source, nanoTime());
+                    if (!claim(state))
+                        return;
+                }
+                deliver(state, source);
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * <i><b>claim</b></i>
+     *
+     * <pre> private boolean claim({@link ReceiveState} state) </pre>
+     *
+     * Take the delivery of the ready messages of the peer, if they are not already being given by another thread.
+     * Called with the lock of the state, so the thread which queued a message without copying it gives it itself.
+     * @param state the buffer of the peer.
+     * @return true if the caller must call {@link #deliver(ReceiveState, InetSocketAddress)}.
+     */
+    private boolean claim(ReceiveState state) {
+        if (state.draining || state.ready.isEmpty())
+            return false;
+        state.draining = true;
+        return true;
+    }
+
+    /**
+     * <i><b>deliver</b></i>
+     *
+     * <pre> private void deliver({@link ReceiveState} state, {@link InetSocketAddress} source) </pre>
+     *
+     * Give the ready messages of the peer without its lock, until none is left. The messages queued meanwhile by
+     * other threads are given too, so the messages of a peer keep their order.
+     * @param state the buffer of the peer, claimed by the caller.
+     * @param source the address of the peer.
+     */
+    private void deliver(ReceiveState state, InetSocketAddress source) {
+        boolean drained = false;
+        try {
+            while (true) {
+                Ready ready;
+                synchronized (state) {
+                    ready = state.ready.poll();
+                    if (ready == null) {
+                        state.draining = false;
+                        drained = true;
+                        return;
+                    }
+                }
+
+                BiConsumer<ByteBuffer, InetSocketAddress> handler = lateHandler;
+                if (ready.late && handler != null)
+                    handler.accept(ready.message, source);
+                else
+                    fireInbound(ready.message, source);
+            }
+        } finally {
+            /* A failing handler loses the ready messages, some of them may be buffers already reused */
+            if (!drained) {
+                synchronized (state) {
+                    state.ready.clear();
+                    state.draining = false;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onPeerClosed(InetSocketAddress peer) {
+        sendStates.remove(peer);
+
+        ReceiveState state = receiveStates.remove(peer);
+        if (state != null) {
+            synchronized (state) {
+                if (state.releaseTask != null)
+                    state.releaseTask.cancel(false);
+                state.buffer.clear();
+                state.ready.clear();
+            }
+        }
+    }
+
+    /*******************************************/
+    /*                 Classes                 */
+    /*******************************************/
+
+    /**
+     * Sequence numbers sent to a peer.
+     */
+    private static final class SendState {
+
+        private int nextSequence;
+    }
+
+    /**
+     * Buffer of the messages of a peer.
+     */
+    private static final class ReceiveState {
+
+        /**
+         * Messages waiting for the missing ones before them, by sequence number without wrapping.
+         */
+        private final TreeMap<Long, Pending> buffer = new TreeMap<>();
+
+        /**
+         * Messages whose turn has come, waiting to be given outside the lock.
+         */
+        private final Queue<Ready> ready = new ArrayDeque<>();
+
+        /**
+         * True while a thread gives the ready messages.
+         */
+        private boolean draining;
+
+        /**
+         * Next expected sequence number without wrapping, its low 32 bits being the sent one.
+         */
+        private long nextSequence;
+
+        private boolean started;
+
+        private ScheduledFuture<?> releaseTask;
+
+        /**
+         * Interarrival jitter in nanoseconds.
+         */
+        private long jitter;
+
+        private long lastTransit;
+
+        private boolean measured;
+    }
+
+    /**
+     * Message whose turn has come.
+     */
+    private static final class Ready {
+
+        private final ByteBuffer message;
+
+        private final boolean late;
+
+        private Ready(ByteBuffer message, boolean late) {
+            this.message = message;
+            this.late = late;
+        }
+    }
+
+    /**
+     * Message waiting in the buffer.
+     */
+    private static final class Pending {
+
+        private final byte[] data;
+
+        private final long arrivalTime;
+
+        private Pending(byte[] data, long arrivalTime) {
+            this.data = data;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+}
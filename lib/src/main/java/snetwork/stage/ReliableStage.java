@@ -0,0 +1,771 @@
+package snetwork.stage;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage delivering the messages reliably: each message has a sequence number, the receiver acknowledges
+ * them with selective acknowledgements and the sender retransmits the lost ones after a timeout computed
+ * from the measured round trip time. The sequence numbers sent after the oldest unacknowledged one are limited
+ * by a sliding window, the messages beyond it wait in a backlog.
+ * <p>
+ * In ordered mode, the messages are given to the application in the order they were sent. Otherwise, they
+ * are given as soon as they are received, without duplicates.
+ * <p>
+ * Both peers must use this stage.
+ */
+@SuppressWarnings({"DanglingJavadoc", "WeakerAccess", "unused"})
+public class ReliableStage extends LinkStage {
+
+    /**
+     * Order of the stage in a pipeline.
+     */
+    public static final int ORDER = 200;
+
+    /**
+     * Default number of messages waiting for an acknowledgement.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+
+    /**
+     * Default number of messages waiting for room in the window.
+     */
+    public static final int DEFAULT_MAX_BACKLOG = 1024;
+
+    /**
+     * Default number of retransmissions before a message is given up.
+     */
+    public static final int DEFAULT_MAX_RETRANSMISSIONS = 10;
+
+    /**
+     * Default minimum retransmission timeout in milliseconds.
+     */
+    public static final long DEFAULT_MIN_RTO = 20;
+
+    /**
+     * Default maximum retransmission timeout in milliseconds.
+     */
+    public static final long DEFAULT_MAX_RTO = 3000;
+
+    /**
+     * Retransmission timeout in milliseconds before the first round trip time measure.
+     */
+    private static final long INITIAL_RTO = 200;
+
+    /**
+     * Number of messages acknowledged after a missing one which triggers its retransmission.
+     */
+    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    /**
+     * Maximum number of ranges in a selective acknowledgement.
+     */
+    private static final int MAX_SACK_BLOCKS = 16;
+
+    /**
+     * Type of a data message.
+     */
+    private static final byte DATA = 0;
+
+    /**
+     * Type of an acknowledgement.
+     */
+    private static final byte ACK = 1;
+
+    /**
+     * Size of the header of a data message: type, sequence number and first unacknowledged sequence number.
+     */
+    private static final int DATA_HEADER_SIZE = 1 + 4 + 4;
+
+    /**
+     * Marker of a message received but already given to the application.
+     */
+    private static final byte[] DELIVERED = new byte[0];
+
+    /**
+     * True to give the messages in the order they were sent.
+     */
+    private final boolean ordered;
+
+    /**
+     * Maximum number of sequence numbers sent from the oldest unacknowledged one.
+     */
+    private final int windowSize;
+
+    /**
+     * Maximum number of messages waiting for room in the window.
+     */
+    private final int maxBacklog;
+
+    /**
+     * Number of retransmissions before a message is given up.
+     */
+    private final int maxRetransmissions;
+
+    /**
+     * Minimum retransmission timeout in nanoseconds.
+     */
+    private final long minRto;
+
+    /**
+     * Maximum retransmission timeout in nanoseconds.
+     */
+    private final long maxRto;
+
+    /**
+     * Send state by peer.
+     */
+    private final Map<InetSocketAddress, SendState> sendStates = new ConcurrentHashMap<>();
+
+    /**
+     * Receive state by peer.
+     */
+    private final Map<InetSocketAddress, ReceiveState> receiveStates = new ConcurrentHashMap<>();
+
+    /**
+     * Number of retransmitted messages.
+     */
+    private final AtomicLong retransmissions = new AtomicLong();
+
+    /**
+     * Number of messages given up.
+     */
+    private final AtomicLong failedMessages = new AtomicLong();
+
+    /**
+     * Number of duplicated messages received.
+     */
+    private final AtomicLong duplicateMessages = new AtomicLong();
+
+    /*******************************************/
+    /*              Constructor                */
+    /*******************************************/
+
+    /**
+     * <i><b>ReliableStage</b></i>
+     *
+     * <pre> public ReliableStage(boolean ordered) </pre>
+     *
+     * Constructor of {@link ReliableStage} with the default window and timeouts.
+     * @param ordered true to give the messages in the order they were sent.
+     */
+    public ReliableStage(boolean ordered) {
+        this(ordered, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_BACKLOG, DEFAULT_MAX_RETRANSMISSIONS, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+    }
+
+    /**
+     * <i><b>ReliableStage</b></i>
+     *
+     * <pre> public ReliableStage(boolean ordered, int windowSize, int maxBacklog, int maxRetransmissions, long minRto, long maxRto) </pre>
+     *
+     * Constructor of {@link ReliableStage}.
+     * @param ordered true to give the messages in the order they were sent.
+     * @param windowSize the maximum number of sequence numbers sent from the oldest unacknowledged one.
+     * @param maxBacklog the maximum number of messages waiting for room in the window. The messages beyond
+     *                   it are given up.
+     * @param maxRetransmissions the number of retransmissions before a message is given up.
+     * @param minRto the minimum retransmission timeout in milliseconds.
+     * @param maxRto the maximum retransmission timeout in milliseconds.
+     */
+    public ReliableStage(boolean ordered, int windowSize, int maxBacklog, int maxRetransmissions, long minRto, long maxRto) {
+        if (windowSize <= 0 || maxBacklog < 0 || maxRetransmissions < 0 || minRto <= 0 || maxRto < minRto)
+            throw new IllegalArgumentException("Invalid reliability parameters.");
+
+        this.ordered = ordered;
+        this.windowSize = windowSize;
+        this.maxBacklog = maxBacklog;
+        this.maxRetransmissions = maxRetransmissions;
+        this.minRto = TimeUnit.MILLISECONDS.toNanos(minRto);
+        this.maxRto = TimeUnit.MILLISECONDS.toNanos(maxRto);
+    }
+
+    @Override
+    protected int getOrder() {
+        return ORDER;
+    }
+
+    @Override
+    protected int getOverhead() {
+        return DATA_HEADER_SIZE;
+    }
+
+    /*******************************************/
+    /*                Counters                 */
+    /*******************************************/
+
+    /**
+     * <i><b>isOrdered</b></i>
+     *
+     * <pre> public boolean isOrdered() </pre>
+     *
+     * @return true if the messages are given in the order they were sent, false otherwise.
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * <i><b>getRetransmissions</b></i>
+     *
+     * <pre> public long getRetransmissions() </pre>
+     *
+     * @return the number of retransmitted messages.
+     */
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    /**
+     * <i><b>getFailedMessages</b></i>
+     *
+     * <pre> public long getFailedMessages() </pre>
+     *
+     * @return the number of messages given up.
+     */
+    public long getFailedMessages() {
+        return failedMessages.get();
+    }
+
+    /**
+     * <i><b>getDuplicateMessages</b></i>
+     *
+     * <pre> public long getDuplicateMessages() </pre>
+     *
+     * @return the number of duplicated messages received.
+     */
+    public long getDuplicateMessages() {
+        return duplicateMessages.get();
+    }
+
+    /**
+     * <i><b>getSmoothedRtt</b></i>
+     *
+     * <pre> public long getSmoothedRtt({@link InetSocketAddress} peer, {@link TimeUnit} unit) </pre>
+     *
+     * @param peer the address of the peer.
+     * @param unit the unit of the result.
+     * @return the smoothed round trip time with the peer, -1 if it has not been measured.
+     */
+    public long getSmoothedRtt(InetSocketAddress peer, TimeUnit unit) {
+        SendState state = sendStates.get(peer);
+        if (state == null)
+            return -1;
+        synchronized (state) {
+            return state.smoothedRtt < 0 ? -1 : unit.convert(state.smoothedRtt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /*******************************************/
+    /*                  Send                   */
+    /*******************************************/
+
+    /**
+     * <i><b>onOutbound</b></i>
+     *
+     * <pre> protected void onOutbound({@link ByteBuffer} message, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send the message with a new sequence number if the window is not full, put it in the backlog otherwise.
+     * @param message the sent message.
+     * @param destination the address of the peer.
+     */
+    @Override
+    protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+        byte[] data = new byte[message.remaining()];
+        message.get(data);
+
+        SendState state = sendStates.computeIfAbsent(destination, peer -> new SendState());
+        List<Segment> toSend = new ArrayList<>(1);
+        boolean failed = false;
+
+        synchronized (state) {
+            if (state.backlog.isEmpty() && state.hasRoom(windowSize))
+                toSend.add(state.newSegment(data, nanoTime()));
+            else if (state.backlog.size() < maxBacklog)
+                state.backlog.add(data);
+            else
+                failed = true;
+        }
+
+        if (failed) {
+            failedMessages.incrementAndGet();
+            onDeliveryFailed(destination, data);
+            return;
+        }
+
+        transmit(state, toSend, destination);
+    }
+
+    /**
+     * <i><b>transmit</b></i>
+     *
+     * <pre> private void transmit({@link SendState} state, {@link List}&lt;{@link Segment}&gt; segments, {@link InetSocketAddress} destination) </pre>
+     *
+     * Send data messages and start the retransmission timer.
+     * @param state the send state of the peer.
+     * @param segments the messages to send.
+     * @param destination the address of the peer.
+     */
+    private void transmit(SendState state, List<Segment> segments, InetSocketAddress destination) {
+        if (segments.isEmpty())
+            return;
+
+        long base;
+        synchronized (state) {
+            base = state.base();
+            scheduleRetransmission(state, destination);
+        }
+
+        for (Segment segment : segments) {
+            ByteBuffer datagram = ByteBuffer.allocate(DATA_HEADER_SIZE + segment.data.length);
+            datagram.put(DATA)
+                    .putInt((int) segment.sequence)
+                    .putInt((int) base)
+                    .put(segment.data)
+                    .flip();
+            fireOutbound(datagram, destination);
+        }
+    }
+
+    /**
+     * <i><b>scheduleRetransmission</b></i>
+     *
+     * <pre> private void scheduleRetransmission({@link SendState} state, {@link InetSocketAddress} destination) </pre>
+     *
+     * Start the retransmission timer if messages wait for an acknowledgement. Called with the state locked.
+     * @param state the send state of the peer.
+     * @param destination the address of the peer.
+     */
+    private void scheduleRetransmission(SendState state, InetSocketAddress destination) {
+        if (state.retransmissionTask != null || state.inFlight.isEmpty())
+            return;
+
+        long oldestSendTime = Long.MAX_VALUE;
+        for (Segment segment : state.inFlight.values())
+            oldestSendTime = Math.min(oldestSendTime, segment.lastSendTime);
+
+        long delay = Math.max(0, oldestSendTime + state.currentRto - nanoTime());
+        state.retransmissionTask = schedule(() -> retransmit(state, destination), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * <i><b>retransmit</b></i>
+     *
+     * <pre> private void retransmit({@link SendState} state, {@link InetSocketAddress} destination) </pre>
+     *
+     * Retransmit the messages whose timeout has expired, give up those retransmitted too many times and back
+     * off the timeout.
+     * @param state the send state of the peer.
+     * @param destination the address of the peer.
+     */
+    private void retransmit(SendState state, InetSocketAddress destination) {
+        List<Segment> toSend = new ArrayList<>();
+        List<Segment> givenUp = new ArrayList<>();
+
+        synchronized (state) {
+            state.retransmissionTask = null;
+            if (sendStates.get(destination) != state)
+                return;
+
+            long now = nanoTime();
+            Iterator<Segment> segments = state.inFlight.values().iterator();
+            while (segments.hasNext()) {
+                Segment segment = segments.next();
+                if (now - segment.lastSendTime < state.currentRto)
+                    continue;
+
+                if (segment.retransmissions >= maxRetransmissions) {
+                    segments.remove();
+                    givenUp.add(segment);
+                    continue;
+                }
+
+                segment.retransmissions++;
+                segment.lastSendTime = now;
+                toSend.add(segment);
+            }
+
+            if (!toSend.isEmpty())
+                state.currentRto = Math.min(state.currentRto * 2, maxRto);
+            retransmissions.addAndGet(toSend.size());
+
+            toSend.addAll(state.fillWindow(windowSize, nanoTime()));
+            scheduleRetransmission(state, destination);
+        }
+
+        for (Segment segment : givenUp) {
+            failedMessages.incrementAndGet();
+            onDeliveryFailed(destination, segment.data);
+        }
+
+        transmit(state, toSend, destination);
+    }
+
+    /*******************************************/
+    /*                 Receive                 */
+    /*******************************************/
+
+    /**
+     * <i><b>onInbound</b></i>
+     *
+     * <pre> protected void onInbound({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Acknowledge the data messages and give them to the next stage, or update the send state with an
+     * acknowledgement.
+     * @param message the received datagram.
+     * @param source the address of the peer.
+     */
+    @Override
+    protected void onInbound(ByteBuffer message, InetSocketAddress source) {
+        if (!message.hasRemaining())
+            return;
+
+        byte type = message.get();
+        if (type == DATA && message.remaining() >= DATA_HEADER_SIZE - 1)
+            onData(message, source);
+        else if (type == ACK && message.remaining() >= 9)
+            onAck(message, source);
+    }
+
+    /**
+     * <i><b>onData</b></i>
+     *
+     * <pre> private void onData({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Acknowledge a data message and give it and the messages it unblocks to the next stage.
+     * @param message the data message, after its type.
+     * @param source the address of the peer.
+     */
+    private void onData(ByteBuffer message, InetSocketAddress source) {
+        int wireSequence = message.getInt();
+        int wireBase = message.getInt();
+
+        ReceiveState state = receiveStates.computeIfAbsent(source, peer -> new ReceiveState());
+        List<byte[]> unblocked = new ArrayList<>();
+        boolean deliver = false;
+        int skipped = 0;
+        ByteBuffer ack;
+
+        synchronized (state) {
+            long sequence = state.unwrap(wireSequence);
+            long base = state.unwrap(wireBase);
+
+            /* Messages given up by the sender */
+            if (base > state.nextExpected)
+                state.skipTo(base, ordered, unblocked);
+            skipped = unblocked.size();
+
+            if (sequence < state.nextExpected || state.received.containsKey(sequence)) {
+                duplicateMessages.incrementAndGet();
+
+            } else if (sequence == state.nextExpected) {
+                deliver = true;
+                state.nextExpected++;
+                state.advance(ordered, unblocked);
+
+            } else if (sequence - state.nextExpected < windowSize) {
+                if (ordered) {
+                    byte[] data = new byte[message.remaining()];
+                    message.get(data);
+                    state.received.put(sequence, data);
+                } else {
+                    deliver = true;
+                    state.received.put(sequence, DELIVERED);
+                }
+            }
+
+            ack = state.createAck(sequence);
+        }
+
+        fireOutbound(ack, source);
+
+        /* The messages before the skipped sequence numbers come first */
+        for (int i = 0; i < skipped; i++)
+            fireInbound(ByteBuffer.wrap(unblocked.get(i)).asReadOnlyBuffer(), source);
+        if (deliver)
+            fireInbound(message, source);
+        for (int i = skipped; i < unblocked.size(); i++)
+            fireInbound(ByteBuffer.wrap(unblocked.get(i)).asReadOnlyBuffer(), source);
+    }
+
+    /**
+     * <i><b>onAck</b></i>
+     *
+     * <pre> private void onAck({@link ByteBuffer} message, {@link InetSocketAddress} source) </pre>
+     *
+     * Remove the acknowledged messages from the window, measure the round trip time, retransmit the messages
+     * reported missing and send the backlog.
+     * @param message the acknowledgement, after its type.
+     * @param source the address of the peer.
+     */
+    private void onAck(ByteBuffer message, InetSocketAddress source) {
+        SendState state = sendStates.get(source);
+        if (state == null)
+            return;
+
+        List<Segment> toSend = new ArrayList<>();
+
+        synchronized (state) {
+            long now = nanoTime();
+            long cumulativeAck = state.unwrap(message.getInt());
+            long trigger = state.unwrap(message.getInt());
+            int blocks = Math.min(message.get() & 0xFF, message.remaining() / 8);
+
+            /* Round trip time measured on the message which triggered the acknowledgement */
+            Segment triggerSegment = state.inFlight.get(trigger);
+            if (triggerSegment != null)
+                state.measureRtt(triggerSegment, now, minRto, maxRto);
+
+            /* Cumulative acknowledgement */
+            Iterator<Long> sequences = state.inFlight.keySet().iterator();
+            while (sequences.hasNext() && sequences.next() < cumulativeAck)
+                sequences.remove();
+
+            /* Selective acknowledgements */
+            long highestAcked = cumulativeAck - 1;
+            for (int i = 0; i < blocks; i++) {
+                long start = state.unwrap(message.getInt());
+                long end = state.unwrap(message.getInt());
+                for (long sequence = start; sequence < end && sequence - start <= windowSize; sequence++)
+                    state.inFlight.remove(sequence);
+                highestAcked = Math.max(highestAcked, end - 1);
+            }
+
+            /* Fast retransmission of the messages acknowledged after, at most once per round trip */
+            for (Segment segment : state.inFlight.values()) {
+                if (segment.sequence >= highestAcked)
+                    break;
+                if (++segment.skips >= FAST_RETRANSMIT_THRESHOLD && segment.retransmissions < maxRetransmissions
+                        && now - segment.lastSendTime >= state.smoothedRtt) {
+                    segment.skips = 0;
+                    segment.retransmissions++;
+                    segment.lastSendTime = now;
+                    toSend.add(segment);
+                }
+            }
+            retransmissions.addAndGet(toSend.size());
+
+            toSend.addAll(state.fillWindow(windowSize, nanoTime()));
+
+            if (state.inFlight.isEmpty() && state.retransmissionTask != null) {
+                state.retransmissionTask.cancel(false);
+                state.retransmissionTask = null;
+            }
+        }
+
+        transmit(state, toSend, source);
+    }
+
+    /*******************************************/
+    /*                   End                   */
+    /*******************************************/
+
+    @Override
+    protected void onPeerClosed(InetSocketAddress peer) {
+        SendState state = sendStates.remove(peer);
+        if (state != null) {
+            synchronized (state) {
+                if (state.retransmissionTask != null)
+                    state.retransmissionTask.cancel(false);
+                state.retransmissionTask = null;
+            }
+        }
+        receiveStates.remove(peer);
+    }
+
+    /**
+     * <i><b>onDeliveryFailed</b></i>
+     *
+     * <pre> protected void onDeliveryFailed({@link InetSocketAddress} destination, byte[] message) </pre>
+     *
+     * The action to do when a message is given up, after too many retransmissions or because the backlog is full.
+     * @param destination the address of the peer.
+     * @param message the message given up.
+     */
+    @SuppressWarnings("EmptyMethod")
+    protected void onDeliveryFailed(InetSocketAddress destination, byte[] message) {
+        /* do nothing */
+    }
+
+    /*******************************************/
+    /*                 Classes                 */
+    /*******************************************/
+
+    /**
+     * Message waiting for an acknowledgement.
+     */
+    private static final class Segment {
+
+        private final long sequence;
+
+        private final byte[] data;
+
+        private final long firstSendTime;
+
+        private long lastSendTime;
+
+        private int retransmissions;
+
+        private int skips;
+
+        private Segment(long sequence, byte[] data, long now) {
+            this.sequence = sequence;
+            this.data = data;
+            this.firstSendTime = now;
+            this.lastSendTime = firstSendTime;
+        }
+    }
+
+    /**
+     * State of the messages sent to a peer.
+     */
+    private static final class SendState {
+
+        private final TreeMap<Long, Segment> inFlight = new TreeMap<>();
+
+        private final Queue<byte[]> backlog = new ArrayDeque<>();
+
+        private long nextSequence;
+
+        private long smoothedRtt = -1;
+
+        private long rttVariation;
+
+        private long currentRto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO);
+
+        private ScheduledFuture<?> retransmissionTask;
+
+        private Segment newSegment(byte[] data, long now) {
+            Segment segment = new Segment(nextSequence++, data, now);
+            inFlight.put(segment.sequence, segment);
+            return segment;
+        }
+
+        private List<Segment> fillWindow(int windowSize, long now) {
+            List<Segment> segments = new ArrayList<>();
+            while (!backlog.isEmpty() && hasRoom(windowSize))
+                segments.add(newSegment(backlog.poll(), now));
+            return segments;
+        }
+
+        /**
+         * The window spans from the oldest unacknowledged sequence number, as the receiver only keeps the
+         * messages less than a window after the next one it expects: the messages acknowledged selectively
+         * do not make room.
+         */
+        private boolean hasRoom(int windowSize) {
+            return nextSequence - base() < windowSize;
+        }
+
+        private long base() {
+            return inFlight.isEmpty() ? nextSequence : inFlight.firstKey();
+        }
+
+        private long unwrap(int wireSequence) {
+            return nextSequence + (wireSequence - (int) nextSequence);
+        }
+
+        /**
+         * Measure the round trip time on the messages sent once (Karn's algorithm) and update the timeout.
+         */
+        private void measureRtt(Segment segment, long now, long minRto, long maxRto) {
+            if (segment.retransmissions > 0)
+                return;
+
+            long sample = now - segment.firstSendTime;
+            if (smoothedRtt < 0) {
+                smoothedRtt = sample;
+                rttVariation = sample / 2;
+            } else {
+                rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - sample)) / 4;
+                smoothedRtt = (7 * smoothedRtt + sample) / 8;
+            }
+            currentRto = Math.max(minRto, Math.min(maxRto, smoothedRtt + 4 * rttVariation));
+        }
+    }
+
+    /**
+     * State of the messages received from a peer.
+     */
+    private static final class ReceiveState {
+
+        private final TreeMap<Long, byte[]> received = new TreeMap<>();
+
+        private long nextExpected;
+
+        private long unwrap(int wireSequence) {
+            return nextExpected + (wireSequence - (int) nextExpected);
+        }
+
+        /**
+         * Move the next expected sequence number after the messages already received.
+         */
+        private void advance(boolean ordered, List<byte[]> unblocked) {
+            byte[] data;
+            while ((data = received.remove(nextExpected)) != null) {
+                if (ordered)
+                    unblocked.add(data);
+                nextExpected++;
+            }
+        }
+
+        /**
+         * Skip the messages given up by the sender.
+         */
+        private void skipTo(long base, boolean ordered, List<byte[]> unblocked) {
+            while (!received.isEmpty() && received.firstKey() < base) {
+                byte[] data = received.pollFirstEntry().getValue();
+                if (ordered)
+                    unblocked.add(data);
+            }
+            nextExpected = base;
+            advance(ordered, unblocked);
+        }
+
+        /**
+         * Acknowledge the received messages, the newest ranges first.
+         */
+        private ByteBuffer createAck(long trigger) {
+            List<long[]> blocks = new ArrayList<>();
+            long start = -1;
+            long end = -1;
+            for (long sequence : received.keySet()) {
+                if (sequence == end) {
+                    end++;
+                    continue;
+                }
+                if (start >= 0)
+                    blocks.add(new long[]{start, end});
+                start = sequence;
+                end = sequence + 1;
+            }
+            if (start >= 0)
+                blocks.add(new long[]{start, end});
+
+            Collections.reverse(blocks);
+            if (blocks.size() > MAX_SACK_BLOCKS)
+                blocks = blocks.subList(0, MAX_SACK_BLOCKS);
+
+            ByteBuffer ack = ByteBuffer.allocate(1 + 4 + 4 + 1 + 8 * blocks.size());
+            ack.put(ACK).putInt((int) nextExpected).putInt((int) trigger).put((byte) blocks.size());
+            for (long[] block : blocks)
+                ack.putInt((int) block[0]).putInt((int) block[1]);
+            ack.flip();
+            return ack;
+        }
+    }
+
+}
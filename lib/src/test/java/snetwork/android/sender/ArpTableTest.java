@@ -0,0 +1,97 @@
+package snetwork.android.sender;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArpTableTest {
+
+    private ArpTable table;
+
+    @Before
+    public void setUp() throws Exception {
+        table = ArpTable.read(new File(ArpTableTest.class.getResource("arp").toURI()));
+    }
+
+    private static List<InetAddress> addresses(String... literals) throws Exception {
+        InetAddress[] addresses = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++)
+            addresses[i] = InetAddress.getByName(literals[i]);
+        return Arrays.asList(addresses);
+    }
+
+    @Test
+    public void parsesThePaddedColumns() throws Exception {
+        List<ArpTable.Entry> entries = table.getEntries();
+
+        /* The header, the line without an IP literal and the truncated line are ignored */
+        assertEquals(7, entries.size());
+
+        ArpTable.Entry first = entries.get(0);
+        assertEquals(InetAddress.getByName("192.168.43.112"), first.getAddress());
+        assertEquals(0x2, first.getFlags());
+        assertEquals("a4:50:46:1b:9c:07", first.getHardwareAddress());
+        assertEquals("wlan0", first.getDevice());
+        assertTrue(first.isComplete());
+
+        assertEquals("rmnet_data0", entries.get(3).getDevice());
+    }
+
+    @Test
+    public void skipsTheIncompleteEntries() throws Exception {
+        List<ArpTable.Entry> entries = table.getEntries();
+
+        /* Flags 0x0 while the peer does not answer */
+        assertEquals(0x0, entries.get(1).getFlags());
+        assertFalse(entries.get(1).isComplete());
+        /* Complete flag with other flags set */
+        assertTrue(entries.get(2).isComplete());
+        /* Complete flag without a hardware address */
+        assertFalse(entries.get(6).isComplete());
+
+        assertEquals(addresses("192.168.43.112", "192.168.43.201", "192.168.1.1", "10.0.2.15"),
+                table.getPeers(null));
+    }
+
+    @Test
+    public void filtersTheDevices() throws Exception {
+        assertEquals(addresses("192.168.43.112", "192.168.43.201", "10.0.2.15"),
+                table.getPeers(ArpTable.DEFAULT_HOTSPOT_DEVICES));
+        assertEquals(addresses("192.168.43.112", "192.168.43.201"), table.getPeers(Pattern.compile("wlan0")));
+        assertTrue(table.getPeers(Pattern.compile("eth\\d+")).isEmpty());
+    }
+
+    @Test
+    public void parsesTabsAndLeadingSpaces() throws Exception {
+        ArpTable parsed = ArpTable.parse(new StringReader(
+                "  192.168.43.5\t0x1\t0x2\t\t11:22:33:44:55:66 *\t softap0  \n\n"));
+
+        assertEquals(1, parsed.getEntries().size());
+        assertEquals("softap0", parsed.getEntries().get(0).getDevice());
+        assertEquals(addresses("192.168.43.5"), parsed.getPeers(ArpTable.DEFAULT_HOTSPOT_DEVICES));
+    }
+
+    @Test
+    public void ignoresTheHostnamesMadeOfHexadecimalDigits() throws Exception {
+        /* Only literal addresses are kept: the hexadecimal words and out of range bytes would need a DNS request */
+        ArpTable parsed = ArpTable.parse(new StringReader(
+                "cafe         0x1  0x2  11:22:33:44:55:66  *  wlan0\n"
+                        + "dead.beef    0x1  0x2  11:22:33:44:55:67  *  wlan0\n"
+                        + "192.168.43.300 0x1  0x2  11:22:33:44:55:68  *  wlan0\n"
+                        + "fe80::1        0x1  0x2  11:22:33:44:55:69  *  wlan0\n"));
+
+        assertEquals(1, parsed.getEntries().size());
+        assertEquals(InetAddress.getByName("fe80::1"), parsed.getEntries().get(0).getAddress());
+    }
+
+}
@@ -0,0 +1,92 @@
+package snetwork.sim;
+
+import org.junit.Test;
+import snetwork.stage.FragmentationStage;
+import snetwork.stage.ReliableStage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedNetworkTest {
+
+    /**
+     * Send 200 messages of 3000 bytes over a bad wireless network, through a reliable and a fragmentation stage.
+     * @return the index and the delivery time of each delivered message, in the order of delivery.
+     */
+    private static List<Long> run(long seed) {
+        SimulatedPair pair = new SimulatedPair(seed, LinkConditions.badWifi());
+        pair.a.addStage(new ReliableStage(true)).addStage(new FragmentationStage());
+        pair.b.addStage(new ReliableStage(true)).addStage(new FragmentationStage());
+
+        List<Long> deliveries = new ArrayList<>();
+        pair.b.setHandler((message, source) -> {
+            deliveries.add((long) SimulatedPair.check(message));
+            deliveries.add(pair.network.getClock().nanoTime());
+        });
+        pair.sendAll(200, 3000, 10);
+        return deliveries;
+    }
+
+    @Test
+    public void sameSeedGivesSameDeliveries() {
+        List<Long> first = run(7);
+        assertEquals(400, first.size());
+        assertEquals(first, run(7));
+        assertNotEquals(first, run(8));
+    }
+
+    @Test
+    public void latencyDelaysTheDelivery() {
+        SimulatedPair pair = new SimulatedPair(1, new LinkConditions().setLatency(50));
+
+        long[] deliveryTime = {-1};
+        pair.b.setHandler((message, source) -> {
+            assertEquals(SimulatedPair.A, source);
+            deliveryTime[0] = pair.network.getClock().nanoTime();
+        });
+        pair.send(0, 10);
+        pair.runUntilIdle();
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), deliveryTime[0]);
+    }
+
+    @Test
+    public void lossAndReorderingAreCounted() {
+        SimulatedPair pair = new SimulatedPair(3, new LinkConditions().setLatency(10).setLossRate(0.1)
+                .setReorderRate(0.1));
+        List<Integer> received = pair.receive();
+        pair.sendAll(10000, 4, 1);
+
+        int outOfOrder = 0;
+        for (int i = 1; i < received.size(); i++) {
+            if (received.get(i) < received.get(i - 1))
+                outOfOrder++;
+        }
+
+        SimulatedNetwork network = pair.network;
+        assertEquals(10000, network.getSentMessages());
+        assertEquals(network.getSentMessages() - network.getLostMessages(), network.getDeliveredMessages());
+        assertEquals(network.getDeliveredMessages(), received.size());
+        assertTrue("loss " + network.getLostMessages(), Math.abs(network.getLostMessages() - 1000) < 150);
+        assertTrue(network.getReorderedMessages() > 0);
+        assertTrue(outOfOrder > 0);
+    }
+
+    @Test
+    public void faultStageDropsAndDelaysTheChosenDatagrams() {
+        SimulatedPair pair = new SimulatedPair(4, new LinkConditions().setLatency(10));
+        pair.a.addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram == 1).delay(2, 30));
+        List<Integer> received = pair.receive();
+        pair.sendAll(5, 100, 5);
+
+        assertEquals(4, pair.network.getSentMessages());
+        assertEquals(Arrays.asList(0, 3, 4, 2), received);
+    }
+
+}
@@ -0,0 +1,168 @@
+package snetwork.sim;
+
+import snetwork.LinkStage;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Two nodes of a seeded {@link SimulatedNetwork}, the node {@link #a} sending to the node {@link #b}. Each test
+ * message starts with its index and its other bytes depend on it, so the receiver can check its content.
+ */
+public final class SimulatedPair {
+
+    public static final InetSocketAddress A = new InetSocketAddress("10.0.0.1", 9000);
+
+    public static final InetSocketAddress B = new InetSocketAddress("10.0.0.2", 9000);
+
+    public final SimulatedNetwork network;
+
+    public final SimulatedNode a;
+
+    public final SimulatedNode b;
+
+    public SimulatedPair(long seed, LinkConditions conditions) {
+        network = new SimulatedNetwork(seed);
+        network.setConditions(conditions);
+        a = network.addNode(A);
+        b = network.addNode(B);
+    }
+
+    /*******************************************/
+    /*                Messages                 */
+    /*******************************************/
+
+    /**
+     * @return a message of the given size, at least 4, starting with its index.
+     */
+    public static ByteBuffer message(int index, int size) {
+        ByteBuffer message = ByteBuffer.allocate(size);
+        message.putInt(index);
+        while (message.hasRemaining())
+            message.put((byte) (index * 31 + message.position()));
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Check the content of a received message, without moving its position.
+     * @return the index of the message.
+     */
+    public static int check(ByteBuffer received) {
+        int start = received.position();
+        int index = received.getInt(start);
+        for (int i = 4; i < received.remaining(); i++)
+            assertEquals((byte) (index * 31 + i), received.get(start + i));
+        return index;
+    }
+
+    /**
+     * Check the messages received by B and record their index.
+     * @return the indexes of the received messages, in the order of delivery.
+     */
+    public List<Integer> receive() {
+        List<Integer> received = new ArrayList<>();
+        b.setHandler((message, source) -> {
+            assertEquals(A, source);
+            received.add(check(message));
+        });
+        return received;
+    }
+
+    public void send(int index, int size) {
+        a.send(message(index, size), B);
+    }
+
+    /**
+     * Send messages from A to B, one every interval, and run the network until it is idle.
+     * @param count the number of messages, their indexes starting at 0.
+     * @param size the size of the messages.
+     * @param interval the time between two messages in milliseconds.
+     */
+    public void sendAll(int count, int size, long interval) {
+        for (int i = 0; i < count; i++) {
+            send(i, size);
+            runFor(interval);
+        }
+        runUntilIdle();
+    }
+
+    public void runFor(long millis) {
+        network.getClock().runFor(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void runUntilIdle() {
+        network.getClock().runUntilIdle();
+    }
+
+    /*******************************************/
+    /*                 Faults                  */
+    /*******************************************/
+
+    /**
+     * Stage under all the others dropping or delaying chosen datagrams, counted from 0 in the order they are sent,
+     * to put a stage in a given situation whatever the seed.
+     */
+    public static final class FaultStage extends LinkStage {
+
+        private IntPredicate dropped = datagram -> false;
+
+        private int delayedDatagram = -1;
+
+        private long delay;
+
+        private int sentDatagrams;
+
+        /**
+         * @param dropped the datagrams to drop.
+         * @return the stage.
+         */
+        public FaultStage drop(IntPredicate dropped) {
+            this.dropped = dropped;
+            return this;
+        }
+
+        /**
+         * @param datagram the datagram to delay, the others being sent at once.
+         * @param millis the delay in milliseconds.
+         * @return the stage.
+         */
+        public FaultStage delay(int datagram, long millis) {
+            this.delayedDatagram = datagram;
+            this.delay = millis;
+            return this;
+        }
+
+        public int getSentDatagrams() {
+            return sentDatagrams;
+        }
+
+        @Override
+        protected int getOrder() {
+            return 0;
+        }
+
+        @Override
+        protected void onOutbound(ByteBuffer message, InetSocketAddress destination) {
+            int datagram = sentDatagrams++;
+            if (dropped.test(datagram))
+                return;
+
+            if (datagram == delayedDatagram) {
+                ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                copy.put(message).flip();
+                schedule(() -> fireOutbound(copy, destination), delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            fireOutbound(message, destination);
+        }
+    }
+
+}
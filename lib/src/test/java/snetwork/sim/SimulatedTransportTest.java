@@ -0,0 +1,113 @@
+package snetwork.sim;
+
+import org.junit.Test;
+import snetwork.stage.ReliableStage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimulatedTransportTest {
+
+    private static final int FRAMES = 500;
+
+    /**
+     * Bind a transport at the address of B, recording the index of the frames it receives.
+     */
+    private static void bind(SimulatedTransport transport, List<Integer> received) throws IOException {
+        transport.bind(SimulatedPair.B, (frame, source) -> {
+            assertEquals(SimulatedPair.A, source);
+            received.add(SimulatedPair.check(frame));
+        });
+    }
+
+    @Test
+    public void carriesTheFramesOverTheStagesOfItsNode() throws IOException {
+        SimulatedNetwork network = new SimulatedNetwork(81);
+        network.setConditions(LinkConditions.badWifi());
+        SimulatedTransport sender = new SimulatedTransport(network);
+        sender.bind(SimulatedPair.A, (frame, source) -> { });
+        sender.getNode().addStage(new ReliableStage(true));
+        List<Integer> received = new ArrayList<>();
+        SimulatedTransport receiver = new SimulatedTransport(network);
+        bind(receiver, received);
+        receiver.getNode().addStage(new ReliableStage(true));
+
+        for (int i = 0; i < FRAMES; i++) {
+            assertTrue(sender.send(SimulatedPair.message(i, 200), SimulatedPair.B));
+            network.getClock().runFor(2, TimeUnit.MILLISECONDS);
+        }
+        network.getClock().runUntilIdle();
+
+        assertTrue(network.getLostMessages() > 0);
+        assertEquals(FRAMES, received.size());
+        for (int i = 0; i < FRAMES; i++)
+            assertEquals(i, (int) received.get(i));
+    }
+
+    @Test
+    public void copiesTheTwoPartsOfAFrame() throws IOException {
+        SimulatedNetwork network = new SimulatedNetwork(82);
+        SimulatedTransport sender = new SimulatedTransport(network);
+        sender.bind(SimulatedPair.A, (frame, source) -> { });
+        List<Integer> received = new ArrayList<>();
+        bind(new SimulatedTransport(network), received);
+
+        ByteBuffer message = SimulatedPair.message(3, 100);
+        ByteBuffer head = message.duplicate();
+        head.limit(head.position() + 10);
+        ByteBuffer body = message.duplicate();
+        body.position(head.limit());
+        sender.send(head, body, SimulatedPair.B);
+        network.getClock().runUntilIdle();
+
+        assertEquals(1, received.size());
+        assertEquals(3, (int) received.get(0));
+    }
+
+    @Test
+    public void bindsAgainAfterClose() throws IOException {
+        SimulatedNetwork network = new SimulatedNetwork(83);
+        SimulatedTransport sender = new SimulatedTransport(network, 100);
+        sender.bind(SimulatedPair.A, (frame, source) -> { });
+        List<Integer> received = new ArrayList<>();
+        SimulatedTransport receiver = new SimulatedTransport(network);
+        bind(receiver, received);
+
+        /* The frame travelling to the closed transport is lost */
+        sender.send(SimulatedPair.message(0, 10), SimulatedPair.B);
+        receiver.close();
+        network.getClock().runUntilIdle();
+        assertEquals(1, network.getLostMessages());
+
+        bind(receiver, received);
+        sender.send(SimulatedPair.message(1, 10), SimulatedPair.B);
+        network.getClock().runUntilIdle();
+        assertEquals(1, (int) received.get(0));
+
+        try {
+            sender.send(SimulatedPair.message(2, 101), SimulatedPair.B);
+            fail("The frame is larger than the maximum size.");
+        } catch (ClosedChannelException e) {
+            fail("The transport is bound.");
+        } catch (IOException e) {
+            /* Expected */
+        }
+
+        sender.close();
+        try {
+            sender.send(SimulatedPair.message(3, 10), SimulatedPair.B);
+            fail("The transport is closed.");
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingStageTest {
+
+    private static final int MESSAGES = 10000;
+
+    /**
+     * Send the messages from A to B, ten every millisecond, every hundredth one too large for a batch, and run the
+     * network until it is idle.
+     */
+    private static void sendMixed(SimulatedPair pair) {
+        for (int i = 0; i < MESSAGES; i++) {
+            pair.send(i, i % 100 == 0 ? 2000 : 20);
+            if (i % 10 == 9)
+                pair.runFor(1);
+        }
+        pair.runUntilIdle();
+    }
+
+    private static void assertInOrder(List<Integer> received) {
+        assertEquals(MESSAGES, received.size());
+        for (int i = 0; i < MESSAGES; i++)
+            assertEquals(i, (int) received.get(i));
+    }
+
+    @Test
+    public void packsTheMessagesInOrder() {
+        SimulatedPair pair = new SimulatedPair(51, LinkConditions.perfect());
+        CoalescingStage sender = new CoalescingStage(1200, 1, TimeUnit.MILLISECONDS);
+        pair.a.addStage(sender);
+        pair.b.addStage(new CoalescingStage());
+        List<Integer> received = pair.receive();
+        sendMixed(pair);
+
+        /* The large messages are sent alone, between the batches */
+        assertInOrder(received);
+        assertEquals(MESSAGES - MESSAGES / 100, sender.getCoalescedMessages());
+        assertEquals(pair.network.getSentMessages(), sender.getSentBatches() + MESSAGES / 100);
+        assertTrue(sender.getSentBatches() < sender.getCoalescedMessages() / 5);
+    }
+
+    @Test
+    public void sendsABatchAfterTheFlushDelay() {
+        SimulatedPair pair = new SimulatedPair(52, new LinkConditions().setLatency(10));
+        CoalescingStage sender = new CoalescingStage(1200, 5, TimeUnit.MILLISECONDS);
+        pair.a.addStage(sender);
+        pair.b.addStage(new CoalescingStage());
+        List<Integer> received = pair.receive();
+
+        pair.send(0, 20);
+        pair.send(1, 20);
+        pair.runFor(14);
+        assertEquals(0, received.size());
+        pair.runFor(1);
+        assertEquals(2, received.size());
+        assertEquals(1, sender.getSentBatches());
+
+        pair.send(2, 20);
+        sender.flush();
+        pair.runFor(10);
+        assertEquals(3, received.size());
+        assertEquals(2, sender.getSentBatches());
+    }
+
+    @Test
+    public void dropsTheTruncatedBatches() {
+        SimulatedPair pair = new SimulatedPair(53, LinkConditions.perfect());
+        CoalescingStage receiver = new CoalescingStage();
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+
+        /* A batch whose second message is longer than the datagram, and a datagram of an unknown kind */
+        ByteBuffer batch = ByteBuffer.allocate(1 + 2 + 20 + 2 + 4);
+        batch.put((byte) 1).putShort((short) 20).put(SimulatedPair.message(0, 20))
+                .putShort((short) 100).putInt(1).flip();
+        pair.a.send(batch, SimulatedPair.B);
+        pair.a.send(ByteBuffer.wrap(new byte[]{7, 0, 0}), SimulatedPair.B);
+        pair.runUntilIdle();
+
+        assertEquals(1, received.size());
+        assertEquals(2, receiver.getDroppedDatagrams());
+    }
+
+    @Test
+    public void reliableStageCarriesTheBatches() {
+        SimulatedPair pair = new SimulatedPair(54, new LinkConditions().setLatency(20).setJitter(5)
+                .setLossRate(0.05).setReorderRate(0.05));
+        CoalescingStage sender = new CoalescingStage(1200, 1, TimeUnit.MILLISECONDS);
+        CoalescingStage receiver = new CoalescingStage();
+        pair.a.addStage(new ReliableStage(true)).addStage(sender);
+        pair.b.addStage(new ReliableStage(true)).addStage(receiver);
+        List<Integer> received = pair.receive();
+        sendMixed(pair);
+
+        assertTrue(pair.network.getLostMessages() > 0);
+        assertInOrder(received);
+        assertTrue(sender.getSentBatches() < sender.getCoalescedMessages());
+        assertEquals(0, receiver.getDroppedDatagrams());
+    }
+
+}
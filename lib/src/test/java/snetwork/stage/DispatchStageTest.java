@@ -0,0 +1,71 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DispatchStageTest {
+
+    /**
+     * Run the tasks given to the executor until none is left.
+     */
+    private static void runAll(List<Runnable> tasks) {
+        while (!tasks.isEmpty())
+            tasks.remove(0).run();
+    }
+
+    @Test
+    public void givesTheWaitingMessagesOfAClosedPeer() {
+        SimulatedPair pair = new SimulatedPair(71, LinkConditions.perfect());
+        List<Runnable> tasks = new ArrayList<>();
+        DispatchStage dispatch = new DispatchStage(tasks::add);
+        pair.b.addStage(dispatch);
+        List<Integer> received = pair.receive();
+
+        pair.send(0, 10);
+        pair.send(1, 10);
+        pair.runUntilIdle();
+        dispatch.onPeerClosed(SimulatedPair.A);
+        runAll(tasks);
+
+        assertEquals(Arrays.asList(0, 1), received);
+        assertEquals(0, dispatch.getQueueDepth(SimulatedPair.A));
+    }
+
+    @Test
+    public void reconnectingPeerKeepsASingleTask() {
+        SimulatedPair pair = new SimulatedPair(72, LinkConditions.perfect());
+        List<Runnable> tasks = new ArrayList<>();
+        DispatchStage dispatch = new DispatchStage(tasks::add);
+        pair.b.addStage(dispatch);
+        List<Integer> received = pair.receive();
+
+        /* The peer closes and comes back while the task of its first message has not run */
+        pair.send(0, 10);
+        pair.runUntilIdle();
+        dispatch.onPeerClosed(SimulatedPair.A);
+        pair.send(1, 10);
+        pair.runUntilIdle();
+
+        assertEquals(1, tasks.size());
+        assertEquals(2, dispatch.getQueueDepth(SimulatedPair.A));
+        runAll(tasks);
+        assertEquals(Arrays.asList(0, 1), received);
+
+        /* Once retired, the queue of the peer is created again by its next message */
+        dispatch.onPeerClosed(SimulatedPair.A);
+        pair.send(2, 10);
+        pair.runUntilIdle();
+        assertEquals(1, tasks.size());
+        runAll(tasks);
+        assertEquals(Arrays.asList(0, 1, 2), received);
+        assertEquals(3, dispatch.getDispatchedMessages());
+    }
+
+}
@@ -0,0 +1,105 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FecStageTest {
+
+    /**
+     * Datagrams of a default block on the wire: 8 data datagrams then 2 parity datagrams.
+     */
+    private static final int WIRE_BLOCK = FecStage.DEFAULT_BLOCK_SIZE + 2;
+
+    /**
+     * Send a full block after the block timeout, so the receiver closes the blocks still waited for.
+     */
+    private static void closeBlocks(SimulatedPair pair) {
+        pair.runFor(2000);
+        for (int i = 0; i < FecStage.DEFAULT_BLOCK_SIZE; i++)
+            pair.send(Integer.MAX_VALUE - i, 200);
+        pair.runUntilIdle();
+    }
+
+    @Test
+    public void rebuildsOneLostDatagramPerGroup() {
+        SimulatedPair pair = new SimulatedPair(31, new LinkConditions().setLatency(20));
+        FecStage sender = new FecStage();
+        FecStage receiver = new FecStage();
+        pair.a.addStage(sender).addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram % WIRE_BLOCK < 2));
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(800, 200, 1);
+
+        /* The first two datagrams of a block are in different parity groups */
+        assertEquals(2, sender.getParityCount());
+        assertEquals(200, sender.getSentParities());
+        assertEquals(800, received.size());
+        assertEquals(800, new HashSet<>(received).size());
+        assertEquals(200, receiver.getRecoveredDatagrams());
+        assertEquals(0, receiver.getUnrecoverableDatagrams());
+    }
+
+    @Test
+    public void cannotRebuildTwoLostDatagramsOfAGroup() {
+        SimulatedPair pair = new SimulatedPair(32, new LinkConditions().setLatency(20));
+        FecStage receiver = new FecStage();
+        pair.a.addStage(new FecStage()).addStage(new SimulatedPair.FaultStage()
+                .drop(datagram -> datagram < 10 * WIRE_BLOCK && datagram % WIRE_BLOCK % 4 == 0));
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(80, 200, 1);
+        closeBlocks(pair);
+
+        /* The datagrams 0 and 4 of a block are both in the group 0, the parity 8 is also lost */
+        assertEquals(80 - 20 + FecStage.DEFAULT_BLOCK_SIZE, received.size());
+        assertEquals(0, receiver.getRecoveredDatagrams());
+        assertEquals(20, receiver.getUnrecoverableDatagrams());
+    }
+
+    @Test
+    public void countsEveryLostDatagramOnARandomNetwork() {
+        SimulatedPair pair = new SimulatedPair(33, new LinkConditions().setLatency(20).setLossRate(0.03)
+                .setReorderRate(0.05));
+        FecStage sender = new FecStage();
+        FecStage receiver = new FecStage();
+        pair.a.addStage(sender);
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(5000, 200, 1);
+        closeBlocks(pair);
+
+        int delivered = received.size() - FecStage.DEFAULT_BLOCK_SIZE;
+        assertTrue(pair.network.getLostMessages() > 0);
+        assertTrue(sender.getSentParities() > 0);
+        assertTrue(receiver.getRecoveredDatagrams() > 0);
+        assertEquals(received.size(), new HashSet<>(received).size());
+        assertEquals(5000, delivered + receiver.getUnrecoverableDatagrams());
+        assertTrue(receiver.getUnrecoverableDatagrams() < receiver.getRecoveredDatagrams());
+    }
+
+    @Test
+    public void reliableStageOverFecDeliversEveryMessage() {
+        SimulatedPair pair = new SimulatedPair(34, new LinkConditions().setLatency(20).setJitter(5)
+                .setLossRate(0.05).setReorderRate(0.05));
+        ReliableStage sender = new ReliableStage(true);
+        FecStage receiverFec = new FecStage();
+        pair.a.addStage(sender).addStage(new FecStage());
+        pair.b.addStage(new ReliableStage(true)).addStage(receiverFec);
+        List<Integer> received = pair.receive();
+        pair.sendAll(5000, 200, 1);
+
+        assertEquals(5000, received.size());
+        for (int i = 0; i < received.size(); i++)
+            assertEquals(i, (int) received.get(i));
+        assertTrue(receiverFec.getRecoveredDatagrams() > 0);
+        assertEquals(0, sender.getFailedMessages());
+    }
+
+}
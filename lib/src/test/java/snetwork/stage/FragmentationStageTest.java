@@ -0,0 +1,133 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentationStageTest {
+
+    private static final int MESSAGES = 100;
+
+    private static final int MESSAGE_SIZE = 20000;
+
+    /**
+     * @return the number of datagrams of a message of {@link #MESSAGE_SIZE} bytes.
+     */
+    private static int fragmentCount() {
+        SimulatedPair pair = new SimulatedPair(20, LinkConditions.perfect());
+        pair.a.addStage(new FragmentationStage());
+        pair.send(0, MESSAGE_SIZE);
+        pair.runUntilIdle();
+        return (int) pair.network.getSentMessages();
+    }
+
+    @Test
+    public void reassemblesReorderedFragments() {
+        SimulatedPair pair = new SimulatedPair(21, new LinkConditions().setLatency(20).setJitter(15)
+                .setReorderRate(0.1));
+        FragmentationStage receiver = new FragmentationStage();
+        pair.a.addStage(new FragmentationStage());
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(MESSAGES, MESSAGE_SIZE, 5);
+
+        assertTrue(pair.network.getReorderedMessages() > 0);
+        assertEquals(MESSAGES, new HashSet<>(received).size());
+        assertEquals(MESSAGES, receiver.getReassembledMessages());
+        assertEquals(0, receiver.getDroppedMessages());
+        assertEquals(0, receiver.getReassemblyBytes());
+    }
+
+    @Test
+    public void expiresThePartialMessages() {
+        int fragments = fragmentCount();
+        SimulatedPair pair = new SimulatedPair(22, new LinkConditions().setLatency(10));
+        FragmentationStage receiver = new FragmentationStage(FragmentationStage.DEFAULT_MAX_MESSAGE_SIZE,
+                FragmentationStage.DEFAULT_MAX_REASSEMBLY_BYTES, 100);
+        pair.a.addStage(new FragmentationStage()).addStage(new SimulatedPair.FaultStage()
+                .drop(datagram -> datagram == fragments + 1));
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+
+        pair.send(0, MESSAGE_SIZE);
+        pair.send(1, MESSAGE_SIZE);
+        pair.runFor(50);
+        assertEquals(MESSAGE_SIZE, receiver.getReassemblyBytes());
+
+        pair.runFor(200);
+        assertEquals(0, receiver.getReassemblyBytes());
+        assertEquals(1, receiver.getDroppedMessages());
+        assertEquals(Arrays.asList(0), received);
+    }
+
+    @Test
+    public void boundsTheReassemblyMemory() {
+        int fragments = fragmentCount();
+        SimulatedPair pair = new SimulatedPair(23, new LinkConditions().setLatency(10));
+        FragmentationStage receiver = new FragmentationStage(FragmentationStage.DEFAULT_MAX_MESSAGE_SIZE,
+                2 * MESSAGE_SIZE + MESSAGE_SIZE / 2, FragmentationStage.DEFAULT_REASSEMBLY_TIMEOUT);
+        pair.a.addStage(new FragmentationStage()).addStage(new SimulatedPair.FaultStage()
+                .drop(datagram -> datagram < 5 * fragments && datagram % fragments == fragments - 1));
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+
+        /* The 5 first messages lose their last fragment, only the 2 newest partial messages are kept */
+        for (int i = 0; i < 6; i++) {
+            pair.send(i, MESSAGE_SIZE);
+            pair.runFor(5);
+            assertTrue(receiver.getReassemblyBytes() <= 2 * MESSAGE_SIZE);
+        }
+        pair.runFor(50);
+
+        assertEquals(Arrays.asList(5), received);
+        assertEquals(4, receiver.getDroppedMessages());
+        assertEquals(MESSAGE_SIZE, receiver.getReassemblyBytes());
+    }
+
+    @Test
+    public void dropsTheMessagesMissingFragments() {
+        SimulatedPair pair = new SimulatedPair(24, new LinkConditions().setLatency(20).setLossRate(0.05)
+                .setReorderRate(0.05));
+        FragmentationStage receiver = new FragmentationStage(FragmentationStage.DEFAULT_MAX_MESSAGE_SIZE,
+                FragmentationStage.DEFAULT_MAX_REASSEMBLY_BYTES, 1000);
+        pair.a.addStage(new FragmentationStage());
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(MESSAGES, MESSAGE_SIZE, 5);
+        pair.runFor(2000);
+
+        /* Each message has many fragments: most of them lose one */
+        assertTrue(received.size() < MESSAGES);
+        assertEquals(received.size(), receiver.getReassembledMessages());
+        assertEquals(MESSAGES, receiver.getReassembledMessages() + receiver.getDroppedMessages());
+        assertEquals(0, receiver.getReassemblyBytes());
+    }
+
+    @Test
+    public void deliversEveryMessageOverReliableStage() {
+        SimulatedPair pair = new SimulatedPair(25, new LinkConditions().setLatency(20).setJitter(10)
+                .setLossRate(0.05).setReorderRate(0.05));
+        FragmentationStage receiver = new FragmentationStage();
+        pair.a.addStage(new ReliableStage(true)).addStage(new FragmentationStage());
+        pair.b.addStage(new ReliableStage(true)).addStage(receiver);
+        List<Integer> received = pair.receive();
+
+        /* The window of the reliable stage must carry the fragments of a message in less than the interval */
+        pair.sendAll(MESSAGES, MESSAGE_SIZE, 50);
+
+        assertTrue(pair.network.getLostMessages() > 0);
+        assertEquals(MESSAGES, received.size());
+        for (int i = 0; i < MESSAGES; i++)
+            assertEquals(i, (int) received.get(i));
+        assertEquals(MESSAGES, receiver.getReassembledMessages());
+        assertEquals(0, receiver.getDroppedMessages());
+    }
+
+}
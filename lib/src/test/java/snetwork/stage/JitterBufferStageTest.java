@@ -0,0 +1,168 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JitterBufferStageTest {
+
+    private static LinkConditions jitteryConditions() {
+        return new LinkConditions()
+                .setLatency(20)
+                .setJitter(10)
+                .setLossRate(0.03)
+                .setDuplicationRate(0.01)
+                .setReorderRate(0.05);
+    }
+
+    /**
+     * Send 6 messages, one every millisecond, the datagram 1 being changed by the fault stage.
+     * @return the indexes of the delivered messages, in the order of delivery.
+     */
+    private static List<Integer> sendWithFault(JitterBufferStage receiver, SimulatedPair.FaultStage fault) {
+        SimulatedPair pair = new SimulatedPair(40, new LinkConditions().setLatency(20));
+        pair.a.addStage(new JitterBufferStage()).addStage(fault);
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(6, 40, 1);
+        return received;
+    }
+
+    @Test
+    public void releasesTheWaitingMessagesInOrder() {
+        JitterBufferStage receiver = new JitterBufferStage();
+        List<Integer> received = sendWithFault(receiver, new SimulatedPair.FaultStage().delay(1, 3));
+
+        /* The messages 2 and 3 arrive before 1 and wait for it */
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), received);
+        assertEquals(2, receiver.getReorderedMessages());
+        assertEquals(0, receiver.getSkippedMessages());
+        assertEquals(0, receiver.getLateMessages());
+    }
+
+    @Test
+    public void skipsALostMessageAfterTheTargetDelay() {
+        JitterBufferStage receiver = new JitterBufferStage();
+        SimulatedPair.FaultStage fault = new SimulatedPair.FaultStage().drop(datagram -> datagram == 1);
+        List<Integer> received = sendWithFault(receiver, fault);
+
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5), received);
+        assertEquals(1, receiver.getSkippedMessages());
+        assertEquals(0, receiver.getLateMessages());
+    }
+
+    @Test
+    public void dropsALateMessage() {
+        JitterBufferStage receiver = new JitterBufferStage();
+        List<Integer> received = sendWithFault(receiver, new SimulatedPair.FaultStage().delay(1, 500));
+
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5), received);
+        assertEquals(1, receiver.getSkippedMessages());
+        assertEquals(1, receiver.getLateMessages());
+    }
+
+    @Test
+    public void deliversALateMessageAfterTheNextOnes() {
+        JitterBufferStage receiver = new JitterBufferStage(JitterBufferStage.DEFAULT_MIN_DELAY,
+                JitterBufferStage.DEFAULT_MAX_DELAY, JitterBufferStage.DEFAULT_CAPACITY,
+                JitterBufferStage.LatePolicy.DELIVER);
+        List<Integer> received = sendWithFault(receiver, new SimulatedPair.FaultStage().delay(1, 500));
+
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5, 1), received);
+        assertEquals(1, receiver.getSkippedMessages());
+        assertEquals(1, receiver.getLateMessages());
+    }
+
+    @Test
+    public void givesTheLateMessagesToTheLateHandler() {
+        JitterBufferStage receiver = new JitterBufferStage(JitterBufferStage.DEFAULT_MIN_DELAY,
+                JitterBufferStage.DEFAULT_MAX_DELAY, JitterBufferStage.DEFAULT_CAPACITY,
+                JitterBufferStage.LatePolicy.DELIVER);
+        List<Integer> late = new ArrayList<>();
+        receiver.setLateHandler((message, source) -> {
+            assertEquals(SimulatedPair.A, source);
+            late.add(SimulatedPair.check(message));
+        });
+        List<Integer> received = sendWithFault(receiver, new SimulatedPair.FaultStage().delay(1, 500));
+
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5), received);
+        assertEquals(Arrays.asList(1), late);
+    }
+
+    @Test
+    public void givesTheMessagesWithoutTheLockOfThePeer() {
+        SimulatedPair pair = new SimulatedPair(43, new LinkConditions().setLatency(20));
+        JitterBufferStage receiver = new JitterBufferStage();
+        pair.a.addStage(new JitterBufferStage())
+                .addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram == 1));
+        pair.b.addStage(receiver);
+
+        /* A handler reading the state of the stage must not find it locked by the thread giving the message */
+        List<Integer> received = new ArrayList<>();
+        pair.b.setHandler((message, source) -> {
+            Thread reader = new Thread(() -> receiver.getTargetDelay(source));
+            reader.start();
+            try {
+                reader.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertFalse(reader.isAlive());
+            received.add(SimulatedPair.check(message));
+        });
+        pair.sendAll(4, 40, 1);
+
+        /* The messages 2 and 3 are given by the timer skipping the lost message */
+        assertEquals(Arrays.asList(0, 2, 3), received);
+        assertEquals(1, receiver.getSkippedMessages());
+    }
+
+    @Test
+    public void dropPolicyDeliversInOrderAndSkipsTheGaps() {
+        SimulatedPair pair = new SimulatedPair(41, jitteryConditions());
+        JitterBufferStage receiver = new JitterBufferStage();
+        pair.a.addStage(new JitterBufferStage());
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(2000, 40, 2);
+
+        assertTrue(pair.network.getLostMessages() > 0);
+        assertTrue(pair.network.getReorderedMessages() > 0);
+        for (int i = 1; i < received.size(); i++)
+            assertTrue(received.get(i - 1) < received.get(i));
+
+        /* Every sequence number up to the last delivered one is either delivered or skipped */
+        int last = received.get(received.size() - 1);
+        assertEquals(last + 1, received.size() + receiver.getSkippedMessages());
+        assertTrue(receiver.getReorderedMessages() > 0);
+        assertTrue(receiver.getDroppedMessages() > 0);
+        assertTrue(receiver.getJitter(SimulatedPair.A) > 0);
+        assertTrue(receiver.getTargetDelay(SimulatedPair.A) >= JitterBufferStage.DEFAULT_MIN_DELAY);
+        assertTrue(receiver.getTargetDelay(SimulatedPair.A) <= JitterBufferStage.DEFAULT_MAX_DELAY);
+    }
+
+    @Test
+    public void deliverPolicyGivesEveryArrivedMessageOnce() {
+        SimulatedPair pair = new SimulatedPair(42, jitteryConditions().setDuplicationRate(0));
+        JitterBufferStage receiver = new JitterBufferStage(1, 5, JitterBufferStage.DEFAULT_CAPACITY,
+                JitterBufferStage.LatePolicy.DELIVER);
+        pair.a.addStage(new JitterBufferStage());
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(2000, 40, 2);
+
+        assertTrue(receiver.getLateMessages() > 0);
+        assertEquals(received.size(), new HashSet<>(received).size());
+        assertEquals(2000 - pair.network.getLostMessages(), received.size());
+    }
+
+}
@@ -0,0 +1,170 @@
+package snetwork.stage;
+
+import org.junit.Test;
+import snetwork.sim.LinkConditions;
+import snetwork.sim.SimulatedPair;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReliableStageTest {
+
+    private static final int MESSAGES = 1000;
+
+    private static LinkConditions lossyConditions() {
+        return new LinkConditions()
+                .setLatency(20)
+                .setJitter(10)
+                .setLossRate(0.05)
+                .setDuplicationRate(0.01)
+                .setReorderRate(0.05);
+    }
+
+    /**
+     * Record the delivery time of the messages received by B, in milliseconds, by index.
+     */
+    private static List<Long> recordTimes(SimulatedPair pair, List<Integer> received) {
+        List<Long> times = new ArrayList<>();
+        pair.b.setHandler((message, source) -> {
+            received.add(SimulatedPair.check(message));
+            times.add(TimeUnit.NANOSECONDS.toMillis(pair.network.getClock().nanoTime()));
+        });
+        return times;
+    }
+
+    private static ReliableStage smallWindow() {
+        return new ReliableStage(true, 8, ReliableStage.DEFAULT_MAX_BACKLOG, ReliableStage.DEFAULT_MAX_RETRANSMISSIONS,
+                ReliableStage.DEFAULT_MIN_RTO, ReliableStage.DEFAULT_MAX_RTO);
+    }
+
+    private static void assertInOrder(int count, List<Integer> received) {
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(i, (int) received.get(i));
+    }
+
+    @Test
+    public void fastRetransmitsAMessageReportedMissing() {
+        SimulatedPair pair = new SimulatedPair(61, new LinkConditions().setLatency(20));
+        ReliableStage sender = new ReliableStage(true);
+        pair.a.addStage(sender).addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram == 2));
+        pair.b.addStage(new ReliableStage(true));
+        List<Integer> received = new ArrayList<>();
+        List<Long> times = recordTimes(pair, received);
+        pair.sendAll(10, 100, 1);
+
+        /* The selective acknowledgements of 3, 4 and 5 report 2 missing long before the initial timeout */
+        assertInOrder(10, received);
+        assertEquals(1, sender.getRetransmissions());
+        assertTrue("delivered at " + times.get(2), times.get(2) < 100);
+        assertEquals(0, sender.getFailedMessages());
+    }
+
+    @Test
+    public void retransmitsAfterTheTimeout() {
+        SimulatedPair pair = new SimulatedPair(62, new LinkConditions().setLatency(20));
+        ReliableStage sender = new ReliableStage(true);
+        pair.a.addStage(sender).addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram == 2));
+        pair.b.addStage(new ReliableStage(true));
+        List<Integer> received = new ArrayList<>();
+        List<Long> times = recordTimes(pair, received);
+        pair.sendAll(3, 100, 1);
+
+        /* Nothing is acknowledged after the last message: only the timer finds it lost */
+        assertInOrder(3, received);
+        assertEquals(1, sender.getRetransmissions());
+        assertTrue("delivered at " + times.get(2), times.get(2) > 100);
+    }
+
+    @Test
+    public void windowCountsFromTheOldestUnacknowledgedMessage() {
+        SimulatedPair pair = new SimulatedPair(63, new LinkConditions().setLatency(20));
+        ReliableStage sender = smallWindow();
+        ReliableStage receiver = smallWindow();
+        pair.a.addStage(sender).addStage(new SimulatedPair.FaultStage().drop(datagram -> datagram == 0));
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+
+        /* The selective acknowledgements of 1 to 7 must not let the sender go beyond the window of the receiver */
+        for (int i = 0; i < 30; i++)
+            pair.send(i, 100);
+        pair.runUntilIdle();
+
+        assertInOrder(30, received);
+        assertEquals(1, sender.getRetransmissions());
+        assertEquals(0, receiver.getDuplicateMessages());
+    }
+
+    @Test
+    public void givesUpAfterTooManyRetransmissions() {
+        SimulatedPair pair = new SimulatedPair(64, new LinkConditions().setLatency(20));
+        List<Integer> failed = new ArrayList<>();
+        ReliableStage sender = new ReliableStage(true, ReliableStage.DEFAULT_WINDOW_SIZE,
+                ReliableStage.DEFAULT_MAX_BACKLOG, 2, ReliableStage.DEFAULT_MIN_RTO, ReliableStage.DEFAULT_MAX_RTO) {
+            @Override
+            protected void onDeliveryFailed(InetSocketAddress destination, byte[] message) {
+                assertEquals(SimulatedPair.B, destination);
+                failed.add(SimulatedPair.check(ByteBuffer.wrap(message)));
+            }
+        };
+
+        /* The message 0 and its two retransmissions are lost */
+        pair.a.addStage(sender).addStage(new SimulatedPair.FaultStage()
+                .drop(datagram -> datagram == 0 || datagram == 2 || datagram == 3));
+        pair.b.addStage(new ReliableStage(true));
+        List<Integer> received = pair.receive();
+        pair.send(0, 100);
+        pair.send(1, 100);
+        pair.runUntilIdle();
+
+        assertEquals(Arrays.asList(0), failed);
+        assertEquals(1, sender.getFailedMessages());
+        assertEquals(2, sender.getRetransmissions());
+
+        /* The next message tells the receiver to skip the message given up */
+        pair.send(2, 100);
+        pair.runUntilIdle();
+        assertEquals(Arrays.asList(1, 2), received);
+    }
+
+    @Test
+    public void orderedDeliversEveryMessageInOrder() {
+        SimulatedPair pair = new SimulatedPair(11, lossyConditions());
+        ReliableStage sender = new ReliableStage(true);
+        pair.a.addStage(sender);
+        pair.b.addStage(new ReliableStage(true));
+        List<Integer> received = pair.receive();
+        pair.sendAll(MESSAGES, 100, 2);
+
+        assertTrue(pair.network.getLostMessages() > 0);
+        assertTrue(pair.network.getReorderedMessages() > 0);
+        assertInOrder(MESSAGES, received);
+        assertTrue(sender.getRetransmissions() > 0);
+        assertEquals(0, sender.getFailedMessages());
+    }
+
+    @Test
+    public void unorderedDeliversEveryMessageOnce() {
+        SimulatedPair pair = new SimulatedPair(12, lossyConditions());
+        ReliableStage sender = new ReliableStage(false);
+        ReliableStage receiver = new ReliableStage(false);
+        pair.a.addStage(sender);
+        pair.b.addStage(receiver);
+        List<Integer> received = pair.receive();
+        pair.sendAll(MESSAGES, 100, 2);
+
+        assertEquals(MESSAGES, received.size());
+        assertEquals(MESSAGES, new HashSet<>(received).size());
+        assertTrue(receiver.getDuplicateMessages() > 0);
+        assertEquals(0, sender.getFailedMessages());
+    }
+
+}